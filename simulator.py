@@ -8,12 +8,21 @@ import paho.mqtt.client as mqtt
 import argparse
 import json
 import datetime
+import time
 
 AOS_FRAME_LENGTH = 1115 
 SPACECRAFT_ID = 29
 VCID = 1
 IDLE_APID = 0x7FF
 
+# difference between the Yamcs instant (which counts the leap seconds since 1972) and the UNIX time
+# valid since the last leap second added at the end of 2016
+YAMCS_LEAP_MILLIS = 27000
+ENVELOPE_VERSION = 1
+ENVELOPE_FLAG_TIME = 0x01
+ENVELOPE_FLAG_STATION_ID = 0x02
+ENVELOPE_FLAG_SEQUENCE = 0x04
+
 def make_idle_ccsds_packet(length):
     if length < 7:
         raise ValueError("Length must be at least 7 bytes.")
@@ -76,6 +85,33 @@ def build_aos_frame(packet, seq_count):
     
 
 
+def encode_leaf(frame):
+    payload_str = " ".join(f"0x{byte:02x}" for byte in frame)
+    data = {
+        "timestamp": datetime.datetime.now().isoformat(),
+        "payload": payload_str
+    }
+    return json.dumps(data).encode('ascii')
+
+
+def encode_envelope(frame, seq, station_id=None):
+    """
+    Creates a binary envelope (see org.yamcs.mqtt.BinaryEnvelope) containing the current time,
+    the optional station id and the sequence number.
+    """
+    flags = ENVELOPE_FLAG_TIME | ENVELOPE_FLAG_SEQUENCE
+    station = b''
+    if station_id:
+        flags |= ENVELOPE_FLAG_STATION_ID
+        station = station_id.encode('utf-8')
+        station = struct.pack('>B', len(station)) + station
+    ns = time.time_ns()
+    millis = ns // 1000000 + YAMCS_LEAP_MILLIS
+    picos = (ns % 1000000) * 1000
+    header = struct.pack('>BBqI', ENVELOPE_VERSION, flags, millis, picos)
+    return header + station + struct.pack('>I', seq & 0xFFFFFFFF) + bytes(frame)
+
+
 def send_tm(simulator):
     with io.open('testdata.ccsds', 'rb') as f:        
         header = bytearray(6)
@@ -91,15 +127,15 @@ def send_tm(simulator):
            
             aos_frame = build_aos_frame(packet, simulator.tm_frame_counter)
             if (aos_frame):
-                #send the frame in json Leaf format
-                payload_str = " ".join(f"0x{byte:02x}" for byte in aos_frame)
-                data = {
-                    "timestamp": datetime.datetime.now().isoformat(),
-                    "payload": payload_str
-                }
-                json_data = json.dumps(data)
-                print(f"Sending data {json_data}");
-                simulator.client.publish(simulator.tm_frame_topic, json_data)
+                t0 = time.process_time()
+                if simulator.format == 'envelope':
+                    data = encode_envelope(aos_frame, simulator.tm_frame_counter, simulator.station_id)
+                else:
+                    #send the frame in json Leaf format
+                    data = encode_leaf(aos_frame)
+                simulator.encode_time += time.process_time() - t0
+                simulator.client.publish(simulator.tm_frame_topic, data)
+                simulator.tm_frame_bytes += len(data)
                 simulator.tm_frame_counter += 1
             
             
@@ -120,7 +156,11 @@ def on_tc_frame(client, userdata, message):
 
 class Simulator():
 
-    def __init__(self, broker):
+    def __init__(self, broker, format='leaf', station_id=None):
+        self.format = format
+        self.station_id = station_id
+        self.tm_frame_bytes = 0
+        self.encode_time = 0.0
         self.tm_packet_counter = 0
         self.tc_packet_counter = 0
         self.tm_frame_counter = 0
@@ -168,17 +208,25 @@ class Simulator():
         cmdhex = None
         if self.last_tc:
             cmdhex = binascii.hexlify(self.last_tc).decode('ascii')
-        return 'Sent: {} TM packets and {} TM frames. Received: {} TC packets and {} TC frames. Last TC: {}'.format(
-            self.tm_packet_counter, self.tm_frame_counter, self.tc_packet_counter, self.tc_frame_counter, cmdhex)
+        frame_stats = ''
+        if self.tm_frame_counter:
+            frame_stats = ' ({} bytes/frame, {:.1f} us/frame encoding)'.format(
+                self.tm_frame_bytes // self.tm_frame_counter, 1e6 * self.encode_time / self.tm_frame_counter)
+        return 'Sent: {} TM packets and {} {} TM frames{}. Received: {} TC packets and {} TC frames. Last TC: {}'.format(
+            self.tm_packet_counter, self.tm_frame_counter, self.format, frame_stats, self.tc_packet_counter,
+            self.tc_frame_counter, cmdhex)
 
 
 if __name__ == '__main__':
     parser = argparse.ArgumentParser(description='MQTT Simulator')
     parser.add_argument('--broker', type=str, default='tcp://test.mosquitto.org:1883', help='MQTT broker address')
-   
+    parser.add_argument('--format', choices=['leaf', 'envelope'], default='leaf',
+                        help='format of the TM frames: hex in JSON (leaf) or binary envelope (envelope)')
+    parser.add_argument('--station-id', type=str, default=None, help='station id added to the binary envelopes')
+
     args = parser.parse_args()
 
-    simulator = Simulator(args.broker)
+    simulator = Simulator(args.broker, args.format, args.station_id)
     simulator.start()
 
     try:
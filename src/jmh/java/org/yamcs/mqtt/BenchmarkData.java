@@ -0,0 +1,59 @@
+package org.yamcs.mqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates the payloads used by the benchmarks
+ */
+class BenchmarkData {
+    static final int IDLE_APID = 0x7FF;
+
+    /**
+     * CCSDS space packet of the given total length filled with random data
+     */
+    static byte[] ccsdsPacket(int apid, int seqCount, int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        var bb = ByteBuffer.wrap(data);
+        bb.putShort(0, (short) (apid & 0x7FF));
+        bb.putShort(2, (short) (0xC000 | (seqCount & 0x3FFF)));
+        bb.putShort(4, (short) (length - 7));
+        return data;
+    }
+
+    /**
+     * AOS frame without error control containing one packet followed by an idle packet
+     */
+    static byte[] aosFrame(int scid, int vcid, int seqCount, int frameLength, int packetLength) {
+        byte[] frame = new byte[frameLength];
+        var bb = ByteBuffer.wrap(frame);
+        bb.putShort(0, (short) ((1 << 14) | (scid << 6) | vcid));
+        bb.put(2, (byte) (seqCount >> 16));
+        bb.putShort(3, (short) seqCount);
+        bb.put(5, (byte) 0);
+        bb.putShort(6, (short) 0); // first header pointer
+        byte[] pkt = ccsdsPacket(100, seqCount, packetLength);
+        System.arraycopy(pkt, 0, frame, 8, pkt.length);
+        byte[] idle = ccsdsPacket(IDLE_APID, 0, frameLength - 8 - packetLength);
+        System.arraycopy(idle, 0, frame, 8 + pkt.length, idle.length);
+        return frame;
+    }
+
+    /**
+     * LeafSpace JSON message containing the data
+     */
+    static byte[] leafMessage(byte[] data) {
+        var sb = new StringBuilder(data.length * 5 + 64);
+        sb.append("{\"timestamp\": \"2024-08-12T22:23:28.430897\", \"payload\": \"");
+        for (int i = 0; i < data.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append("0x").append(Integer.toHexString(data[i] & 0xFF));
+        }
+        sb.append("\"}");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,90 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yamcs.YConfiguration;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Throughput of the MQTT message converters for different payload sizes.
+ * <p>
+ * Run with <code>mvn -Pjmh -DskipTests verify</code>; the GC profiler reports the allocation rate
+ * (gc.alloc.rate.norm is the number of bytes allocated per operation).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConverterBenchmark {
+
+    @Param({ "64", "1115", "8192", "65536" })
+    int size;
+
+    MqttMessage rawMessage;
+    MqttMessage leafMessage;
+    String hexString;
+
+    DefaultMqttToTmPacketConverter packetConverter;
+    DefaultMqttToFrameConverter frameConverter;
+
+    @Setup
+    public void setup() {
+        TimeEncoding.setUp();
+        byte[] data = BenchmarkData.ccsdsPacket(100, 0, size);
+        rawMessage = new MqttMessage(data);
+        byte[] leaf = BenchmarkData.leafMessage(data);
+        leafMessage = new MqttMessage(leaf);
+        String json = new String(leaf, StandardCharsets.US_ASCII);
+        hexString = json.substring(json.indexOf("0x"), json.lastIndexOf('"'));
+
+        packetConverter = new DefaultMqttToTmPacketConverter();
+        packetConverter.init("bench", "bench", YConfiguration.emptyConfig());
+        frameConverter = new DefaultMqttToFrameConverter();
+        frameConverter.init("bench", "bench", YConfiguration.emptyConfig());
+    }
+
+    @Benchmark
+    public byte[] parseHexString() {
+        return LeafMqttToTmPacketConverter.parseHexString(hexString);
+    }
+
+    @Benchmark
+    public Object parseLeafMessage() {
+        return LeafMqttToTmPacketConverter.parseLeafMessage(leafMessage);
+    }
+
+    @Benchmark
+    public Object parseLeafMessageJson() {
+        return LeafMqttToTmPacketConverter.parseLeafMessageJson(leafMessage);
+    }
+
+    @Benchmark
+    public void defaultPacketConverter(Blackhole bh) {
+        for (var pkt : packetConverter.convert(rawMessage)) {
+            bh.consume(pkt);
+        }
+    }
+
+    @Benchmark
+    public void defaultFrameConverter(Blackhole bh) {
+        for (var frame : frameConverter.convert(rawMessage)) {
+            bh.consume(frame);
+        }
+    }
+}
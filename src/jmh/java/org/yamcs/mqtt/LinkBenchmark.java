@@ -0,0 +1,157 @@
+package org.yamcs.mqtt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yamcs.ValidationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.tctm.TmPacketDataLink;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Throughput of the complete {@code messageArrived} path of the TM links, with the output stream replaced by a
+ * {@link Blackhole}. The links are not connected to any broker.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkBenchmark {
+    static final int NUM_MESSAGES = 256;
+
+    static Map<String, Object> connectionConfig() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("brokers", Arrays.asList("tcp://localhost:1883"));
+        m.put("connectionTimeoutSecs", 1);
+        m.put("autoReconnect", false);
+        m.put("keepAliveSecs", 60);
+        return m;
+    }
+
+    static Map<String, Object> preprocessorConfig(Map<String, Object> m) {
+        m.put("packetPreprocessorClassName", "org.yamcs.tctm.GenericPacketPreprocessor");
+        m.put("packetPreprocessorArgs", Map.of("timestampOffset", -1, "seqCountOffset", 2));
+        return m;
+    }
+
+    @State(Scope.Benchmark)
+    public static class PacketLinkState {
+        @Param({ "64", "1115", "8192", "65536" })
+        int size;
+
+        @Param({ "false", "true" })
+        boolean leaf;
+
+        MqttPacketLink link;
+        MqttMessage[] messages = new MqttMessage[NUM_MESSAGES];
+        int idx;
+
+        @Setup(Level.Trial)
+        public void setup(Blackhole bh) throws ValidationException {
+            TimeEncoding.setUp();
+            EventProducerFactory.setMockup(true);
+            var m = preprocessorConfig(connectionConfig());
+            m.put("tmTopic", "tm");
+            if (leaf) {
+                m.put("tmConverterClassName", LeafMqttToTmPacketConverter.class.getName());
+            }
+            link = new MqttPacketLink();
+            link.init("bench", "bench-packets", link.getSpec().validate(YConfiguration.wrap(m)));
+            link.setTmSink(pkt -> bh.consume(pkt));
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                byte[] pkt = BenchmarkData.ccsdsPacket(100, i, size);
+                messages[i] = new MqttMessage(leaf ? BenchmarkData.leafMessage(pkt) : pkt);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            link.connection.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FrameLinkState {
+        // AOS frames are limited in size
+        @Param({ "256", "1115", "2048" })
+        int frameLength;
+
+        @Param({ "false", "true" })
+        boolean leaf;
+
+        MqttTmFrameLink link;
+        MqttMessage[] messages = new MqttMessage[NUM_MESSAGES];
+        int idx;
+
+        @Setup(Level.Trial)
+        public void setup(Blackhole bh) throws ValidationException {
+            TimeEncoding.setUp();
+            EventProducerFactory.setMockup(true);
+            var m = connectionConfig();
+            m.put("topic", "tm");
+            if (leaf) {
+                m.put("converterClassName", LeafMqttToFrameConverter.class.getName());
+            }
+            m.put("frameType", "AOS");
+            m.put("spacecraftId", 29);
+            m.put("frameLength", frameLength);
+            m.put("frameHeaderErrorControlPresent", false);
+            m.put("insertZoneLength", 0);
+            m.put("errorDetection", "NONE");
+            var vc = preprocessorConfig(new HashMap<>());
+            vc.put("vcId", 1);
+            vc.put("ocfPresent", false);
+            vc.put("service", "PACKET");
+            vc.put("maxPacketLength", 2048);
+            vc.put("stream", "tm_realtime");
+            m.put("virtualChannels", List.of(vc));
+
+            link = new MqttTmFrameLink();
+            link.init("bench", "bench-frames", link.getSpec().validate(YConfiguration.wrap(m)));
+            for (var subLink : link.getSubLinks()) {
+                if (subLink instanceof TmPacketDataLink) {
+                    ((TmPacketDataLink) subLink).setTmSink(pkt -> bh.consume(pkt));
+                }
+            }
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                byte[] frame = BenchmarkData.aosFrame(29, 1, i, frameLength, frameLength / 2);
+                messages[i] = new MqttMessage(leaf ? BenchmarkData.leafMessage(frame) : frame);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            link.connections.get(0).close();
+        }
+    }
+
+    @Benchmark
+    public void packetLinkMessageArrived(PacketLinkState state) {
+        state.link.messageArrived("tm", state.messages[state.idx++ & (NUM_MESSAGES - 1)]);
+    }
+
+    @Benchmark
+    public void frameLinkMessageArrived(FrameLinkState state) {
+        state.link.messageArrived("tm", state.messages[state.idx++ & (NUM_MESSAGES - 1)]);
+    }
+}
@@ -0,0 +1,212 @@
+package org.yamcs.mqtt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Drives a load test: sends messages at the configured rate for the configured duration and measures the messages
+ * and bytes received at the other end, the end-to-end latency and the heap growth.
+ * <p>
+ * The parameters are read from the system properties (passed by the <code>loadtest</code> profile):
+ * <ul>
+ * <li><code>loadtest.rate</code>: messages per second; 0 sends as fast as possible. Default: 5000.</li>
+ * <li><code>loadtest.size</code>: the size of the packets, frames or commands in bytes. Default: depends on the
+ * test.</li>
+ * <li><code>loadtest.duration</code>: the duration of the sending in seconds. Default: 10.</li>
+ * <li><code>loadtest.qos</code>: the QoS of the messages. Default: 1.</li>
+ * <li><code>loadtest.maxOutstanding</code>: the maximum number of messages sent and not yet received; the sending
+ * pauses when it is reached. Default: 1000.</li>
+ * </ul>
+ * The send time ({@link System#nanoTime()}) is written in each packet just after the CCSDS primary header, at
+ * {@value #TIME_OFFSET}, and read back when the packet arrives; both ends run in the same JVM.
+ */
+class LoadTest {
+    static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    static final int TIME_OFFSET = 6;
+    static final int MIN_SIZE = TIME_OFFSET + 8;
+    static final long RECEIVE_TIMEOUT_MILLIS = 30_000;
+
+    final String name;
+    final double rate;
+    final int size;
+    final long durationNanos;
+    final MqttQoS qos;
+    final int maxOutstanding;
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong receivedCount = new AtomicLong();
+    final AtomicLong receivedBytes = new AtomicLong();
+    volatile long lastReceivedNanos;
+
+    long sentCount;
+    long sentBytes;
+    long startNanos;
+    long heapBefore;
+
+    /**
+     * Sends the message with the given sequence number
+     */
+    @FunctionalInterface
+    interface Sender {
+        /**
+         * @return the number of bytes sent or -1 if the message could not be sent now and has to be retried
+         */
+        int send(long seq) throws Exception;
+    }
+
+    LoadTest(String name, int defaultSize) {
+        this.name = name;
+        this.rate = Double.parseDouble(System.getProperty("loadtest.rate", "5000"));
+        this.size = Math.max(MIN_SIZE, Integer.getInteger("loadtest.size", defaultSize));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("loadtest.duration", 10));
+        this.qos = MqttQoS.valueOf(Integer.getInteger("loadtest.qos", 1));
+        this.maxOutstanding = Integer.getInteger("loadtest.maxOutstanding", 1000);
+    }
+
+    /**
+     * Calls the sender at the configured rate until the duration has elapsed
+     */
+    void run(Sender sender) throws Exception {
+        heapBefore = usedHeapAfterGc();
+        startNanos = System.nanoTime();
+        long end = startNanos + durationNanos;
+        long seq = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (rate > 0) {
+                long due = startNanos + (long) (seq * 1e9 / rate);
+                if (due > now) {
+                    LockSupport.parkNanos(Math.min(due - now, 1_000_000));
+                    continue;
+                }
+            }
+            if (seq - receivedCount.get() >= maxOutstanding) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int n = sender.send(seq);
+            if (n < 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            sentBytes += n;
+            seq++;
+        }
+        sentCount = seq;
+    }
+
+    /**
+     * Called when a message sent by the test arrives at the other end
+     *
+     * @param timeOffset
+     *            the offset in the data of the send time
+     */
+    void received(byte[] data, int timeOffset) {
+        long t = System.nanoTime();
+        latency.record(t - (long) LONG.get(data, timeOffset));
+        receivedBytes.addAndGet(data.length);
+        receivedCount.incrementAndGet();
+        lastReceivedNanos = t;
+    }
+
+    /**
+     * Waits for all the messages sent to be received and prints the report
+     *
+     * @return the number of messages received
+     */
+    long finish() throws InterruptedException {
+        awaitCondition(() -> receivedCount.get() >= sentCount, RECEIVE_TIMEOUT_MILLIS);
+        long heapAfter = usedHeapAfterGc();
+        long count = receivedCount.get();
+        double secs = (lastReceivedNanos - startNanos) / 1e9;
+        var p = latency.total();
+        System.out.printf("%n=== %s: %d bytes, QoS %d, rate %s, %d s%n", name, size, qos.value(),
+                rate > 0 ? rate + " msg/s" : "max", TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        System.out.printf("sent:       %d messages, %d bytes%n", sentCount, sentBytes);
+        System.out.printf("received:   %d messages, %d bytes%n", count, receivedBytes.get());
+        System.out.printf("throughput: %.0f msg/s, %.2f MB/s%n", count / secs, receivedBytes.get() / secs / 1e6);
+        System.out.printf("latency:    p50 %s, p90 %s, p99 %s, p99.9 %s, max %s%n", micros(p.getPercentile(50)),
+                micros(p.getPercentile(90)), micros(p.getPercentile(99)), micros(p.getPercentile(99.9)),
+                micros(p.getMax()));
+        System.out.printf("heap:       %.1f MB before, %.1f MB after, growth %.1f MB%n", heapBefore / 1e6,
+                heapAfter / 1e6, (heapAfter - heapBefore) / 1e6);
+        return count;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.0f us", nanos / 1e3);
+    }
+
+    static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return true if the condition became true before the timeout
+     */
+    static boolean awaitCondition(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * CCSDS space packet of the given total length containing the current time at {@value #TIME_OFFSET}
+     */
+    static byte[] ccsdsPacket(int apid, long seq, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, TIME_OFFSET + 8, length, (byte) seq);
+        data[0] = (byte) ((apid >> 8) & 0x07);
+        data[1] = (byte) apid;
+        data[2] = (byte) (0xC0 | ((seq >> 8) & 0x3F));
+        data[3] = (byte) seq;
+        data[4] = (byte) ((length - 7) >> 8);
+        data[5] = (byte) (length - 7);
+        LONG.set(data, TIME_OFFSET, System.nanoTime());
+        return data;
+    }
+
+    static int apid(byte[] packet) {
+        return ((packet[0] & 0x07) << 8) | (packet[1] & 0xFF);
+    }
+
+    /**
+     * The configuration of a link connecting to the local broker
+     */
+    static Map<String, Object> connectionConfig(int port, String clientId) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("brokers", Arrays.asList("tcp://localhost:" + port));
+        m.put("clientId", clientId);
+        m.put("persistence", "memory");
+        m.put("connectionTimeoutSecs", 5);
+        m.put("autoReconnect", false);
+        m.put("keepAliveSecs", 60);
+        return m;
+    }
+
+    static Map<String, Object> preprocessorConfig(Map<String, Object> m) {
+        m.put("packetPreprocessorClassName", "org.yamcs.tctm.GenericPacketPreprocessor");
+        m.put("packetPreprocessorArgs", Map.of("timestampOffset", -1, "seqCountOffset", 2));
+        return m;
+    }
+}
@@ -0,0 +1,90 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.cmdhistory.CommandHistoryPublisher;
+import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.utils.TimeEncoding;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Load test of {@link MqttPacketLink}: TM packets published by the broker to the link and TC packets sent by the link
+ * to the broker.
+ */
+public class PacketLinkLoadIT {
+    static final int APID = 100;
+    FakeMqttBroker broker;
+    MqttPacketLink link;
+
+    @BeforeEach
+    public void beforeEach() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(true);
+        broker = new FakeMqttBroker();
+        broker.maxGrantedQos = MqttQoS.EXACTLY_ONCE;
+        broker.recordPayloads = false;
+        broker.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+        broker.stop();
+    }
+
+    @Test
+    public void testTm() throws Exception {
+        var test = new LoadTest("MqttPacketLink TM", 1115);
+        var m = LoadTest.preprocessorConfig(LoadTest.connectionConfig(broker.port, "loadtest-tm"));
+        m.put("tmTopic", "tm");
+        m.put("subscribeQos", test.qos.value());
+        link = new MqttPacketLink();
+        link.init("loadtest", "loadtest-packets", link.getSpec().validate(YConfiguration.wrap(m)));
+        link.setTmSink(pkt -> test.received(pkt.getPacket(), LoadTest.TIME_OFFSET));
+        link.startAsync().awaitRunning();
+        assertTrue(LoadTest.awaitCondition(() -> broker.getSubscribedClientCount() == 1, 5000));
+
+        test.run(seq -> {
+            byte[] pkt = LoadTest.ccsdsPacket(APID, seq, test.size);
+            broker.publish("tm", pkt, test.qos);
+            return pkt.length;
+        });
+        assertEquals(test.sentCount, test.finish());
+    }
+
+    @Test
+    public void testTc() throws Exception {
+        var test = new LoadTest("MqttPacketLink TC", 64);
+        var m = LoadTest.connectionConfig(broker.port, "loadtest-tc");
+        m.put("tcTopic", "tc");
+        m.put("publishQos", test.qos.value());
+        m.put("maxInflight", Math.min(test.maxOutstanding, 65535));
+        link = new MqttPacketLink();
+        link.init("loadtest", "loadtest-packets", link.getSpec().validate(YConfiguration.wrap(m)));
+        link.setCommandHistoryPublisher(mock(CommandHistoryPublisher.class, withSettings().stubOnly()));
+        broker.onPublish = (topic, payload) -> test.received(payload, LoadTest.TIME_OFFSET);
+        link.startAsync().awaitRunning();
+        assertTrue(LoadTest.awaitCondition(() -> link.connection.isConnected(), 5000));
+
+        test.run(seq -> {
+            byte[] pkt = LoadTest.ccsdsPacket(APID, seq, test.size);
+            var pc = mock(PreparedCommand.class, withSettings().stubOnly());
+            when(pc.getBinary()).thenReturn(pkt);
+            // false if the in-flight window is full
+            return link.sendCommand(pc) ? pkt.length : -1;
+        });
+        assertEquals(test.sentCount, test.finish());
+    }
+}
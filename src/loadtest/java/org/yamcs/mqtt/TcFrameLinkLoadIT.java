@@ -0,0 +1,98 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.cmdhistory.CommandHistoryPublisher;
+import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.tctm.TcDataLink;
+import org.yamcs.utils.TimeEncoding;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Load test of {@link MqttTcFrameLink}: commands sent to the virtual channel of the link, published as TC frames to
+ * the broker. The latency is measured from the sending of the command to the reception of the frame by the broker.
+ */
+public class TcFrameLinkLoadIT {
+    static final int SCID = 29;
+    static final int APID = 100;
+    // TC frame primary header
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_FRAME_LENGTH = 1024;
+
+    FakeMqttBroker broker;
+    MqttTcFrameLink link;
+
+    @BeforeEach
+    public void beforeEach() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(true);
+        broker = new FakeMqttBroker();
+        broker.recordPayloads = false;
+        broker.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+        broker.stop();
+    }
+
+    @Test
+    public void testTcFrames() throws Exception {
+        var test = new LoadTest("MqttTcFrameLink", 64);
+        // the packet and the frame error control have to fit in a frame
+        int packetLength = Math.min(test.size, MAX_FRAME_LENGTH - HEADER_LENGTH - 2);
+
+        var m = LoadTest.connectionConfig(broker.port, "loadtest-tcframes");
+        m.put("topic", "tc");
+        m.put("publishQos", test.qos.value());
+        m.put("maxInflight", Math.min(test.maxOutstanding, 65535));
+        m.put("spacecraftId", SCID);
+        m.put("maxFrameLength", MAX_FRAME_LENGTH);
+        m.put("errorDetection", "CRC16");
+        Map<String, Object> vc = new HashMap<>();
+        vc.put("vcId", 0);
+        vc.put("service", "PACKET");
+        vc.put("useCop1", false);
+        vc.put("commandPostprocessorClassName", "org.yamcs.tctm.GenericCommandPostprocessor");
+        m.put("virtualChannels", List.of(vc));
+
+        link = new MqttTcFrameLink();
+        link.init("loadtest", "loadtest-tcframes", link.getSpec().validate(YConfiguration.wrap(m)));
+        TcDataLink vcLink = null;
+        for (var subLink : link.getSubLinks()) {
+            if (subLink instanceof TcDataLink) {
+                vcLink = (TcDataLink) subLink;
+                vcLink.setCommandHistoryPublisher(mock(CommandHistoryPublisher.class, withSettings().stubOnly()));
+            }
+        }
+        var tcLink = vcLink;
+        broker.onPublish = (topic, frame) -> test.received(frame, HEADER_LENGTH + LoadTest.TIME_OFFSET);
+        link.startAsync().awaitRunning();
+        assertTrue(LoadTest.awaitCondition(() -> link.connection.isConnected(), 5000));
+
+        test.run(seq -> {
+            byte[] pkt = LoadTest.ccsdsPacket(APID, seq, packetLength);
+            var pc = mock(PreparedCommand.class, withSettings().stubOnly());
+            when(pc.getBinary()).thenReturn(pkt);
+            return tcLink.sendCommand(pc) ? pkt.length : -1;
+        });
+        assertEquals(test.sentCount, test.finish());
+    }
+}
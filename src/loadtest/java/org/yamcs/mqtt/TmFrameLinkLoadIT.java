@@ -0,0 +1,115 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.tctm.TmPacketDataLink;
+import org.yamcs.utils.TimeEncoding;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * Load test of {@link MqttTmFrameLink}: AOS frames, each containing one packet followed by an idle packet, published
+ * by the broker to the link. The latency is measured up to the output of the packets extracted from the frames.
+ */
+public class TmFrameLinkLoadIT {
+    static final int SCID = 29;
+    static final int VCID = 1;
+    static final int APID = 100;
+    static final int IDLE_APID = 0x7FF;
+    // AOS primary header and M_PDU header
+    static final int DATA_OFFSET = 8;
+
+    FakeMqttBroker broker;
+    MqttTmFrameLink link;
+
+    @BeforeEach
+    public void beforeEach() throws InterruptedException {
+        TimeEncoding.setUp();
+        EventProducerFactory.setMockup(true);
+        broker = new FakeMqttBroker();
+        broker.maxGrantedQos = MqttQoS.EXACTLY_ONCE;
+        broker.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        if (link != null) {
+            link.stopAsync().awaitTerminated();
+        }
+        broker.stop();
+    }
+
+    @Test
+    public void testAosFrames() throws Exception {
+        var test = new LoadTest("MqttTmFrameLink AOS", 1115);
+        // AOS frames are limited in size
+        int frameLength = Math.max(DATA_OFFSET + 2 * LoadTest.MIN_SIZE, Math.min(test.size, 2048));
+        int packetLength = (frameLength - DATA_OFFSET) / 2;
+
+        var m = LoadTest.connectionConfig(broker.port, "loadtest-frames");
+        m.put("topic", "tm");
+        m.put("subscribeQos", test.qos.value());
+        m.put("frameType", "AOS");
+        m.put("spacecraftId", SCID);
+        m.put("frameLength", frameLength);
+        m.put("frameHeaderErrorControlPresent", false);
+        m.put("insertZoneLength", 0);
+        m.put("errorDetection", "NONE");
+        var vc = LoadTest.preprocessorConfig(new HashMap<>());
+        vc.put("vcId", VCID);
+        vc.put("ocfPresent", false);
+        vc.put("service", "PACKET");
+        vc.put("maxPacketLength", 2048);
+        vc.put("stream", "tm_realtime");
+        m.put("virtualChannels", List.of(vc));
+
+        link = new MqttTmFrameLink();
+        link.init("loadtest", "loadtest-frames", link.getSpec().validate(YConfiguration.wrap(m)));
+        for (var subLink : link.getSubLinks()) {
+            if (subLink instanceof TmPacketDataLink) {
+                ((TmPacketDataLink) subLink).setTmSink(pkt -> {
+                    if (LoadTest.apid(pkt.getPacket()) == APID) {
+                        test.received(pkt.getPacket(), LoadTest.TIME_OFFSET);
+                    }
+                });
+            }
+        }
+        link.startAsync().awaitRunning();
+        assertTrue(LoadTest.awaitCondition(() -> broker.getSubscribedClientCount() == 1, 5000));
+
+        test.run(seq -> {
+            byte[] frame = aosFrame(seq, frameLength, packetLength);
+            broker.publish("tm", frame, test.qos);
+            return frame.length;
+        });
+        assertEquals(test.sentCount, test.finish());
+    }
+
+    /**
+     * AOS frame without error control containing one packet followed by an idle packet
+     */
+    static byte[] aosFrame(long seq, int frameLength, int packetLength) {
+        byte[] frame = new byte[frameLength];
+        int h = (1 << 14) | (SCID << 6) | VCID;
+        frame[0] = (byte) (h >> 8);
+        frame[1] = (byte) h;
+        frame[2] = (byte) (seq >> 16);
+        frame[3] = (byte) (seq >> 8);
+        frame[4] = (byte) seq;
+        // signaling field and first header pointer are 0
+        byte[] pkt = LoadTest.ccsdsPacket(APID, seq, packetLength);
+        System.arraycopy(pkt, 0, frame, DATA_OFFSET, pkt.length);
+        byte[] idle = LoadTest.ccsdsPacket(IDLE_APID, 0, frameLength - DATA_OFFSET - packetLength);
+        System.arraycopy(idle, 0, frame, DATA_OFFSET + pkt.length, idle.length);
+        return frame;
+    }
+}
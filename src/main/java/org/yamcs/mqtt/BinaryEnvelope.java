@@ -0,0 +1,141 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+import org.yamcs.time.Instant;
+import org.yamcs.utils.ByteArrayUtils;
+
+/**
+ * Compact binary envelope carrying a frame or packet together with its metadata in one MQTT message.
+ * <p>
+ * All the numbers are big endian:
+ *
+ * <pre>
+ * version      1 byte   {@value #VERSION}
+ * flags        1 byte   bit 0: time present, bit 1: station id present, bit 2: sequence present
+ * time        12 bytes  (if present) Yamcs hres time: 8 bytes milliseconds + 4 bytes picoseconds
+ * station id   1 + n    (if present) length followed by n bytes UTF-8 encoded
+ * sequence     4 bytes  (if present) unsigned sequence number
+ * data         the remaining bytes
+ * </pre>
+ *
+ * The time is the earth reception time for the telemetry and the generation time for the telecommands.
+ */
+public class BinaryEnvelope {
+    public static final int VERSION = 1;
+    public static final int FLAG_TIME = 0x01;
+    public static final int FLAG_STATION_ID = 0x02;
+    public static final int FLAG_SEQUENCE = 0x04;
+
+    /**
+     * the decoded header; the data is the region of the message starting at dataOffset
+     */
+    public record Header(Instant time, String stationId, long sequence, int dataOffset) {
+        /**
+         * @return true if the envelope contains a sequence number
+         */
+        public boolean hasSequence() {
+            return sequence >= 0;
+        }
+    }
+
+    /**
+     * Decodes the envelope header
+     *
+     * @throws IllegalArgumentException
+     *             if the version is not supported or the message is too short
+     */
+    public static Header decode(byte[] msg) {
+        if (msg.length < 2) {
+            throw new IllegalArgumentException("Message too short: " + msg.length + " bytes");
+        }
+        if (msg[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported envelope version " + (msg[0] & 0xFF));
+        }
+        int flags = msg[1] & 0xFF;
+        int offset = 2;
+        Instant time = null;
+        String stationId = null;
+        long seq = -1;
+        if ((flags & FLAG_TIME) != 0) {
+            checkLength(msg, offset, 12);
+            long millis = ByteArrayUtils.decodeLong(msg, offset);
+            int picos = ByteArrayUtils.decodeInt(msg, offset + 8);
+            time = Instant.get(millis, picos);
+            offset += 12;
+        }
+        if ((flags & FLAG_STATION_ID) != 0) {
+            checkLength(msg, offset, 1);
+            int n = msg[offset] & 0xFF;
+            checkLength(msg, offset + 1, n);
+            stationId = new String(msg, offset + 1, n, StandardCharsets.UTF_8);
+            offset += 1 + n;
+        }
+        if ((flags & FLAG_SEQUENCE) != 0) {
+            checkLength(msg, offset, 4);
+            seq = ByteArrayUtils.decodeInt(msg, offset) & 0xFFFFFFFFL;
+            offset += 4;
+        }
+        return new Header(time, stationId, seq, offset);
+    }
+
+    private static void checkLength(byte[] msg, int offset, int n) {
+        if (offset + n > msg.length) {
+            throw new IllegalArgumentException("Truncated envelope header");
+        }
+    }
+
+    /**
+     * Encodes the data with the header
+     *
+     * @param time
+     *            the time or null if not present
+     * @param stationId
+     *            the station id or null if not present; its UTF-8 encoding is limited to 255 bytes.
+     * @param sequence
+     *            the sequence number (only the lower 32 bits are used) or -1 if not present
+     */
+    public static byte[] encode(Instant time, String stationId, long sequence, byte[] data) {
+        return encode(time, stationId == null ? null : stationId.getBytes(StandardCharsets.UTF_8), sequence, data);
+    }
+
+    static byte[] encode(Instant time, byte[] stationId, long sequence, byte[] data) {
+        int flags = 0;
+        int n = 2;
+        if (time != null) {
+            flags |= FLAG_TIME;
+            n += 12;
+        }
+        if (stationId != null) {
+            if (stationId.length > 255) {
+                throw new IllegalArgumentException("Station id too long");
+            }
+            flags |= FLAG_STATION_ID;
+            n += 1 + stationId.length;
+        }
+        if (sequence >= 0) {
+            flags |= FLAG_SEQUENCE;
+            n += 4;
+        }
+        byte[] msg = new byte[n + data.length];
+        msg[0] = VERSION;
+        msg[1] = (byte) flags;
+        int offset = 2;
+        if (time != null) {
+            ByteArrayUtils.encodeLong(time.getMillis(), msg, offset);
+            ByteArrayUtils.encodeInt(time.getPicos(), msg, offset + 8);
+            offset += 12;
+        }
+        if (stationId != null) {
+            msg[offset] = (byte) stationId.length;
+            System.arraycopy(stationId, 0, msg, offset + 1, stationId.length);
+            offset += 1 + stationId.length;
+        }
+        if (sequence >= 0) {
+            ByteArrayUtils.encodeInt((int) sequence, msg, offset);
+            offset += 4;
+        }
+        System.arraycopy(data, 0, msg, offset, data.length);
+        return msg;
+    }
+}
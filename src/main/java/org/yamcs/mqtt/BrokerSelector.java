@@ -0,0 +1,391 @@
+package org.yamcs.mqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.yamcs.logging.Log;
+
+/**
+ * Orders the configured brokers according to their health and round-trip time, such that the MQTT client connects to
+ * the fastest reachable broker and fails over to the next best one.
+ * <p>
+ * A probe thread periodically opens a TCP connection to each broker and closes it as soon as it is established; the
+ * time to establish the connection (one round trip) is averaged with an exponentially weighted moving average. The
+ * probes of all the brokers are made concurrently with non-blocking sockets, so a round takes at most the probe
+ * timeout. For the TLS brokers only the TCP connection is made, the handshake is not performed to keep the probe
+ * cheap for the broker.
+ * <p>
+ * The brokers are ordered: first the reachable ones by increasing average RTT, then the ones not yet probed (or which
+ * cannot be probed), then the unreachable ones, each group in the configuration order. A broker whose connection is
+ * lost is considered unreachable until the next successful probe, and a new probe round is started immediately. Each
+ * time the order changes, it is passed to the listener which updates the list of server URIs of the client; the Paho
+ * client tries them in order when connecting and when reconnecting automatically.
+ */
+public class BrokerSelector {
+    static final double ALPHA = 0.3;
+
+    final Broker[] brokers;
+    final long probeIntervalMillis;
+    final long probeTimeoutMillis;
+    final Consumer<String[]> listener;
+    final Log log;
+
+    volatile String[] order;
+    volatile String currentBroker;
+
+    // guarded by this
+    boolean running;
+    boolean probeRequested;
+    Thread thread;
+
+    /**
+     * @param listener
+     *            called with the new order of the broker URIs each time it changes
+     */
+    public BrokerSelector(List<String> uris, long probeIntervalMillis, long probeTimeoutMillis,
+            Consumer<String[]> listener, Log log) {
+        if (probeIntervalMillis < 1 || probeTimeoutMillis < 1) {
+            throw new IllegalArgumentException("The probe interval and timeout have to be positive");
+        }
+        this.brokers = new Broker[uris.size()];
+        for (int i = 0; i < brokers.length; i++) {
+            brokers[i] = new Broker(i, uris.get(i));
+        }
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.probeTimeoutMillis = probeTimeoutMillis;
+        this.listener = listener;
+        this.log = log;
+        this.order = uris.toArray(new String[0]);
+    }
+
+    /**
+     * @return the address to probe or null if the URI is not a network one (e.g. <code>local://</code>)
+     */
+    static InetSocketAddress probeAddress(String uri) {
+        URI u;
+        try {
+            u = new URI(uri);
+        } catch (Exception e) {
+            return null;
+        }
+        if (u.getHost() == null || u.getScheme() == null) {
+            return null;
+        }
+        int port = u.getPort();
+        if (port < 0) {
+            switch (u.getScheme()) {
+            case "tcp":
+                port = 1883;
+                break;
+            case "ssl":
+            case "mqtts":
+                port = 8883;
+                break;
+            case "ws":
+                port = 80;
+                break;
+            case "wss":
+                port = 443;
+                break;
+            default:
+                return null;
+            }
+        }
+        return InetSocketAddress.createUnresolved(u.getHost(), port);
+    }
+
+    /**
+     * @return the broker URIs in the order they should be tried
+     */
+    public String[] getOrder() {
+        return order;
+    }
+
+    /**
+     * Called when the client has connected to a broker
+     */
+    public void connected(String uri) {
+        currentBroker = uri;
+    }
+
+    /**
+     * Called when the connection to the current broker is lost; the broker is moved after the reachable ones and a
+     * probe round is started.
+     */
+    public void connectionLost() {
+        String uri = currentBroker;
+        currentBroker = null;
+        for (var b : brokers) {
+            if (b.uri.equals(uri)) {
+                synchronized (b) {
+                    b.state = State.DOWN;
+                }
+            }
+        }
+        reorder();
+        synchronized (this) {
+            probeRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Makes a first probe round, such that the client connects to the best broker, and starts the probe thread. Does
+     * nothing if it is already running.
+     */
+    public synchronized void start(String name) {
+        if (running) {
+            return;
+        }
+        probeAll();
+        running = true;
+        probeRequested = false;
+        thread = new Thread(this::run, name + "-broker-probe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the probe thread and waits for it to finish
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        // outside the lock: the probe thread needs it to finish the round
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!probeRequested && running) {
+                        wait(probeIntervalMillis);
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    probeRequested = false;
+                }
+                probeAll();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Probes concurrently all the brokers and updates their order; returns without updating the order if the thread is
+     * interrupted.
+     */
+    void probeAll() {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(probeTimeoutMillis);
+        try (var selector = Selector.open()) {
+            for (var b : brokers) {
+                if (b.address == null) {
+                    synchronized (b) {
+                        b.state = State.UNKNOWN;
+                    }
+                    continue;
+                }
+                SocketChannel ch = null;
+                try {
+                    var addr = new InetSocketAddress(b.address.getHostString(), b.address.getPort());
+                    if (addr.isUnresolved()) {
+                        probeFailed(b, "cannot resolve " + b.address.getHostString());
+                        continue;
+                    }
+                    ch = SocketChannel.open();
+                    ch.configureBlocking(false);
+                    long start = System.nanoTime();
+                    if (ch.connect(addr)) {
+                        probeSucceeded(b, System.nanoTime() - start);
+                        ch.close();
+                    } else {
+                        ch.register(selector, SelectionKey.OP_CONNECT, new Probe(b, start));
+                    }
+                } catch (IOException e) {
+                    probeFailed(b, e.toString());
+                    close(ch);
+                }
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!selector.keys().isEmpty()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // stopped; the probes in progress are abandoned without changing the state of the brokers
+                    for (var key : selector.keys()) {
+                        close(key.channel());
+                    }
+                    return;
+                }
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    break;
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                long now = System.nanoTime();
+                for (var key : selector.selectedKeys()) {
+                    var probe = (Probe) key.attachment();
+                    var ch = (SocketChannel) key.channel();
+                    try {
+                        ch.finishConnect();
+                        probeSucceeded(probe.broker, now - probe.start);
+                    } catch (IOException e) {
+                        probeFailed(probe.broker, e.toString());
+                    }
+                    key.cancel();
+                    close(ch);
+                }
+                selector.selectedKeys().clear();
+            }
+            for (var key : selector.keys()) {
+                probeFailed(((Probe) key.attachment()).broker, "timeout");
+                close(key.channel());
+            }
+        } catch (IOException e) {
+            log.warn("Failed to probe the MQTT brokers: {}", e.toString());
+        }
+        reorder();
+    }
+
+    private static void close(Channel ch) {
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    void probeSucceeded(Broker b, long rttNanos) {
+        synchronized (b) {
+            double rtt = rttNanos / 1e6;
+            if (b.state == State.UP) {
+                b.rttMillis += ALPHA * (rtt - b.rttMillis);
+            } else {
+                // the old average is not relevant after an outage
+                b.rttMillis = rtt;
+                b.state = State.UP;
+            }
+            b.probeCount++;
+        }
+    }
+
+    void probeFailed(Broker b, String reason) {
+        synchronized (b) {
+            if (b.state != State.DOWN) {
+                log.info("MQTT broker {} not reachable: {}", b.uri, reason);
+            }
+            b.state = State.DOWN;
+            b.failureCount++;
+        }
+    }
+
+    /**
+     * Sorts the brokers and notifies the listener if the order has changed
+     */
+    synchronized void reorder() {
+        var l = new ArrayList<BrokerStatus>(brokers.length);
+        for (var b : brokers) {
+            l.add(b.status());
+        }
+        l.sort(Comparator.comparing(BrokerStatus::state).thenComparingDouble(BrokerStatus::sortRtt)
+                .thenComparingInt(BrokerStatus::index));
+        String[] newOrder = l.stream().map(BrokerStatus::uri).toArray(String[]::new);
+        if (Arrays.equals(newOrder, order)) {
+            return;
+        }
+        order = newOrder;
+        log.debug("MQTT broker order: {}", Arrays.toString(newOrder));
+        listener.accept(newOrder);
+    }
+
+    /**
+     * @return the current broker or null if the client is not connected
+     */
+    public String getCurrentBroker() {
+        return currentBroker;
+    }
+
+    List<BrokerStatus> getBrokerStatus() {
+        var l = new ArrayList<BrokerStatus>(brokers.length);
+        for (var b : brokers) {
+            l.add(b.status());
+        }
+        return l;
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        for (var s : getBrokerStatus()) {
+            Object v;
+            if (s.state() == State.UP) {
+                v = Math.round(s.rttMillis() * 100) / 100.0;
+            } else {
+                v = s.state() == State.DOWN ? "unreachable" : "-";
+            }
+            extra.put("Broker " + s.uri() + " RTT (ms)", v);
+        }
+    }
+
+    /**
+     * The order of the constants is the order of the brokers
+     */
+    enum State {
+        UP, UNKNOWN, DOWN
+    }
+
+    record BrokerStatus(int index, String uri, State state, double rttMillis) {
+        double sortRtt() {
+            return state == State.UP ? rttMillis : 0;
+        }
+    }
+
+    static class Broker {
+        final int index;
+        final String uri;
+        final InetSocketAddress address;
+        // guarded by this
+        State state;
+        double rttMillis;
+        long probeCount, failureCount;
+
+        Broker(int index, String uri) {
+            this.index = index;
+            this.uri = uri;
+            this.address = probeAddress(uri);
+            this.state = State.UNKNOWN;
+        }
+
+        synchronized BrokerStatus status() {
+            return new BrokerStatus(index, uri, state, rttMillis);
+        }
+    }
+
+    record Probe(Broker broker, long start) {
+    }
+}
@@ -0,0 +1,97 @@
+package org.yamcs.mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Reads the capture files written by {@link CaptureWriter}.
+ * <p>
+ * A record partially written at the end of a file (because the process has been stopped while writing) is ignored.
+ */
+public class CaptureReader implements Closeable {
+    final FileChannel channel;
+    final MappedByteBuffer buf;
+
+    /**
+     * A message read from the capture
+     *
+     * @param timeMicros
+     *            the arrival time in microseconds since 1970-01-01
+     */
+    public record CaptureRecord(String topic, long timeMicros, MqttMessage message) {
+    }
+
+    public CaptureReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        if (buf.remaining() < 4 || buf.getInt() != CaptureWriter.MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a capture file");
+        }
+    }
+
+    /**
+     * @return the next record or null if the end of the file has been reached
+     */
+    public CaptureRecord next() {
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int length = buf.getInt();
+        if (length < CaptureWriter.HEADER_LENGTH || length > buf.remaining()) {
+            return null;
+        }
+        long micros = buf.getLong();
+        int flags = buf.get();
+        int topicLength = buf.getShort() & 0xFFFF;
+        if (CaptureWriter.HEADER_LENGTH + topicLength > length) {
+            return null;
+        }
+        byte[] topic = new byte[topicLength];
+        buf.get(topic);
+        byte[] payload = new byte[length - CaptureWriter.HEADER_LENGTH - topicLength];
+        buf.get(payload);
+        var msg = new MqttMessage(payload);
+        msg.setQos(flags & 3);
+        msg.setRetained((flags & 4) != 0);
+        return new CaptureRecord(new String(topic, StandardCharsets.UTF_8), micros, msg);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Expands the list of files and directories into the list of capture files; the capture files in a directory are
+     * sorted by name, which is the order in which they have been written.
+     */
+    public static List<Path> listFiles(List<String> paths) throws IOException {
+        List<Path> l = new ArrayList<>();
+        for (var p : paths) {
+            Path path = Path.of(p);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> s = Files.list(path)) {
+                    l.addAll(s.filter(f -> f.getFileName().toString().endsWith(CaptureWriter.EXTENSION))
+                            .sorted().collect(Collectors.toList()));
+                }
+            } else {
+                l.add(path);
+            }
+        }
+        return l;
+    }
+}
@@ -0,0 +1,194 @@
+package org.yamcs.mqtt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Records the received MQTT messages into a sequence of capture files (segments) which can be replayed with a
+ * {@link MqttReplayConnection}.
+ * <p>
+ * The segments are named <code>&lt;prefix&gt;-&lt;start time&gt;-&lt;index&gt;.mqcap</code>; a new segment is started
+ * when the current one reaches the segment size. Each segment starts with the magic number {@value #MAGIC} followed by
+ * records with the format (big endian):
+ *
+ * <pre>
+ * record length   4 bytes  the length of the following fields
+ * time            8 bytes  arrival time in microseconds since 1970-01-01 (UNIX time)
+ * flags           1 byte   bits 0-1: QoS, bit 2: retained
+ * topic length    2 bytes
+ * topic           UTF-8
+ * payload         the remaining bytes of the record
+ * </pre>
+ *
+ * The records are collected in a buffer written to the file when full, when the segment changes and when the writer is
+ * closed.
+ */
+public class CaptureWriter implements Closeable {
+    public static final int MAGIC = 0x4d514331; // MQC1
+    public static final String EXTENSION = ".mqcap";
+    static final int HEADER_LENGTH = 8 + 1 + 2;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneOffset.UTC);
+
+    final Path directory;
+    final String name;
+    final long segmentSize;
+    final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // the arrival times are computed from System.nanoTime relative to these
+    final long baseMicros;
+    final long baseNanos;
+
+    FileChannel channel;
+    long segmentBytes;
+    int segmentIndex = -1;
+    long recordCount;
+    long byteCount;
+
+    String lastTopic;
+    byte[] lastTopicBytes;
+
+    /**
+     * @param prefix
+     *            the prefix of the file names
+     * @param segmentSize
+     *            the maximum size of a segment; a segment contains at least one record even if larger
+     */
+    public CaptureWriter(Path directory, String prefix, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.baseMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        this.baseNanos = System.nanoTime();
+        this.name = prefix + "-" + TIME_FORMAT.format(Instant.ofEpochMilli(baseMicros / 1000));
+        Files.createDirectories(directory);
+        nextSegment();
+    }
+
+    /**
+     * Appends the message to the capture using the current time as arrival time.
+     * <p>
+     * If writing fails, the capture is closed and the following messages are ignored.
+     */
+    public synchronized void write(String topic, MqttMessage message) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            doWrite(topic, message);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException e1) {
+                e.addSuppressed(e1);
+            }
+            channel = null;
+            throw e;
+        }
+    }
+
+    private void doWrite(String topic, MqttMessage message) throws IOException {
+        long micros = baseMicros + (System.nanoTime() - baseNanos) / 1000;
+        if (!topic.equals(lastTopic)) {
+            lastTopic = topic;
+            lastTopicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] payload = message.getPayload();
+        int length = HEADER_LENGTH + lastTopicBytes.length + payload.length;
+        if (segmentBytes > 4 && segmentBytes + 4 + length > segmentSize) {
+            nextSegment();
+        }
+        int headerLength = 4 + HEADER_LENGTH + lastTopicBytes.length;
+        if (buf.remaining() < headerLength) {
+            flush();
+        }
+        if (headerLength > buf.capacity()) {
+            // topic longer than the buffer
+            var header = ByteBuffer.allocate(headerLength);
+            putHeader(header, length, micros, message);
+            header.flip();
+            write(header);
+        } else {
+            putHeader(buf, length, micros, message);
+        }
+        if (buf.remaining() < payload.length) {
+            flush();
+            if (payload.length > buf.capacity()) {
+                write(ByteBuffer.wrap(payload));
+            } else {
+                buf.put(payload);
+            }
+        } else {
+            buf.put(payload);
+        }
+        segmentBytes += 4 + length;
+        recordCount++;
+        byteCount += payload.length;
+    }
+
+    private void putHeader(ByteBuffer b, int length, long micros, MqttMessage message) {
+        b.putInt(length);
+        b.putLong(micros);
+        b.put((byte) (message.getQos() | (message.isRetained() ? 4 : 0)));
+        b.putShort((short) lastTopicBytes.length);
+        b.put(lastTopicBytes);
+    }
+
+    /**
+     * Writes the buffered records to the file
+     */
+    public synchronized void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buf.flip();
+        write(buf);
+        buf.clear();
+    }
+
+    private void write(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+        }
+        segmentIndex++;
+        Path file = directory.resolve(String.format("%s-%04d%s", name, segmentIndex, EXTENSION));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buf.putInt(MAGIC);
+        segmentBytes = 4;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public synchronized void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Captured messages", recordCount);
+        extra.put("Captured bytes", byteCount);
+        extra.put("Capture segments", segmentIndex + 1);
+    }
+}
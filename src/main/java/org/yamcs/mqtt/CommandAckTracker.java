@@ -0,0 +1,317 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yamcs.mqtt.JsonScanner.Token;
+
+/**
+ * Correlates the replies sent by the ground station on the ack topic with the commands published by the link.
+ * <p>
+ * Each command is registered with a numeric correlation key (the sequence number of the Yamcs command id or the
+ * sequence number of the {@link BinaryEnvelope} it is sent in). The outstanding commands are kept in a
+ * {@link ConcurrentLongMap} and their timeouts in a {@link TimingWheel} advanced by a single thread, so registering
+ * thousands of commands does not create any timer task.
+ * <p>
+ * The replies are either:
+ * <ul>
+ * <li>JSON objects, if a key path is configured: the key is the number (or numeric string) found at the key path and
+ * the optional status path gives the result: <code>true</code>, <code>"OK"</code> or <code>0</code> for success,
+ * anything else for failure.</li>
+ * <li>{@link BinaryEnvelope}s otherwise: the key is the envelope sequence number and the first data byte, if present,
+ * is the status (0 for success).</li>
+ * </ul>
+ */
+public class CommandAckTracker<T> {
+    static final int NUM_BUCKETS = 512;
+    static final long MIN_TICK_MILLIS = 10;
+
+    /**
+     * Receives the outcome of the outstanding commands
+     */
+    public interface Listener<T> {
+        /**
+         * Called on the MQTT callback thread when the reply of the command has been received
+         *
+         * @param message
+         *            the failure reason or null if ok
+         */
+        void replied(T id, boolean ok, String message);
+
+        /**
+         * Called on the tracker thread when no reply has been received within the timeout
+         */
+        void timedOut(T id);
+    }
+
+    final long timeoutMillis;
+    final long tickMillis;
+    final List<Object> keyPath;
+    final List<Object> statusPath;
+    final Listener<T> listener;
+    final ConcurrentLongMap<Outstanding<T>> outstanding = new ConcurrentLongMap<>();
+    final TimingWheel<Outstanding<T>> wheel;
+
+    volatile boolean running;
+    Thread thread;
+
+    final AtomicLong okCount = new AtomicLong();
+    final AtomicLong failedCount = new AtomicLong();
+    final AtomicLong timeoutCount = new AtomicLong();
+    final AtomicLong unmatchedCount = new AtomicLong();
+    final AtomicLong invalidCount = new AtomicLong();
+
+    /**
+     * @param keyPath
+     *            the JSON path of the correlation key in the replies or null if the replies are binary envelopes
+     * @param statusPath
+     *            the JSON path of the status in the replies or null if the replies do not contain a status
+     */
+    public CommandAckTracker(long timeoutMillis, String keyPath, String statusPath, Listener<T> listener) {
+        this(timeoutMillis, keyPath, statusPath, listener, System.currentTimeMillis());
+    }
+
+    CommandAckTracker(long timeoutMillis, String keyPath, String statusPath, Listener<T> listener, long startMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("The timeout has to be positive");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(MIN_TICK_MILLIS, timeoutMillis / 100);
+        this.keyPath = keyPath == null ? null : compilePath(keyPath);
+        this.statusPath = statusPath == null ? null : compilePath(statusPath);
+        this.listener = listener;
+        this.wheel = new TimingWheel<>(tickMillis, NUM_BUCKETS, startMillis);
+    }
+
+    /**
+     * Registers a command; the timeout starts now.
+     */
+    public void sent(long key, T id) {
+        sent(key, id, System.currentTimeMillis());
+    }
+
+    void sent(long key, T id, long nowMillis) {
+        var o = new Outstanding<>(key, id);
+        var previous = outstanding.put(key, o);
+        if (previous != null) {
+            // the reply could not be attributed to the right command
+            failedCount.incrementAndGet();
+            listener.replied(previous.id, false, "Superseded by another command with the same correlation key");
+        }
+        wheel.schedule(o, nowMillis + timeoutMillis);
+    }
+
+    /**
+     * Unregisters a command which could not be sent
+     */
+    public void cancel(long key) {
+        outstanding.remove(key);
+    }
+
+    /**
+     * Processes a reply received on the ack topic
+     *
+     * @return false if the reply is invalid or does not correspond to an outstanding command
+     */
+    public boolean replyArrived(byte[] payload) {
+        long key;
+        boolean ok = true;
+        String message = null;
+        try {
+            if (keyPath == null) {
+                var header = BinaryEnvelope.decode(payload);
+                if (!header.hasSequence()) {
+                    invalidCount.incrementAndGet();
+                    return false;
+                }
+                key = header.sequence();
+                if (header.dataOffset() < payload.length && payload[header.dataOffset()] != 0) {
+                    ok = false;
+                    message = "Status " + (payload[header.dataOffset()] & 0xFF);
+                }
+            } else {
+                var sc = new JsonScanner(payload);
+                if (!seek(sc, keyPath)) {
+                    invalidCount.incrementAndGet();
+                    return false;
+                }
+                var token = sc.peek();
+                if (token == Token.NUMBER) {
+                    sc.nextNumber();
+                    key = sc.longValue();
+                } else if (token == Token.STRING) {
+                    sc.nextString();
+                    key = Long.parseLong(sc.stringValue());
+                } else {
+                    invalidCount.incrementAndGet();
+                    return false;
+                }
+                if (statusPath != null) {
+                    sc = new JsonScanner(payload);
+                    if (seek(sc, statusPath)) {
+                        message = status(sc);
+                        ok = message == null;
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // also NumberFormatException
+            invalidCount.incrementAndGet();
+            return false;
+        }
+        var o = outstanding.remove(key);
+        if (o == null) {
+            unmatchedCount.incrementAndGet();
+            return false;
+        }
+        (ok ? okCount : failedCount).incrementAndGet();
+        listener.replied(o.id, ok, message);
+        return true;
+    }
+
+    /**
+     * @return null if the status is a success or the failure message
+     */
+    private static String status(JsonScanner sc) {
+        switch (sc.peek()) {
+        case BOOLEAN:
+            return sc.nextBoolean() ? null : "Failed";
+        case STRING:
+            sc.nextString();
+            String s = sc.stringValue();
+            return "OK".equalsIgnoreCase(s) ? null : s;
+        case NUMBER:
+            sc.nextNumber();
+            return sc.isIntegral() && sc.longValue() == 0 ? null : "Status " + sc.doubleValue();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Positions the scanner on the value at the given path
+     *
+     * @return false if the path does not exist in the document
+     */
+    static boolean seek(JsonScanner sc, List<Object> path) {
+        for (var elem : path) {
+            if (elem instanceof Integer) {
+                if (sc.peek() != Token.BEGIN_ARRAY) {
+                    return false;
+                }
+                sc.beginArray();
+                for (int i = (Integer) elem; i > 0 && sc.hasNext(); i--) {
+                    sc.skipValue();
+                }
+            } else {
+                if (sc.peek() != Token.BEGIN_OBJECT) {
+                    return false;
+                }
+                sc.beginObject();
+                while (sc.hasNext()) {
+                    sc.nextName();
+                    if (sc.stringEquals((byte[]) elem)) {
+                        break;
+                    }
+                    sc.skipValue();
+                }
+            }
+            if (!sc.hasNext()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the path elements, with the member names encoded in UTF-8
+     */
+    static List<Object> compilePath(String path) {
+        var l = new ArrayList<Object>();
+        for (var elem : JsonParameterMapper.parsePath(path)) {
+            l.add(elem instanceof String ? ((String) elem).getBytes(StandardCharsets.UTF_8) : elem);
+        }
+        return l;
+    }
+
+    /**
+     * Expires the commands whose timeout has passed; called periodically by the tracker thread
+     */
+    void tick(long nowMillis) {
+        wheel.advance(nowMillis, o -> {
+            if (outstanding.remove(o.key, o)) {
+                timeoutCount.incrementAndGet();
+                listener.timedOut(o.id);
+            }
+        });
+    }
+
+    /**
+     * Starts the thread expiring the commands. Does nothing if it is already running.
+     */
+    public synchronized void start(String name) {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(() -> {
+            try {
+                while (running) {
+                    Thread.sleep(tickMillis);
+                    tick(System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, name + "-acks");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread and waits for it to finish; the commands stay registered and time out after a restart.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Unregisters all the commands awaiting a reply
+     *
+     * @return the ids of the commands
+     */
+    public List<T> drain() {
+        var l = new ArrayList<T>();
+        outstanding.clear(o -> l.add(o.id));
+        return l;
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Commands awaiting ack", outstanding.size());
+        extra.put("Commands radiated", okCount.get());
+        extra.put("Commands failed", failedCount.get());
+        extra.put("Commands timed out", timeoutCount.get());
+        extra.put("Unmatched acks", unmatchedCount.get());
+        extra.put("Invalid acks", invalidCount.get());
+    }
+
+    record Outstanding<T>(long key, T id) {
+    }
+}
@@ -0,0 +1,332 @@
+package org.yamcs.mqtt;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.logging.Log;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Store-and-forward spool for the outgoing TC messages, used by the links while the MQTT client is disconnected.
+ * <p>
+ * The message payloads are appended to a memory mapped file of fixed size; only the message headers (QoS and MQTT 5
+ * properties) and the context (the command or the frame to be acknowledged) are kept in memory. When the spool becomes
+ * empty, the writing restarts from the beginning of the file; when the end of the file is reached, the pending
+ * payloads are moved to the beginning.
+ * <p>
+ * A drain thread sends the messages in order once the client is connected, at most <code>drainRate</code> messages per
+ * second, such that a long outage does not result in a burst on the uplink. The messages older than
+ * <code>maxAge</code> are removed from the spool without being sent. A message whose sending fails with an unexpected
+ * error is removed as well, such that it does not block the ones behind it.
+ * <p>
+ * The spool is not recovered after a restart because the commands can not be acknowledged anymore; the file is
+ * recreated when the spool is opened.
+ *
+ * @param <T>
+ *            the context associated with each message
+ */
+public class CommandSpool<T> {
+    static final long RETRY_MILLIS = 100;
+    static final byte[] EMPTY = new byte[0];
+
+    final Path file;
+    final int capacity;
+    final long maxAgeNanos;
+    final RateLimiter drainRateLimiter;
+    final Log log;
+
+    FileChannel channel;
+    MappedByteBuffer buf;
+    final byte[] moveBuffer = new byte[8192];
+
+    // guarded by this
+    final ArrayDeque<Entry<T>> entries = new ArrayDeque<>();
+    int writePosition;
+    long spooledCount, sentCount, expiredCount, rejectedCount, failedCount;
+
+    Thread drainer;
+
+    /**
+     * Called by the drain thread to send a message
+     */
+    @FunctionalInterface
+    public interface Sender<T> {
+        /**
+         * Publishes the message; the context is acknowledged when the broker accepts the message.
+         *
+         * @throws MqttException
+         *             if the message cannot be published, it is retried later
+         */
+        void send(MqttMessage message, T context) throws MqttException, InterruptedException;
+    }
+
+    /**
+     * @param file
+     *            the file backing the spool
+     * @param capacity
+     *            the size of the file; it limits the total size of the spooled payloads
+     * @param maxAgeMillis
+     *            the maximum time a message stays in the spool
+     * @param drainRate
+     *            maximum number of messages sent per second when draining the spool; 0 means no limit
+     */
+    public CommandSpool(Path file, int capacity, long maxAgeMillis, double drainRate, Log log) {
+        this.file = file;
+        this.capacity = capacity;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.drainRateLimiter = drainRate > 0 ? RateLimiter.create(drainRate) : null;
+        this.log = log;
+    }
+
+    public synchronized void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buf = channel.map(MapMode.READ_WRITE, 0, capacity);
+        writePosition = 0;
+    }
+
+    /**
+     * Appends a message to the spool
+     *
+     * @return false if the message does not fit in the spool
+     */
+    public synchronized boolean offer(MqttMessage message, T context) {
+        byte[] payload = message.getPayload();
+        if (payload.length > capacity - writePosition) {
+            compact();
+            if (payload.length > capacity - writePosition) {
+                rejectedCount++;
+                return false;
+            }
+        }
+        buf.put(writePosition, payload);
+        entries.add(new Entry<>(MqttUtils.copyWithPayload(message, EMPTY), writePosition, payload.length,
+                System.nanoTime(), context));
+        writePosition += payload.length;
+        spooledCount++;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Starts the thread draining the spool
+     *
+     * @param connected
+     *            tells if the client is connected; the messages are sent only while it is
+     * @param onDropped
+     *            called with the context and the reason of the messages removed from the spool without being sent,
+     *            because they were too old or because the sender failed with an unexpected error
+     */
+    public synchronized void start(String name, BooleanSupplier connected, Sender<T> sender,
+            BiConsumer<T, String> onDropped) {
+        if (drainer != null) {
+            return;
+        }
+        drainer = new Thread(() -> drain(connected, sender, onDropped));
+        drainer.setName(name);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stops the drain thread; the messages are kept in the spool.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = drainer;
+            drainer = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the drain thread and deletes the spool file.
+     *
+     * @return the contexts of the messages which have not been sent
+     */
+    public List<T> close() throws IOException {
+        stop();
+        synchronized (this) {
+            var l = new ArrayList<T>(entries.size());
+            for (var e : entries) {
+                l.add(e.context);
+            }
+            entries.clear();
+            if (channel != null) {
+                channel.close();
+                MqttUtils.unmap(buf);
+                channel = null;
+                buf = null;
+                Files.deleteIfExists(file);
+            }
+            return l;
+        }
+    }
+
+    private void drain(BooleanSupplier connected, Sender<T> sender, BiConsumer<T, String> onDropped) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Entry<T> e;
+                MqttMessage msg;
+                List<T> expired;
+                synchronized (this) {
+                    while (entries.isEmpty()) {
+                        wait();
+                    }
+                    expired = expire(System.nanoTime());
+                    e = entries.peek();
+                    msg = e == null ? null : read(e);
+                }
+                for (var c : expired) {
+                    onDropped.accept(c, "Expired in the TC spool");
+                }
+                if (e == null) {
+                    continue;
+                }
+                if (!connected.getAsBoolean()) {
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+                if (drainRateLimiter != null) {
+                    drainRateLimiter.acquire();
+                }
+                try {
+                    sender.send(msg, e.context);
+                    remove(e, true);
+                } catch (MqttException ex) {
+                    log.debug("Failed to send spooled message, retrying: {}", ex.toString());
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (RuntimeException ex) {
+                    log.error("Failed to send spooled message, dropping it", ex);
+                    if (remove(e, false)) {
+                        onDropped.accept(e.context, "Failed to send from the TC spool: " + ex);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<T> expire(long now) {
+        List<T> expired = new ArrayList<>(0);
+        while (!entries.isEmpty() && now - entries.peek().spoolTime > maxAgeNanos) {
+            expired.add(entries.poll().context);
+            expiredCount++;
+        }
+        if (entries.isEmpty()) {
+            writePosition = 0;
+        }
+        return expired;
+    }
+
+    /**
+     * @return false if the entry has expired in the meantime
+     */
+    private synchronized boolean remove(Entry<T> e, boolean sent) {
+        if (entries.peek() != e) {
+            return false;
+        }
+        entries.poll();
+        if (sent) {
+            sentCount++;
+        } else {
+            failedCount++;
+        }
+        if (entries.isEmpty()) {
+            writePosition = 0;
+        }
+        return true;
+    }
+
+    private MqttMessage read(Entry<T> e) {
+        byte[] payload = new byte[e.length];
+        buf.get(e.offset, payload);
+        return MqttUtils.copyWithPayload(e.header, payload);
+    }
+
+    /**
+     * Moves the pending payloads to the beginning of the file
+     */
+    private void compact() {
+        if (entries.isEmpty()) {
+            writePosition = 0;
+            return;
+        }
+        int start = entries.peek().offset;
+        if (start == 0) {
+            return;
+        }
+        // the destination is before the source, so copying forward in chunks does not overwrite unread data
+        for (int pos = start; pos < writePosition; pos += moveBuffer.length) {
+            int n = Math.min(moveBuffer.length, writePosition - pos);
+            buf.get(pos, moveBuffer, 0, n);
+            buf.put(pos - start, moveBuffer, 0, n);
+        }
+        for (var e : entries) {
+            e.offset -= start;
+        }
+        writePosition -= start;
+    }
+
+    public synchronized void addExtraInfo(Map<String, Object> extra) {
+        int used = entries.isEmpty() ? 0 : writePosition - entries.peek().offset;
+        extra.put("Spooled messages", entries.size());
+        extra.put("Spooled total", spooledCount);
+        extra.put("Spool usage (bytes)", used);
+        extra.put("Spool capacity (bytes)", capacity);
+        extra.put("Spool sent", sentCount);
+        extra.put("Spool expired", expiredCount);
+        extra.put("Spool rejected", rejectedCount);
+        extra.put("Spool failed", failedCount);
+    }
+
+    static class Entry<T> {
+        final MqttMessage header;
+        int offset;
+        final int length;
+        final long spoolTime;
+        final T context;
+
+        Entry(MqttMessage header, int offset, int length, long spoolTime, T context) {
+            this.header = header;
+            this.offset = offset;
+            this.length = length;
+            this.spoolTime = spoolTime;
+            this.context = context;
+        }
+    }
+}
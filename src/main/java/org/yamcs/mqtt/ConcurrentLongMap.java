@@ -0,0 +1,189 @@
+package org.yamcs.mqtt;
+
+import java.util.function.Consumer;
+
+/**
+ * Concurrent hash map with primitive long keys.
+ * <p>
+ * The map is split in segments selected by the hash of the key, each one an open addressing table with linear probing
+ * protected by its own lock. The keys are stored in a long array, so no object is allocated per entry besides the
+ * value. The removals use backward shift deletion, so there are no tombstones.
+ */
+public class ConcurrentLongMap<V> {
+    static final int NUM_SEGMENTS = 16;
+    static final int INITIAL_CAPACITY = 64;
+
+    final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLongMap() {
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private Segment<V> segment(long h) {
+        return segments[(int) (h >>> 60) & (NUM_SEGMENTS - 1)];
+    }
+
+    /**
+     * @return the previous value associated with the key or null
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        long h = hash(key);
+        return segment(h).put(key, (int) h, value);
+    }
+
+    public V get(long key) {
+        long h = hash(key);
+        return segment(h).get(key, (int) h);
+    }
+
+    /**
+     * @return the value removed or null if the key was not in the map
+     */
+    public V remove(long key) {
+        long h = hash(key);
+        return segment(h).remove(key, (int) h, null);
+    }
+
+    /**
+     * Removes the entry only if the key is associated with this value (compared by identity)
+     *
+     * @return true if the entry has been removed
+     */
+    public boolean remove(long key, V value) {
+        long h = hash(key);
+        return segment(h).remove(key, (int) h, value) != null;
+    }
+
+    /**
+     * Removes all the entries, passing their values to the consumer
+     */
+    public void clear(Consumer<V> removed) {
+        for (var s : segments) {
+            s.clear(removed);
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (var s : segments) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    static class Segment<V> {
+        long[] keys = new long[INITIAL_CAPACITY];
+        Object[] values = new Object[INITIAL_CAPACITY];
+        int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void clear(Consumer<V> removed) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    removed.accept((V) values[i]);
+                    values[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, int h) {
+            int mask = keys.length - 1;
+            for (int i = h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, int h, V value) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    var old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length / 2) {
+                grow();
+            }
+            return null;
+        }
+
+        /**
+         * @param expected
+         *            if not null, the entry is removed only if its value is this one
+         */
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, int h, V expected) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null || (expected != null && values[i] != expected)) {
+                return null;
+            }
+            var old = (V) values[i];
+            // backward shift: move back the following entries of the cluster which are not at their home position
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) {
+                    break;
+                }
+                int home = (int) hash(keys[j]) & mask;
+                // the entry at j can fill the hole at i if its home position is not in (i, j]
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            values[i] = null;
+            size--;
+            return old;
+        }
+
+        private void grow() {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldValues[k] != null) {
+                    int i = (int) hash(oldKeys[k]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[k];
+                    values[i] = oldValues[k];
+                }
+            }
+        }
+    }
+}
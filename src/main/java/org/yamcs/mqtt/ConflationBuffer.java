@@ -0,0 +1,127 @@
+package org.yamcs.mqtt;
+
+import org.yamcs.parameter.ParameterValue;
+
+/**
+ * Latest-value-wins buffer of the parameter values published on one topic.
+ * <p>
+ * The values are kept in an array indexed by the position of the parameter in the topic configuration. An update of a
+ * parameter whose previous value has not been published yet replaces that value and is counted as coalesced. At each
+ * flush, the values updated since the previous flush are taken out of the buffer; if the publication fails, they are
+ * put back unless a newer value has been received in the meantime.
+ * <p>
+ * This class is thread safe.
+ */
+public class ConflationBuffer {
+    final ParameterValue[] latest;
+    final boolean[] pending;
+    final int flushSize;
+    int pendingCount;
+
+    long updateCount;
+    long coalescedCount;
+
+    /**
+     * @param size
+     *            the number of parameters
+     * @param flushSize
+     *            the number of pending parameters triggering a flush before the next tick; 0 to flush only at the
+     *            ticks
+     */
+    public ConflationBuffer(int size, int flushSize) {
+        this.latest = new ParameterValue[size];
+        this.pending = new boolean[size];
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * Stores the new value of the parameter at position slot
+     *
+     * @return true if the number of pending parameters has just reached the flush size
+     */
+    public synchronized boolean update(int slot, ParameterValue pv) {
+        updateCount++;
+        latest[slot] = pv;
+        if (pending[slot]) {
+            coalescedCount++;
+            return false;
+        }
+        pending[slot] = true;
+        pendingCount++;
+        return pendingCount == flushSize;
+    }
+
+    /**
+     * Takes the pending values out of the buffer
+     *
+     * @param snapshot
+     *            if true, the batch contains the latest value of all the parameters having a value and not only the
+     *            pending ones; used for the retained messages which have to contain the complete state
+     * @return the batch to be published or null if no value has been updated since the previous flush
+     */
+    public synchronized Batch take(boolean snapshot) {
+        if (pendingCount == 0) {
+            return null;
+        }
+        int n = 0;
+        for (int i = 0; i < latest.length; i++) {
+            if (pending[i] || (snapshot && latest[i] != null)) {
+                n++;
+            }
+        }
+        int[] slots = new int[n];
+        var values = new ParameterValue[n];
+        int k = 0;
+        for (int i = 0; i < latest.length; i++) {
+            if (pending[i] || (snapshot && latest[i] != null)) {
+                slots[k] = i;
+                values[k++] = latest[i];
+                pending[i] = false;
+            }
+        }
+        pendingCount = 0;
+        return new Batch(slots, values);
+    }
+
+    /**
+     * Puts back the values of a batch which could not be published; the parameters updated after the batch has been
+     * taken keep their newer values.
+     */
+    public synchronized void restore(Batch batch) {
+        for (int i = 0; i < batch.slots.length; i++) {
+            int slot = batch.slots[i];
+            if (!pending[slot]) {
+                latest[slot] = batch.values[i];
+                pending[slot] = true;
+                pendingCount++;
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of updates received
+     */
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * @return the number of updates replaced by a newer value before being published
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Values taken from the buffer, together with the positions of their parameters in the topic configuration
+     */
+    public record Batch(int[] slots, ParameterValue[] values) {
+        public int size() {
+            return slots.length;
+        }
+    }
+}
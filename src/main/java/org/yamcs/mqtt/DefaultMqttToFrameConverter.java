@@ -5,20 +5,47 @@ import java.util.Collections;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.YConfiguration;
 import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.Instant;
 import org.yamcs.time.TimeService;
+import org.yamcs.utils.TimeEncoding;
 
+/**
+ * Default MQTT frame converter - it uses the message payload as the frame: one mqtt message = one frame
+ * <p>
+ * The earth reception time is the current mission time or, if the <code>ertUserProperty</code> argument is configured
+ * and an MQTT 5 message has a user property with that name, its value (an ISO 8601 UTC time).
+ */
 public class DefaultMqttToFrameConverter implements MqttToFrameConverter {
     TimeService timeService;
+    String ertUserProperty;
+    Log log;
 
     @Override
     public void init(String yamcsInstance, String linkName, YConfiguration config) {
         this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.ertUserProperty = config.getString("ertUserProperty", null);
+        this.log = new Log(getClass(), yamcsInstance);
     }
 
     @Override
     public Iterable<RawFrame> convert(MqttMessage message) {
         byte[] data = message.getPayload();
-        var frame = new RawFrame(timeService.getHresMissionTime(), data);
+        Instant ert = null;
+        if (ertUserProperty != null) {
+            String s = Mqtt5Message.getUserProperty(message, ertUserProperty);
+            if (s != null) {
+                try {
+                    ert = TimeEncoding.parseHres(s);
+                } catch (Exception e) {
+                    log.warn("Cannot parse the earth reception time '{}': {}", s, e.getMessage());
+                }
+            }
+        }
+        if (ert == null) {
+            ert = timeService.getHresMissionTime();
+        }
+        var frame = new RawFrame(ert, data);
         return Collections.singletonList(frame);
     }
 
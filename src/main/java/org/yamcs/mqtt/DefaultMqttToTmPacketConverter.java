@@ -7,26 +7,43 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.TmPacket;
 import org.yamcs.YConfiguration;
 import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
 import org.yamcs.time.TimeService;
+import org.yamcs.utils.TimeEncoding;
 
 /**
  * Default MQTT packet converter - it uses the message payload as the TM packet: one mqtt message = one tm packet
  * <p>
- * It sets the
+ * It sets the reception time to the current mission time. If the <code>ertUserProperty</code> argument is configured
+ * and an MQTT 5 message has a user property with that name, its value (an ISO 8601 UTC time) is used as earth
+ * reception time.
  */
 public class DefaultMqttToTmPacketConverter implements MqttToTmPacketConverter {
     TimeService timeService;
+    String ertUserProperty;
+    Log log;
 
     @Override
     public void init(String yamcsInstance, String linkName, YConfiguration config) {
         this.timeService = YamcsServer.getTimeService(yamcsInstance);
-
+        this.ertUserProperty = config.getString("ertUserProperty", null);
+        this.log = new Log(getClass(), yamcsInstance);
     }
 
     @Override
     public List<TmPacket> convert(MqttMessage message) {
         byte[] data = message.getPayload();
         var packet = new TmPacket(timeService.getMissionTime(), data);
+        if (ertUserProperty != null) {
+            String ert = Mqtt5Message.getUserProperty(message, ertUserProperty);
+            if (ert != null) {
+                try {
+                    packet.setEarthReceptionTime(TimeEncoding.parseHres(ert));
+                } catch (Exception e) {
+                    log.warn("Cannot parse the earth reception time '{}': {}", ert, e.getMessage());
+                }
+            }
+        }
         return Collections.singletonList(packet);
     }
 }
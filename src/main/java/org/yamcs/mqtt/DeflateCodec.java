@@ -0,0 +1,109 @@
+package org.yamcs.mqtt;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+
+/**
+ * Deflate codec using the JDK {@link Deflater} and {@link Inflater}.
+ * <p>
+ * The deflaters and inflaters, as well as the buffers used for the output, are kept per thread and reused for all the
+ * messages, so the only allocation per message is the result array.
+ * <p>
+ * Arguments:
+ * <ul>
+ * <li>level: compression level between 0 and 9, default 6.</li>
+ * <li>nowrap: if true, raw deflate data is used, otherwise the data is in zlib format (RFC 1950). Default false.</li>
+ * </ul>
+ */
+public class DeflateCodec implements PayloadCodec {
+    static final int INITIAL_BUFFER_SIZE = 4096;
+
+    int level = 6;
+    boolean nowrap = false;
+
+    final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(level, nowrap));
+    final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(nowrap));
+    final ThreadLocal<byte[][]> buffer = ThreadLocal.withInitial(() -> new byte[][] { new byte[INITIAL_BUFFER_SIZE] });
+
+    public DeflateCodec() {
+    }
+
+    public DeflateCodec(int level, boolean nowrap) {
+        this.level = level;
+        this.nowrap = nowrap;
+    }
+
+    @Override
+    public void init(YConfiguration config) {
+        level = config.getInt("level", level);
+        nowrap = config.getBoolean("nowrap", nowrap);
+        if (level < 0 || level > 9) {
+            throw new ConfigurationException("Invalid deflate level " + level + " (valid values 0 to 9)");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        var d = deflater.get();
+        d.reset();
+        d.setInput(data, offset, length);
+        d.finish();
+        var holder = buffer.get();
+        int n = 0;
+        while (!d.finished()) {
+            byte[] buf = ensureCapacity(holder, n);
+            n += d.deflate(buf, n, buf.length - n);
+        }
+        return Arrays.copyOf(holder[0], n);
+    }
+
+    @Override
+    public byte[] decode(byte[] data, int maxLength) {
+        var inf = inflater.get();
+        inf.reset();
+        inf.setInput(data);
+        var holder = buffer.get();
+        int n = 0;
+        try {
+            while (!inf.finished()) {
+                if (n > maxLength) {
+                    throw new IllegalArgumentException("Decompressed data longer than " + maxLength + " bytes");
+                }
+                byte[] buf = ensureCapacity(holder, n);
+                int k = inf.inflate(buf, n, Math.min(buf.length, maxLength + 1) - n);
+                if (k == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate data");
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid deflate data: " + e.getMessage());
+        }
+        if (n > maxLength) {
+            throw new IllegalArgumentException("Decompressed data longer than " + maxLength + " bytes");
+        }
+        return Arrays.copyOf(holder[0], n);
+    }
+
+    /**
+     * @return the thread buffer, grown if it does not have free space after n bytes
+     */
+    private static byte[] ensureCapacity(byte[][] holder, int n) {
+        byte[] buf = holder[0];
+        if (n == buf.length) {
+            buf = Arrays.copyOf(buf, 2 * buf.length);
+            holder[0] = buf;
+        }
+        return buf;
+    }
+}
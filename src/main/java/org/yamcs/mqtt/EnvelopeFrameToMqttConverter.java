@@ -0,0 +1,48 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.time.TimeService;
+
+/**
+ * Sends the TC frames in a {@link BinaryEnvelope} containing the current mission time and a sequence number
+ * incremented for each frame.
+ * <p>
+ * Arguments:
+ * <ul>
+ * <li>stationId: optional station id added to each envelope.</li>
+ * </ul>
+ */
+public class EnvelopeFrameToMqttConverter implements FrameToMqttConverter {
+    TimeService timeService;
+    byte[] stationId;
+    final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.stationId = getStationId(config);
+    }
+
+    static byte[] getStationId(YConfiguration config) {
+        if (!config.containsKey("stationId")) {
+            return null;
+        }
+        byte[] b = config.getString("stationId").getBytes(StandardCharsets.UTF_8);
+        if (b.length > 255) {
+            throw new ConfigurationException("stationId too long (max 255 bytes)");
+        }
+        return b;
+    }
+
+    @Override
+    public MqttMessage convert(byte[] frameData) {
+        long seq = sequence.getAndIncrement() & 0xFFFFFFFFL;
+        return new MqttMessage(BinaryEnvelope.encode(timeService.getHresMissionTime(), stationId, seq, frameData));
+    }
+}
@@ -0,0 +1,50 @@
+package org.yamcs.mqtt;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.TimeService;
+
+/**
+ * Extracts the frame from a {@link BinaryEnvelope}. The frame refers to the message payload, no copy is made.
+ * <p>
+ * The earth reception time is taken from the envelope; if the envelope does not contain a time, the current mission
+ * time is used.
+ */
+public class EnvelopeMqttToFrameConverter implements MqttToFrameConverter {
+    TimeService timeService;
+    Log log;
+    final AtomicLong invalidCount = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.log = new Log(this.getClass(), yamcsInstance);
+    }
+
+    @Override
+    public List<RawFrame> convert(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        try {
+            var h = BinaryEnvelope.decode(payload);
+            var ert = h.time() == null ? timeService.getHresMissionTime() : h.time();
+            int offset = h.dataOffset();
+            return Collections.singletonList(new RawFrame(ert, payload, offset, payload.length - offset));
+        } catch (IllegalArgumentException e) {
+            invalidCount.incrementAndGet();
+            log.warn("Cannot decode envelope: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        return Map.of("Invalid envelopes", invalidCount.get());
+    }
+}
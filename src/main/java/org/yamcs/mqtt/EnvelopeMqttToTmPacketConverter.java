@@ -0,0 +1,54 @@
+package org.yamcs.mqtt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.TmPacket;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.TimeService;
+
+/**
+ * Extracts the packet from a {@link BinaryEnvelope}.
+ * <p>
+ * The reception time is the current mission time; the earth reception time is set from the envelope time if present.
+ */
+public class EnvelopeMqttToTmPacketConverter implements MqttToTmPacketConverter {
+    TimeService timeService;
+    Log log;
+    final AtomicLong invalidCount = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.log = new Log(this.getClass(), yamcsInstance);
+    }
+
+    @Override
+    public List<TmPacket> convert(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        try {
+            var h = BinaryEnvelope.decode(payload);
+            var pkt = new TmPacket(timeService.getMissionTime(),
+                    Arrays.copyOfRange(payload, h.dataOffset(), payload.length));
+            if (h.time() != null) {
+                pkt.setEarthReceptionTime(h.time());
+            }
+            return Collections.singletonList(pkt);
+        } catch (IllegalArgumentException e) {
+            invalidCount.incrementAndGet();
+            log.warn("Cannot decode envelope: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        return Map.of("Invalid envelopes", invalidCount.get());
+    }
+}
@@ -0,0 +1,35 @@
+package org.yamcs.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.YConfiguration;
+import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.time.Instant;
+
+/**
+ * Sends the binary commands in a {@link BinaryEnvelope} containing the generation time of the command and a sequence
+ * number incremented for each command. The generation time is kept for the commands released later from the TC spool
+ * or from a queue.
+ * <p>
+ * Arguments:
+ * <ul>
+ * <li>stationId: optional station id added to each envelope.</li>
+ * </ul>
+ */
+public class EnvelopePreparedCommandToMqttConverter implements PreparedCommandToMqttConverter {
+    byte[] stationId;
+    final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.stationId = EnvelopeFrameToMqttConverter.getStationId(config);
+    }
+
+    @Override
+    public MqttMessage convert(PreparedCommand preparedCommand) {
+        long seq = sequence.getAndIncrement() & 0xFFFFFFFFL;
+        return new MqttMessage(BinaryEnvelope.encode(Instant.get(preparedCommand.getGenerationTime()), stationId, seq,
+                preparedCommand.getBinary()));
+    }
+}
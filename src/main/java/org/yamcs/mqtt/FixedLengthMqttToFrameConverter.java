@@ -0,0 +1,84 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.TimeService;
+
+/**
+ * MQTT frame converter for messages containing multiple concatenated frames of fixed length.
+ * <p>
+ * The frames are returned as slices of the message payload, without copying the data.
+ * <p>
+ * args:
+ * <ul>
+ * <li>frameLength: the length in bytes of each frame. Required.</li>
+ * <li>headerLength: number of bytes at the beginning of the message to be skipped. Default: 0</li>
+ * </ul>
+ * If the payload ends with an incomplete frame, the remaining data is discarded and counted as truncated.
+ */
+public class FixedLengthMqttToFrameConverter implements MqttToFrameConverter {
+    TimeService timeService;
+    Log log;
+    int frameLength;
+    int headerLength;
+
+    final AtomicLong frameCount = new AtomicLong();
+    final AtomicLong truncatedCount = new AtomicLong();
+    final AtomicLong truncatedBytes = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.log = new Log(this.getClass(), yamcsInstance);
+        if (!config.containsKey("frameLength")) {
+            throw new ConfigurationException("frameLength is required for " + getClass().getSimpleName());
+        }
+        frameLength = config.getInt("frameLength");
+        headerLength = config.getInt("headerLength", 0);
+        if (frameLength < 1) {
+            throw new ConfigurationException("frameLength has to be positive");
+        }
+        if (headerLength < 0) {
+            throw new ConfigurationException("headerLength cannot be negative");
+        }
+    }
+
+    @Override
+    public List<RawFrame> convert(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        var ert = timeService.getHresMissionTime();
+        int n = Math.max(0, (payload.length - headerLength) / frameLength);
+        List<RawFrame> result = new ArrayList<>(n);
+        int offset = headerLength;
+        for (int i = 0; i < n; i++) {
+            result.add(new RawFrame(ert, payload, offset, frameLength));
+            offset += frameLength;
+        }
+        int remaining = payload.length < headerLength ? payload.length : payload.length - offset;
+        if (remaining > 0) {
+            truncatedCount.incrementAndGet();
+            truncatedBytes.addAndGet(remaining);
+            log.debug("Discarding {} bytes of truncated data at the end of the message", remaining);
+        }
+        frameCount.addAndGet(n);
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        extra.put("Split frames", frameCount.get());
+        extra.put("Truncated messages", truncatedCount.get());
+        extra.put("Truncated bytes", truncatedBytes.get());
+        return extra;
+    }
+}
@@ -0,0 +1,160 @@
+package org.yamcs.mqtt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Detects the copies of the same frame received from more than one ground station.
+ * <p>
+ * Each frame is identified by a 64-bit fingerprint computed from the frame length, the beginning of the frame
+ * (containing the primary header with the virtual channel id and the frame count) and its end (usually the frame error
+ * control field). The fingerprints are kept together with the earth reception time of the frame in open addressing
+ * tables of primitive longs, so no object is allocated per frame.
+ * <p>
+ * The fingerprints are evicted by ERT age: two tables are used, the current one receiving the new fingerprints and the
+ * previous one which is only looked up. When the ERT of a frame is more than <code>maxAge</code> after the start of the
+ * current table (or the current table is half full), the previous table is cleared and the tables are swapped. In
+ * addition, a matching fingerprint is ignored if its ERT is more than <code>maxAge</code> away from the ERT of the
+ * frame, such that a frame count wrapping around is not taken for a duplicate.
+ * <p>
+ * This class is not thread safe.
+ */
+public class FrameDeduplicator {
+    static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    static final int HEAD_LENGTH = 64;
+    static final int TAIL_LENGTH = 8;
+
+    final long maxAgeMillis;
+    final int capacity;
+
+    Table current;
+    Table previous;
+
+    long duplicateCount;
+
+    /**
+     * @param capacity
+     *            the number of fingerprints kept in each table; rounded up to a power of two
+     * @param maxAgeMillis
+     *            the maximum difference between the earth reception times of two copies of a frame
+     */
+    public FrameDeduplicator(int capacity, long maxAgeMillis) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity has to be at least 2");
+        }
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.maxAgeMillis = maxAgeMillis;
+        this.current = new Table(2 * this.capacity);
+        this.previous = new Table(2 * this.capacity);
+    }
+
+    /**
+     * Records the frame
+     *
+     * @param ertMillis
+     *            the earth reception time of the frame in milliseconds
+     * @return true if the frame is new and false if it is a copy of a frame received before
+     */
+    public boolean add(byte[] data, int offset, int length, long ertMillis) {
+        long fp = fingerprint(data, offset, length);
+        if (current.size == 0) {
+            current.start = ertMillis;
+        } else if (ertMillis - current.start > maxAgeMillis || current.size >= capacity) {
+            rotate(ertMillis);
+        }
+        if (previous.contains(fp, ertMillis, maxAgeMillis) || current.contains(fp, ertMillis, maxAgeMillis)) {
+            duplicateCount++;
+            return false;
+        }
+        current.put(fp, ertMillis);
+        return true;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    private void rotate(long ertMillis) {
+        var t = previous;
+        previous = current;
+        current = t;
+        current.clear();
+        current.start = ertMillis;
+    }
+
+    /**
+     * Computes the fingerprint from the length, the first {@value #HEAD_LENGTH} bytes and the last
+     * {@value #TAIL_LENGTH} bytes of the frame
+     */
+    static long fingerprint(byte[] data, int offset, int length) {
+        long h = 0x9E3779B97F4A7C15L ^ length;
+        int headEnd = offset + Math.min(length, HEAD_LENGTH);
+        int i = offset;
+        for (; i + 8 <= headEnd; i += 8) {
+            h = mix(h ^ (long) LONG.get(data, i));
+        }
+        for (; i < headEnd; i++) {
+            h = mix(h ^ (data[i] & 0xFF));
+        }
+        int tailStart = Math.max(headEnd, offset + length - TAIL_LENGTH);
+        for (i = tailStart; i < offset + length; i++) {
+            h = mix(h ^ (data[i] & 0xFF));
+        }
+        // 0 marks the empty slots
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static class Table {
+        final long[] keys;
+        final long[] erts;
+        final int mask;
+        int size;
+        long start;
+
+        Table(int n) {
+            keys = new long[n];
+            erts = new long[n];
+            mask = n - 1;
+        }
+
+        boolean contains(long fp, long ert, long maxAge) {
+            for (int i = (int) fp & mask;; i = (i + 1) & mask) {
+                long k = keys[i];
+                if (k == 0) {
+                    return false;
+                }
+                if (k == fp && Math.abs(ert - erts[i]) <= maxAge) {
+                    return true;
+                }
+            }
+        }
+
+        void put(long fp, long ert) {
+            int i = (int) fp & mask;
+            while (keys[i] != 0 && keys[i] != fp) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = fp;
+            erts[i] = ert;
+        }
+
+        void clear() {
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.yamcs.mqtt;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.yamcs.ConfigurationException;
+
+/**
+ * Puts the TM frames received out of order back in the order of their virtual channel frame count before passing them
+ * to the frame processing.
+ * <p>
+ * For each virtual channel, the frames received ahead of the next expected one are kept in a ring indexed by their
+ * frame count. They are released as soon as the missing frames arrive or, if a missing frame does not arrive within
+ * <code>maxDelay</code>, the gap is skipped. A frame whose count is too far ahead (more than the window size) causes
+ * all the pending frames to be released. A frame older than the next expected one (late or duplicated) is released
+ * immediately.
+ * <p>
+ * The frame count is taken from the primary header: 8 bits for TM frames, 24 bits for AOS frames and the variable
+ * length virtual channel frame count for USLP frames. The frames without a count (USLP truncated frames or frames with
+ * a count of length 0) are released immediately.
+ * <p>
+ * The methods are synchronized; the frames are released on the calling thread, holding the lock.
+ */
+public class FrameReorderBuffer {
+    static final int MAX_VC = 64;
+
+    public enum FrameType {
+        TM, AOS, USLP
+    }
+
+    final FrameType frameType;
+    final int windowSize;
+    final long maxDelayNanos;
+    final Consumer<RawFrame> output;
+    final VcWindow[] windows = new VcWindow[MAX_VC];
+
+    // result of parse
+    int vcId;
+    long count;
+    int countBits;
+
+    int depth;
+    int maxDepth;
+    long reorderedCount;
+    long lateCount;
+    long timeoutCount;
+
+    /**
+     * @param windowSize
+     *            the maximum number of frames kept per virtual channel; rounded up to a power of two and limited to
+     *            half of the frame count modulus.
+     * @param maxDelayNanos
+     *            the maximum time waiting for a missing frame
+     * @param output
+     *            receives the frames in order
+     */
+    public FrameReorderBuffer(FrameType frameType, int windowSize, long maxDelayNanos, Consumer<RawFrame> output) {
+        if (windowSize < 2) {
+            throw new ConfigurationException("The reorder window size has to be at least 2");
+        }
+        this.frameType = frameType;
+        this.windowSize = Integer.highestOneBit(windowSize - 1) << 1;
+        this.maxDelayNanos = maxDelayNanos;
+        this.output = output;
+    }
+
+    /**
+     * Adds a frame to the buffer, releasing it and the frames following it if it is the next expected frame.
+     *
+     * @param now
+     *            the current time in nanoseconds ({@link System#nanoTime()})
+     */
+    public synchronized void offer(RawFrame frame, long now) {
+        if (!parse(frame)) {
+            output.accept(frame);
+            return;
+        }
+        var w = windows[vcId];
+        if (w == null || w.bits != countBits) {
+            if (w != null) {
+                w.flush();
+            }
+            w = new VcWindow(countBits);
+            windows[vcId] = w;
+        }
+        w.offer(frame, count, now);
+        w.checkTimeout(now);
+    }
+
+    /**
+     * Skips the gaps for which the missing frames have not arrived within the maximum delay. Called periodically such
+     * that the frames are released also when no more frames are received.
+     */
+    public synchronized void checkTimeouts(long now) {
+        for (var w : windows) {
+            if (w != null) {
+                w.checkTimeout(now);
+            }
+        }
+    }
+
+    /**
+     * Releases all the pending frames
+     */
+    public synchronized void flush() {
+        for (var w : windows) {
+            if (w != null) {
+                w.flush();
+            }
+        }
+    }
+
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    public synchronized long getReorderedCount() {
+        return reorderedCount;
+    }
+
+    public synchronized void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Reorder window depth", depth);
+        extra.put("Reorder window max depth", maxDepth);
+        extra.put("Reordered frames", reorderedCount);
+        extra.put("Late frames", lateCount);
+        extra.put("Reorder timeouts", timeoutCount);
+    }
+
+    /**
+     * Extracts the virtual channel id and the frame count from the frame header
+     *
+     * @return false if the frame does not contain a frame count
+     */
+    boolean parse(RawFrame frame) {
+        byte[] d = frame.data();
+        int o = frame.offset();
+        int length = frame.length();
+        switch (frameType) {
+        case TM:
+            if (length < 4) {
+                return false;
+            }
+            vcId = (d[o + 1] >> 1) & 0x07;
+            count = d[o + 3] & 0xFF;
+            countBits = 8;
+            return true;
+        case AOS:
+            if (length < 5) {
+                return false;
+            }
+            vcId = d[o + 1] & 0x3F;
+            count = ((d[o + 2] & 0xFF) << 16) | ((d[o + 3] & 0xFF) << 8) | (d[o + 4] & 0xFF);
+            countBits = 24;
+            return true;
+        case USLP:
+            if (length < 7 || (d[o + 3] & 0x01) != 0) {
+                // truncated frame primary header
+                return false;
+            }
+            vcId = ((d[o + 2] & 0x07) << 3) | ((d[o + 3] >> 5) & 0x07);
+            int n = d[o + 6] & 0x07;
+            if (n == 0 || length < 7 + n) {
+                return false;
+            }
+            long c = 0;
+            for (int i = 0; i < n; i++) {
+                c = (c << 8) | (d[o + 7 + i] & 0xFF);
+            }
+            count = c;
+            countBits = 8 * n;
+            return true;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    void release(RawFrame frame) {
+        output.accept(frame);
+    }
+
+    class VcWindow {
+        final int bits;
+        final long mask;
+        final int size;
+        final RawFrame[] frames;
+        final long[] counts;
+        long next = -1;
+        int pending;
+        // time since the next expected frame is missing
+        long gapSince;
+
+        VcWindow(int bits) {
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+            this.size = (int) Math.min(windowSize, (mask >>> 1) + 1);
+            this.frames = new RawFrame[size];
+            this.counts = new long[size];
+        }
+
+        void offer(RawFrame frame, long c, long now) {
+            if (next < 0) {
+                next = c;
+            }
+            long d = (c - next) & mask;
+            if (d == 0) {
+                release(frame);
+                next = (next + 1) & mask;
+                releaseConsecutive(now);
+            } else if (d > (mask >>> 1)) {
+                // behind the next expected frame
+                lateCount++;
+                release(frame);
+            } else if (d < size) {
+                int i = (int) (c & (size - 1));
+                if (frames[i] != null) {
+                    // duplicate of a pending frame
+                    release(frame);
+                    return;
+                }
+                frames[i] = frame;
+                counts[i] = c;
+                if (pending == 0) {
+                    gapSince = now;
+                }
+                pending++;
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+            } else {
+                flush();
+                release(frame);
+                next = (c + 1) & mask;
+            }
+        }
+
+        /**
+         * Releases the pending frames starting with the next expected one
+         */
+        private void releaseConsecutive(long now) {
+            while (pending > 0) {
+                int i = (int) (next & (size - 1));
+                if (frames[i] == null || counts[i] != next) {
+                    gapSince = now;
+                    return;
+                }
+                take(i);
+                reorderedCount++;
+                next = (next + 1) & mask;
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (pending == 0 || now - gapSince < maxDelayNanos) {
+                return;
+            }
+            // skip the missing frames up to the first pending one
+            timeoutCount++;
+            for (int j = 1; j < size; j++) {
+                long c = (next + j) & mask;
+                int i = (int) (c & (size - 1));
+                if (frames[i] != null && counts[i] == c) {
+                    next = c;
+                    break;
+                }
+            }
+            releaseConsecutive(now);
+        }
+
+        /**
+         * Releases all the pending frames in order, skipping the gaps
+         */
+        void flush() {
+            long base = next;
+            for (int j = 1; j < size && pending > 0; j++) {
+                long c = (base + j) & mask;
+                int i = (int) (c & (size - 1));
+                if (frames[i] != null && counts[i] == c) {
+                    take(i);
+                    next = (c + 1) & mask;
+                }
+            }
+        }
+
+        private void take(int i) {
+            var frame = frames[i];
+            frames[i] = null;
+            pending--;
+            depth--;
+            release(frame);
+        }
+    }
+}
@@ -12,6 +12,10 @@ public interface FrameToMqttConverter {
      */
     void init(String yamcsInstance, String linkName, YConfiguration config);
 
+    /**
+     * Creates the MQTT message to be published. If the link uses MQTT 5, the converter may return an
+     * {@link Mqtt5Message} to send user properties together with the message.
+     */
     MqttMessage convert(byte[] frameData);
 }
 
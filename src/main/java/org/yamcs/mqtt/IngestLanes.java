@@ -0,0 +1,68 @@
+package org.yamcs.mqtt;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.IngestQueue.OverflowPolicy;
+
+/**
+ * Set of {@link IngestQueue}s with one worker thread each, used to merge the data converted on the callback threads of
+ * several MQTT clients.
+ * <p>
+ * The items offered with the same key (e.g. APID or virtual channel) always go to the same lane, so they are processed
+ * sequentially, in the order in which they have been offered by each producer.
+ */
+public class IngestLanes<T> {
+    final IngestQueue<T>[] lanes;
+
+    @SuppressWarnings("unchecked")
+    public IngestLanes(String name, int numLanes, int capacity, OverflowPolicy policy, Consumer<T> handler, Log log) {
+        if (numLanes < 1) {
+            throw new IllegalArgumentException("numLanes must be positive");
+        }
+        lanes = new IngestQueue[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new IngestQueue<>(name + "-lane" + i, capacity, policy, 1, handler, log);
+        }
+    }
+
+    /**
+     * Called from the MQTT callback threads to queue an item in the lane corresponding to the key.
+     *
+     * @return false if the item has been dropped
+     */
+    public boolean offer(int key, T item) {
+        return lanes[Math.floorMod(key, lanes.length)].offer(item);
+    }
+
+    public void start() {
+        for (var lane : lanes) {
+            lane.start();
+        }
+    }
+
+    public void stop() {
+        for (var lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    public int numLanes() {
+        return lanes.length;
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        long depth = 0, maxDepth = 0, dropped = 0;
+        for (var lane : lanes) {
+            depth += lane.size();
+            maxDepth = Math.max(maxDepth, lane.maxDepth.get());
+            dropped += lane.getDroppedCount();
+        }
+        extra.put("Ingest lanes", lanes.length);
+        extra.put("Ingest queue depth", depth);
+        extra.put("Ingest queue max depth", maxDepth);
+        extra.put("Ingest queue capacity", lanes[0].capacity());
+        extra.put("Ingest dropped messages", dropped);
+    }
+}
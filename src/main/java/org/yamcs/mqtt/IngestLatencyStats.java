@@ -0,0 +1,107 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.SystemParametersService;
+import org.yamcs.protobuf.Yamcs.Value.Type;
+import org.yamcs.time.Instant;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.Parameter;
+import org.yamcs.xtce.UnitType;
+
+/**
+ * Latency histograms for the stages of the TM ingest path of a link.
+ * <p>
+ * For each stage, the 50th and 99th percentile and the maximum latency (in microseconds) of the interval since the
+ * previous collection are published as system parameters <code>links/&lt;linkName&gt;/latency/&lt;stage&gt;/p50</code>,
+ * <code>p99</code> and <code>max</code>; the totals since the link start are summarized in the link extra info.
+ */
+public class IngestLatencyStats {
+    static final String SP_PREFIX = "links/";
+    final List<Stage> stages = new ArrayList<>();
+
+    /**
+     * Adds a stage; to be called before the system parameters are set up.
+     */
+    public LatencyHistogram addStage(String name, String description) {
+        var stage = new Stage(name, description);
+        stages.add(stage);
+        return stage.histogram;
+    }
+
+    public void setupSystemParameters(SystemParametersService sysParamService, String linkName) {
+        var unit = new UnitType("us");
+        for (var stage : stages) {
+            String prefix = SP_PREFIX + linkName + "/latency/" + stage.name;
+            stage.spP50 = sysParamService.createSystemParameter(prefix + "/p50", Type.DOUBLE, unit,
+                    "Median " + stage.description + " latency");
+            stage.spP99 = sysParamService.createSystemParameter(prefix + "/p99", Type.DOUBLE, unit,
+                    "99th percentile of the " + stage.description + " latency");
+            stage.spMax = sysParamService.createSystemParameter(prefix + "/max", Type.DOUBLE, unit,
+                    "Maximum " + stage.description + " latency");
+        }
+    }
+
+    /**
+     * Adds the statistics of the values recorded since the previous call; nothing is added for the stages without new
+     * values.
+     */
+    public void collectSystemParameters(long time, List<ParameterValue> list) {
+        for (var stage : stages) {
+            if (stage.spP50 == null) {
+                continue;
+            }
+            var s = stage.histogram.interval();
+            if (s.getCount() == 0) {
+                continue;
+            }
+            list.add(SystemParametersService.getPV(stage.spP50, time, micros(s.getPercentile(50))));
+            list.add(SystemParametersService.getPV(stage.spP99, time, micros(s.getPercentile(99))));
+            list.add(SystemParametersService.getPV(stage.spMax, time, micros(s.getMax())));
+        }
+    }
+
+    /**
+     * Adds for each stage with recorded values the p50/p99/max since the link start
+     */
+    public void addExtraInfo(Map<String, Object> extra) {
+        for (var stage : stages) {
+            var s = stage.histogram.total();
+            if (s.getCount() > 0) {
+                extra.put("Latency " + stage.name + " p50/p99/max (us)",
+                        String.format("%.1f/%.1f/%.1f", micros(s.getPercentile(50)), micros(s.getPercentile(99)),
+                                micros(s.getMax())));
+            }
+        }
+    }
+
+    /**
+     * @return the time in nanoseconds between the earth reception time and the wallclock time (both in Yamcs time) or
+     *         -1 if the earth reception time is not set
+     */
+    static long ertDelay(Instant ert, long wallclockTime) {
+        if (ert == null || ert.getMillis() == TimeEncoding.INVALID_INSTANT) {
+            return -1;
+        }
+        return (wallclockTime - ert.getMillis()) * 1_000_000 - ert.getPicos() / 1000;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    static class Stage {
+        final String name;
+        final String description;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Parameter spP50, spP99, spMax;
+
+        Stage(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+    }
+}
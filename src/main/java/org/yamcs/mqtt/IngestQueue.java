@@ -0,0 +1,201 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.yamcs.logging.Log;
+
+/**
+ * Decouples the MQTT client callback thread from the processing of the messages.
+ * <p>
+ * The callback thread only puts the messages into a bounded {@link RingBuffer}; a number of worker threads take them
+ * out and pass them to the handler. When the buffer is full, the {@link OverflowPolicy} decides what happens to the
+ * new message.
+ * <p>
+ * The order of the messages is only preserved if there is one worker thread.
+ */
+public class IngestQueue<T> {
+    static final int SPIN_COUNT = 100;
+    static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public enum OverflowPolicy {
+        /**
+         * the producer waits until there is space in the queue
+         */
+        BLOCK,
+        /**
+         * the oldest message in the queue is discarded to make space for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * the new message is discarded
+         */
+        DROP_NEWEST
+    }
+
+    final RingBuffer<T> ring;
+    final OverflowPolicy policy;
+    final Consumer<T> handler;
+    final String name;
+    final Log log;
+    final int numThreads;
+    volatile List<Worker> workers = List.of();
+    volatile boolean running;
+
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong maxDepth = new AtomicLong();
+
+    public IngestQueue(String name, int capacity, OverflowPolicy policy, int numThreads, Consumer<T> handler, Log log) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+        this.name = name;
+        this.ring = new RingBuffer<>(capacity);
+        this.policy = policy;
+        this.handler = handler;
+        this.log = log;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Starts the worker threads. Does nothing if they are already running.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        var l = new ArrayList<Worker>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            var w = new Worker();
+            w.thread = new Thread(w, name + "-ingest-" + i);
+            w.thread.setDaemon(true);
+            l.add(w);
+        }
+        workers = l;
+        l.forEach(w -> w.thread.start());
+    }
+
+    /**
+     * Stops the worker threads; the messages remaining in the queue will be processed after the next start.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (var w : workers) {
+            LockSupport.unpark(w.thread);
+        }
+        for (var w : workers) {
+            try {
+                w.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called from the MQTT callback thread to queue a message.
+     *
+     * @return false if the message has been dropped
+     */
+    public boolean offer(T msg) {
+        boolean queued = ring.offer(msg);
+        if (!queued) {
+            switch (policy) {
+            case DROP_NEWEST:
+                droppedCount.incrementAndGet();
+                return false;
+            case DROP_OLDEST:
+                while (!ring.offer(msg)) {
+                    if (ring.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                }
+                break;
+            case BLOCK:
+                while (!ring.offer(msg)) {
+                    if (!running) {
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                break;
+            }
+        }
+        int depth = ring.size();
+        // the producers may race; the plain read avoids the CAS in the common case
+        if (depth > maxDepth.get()) {
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+        signal();
+        return true;
+    }
+
+    private void signal() {
+        for (var w : workers) {
+            if (w.parked) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    public int capacity() {
+        return ring.capacity();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Ingest queue depth", ring.size());
+        extra.put("Ingest queue max depth", maxDepth.get());
+        extra.put("Ingest queue capacity", ring.capacity());
+        extra.put("Ingest dropped messages", droppedCount.get());
+    }
+
+    class Worker implements Runnable {
+        Thread thread;
+        volatile boolean parked;
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                T msg = ring.poll();
+                if (msg != null) {
+                    idle = 0;
+                    try {
+                        handler.accept(msg);
+                    } catch (Exception e) {
+                        log.error("Error processing message", e);
+                    }
+                } else if (++idle < SPIN_COUNT) {
+                    Thread.onSpinWait();
+                } else {
+                    parked = true;
+                    if (ring.isEmpty() && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    parked = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yamcs.ConfigurationException;
+import org.yamcs.mqtt.JsonScanner.Token;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.Value;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.utils.ValueUtility;
+import org.yamcs.xtce.BooleanParameterType;
+import org.yamcs.xtce.EnumeratedParameterType;
+import org.yamcs.xtce.FloatParameterType;
+import org.yamcs.xtce.IntegerParameterType;
+import org.yamcs.xtce.Parameter;
+import org.yamcs.xtce.ParameterType;
+import org.yamcs.xtce.StringParameterType;
+
+/**
+ * Extracts parameter values from JSON messages according to a list of mappings from JSON paths to parameters.
+ * <p>
+ * A path is a sequence of object member names separated by dots, with optional array indices, for example
+ * <code>rf.channels[1].power</code>. The empty path designates the whole message, used when each topic carries a
+ * single value.
+ * <p>
+ * The paths are compiled at construction into a trie stored in flat arrays, and the type of the engineering value of
+ * each parameter is resolved, such that the message is processed in one pass of the {@link JsonScanner}: the member
+ * names are compared with the few names expected at their position and the members which are not mapped are skipped
+ * without being decoded.
+ * <p>
+ * One path can also be designated as the time path: its value (ISO 8601 string or number of milliseconds since
+ * 1970-01-01, rounded to the nearest millisecond) gives the generation time of all the values of the message.
+ * <p>
+ * The integer values out of the range of the parameter type (e.g. negative values for unsigned parameters) are
+ * counted as type mismatches.
+ * <p>
+ * This class is thread safe.
+ */
+public class JsonParameterMapper {
+    static final int NONE = -1;
+    // the slot of the time path
+    static final int TIME = -2;
+
+    // node i has its members in [memberStart[i], memberStart[i + 1])
+    final int[] memberStart;
+    final boolean[] arrayNode;
+    // name of the member (for objects) or null (for arrays)
+    final byte[][] memberName;
+    // index of the member (for arrays)
+    final int[] memberIndex;
+    // the node containing the value of the member or NONE if the member is a leaf
+    final int[] memberChild;
+    // the mapping of a leaf member or TIME
+    final int[] memberSlot;
+    // the mapping of the whole message if the empty path is used
+    final int rootSlot;
+
+    final Parameter[] parameters;
+    final ValueKind[] kinds;
+
+    /**
+     * The result of the mapping of one message
+     */
+    public static class Result {
+        final List<ParameterValue> values;
+        long time = TimeEncoding.INVALID_INSTANT;
+        int typeMismatches;
+
+        Result(int capacity) {
+            values = new ArrayList<>(capacity);
+        }
+
+        public List<ParameterValue> getValues() {
+            return values;
+        }
+
+        /**
+         * @return the time extracted from the message or {@link TimeEncoding#INVALID_INSTANT}
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the number of mapped fields which have been ignored because their JSON type does not correspond to
+         *         the type of the parameter or their value is out of its range
+         */
+        public int getTypeMismatches() {
+            return typeMismatches;
+        }
+    }
+
+    /**
+     * @param paths
+     *            the JSON paths of the values
+     * @param parameters
+     *            the parameters corresponding to the paths
+     * @param timePath
+     *            the JSON path of the generation time or null if the messages do not contain the time
+     * @throws ConfigurationException
+     *             if a path is invalid, is mapped twice or if the type of a parameter is not supported
+     */
+    public JsonParameterMapper(List<String> paths, List<Parameter> parameters, String timePath) {
+        if (paths.size() != parameters.size()) {
+            throw new IllegalArgumentException("The number of paths and parameters differ");
+        }
+        this.parameters = parameters.toArray(new Parameter[0]);
+        this.kinds = new ValueKind[parameters.size()];
+        var root = new BuildNode();
+        for (int i = 0; i < paths.size(); i++) {
+            kinds[i] = ValueKind.of(this.parameters[i]);
+            root.add(parsePath(paths.get(i)), 0, i);
+        }
+        if (timePath != null) {
+            root.add(parsePath(timePath), 0, TIME);
+        }
+        rootSlot = root.slot;
+
+        // number the nodes breadth first, then fill in the members
+        List<BuildNode> nodes = new ArrayList<>();
+        var queue = new ArrayDeque<BuildNode>();
+        queue.add(root);
+        int memberCount = 0;
+        while (!queue.isEmpty()) {
+            var n = queue.poll();
+            n.id = nodes.size();
+            nodes.add(n);
+            memberCount += n.members.size();
+            for (var c : n.members.values()) {
+                if (!c.members.isEmpty()) {
+                    queue.add(c);
+                }
+            }
+        }
+        memberStart = new int[nodes.size() + 1];
+        arrayNode = new boolean[nodes.size()];
+        memberName = new byte[memberCount][];
+        memberIndex = new int[memberCount];
+        memberChild = new int[memberCount];
+        memberSlot = new int[memberCount];
+        int m = 0;
+        for (var n : nodes) {
+            memberStart[n.id] = m;
+            arrayNode[n.id] = n.array;
+            for (var e : n.members.entrySet()) {
+                var c = e.getValue();
+                if (n.array) {
+                    memberIndex[m] = (Integer) e.getKey();
+                } else {
+                    memberName[m] = ((String) e.getKey()).getBytes(StandardCharsets.UTF_8);
+                }
+                memberChild[m] = c.members.isEmpty() ? NONE : c.id;
+                memberSlot[m] = c.slot;
+                m++;
+            }
+        }
+        memberStart[nodes.size()] = m;
+    }
+
+    /**
+     * Extracts the values from the message; the generation time of the values is the time extracted from the message
+     * or the given default time and their acquisition time is the default time.
+     *
+     * @throws IllegalArgumentException
+     *             if the message is not valid JSON
+     */
+    public Result map(byte[] data, int offset, int length, long defaultTime) {
+        var sc = new JsonScanner(data, offset, length);
+        var result = new Result(parameters.length);
+        if (rootSlot != NONE) {
+            value(sc, rootSlot, result);
+        } else {
+            node(sc, 0, result);
+        }
+        long genTime = result.time == TimeEncoding.INVALID_INSTANT ? defaultTime : result.time;
+        for (var pv : result.values) {
+            pv.setGenerationTime(genTime);
+            pv.setAcquisitionTime(defaultTime);
+        }
+        return result;
+    }
+
+    public int size() {
+        return parameters.length;
+    }
+
+    private void node(JsonScanner sc, int n, Result result) {
+        int start = memberStart[n];
+        int end = memberStart[n + 1];
+        if (arrayNode[n]) {
+            if (sc.peek() != Token.BEGIN_ARRAY) {
+                mismatch(sc, result);
+                return;
+            }
+            sc.beginArray();
+            for (int idx = 0; sc.hasNext(); idx++) {
+                int m = start;
+                while (m < end && memberIndex[m] != idx) {
+                    m++;
+                }
+                if (m < end) {
+                    member(sc, m, result);
+                } else {
+                    sc.skipValue();
+                }
+            }
+            sc.endArray();
+        } else {
+            if (sc.peek() != Token.BEGIN_OBJECT) {
+                mismatch(sc, result);
+                return;
+            }
+            sc.beginObject();
+            while (sc.hasNext()) {
+                sc.nextName();
+                int m = start;
+                while (m < end && !sc.stringEquals(memberName[m])) {
+                    m++;
+                }
+                if (m < end) {
+                    member(sc, m, result);
+                } else {
+                    sc.skipValue();
+                }
+            }
+            sc.endObject();
+        }
+    }
+
+    private void member(JsonScanner sc, int m, Result result) {
+        if (memberChild[m] != NONE) {
+            node(sc, memberChild[m], result);
+        } else {
+            value(sc, memberSlot[m], result);
+        }
+    }
+
+    private void value(JsonScanner sc, int slot, Result result) {
+        var token = sc.peek();
+        if (token == Token.NULL) {
+            sc.nextNull();
+            return;
+        }
+        if (slot == TIME) {
+            if (token == Token.STRING) {
+                sc.nextString();
+                result.time = TimeEncoding.parse(sc.stringValue());
+            } else if (token == Token.NUMBER) {
+                sc.nextNumber();
+                if (sc.isIntegral()) {
+                    result.time = TimeEncoding.fromUnixMillisec(sc.longValue());
+                } else if (Double.isFinite(sc.doubleValue())) {
+                    // fractional milliseconds
+                    result.time = TimeEncoding.fromUnixMillisec(Math.round(sc.doubleValue()));
+                } else {
+                    result.typeMismatches++;
+                }
+            } else {
+                mismatch(sc, result);
+            }
+            return;
+        }
+        int pos = sc.pos;
+        var v = kinds[slot].read(sc, token);
+        if (v == null) {
+            result.typeMismatches++;
+            if (sc.pos == pos) {
+                sc.skipValue();
+            }
+            return;
+        }
+        var pv = new ParameterValue(parameters[slot]);
+        pv.setEngValue(v);
+        result.values.add(pv);
+    }
+
+    private static void mismatch(JsonScanner sc, Result result) {
+        result.typeMismatches++;
+        sc.skipValue();
+    }
+
+    /**
+     * Splits the path into member names (String) and array indices (Integer)
+     */
+    static List<Object> parsePath(String path) {
+        List<Object> l = new ArrayList<>();
+        int i = 0;
+        int n = path.length();
+        while (i < n) {
+            char c = path.charAt(i);
+            if (c == '[') {
+                int k = path.indexOf(']', i);
+                if (k < 0) {
+                    throw new ConfigurationException("Invalid path '" + path + "': missing ']'");
+                }
+                try {
+                    l.add(Integer.parseInt(path.substring(i + 1, k)));
+                } catch (NumberFormatException e) {
+                    throw new ConfigurationException("Invalid path '" + path + "': invalid array index");
+                }
+                i = k + 1;
+                if (i < n && path.charAt(i) == '.') {
+                    i++;
+                }
+            } else {
+                int k = i;
+                while (k < n && path.charAt(k) != '.' && path.charAt(k) != '[') {
+                    k++;
+                }
+                if (k == i) {
+                    throw new ConfigurationException("Invalid path '" + path + "': empty member name");
+                }
+                l.add(path.substring(i, k));
+                i = k < n && path.charAt(k) == '.' ? k + 1 : k;
+            }
+        }
+        return l;
+    }
+
+    static class BuildNode {
+        final Map<Object, BuildNode> members = new LinkedHashMap<>();
+        boolean array;
+        int slot = NONE;
+        int id;
+
+        void add(List<Object> path, int i, int slot) {
+            if (i == path.size()) {
+                if (this.slot != NONE || !members.isEmpty()) {
+                    throw new ConfigurationException("The path '" + toString(path) + "' is mapped more than once"
+                            + " or it is the prefix of another path");
+                }
+                this.slot = slot;
+                return;
+            }
+            if (this.slot != NONE) {
+                throw new ConfigurationException("The path '" + toString(path) + "' extends a mapped path");
+            }
+            var key = path.get(i);
+            boolean isIndex = key instanceof Integer;
+            if (!members.isEmpty() && array != isIndex) {
+                throw new ConfigurationException("The path '" + toString(path)
+                        + "' uses both member names and array indices at the same level");
+            }
+            array = isIndex;
+            members.computeIfAbsent(key, k -> new BuildNode()).add(path, i + 1, slot);
+        }
+
+        static String toString(List<Object> path) {
+            var sb = new StringBuilder();
+            for (var o : path) {
+                if (o instanceof Integer) {
+                    sb.append('[').append(o).append(']');
+                } else {
+                    if (sb.length() > 0) {
+                        sb.append('.');
+                    }
+                    sb.append(o);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The type of the engineering value of a parameter, determining how the JSON value is converted
+     */
+    enum ValueKind {
+        FLOAT {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (token != Token.NUMBER) {
+                    return null;
+                }
+                sc.nextNumber();
+                return ValueUtility.getFloatValue((float) sc.doubleValue());
+            }
+        },
+        DOUBLE {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (token != Token.NUMBER) {
+                    return null;
+                }
+                sc.nextNumber();
+                return ValueUtility.getDoubleValue(sc.doubleValue());
+            }
+        },
+        SINT32 {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (!readIntegral(sc, token) || sc.longValue() < Integer.MIN_VALUE
+                        || sc.longValue() > Integer.MAX_VALUE) {
+                    return null;
+                }
+                return ValueUtility.getSint32Value((int) sc.longValue());
+            }
+        },
+        UINT32 {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (!readIntegral(sc, token) || sc.longValue() < 0 || sc.longValue() > 0xFFFF_FFFFL) {
+                    return null;
+                }
+                return ValueUtility.getUint32Value((int) sc.longValue());
+            }
+        },
+        SINT64 {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                return readIntegral(sc, token) ? ValueUtility.getSint64Value(sc.longValue()) : null;
+            }
+        },
+        UINT64 {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                return readIntegral(sc, token) && sc.longValue() >= 0 ? ValueUtility.getUint64Value(sc.longValue())
+                        : null;
+            }
+        },
+        BOOLEAN {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (token == Token.BOOLEAN) {
+                    return ValueUtility.getBooleanValue(sc.nextBoolean());
+                } else if (token == Token.NUMBER) {
+                    sc.nextNumber();
+                    return ValueUtility.getBooleanValue(sc.doubleValue() != 0);
+                }
+                return null;
+            }
+        },
+        STRING {
+            @Override
+            Value read(JsonScanner sc, Token token) {
+                if (token != Token.STRING) {
+                    return null;
+                }
+                sc.nextString();
+                return ValueUtility.getStringValue(sc.stringValue());
+            }
+        };
+
+        /**
+         * Reads the value starting with the given token
+         *
+         * @return the value or null if the JSON value does not correspond to the type; in this case the JSON value may
+         *         or may not have been consumed
+         */
+        abstract Value read(JsonScanner sc, Token token);
+
+        /**
+         * Reads a number without fraction; a number with a fraction is consumed but rejected. The callers reject the
+         * numbers out of the range of the parameter type.
+         */
+        static boolean readIntegral(JsonScanner sc, Token token) {
+            if (token != Token.NUMBER) {
+                return false;
+            }
+            sc.nextNumber();
+            return sc.isIntegral();
+        }
+
+        static ValueKind of(Parameter p) {
+            ParameterType type = p.getParameterType();
+            if (type instanceof FloatParameterType) {
+                return ((FloatParameterType) type).getSizeInBits() <= 32 ? FLOAT : DOUBLE;
+            } else if (type instanceof IntegerParameterType) {
+                var itype = (IntegerParameterType) type;
+                if (itype.getSizeInBits() <= 32) {
+                    return itype.isSigned() ? SINT32 : UINT32;
+                } else {
+                    return itype.isSigned() ? SINT64 : UINT64;
+                }
+            } else if (type instanceof BooleanParameterType) {
+                return BOOLEAN;
+            } else if (type instanceof StringParameterType || type instanceof EnumeratedParameterType) {
+                return STRING;
+            }
+            throw new ConfigurationException("Parameter " + p.getQualifiedName() + " has the type " + type
+                    + " which cannot be set from JSON");
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal pull parser working directly on the JSON bytes of a MQTT message payload.
+ * <p>
+ * Strings are not materialised: after {@link #nextName()} or {@link #nextString()} the position of the string content
+ * is available via {@link #stringStart()} and {@link #stringEnd()} and it can be compared with
+ * {@link #stringEquals(byte[])} without allocating. Numbers are parsed from the bytes as well.
+ * <p>
+ * The parser is lenient with respect to the separators (commas are optional) and it does not check that the document
+ * ends after the top level value.
+ */
+final class JsonScanner {
+    enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    // exact powers of ten for the fast path of the double parsing
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    final byte[] buf;
+    final int end;
+    int pos;
+
+    // valid after reading a string
+    int strStart, strEnd;
+    boolean strEscaped;
+
+    // valid after reading a number
+    boolean numIntegral;
+    long numLong;
+    double numDouble;
+
+    JsonScanner(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    JsonScanner(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    Token peek() {
+        skipSeparators();
+        if (pos >= end) {
+            return Token.END_DOCUMENT;
+        }
+        byte b = buf[pos];
+        switch (b) {
+        case '{':
+            return Token.BEGIN_OBJECT;
+        case '}':
+            return Token.END_OBJECT;
+        case '[':
+            return Token.BEGIN_ARRAY;
+        case ']':
+            return Token.END_ARRAY;
+        case '"':
+            return Token.STRING;
+        case 't':
+        case 'f':
+            return Token.BOOLEAN;
+        case 'n':
+            return Token.NULL;
+        default:
+            if (b == '-' || (b >= '0' && b <= '9')) {
+                return Token.NUMBER;
+            }
+            throw error("unexpected character '" + (char) b + "'");
+        }
+    }
+
+    /**
+     * @return true if the current object or array has more elements
+     */
+    boolean hasNext() {
+        var t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    void beginObject() {
+        expect('{');
+    }
+
+    void endObject() {
+        expect('}');
+    }
+
+    void beginArray() {
+        expect('[');
+    }
+
+    void endArray() {
+        expect(']');
+    }
+
+    /**
+     * Reads the name of the next object member together with the following colon
+     */
+    void nextName() {
+        nextString();
+        skipWhitespace();
+        if (pos >= end || buf[pos] != ':') {
+            throw error("expected ':'");
+        }
+        pos++;
+    }
+
+    void nextString() {
+        expect('"');
+        strStart = pos;
+        strEscaped = false;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == '"') {
+                strEnd = pos++;
+                return;
+            } else if (b == '\\') {
+                strEscaped = true;
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    int stringStart() {
+        return strStart;
+    }
+
+    int stringEnd() {
+        return strEnd;
+    }
+
+    /**
+     * @return true if the last string read contains escape sequences; in this case the raw bytes between
+     *         {@link #stringStart()} and {@link #stringEnd()} are not the string content.
+     */
+    boolean stringEscaped() {
+        return strEscaped;
+    }
+
+    /**
+     * Compares the last string read with the given (not escaped) bytes
+     */
+    boolean stringEquals(byte[] s) {
+        if (strEscaped || strEnd - strStart != s.length) {
+            return strEscaped && stringValue().equals(new String(s, StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < s.length; i++) {
+            if (buf[strStart + i] != s[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the last string read into a Java String
+     */
+    String stringValue() {
+        if (!strEscaped) {
+            return new String(buf, strStart, strEnd - strStart, StandardCharsets.UTF_8);
+        }
+        var sb = new StringBuilder(strEnd - strStart);
+        int i = strStart;
+        int chunkStart = i;
+        while (i < strEnd) {
+            if (buf[i] != '\\') {
+                i++;
+                continue;
+            }
+            sb.append(new String(buf, chunkStart, i - chunkStart, StandardCharsets.UTF_8));
+            char c = (char) buf[i + 1];
+            switch (c) {
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'u':
+                if (i + 6 > strEnd) {
+                    throw error("invalid unicode escape");
+                }
+                sb.append((char) Integer.parseInt(new String(buf, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                i += 4;
+                break;
+            default:
+                sb.append(c);
+            }
+            i += 2;
+            chunkStart = i;
+        }
+        sb.append(new String(buf, chunkStart, strEnd - chunkStart, StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+
+    /**
+     * Reads a number; the value is available afterwards with {@link #longValue()} or {@link #doubleValue()}.
+     */
+    void nextNumber() {
+        skipSeparators();
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exp10 = 0;
+        boolean overflow = false;
+        int intStart = pos;
+        while (pos < end && isDigit(buf[pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (buf[pos] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                overflow = true;
+                exp10++;
+            }
+            pos++;
+        }
+        if (pos == intStart) {
+            throw error("invalid number");
+        }
+        boolean integral = true;
+        if (pos < end && buf[pos] == '.') {
+            integral = false;
+            pos++;
+            while (pos < end && isDigit(buf[pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exp10--;
+                } else {
+                    overflow = true;
+                }
+                pos++;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            integral = false;
+            pos++;
+            boolean negExp = false;
+            if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+                negExp = buf[pos] == '-';
+                pos++;
+            }
+            int e = 0;
+            int expStart = pos;
+            while (pos < end && isDigit(buf[pos])) {
+                if (e < 10000) {
+                    e = e * 10 + (buf[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == expStart) {
+                throw error("invalid number");
+            }
+            exp10 += negExp ? -e : e;
+        }
+        numIntegral = integral && !overflow;
+        if (numIntegral) {
+            numLong = negative ? -mantissa : mantissa;
+            numDouble = numLong;
+        } else if (!overflow && mantissa <= MAX_EXACT_MANTISSA && exp10 >= -22 && exp10 <= 22) {
+            // both the mantissa and the power of ten are exact, so is the result of one operation
+            double d = exp10 < 0 ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+            numDouble = negative ? -d : d;
+            numLong = (long) numDouble;
+        } else {
+            numDouble = Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.US_ASCII));
+            numLong = (long) numDouble;
+        }
+    }
+
+    /**
+     * @return true if the last number read has no fraction or exponent and fits into a long
+     */
+    boolean isIntegral() {
+        return numIntegral;
+    }
+
+    long longValue() {
+        return numLong;
+    }
+
+    double doubleValue() {
+        return numDouble;
+    }
+
+    boolean nextBoolean() {
+        skipSeparators();
+        if (matches("true")) {
+            pos += 4;
+            return true;
+        } else if (matches("false")) {
+            pos += 5;
+            return false;
+        }
+        throw error("expected boolean");
+    }
+
+    void nextNull() {
+        skipSeparators();
+        if (!matches("null")) {
+            throw error("expected null");
+        }
+        pos += 4;
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays
+     */
+    void skipValue() {
+        switch (peek()) {
+        case BEGIN_OBJECT:
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+            break;
+        case BEGIN_ARRAY:
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+            break;
+        case STRING:
+            nextString();
+            break;
+        case NUMBER:
+            nextNumber();
+            break;
+        case BOOLEAN:
+            nextBoolean();
+            break;
+        case NULL:
+            nextNull();
+            break;
+        default:
+            throw error("unexpected end of object or array");
+        }
+    }
+
+    private boolean matches(String literal) {
+        if (pos + literal.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (buf[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(char c) {
+        skipSeparators();
+        if (pos >= end || buf[pos] != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void skipSeparators() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException("Invalid JSON at position " + pos + ": " + msg);
+    }
+}
@@ -0,0 +1,140 @@
+package org.yamcs.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Each power of two interval is divided into {@value #SUB_BUCKETS} linear buckets, giving a relative error below
+ * 1/{@value #SUB_BUCKETS} for any value up to {@link Long#MAX_VALUE}. Recording is lock-free (one atomic increment)
+ * and does not allocate, so the histogram can be used on the ingest path of the links.
+ * <p>
+ * Besides the totals since creation, the histogram can provide the distribution of the values recorded since the
+ * previous call of {@link #interval()}; this is used for the periodic system parameters.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int NUM_BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    final AtomicLong max = new AtomicLong();
+    final AtomicLong intervalMax = new AtomicLong();
+
+    // used by interval(); guarded by this
+    long[] previous = new long[NUM_BUCKETS];
+
+    /**
+     * Records one value; negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        updateMax(max, nanos);
+        updateMax(intervalMax, nanos);
+    }
+
+    private static void updateMax(AtomicLong m, long v) {
+        long current;
+        while (v > (current = m.get())) {
+            if (m.compareAndSet(current, v)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketIndex(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BUCKET_BITS
+        int shift = exp - SUB_BUCKET_BITS;
+        int sub = (int) (v >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value which falls in the bucket with the given index
+     */
+    static long bucketHighValue(int idx) {
+        if (idx < SUB_BUCKETS) {
+            return idx;
+        }
+        int shift = idx / SUB_BUCKETS - 1;
+        long sub = idx % SUB_BUCKETS;
+        long low = (SUB_BUCKETS + sub) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the statistics of all the values recorded since the creation of the histogram
+     */
+    public Snapshot total() {
+        long[] c = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            c[i] = counts.get(i);
+        }
+        return new Snapshot(c, max.get());
+    }
+
+    /**
+     * @return the statistics of the values recorded since the previous call of this method
+     */
+    public synchronized Snapshot interval() {
+        long[] c = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long v = counts.get(i);
+            c[i] = v - previous[i];
+            previous[i] = v;
+        }
+        return new Snapshot(c, intervalMax.getAndSet(0));
+    }
+
+    public static class Snapshot {
+        final long[] counts;
+        final long count;
+        final long max;
+
+        Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) {
+                n += c;
+            }
+            this.count = n;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param p
+         *            percentile between 0 and 100
+         * @return the value below which p percent of the values fall (with the precision of the buckets) or 0 if no
+         *         value has been recorded
+         */
+        public long getPercentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * count));
+            long n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if (n >= rank) {
+                    return Math.min(bucketHighValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
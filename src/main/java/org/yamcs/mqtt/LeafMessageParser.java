@@ -0,0 +1,212 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+
+import org.yamcs.mqtt.JsonScanner.Token;
+import org.yamcs.mqtt.LeafMqttToTmPacketConverter.LeafMessage;
+import org.yamcs.time.Instant;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Single pass parser for the LeafSpace JSON messages working directly on the MQTT payload.
+ * <p>
+ * The hexadecimal payload is decoded into one array using a lookup table and the ISO 8601 timestamp is parsed from
+ * the bytes. Messages using JSON features not covered by the fast path (escape sequences, non-string values, time
+ * zone offsets, leap seconds) are handled by returning null such that the caller can fall back to the generic JSON
+ * parser.
+ */
+final class LeafMessageParser {
+    static final byte[] TIMESTAMP = "timestamp".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] PAYLOAD = "payload".getBytes(StandardCharsets.US_ASCII);
+
+    static final byte[] HEX = new byte[128];
+    static {
+        for (int i = 0; i < HEX.length; i++) {
+            HEX[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX['a' + i] = (byte) (10 + i);
+            HEX['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private LeafMessageParser() {
+    }
+
+    /**
+     * Parses the message
+     *
+     * @return the parsed message or null if the message cannot be handled by this parser.
+     * @throws IllegalArgumentException
+     *             if the message is not a valid JSON object or it has no payload
+     * @throws NumberFormatException
+     *             if the payload contains invalid hexadecimal values
+     */
+    static LeafMessage parse(byte[] msg) {
+        var scanner = new JsonScanner(msg);
+        scanner.beginObject();
+        Instant ert = null;
+        int payloadStart = -1;
+        int payloadEnd = -1;
+
+        while (scanner.hasNext()) {
+            scanner.nextName();
+            if (scanner.stringEquals(TIMESTAMP)) {
+                if (scanner.peek() != Token.STRING) {
+                    return null;
+                }
+                scanner.nextString();
+                if (scanner.stringEscaped()) {
+                    return null;
+                }
+                ert = parseIsoTime(msg, scanner.stringStart(), scanner.stringEnd());
+                if (ert == null) {
+                    return null;
+                }
+            } else if (scanner.stringEquals(PAYLOAD)) {
+                if (scanner.peek() != Token.STRING) {
+                    return null;
+                }
+                scanner.nextString();
+                if (scanner.stringEscaped()) {
+                    return null;
+                }
+                payloadStart = scanner.stringStart();
+                payloadEnd = scanner.stringEnd();
+            } else {
+                scanner.skipValue();
+            }
+        }
+        scanner.endObject();
+
+        if (payloadStart < 0) {
+            throw new IllegalArgumentException("Message has no payload field");
+        }
+        return new LeafMessage(ert, decodeHex(msg, payloadStart, payloadEnd));
+    }
+
+    /**
+     * Decodes a sequence of hexadecimal octets with the format <code>0xN</code> or <code>0xNN</code> separated by
+     * arbitrary characters.
+     */
+    static byte[] decodeHex(byte[] buf, int start, int end) {
+        // first count the bytes
+        int n = 0;
+        for (int i = start; i < end - 1; i++) {
+            if (buf[i] == '0' && buf[i + 1] == 'x') {
+                n++;
+                i += 2; // Skip "0x"
+            }
+        }
+
+        // then parse the bytes
+        byte[] data = new byte[n];
+        int idx = 0;
+        for (int i = start; i < end - 1; i++) {
+            if (buf[i] == '0' && buf[i + 1] == 'x') {
+                int d1 = i + 2;
+                if (d1 >= end) {
+                    throw new NumberFormatException("Missing hexadecimal digit at position " + d1);
+                }
+                int v = hexDigit(buf[d1]);
+                if (d1 + 1 < end && buf[d1 + 1] != ' ') {
+                    v = (v << 4) | hexDigit(buf[d1 + 1]);
+                    i = d1 + 1;
+                } else {
+                    i = d1;
+                }
+                data[idx++] = (byte) v;
+            }
+        }
+        return data;
+    }
+
+    private static int hexDigit(byte b) {
+        int v = b < 0 ? -1 : HEX[b];
+        if (v < 0) {
+            throw new NumberFormatException("Invalid hexadecimal digit '" + (char) (b & 0xFF) + "'");
+        }
+        return v;
+    }
+
+    /**
+     * Parses a UTC time in the format <code>yyyy-MM-ddTHH:mm:ss[.f*][Z]</code>
+     *
+     * @return the time or null if the string has a different format
+     */
+    static Instant parseIsoTime(byte[] buf, int start, int end) {
+        int len = end - start;
+        if (len < 19 || buf[start + 4] != '-' || buf[start + 7] != '-' || buf[start + 10] != 'T'
+                || buf[start + 13] != ':' || buf[start + 16] != ':') {
+            return null;
+        }
+        int year = digits(buf, start, 4);
+        int month = digits(buf, start + 5, 2);
+        int day = digits(buf, start + 8, 2);
+        int hour = digits(buf, start + 11, 2);
+        int minute = digits(buf, start + 14, 2);
+        int second = digits(buf, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return null;
+        }
+        int millis = 0;
+        long picos = 0;
+        int i = start + 19;
+        if (i < end && buf[i] == '.') {
+            i++;
+            int n = 0;
+            long fraction = 0; // picoseconds
+            long scale = 100_000_000_000L;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+                if (n < 12) {
+                    fraction += (buf[i] - '0') * scale;
+                    scale /= 10;
+                }
+                n++;
+                i++;
+            }
+            if (n == 0) {
+                return null;
+            }
+            millis = (int) (fraction / 1_000_000_000L);
+            picos = fraction % 1_000_000_000L;
+        }
+        if (i < end && buf[i] == 'Z') {
+            i++;
+        }
+        if (i != end) {
+            return null;
+        }
+        long unixMillis = daysFromCivil(year, month, day) * 86_400_000L + hour * 3_600_000L + minute * 60_000L
+                + second * 1000L + millis;
+        return Instant.get(TimeEncoding.fromUnixMillisec(unixMillis), (int) picos);
+    }
+
+    private static int digits(byte[] buf, int offset, int n) {
+        int v = 0;
+        for (int i = offset; i < offset + n; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * Number of days since 1970-01-01 in the proleptic Gregorian calendar
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+}
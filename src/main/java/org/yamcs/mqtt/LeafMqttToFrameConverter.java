@@ -23,7 +23,6 @@ public class LeafMqttToFrameConverter implements MqttToFrameConverter {
     public List<RawFrame> convert(MqttMessage message) {
         try {
             var leafMsg = LeafMqttToTmPacketConverter.parseLeafMessage(message);
-            System.out.println("leafMsg: " + leafMsg);
             return Collections.singletonList(new RawFrame(leafMsg.ert(), leafMsg.data()));
         } catch (Exception e) {
             log.warn("Cannot parse message {}: {}", message, e.toString());
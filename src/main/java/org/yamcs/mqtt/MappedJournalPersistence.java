@@ -0,0 +1,323 @@
+package org.yamcs.mqtt;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * MQTT client persistence storing the in-flight messages in an append-only memory mapped journal file.
+ * <p>
+ * Unlike the Paho {@code MqttDefaultFilePersistence} which creates and deletes one file for each message, the
+ * put/remove operations are appended as records to one file mapped in memory. The live messages are also kept in
+ * memory such that the file is only read when the persistence is opened.
+ * <p>
+ * When the journal is full it is compacted by writing the live messages to a new file which atomically replaces the
+ * old one; the new file size is the initial size, doubled as many times as required for the live messages to fill at
+ * most half of it. The mapping of the new file is kept after the replacement and the mapping of the old one is
+ * released explicitly rather than when garbage collected.
+ * <p>
+ * Record format: type (1 byte), key length (2 bytes), key (UTF-8), header length (4 bytes), header, payload length (4
+ * bytes), payload. The type byte is written last such that a record partially written when the process crashes is
+ * ignored at the next open.
+ * <p>
+ * The file is deleted when the persistence is closed without in-flight messages, such that the journals of generated
+ * client ids do not accumulate in the directory.
+ */
+public class MappedJournalPersistence implements MqttClientPersistence {
+    static final int MAGIC = 0x4d514a31; // MQJ1
+    static final byte END = 0;
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    final Path directory;
+    final int initialSize;
+
+    Path file;
+    FileChannel channel;
+    MappedByteBuffer buf;
+    final Map<String, MqttPersistentData> entries = new LinkedHashMap<>();
+    long compactionCount;
+
+    /**
+     * @param directory
+     *            directory where the journal file is created
+     * @param initialSize
+     *            initial size in bytes of the journal file
+     */
+    public MappedJournalPersistence(Path directory, int initialSize) {
+        this.directory = directory;
+        this.initialSize = initialSize;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        try {
+            Files.createDirectories(directory);
+            file = directory.resolve(sanitize(clientId + "-" + serverURI) + ".journal");
+            entries.clear();
+            if (Files.exists(file)) {
+                map(file, (int) Math.max(initialSize, Files.size(file)));
+                replay();
+            }
+            // start with a compacted journal
+            compact(sizeFor(0));
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        try {
+            if (channel != null) {
+                buf.force();
+                channel.close();
+                MqttUtils.unmap(buf);
+                channel = null;
+                buf = null;
+                if (entries.isEmpty()) {
+                    // like the Paho file persistence, nothing is left behind when there is nothing in-flight
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        var data = copy(key, persistable);
+        append(PUT, key, data);
+        entries.put(key, data);
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        if (entries.remove(key) != null) {
+            append(REMOVE, key, null);
+        }
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(entries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        entries.clear();
+        try {
+            compact(sizeFor(0));
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return the number of times the journal has been compacted since it has been opened
+     */
+    public synchronized long getCompactionCount() {
+        return compactionCount;
+    }
+
+    private void append(byte type, String key, MqttPersistentData data) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int size = recordSize(keyBytes, data);
+        try {
+            if (buf.remaining() < size + 1) {
+                compact(sizeFor(size));
+                if (type == REMOVE) {
+                    // the compacted journal does not contain the removed entry anymore
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        writeRecord(type, keyBytes, data);
+    }
+
+    private void writeRecord(byte type, byte[] keyBytes, MqttPersistentData data) {
+        int start = buf.position();
+        buf.put(END);
+        buf.putShort((short) keyBytes.length);
+        buf.put(keyBytes);
+        if (data != null) {
+            buf.putInt(data.getHeaderLength());
+            buf.put(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+            buf.putInt(data.getPayloadLength());
+            if (data.getPayloadLength() > 0) {
+                buf.put(data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength());
+            }
+        }
+        // end marker for the next record, then commit this one
+        buf.put(buf.position(), END);
+        buf.put(start, type);
+    }
+
+    private void replay() {
+        buf.position(0);
+        if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+            return;
+        }
+        while (buf.remaining() > 3) {
+            byte type = buf.get();
+            if (type != PUT && type != REMOVE) {
+                break;
+            }
+            int keyLength = buf.getShort() & 0xFFFF;
+            if (buf.remaining() < keyLength) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buf.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            if (type == REMOVE) {
+                entries.remove(key);
+                continue;
+            }
+            byte[] header = readBlock();
+            byte[] payload = header == null ? null : readBlock();
+            if (payload == null) {
+                break;
+            }
+            entries.put(key, new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length));
+        }
+    }
+
+    private byte[] readBlock() {
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        buf.get(b);
+        return b;
+    }
+
+    /**
+     * Writes the live entries into a new file of the given size which then replaces the current journal
+     */
+    private void compact(int size) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        if (channel != null) {
+            // the live entries are all in memory
+            channel.close();
+            MqttUtils.unmap(buf);
+            channel = null;
+            buf = null;
+        }
+        map(tmp, size);
+        buf.putInt(MAGIC);
+        buf.put(buf.position(), END);
+        for (var e : entries.entrySet()) {
+            writeRecord(PUT, e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue());
+        }
+        buf.force();
+        // the channel and the mapping remain valid after the rename
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        compactionCount++;
+    }
+
+    private void map(Path path, int size) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buf = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * @return the file size such that the live entries and a new record of the given size use at most half of it
+     */
+    private int sizeFor(int recordSize) {
+        long needed = liveSize() + recordSize + 1L;
+        long size = initialSize;
+        while (size / 2 < needed) {
+            size *= 2;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("MQTT persistence journal too large");
+        }
+        return (int) size;
+    }
+
+    private int liveSize() {
+        int size = 4;
+        for (var e : entries.entrySet()) {
+            size += recordSize(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue());
+        }
+        return size;
+    }
+
+    private static int recordSize(byte[] keyBytes, MqttPersistentData data) {
+        int size = 3 + keyBytes.length;
+        if (data != null) {
+            size += 8 + data.getHeaderLength() + data.getPayloadLength();
+        }
+        return size;
+    }
+
+    /**
+     * Paho may reuse the persistable objects, so the data is copied
+     */
+    private static MqttPersistentData copy(String key, MqttPersistable p) throws MqttPersistenceException {
+        byte[] header = new byte[p.getHeaderLength()];
+        System.arraycopy(p.getHeaderBytes(), p.getHeaderOffset(), header, 0, header.length);
+        byte[] payload = new byte[p.getPayloadLength()];
+        if (payload.length > 0) {
+            System.arraycopy(p.getPayloadBytes(), p.getPayloadOffset(), payload, 0, payload.length);
+        }
+        return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (channel == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    private static String sanitize(String s) {
+        var sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,308 @@
+package org.yamcs.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue grouping JSON records into MQTT messages, used by the {@link MqttEventForwarder}.
+ * <p>
+ * The records are offered by the producer threads and taken out by a sender thread which appends them to a JSON array
+ * per topic. A batch is sent when it contains <code>batchSize</code> records, when the next record would make it
+ * larger than <code>maxBatchBytes</code> or when its first record has waited for the linger time. The urgent records
+ * are taken out of the queue before the other ones and the batch receiving an urgent record is sent immediately,
+ * without waiting for the linger time.
+ * <p>
+ * When the queue is full, a new normal record is dropped; a new urgent record replaces the oldest normal record, or
+ * is dropped if all the records in the queue are urgent. While the sender cannot send (for example because the client
+ * is disconnected), the batch is retried and the records accumulate in the queue.
+ */
+public class MessageBatcher {
+    static final long RETRY_MILLIS = 100;
+    static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @FunctionalInterface
+    public interface Sender {
+        /**
+         * Sends the JSON array of records to the topic
+         *
+         * @return false if the message could not be sent and has to be retried
+         */
+        boolean send(int topic, byte[] payload, int count);
+    }
+
+    final String name;
+    final int capacity;
+    final int batchSize;
+    final int maxBatchBytes;
+    final long lingerNanos;
+    final Sender sender;
+    final Batch[] batches;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notEmpty = lock.newCondition();
+    // guarded by lock
+    final ArrayDeque<Record> urgent = new ArrayDeque<>();
+    final ArrayDeque<Record> normal = new ArrayDeque<>();
+
+    volatile boolean running;
+    Thread thread;
+
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong urgentDroppedCount = new AtomicLong();
+    final AtomicLong sentCount = new AtomicLong();
+    final AtomicLong messageCount = new AtomicLong();
+    final AtomicLong maxDepth = new AtomicLong();
+
+    /**
+     * @param numTopics
+     *            the records are offered with a topic number between 0 and numTopics - 1
+     */
+    public MessageBatcher(String name, int numTopics, int capacity, int batchSize, int maxBatchBytes,
+            long lingerMillis, Sender sender) {
+        if (capacity < 1 || batchSize < 1 || maxBatchBytes < 2 || lingerMillis < 0) {
+            throw new IllegalArgumentException("Invalid batcher parameters");
+        }
+        this.name = name;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.sender = sender;
+        this.batches = new Batch[numTopics];
+        for (int i = 0; i < numTopics; i++) {
+            batches[i] = new Batch(i);
+        }
+    }
+
+    /**
+     * Adds a record to the queue
+     *
+     * @param json
+     *            the record encoded as a JSON value
+     * @return false if the record has been dropped because the queue is full
+     */
+    public boolean offer(int topic, byte[] json, boolean isUrgent) {
+        var r = new Record(topic, json, isUrgent);
+        lock.lock();
+        try {
+            if (urgent.size() + normal.size() >= capacity) {
+                if (!isUrgent || normal.isEmpty()) {
+                    droppedCount.incrementAndGet();
+                    if (isUrgent) {
+                        urgentDroppedCount.incrementAndGet();
+                    }
+                    return false;
+                }
+                normal.poll();
+                droppedCount.incrementAndGet();
+            }
+            (isUrgent ? urgent : normal).add(r);
+            int depth = urgent.size() + normal.size();
+            if (depth > maxDepth.get()) {
+                maxDepth.set(depth);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the sender thread. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, name + "-batcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the sender thread and tries once to send the records remaining in the queue; the records which cannot be
+     * sent are dropped.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        Record r;
+        while ((r = poll()) != null) {
+            add(r);
+        }
+        for (var b : batches) {
+            flush(b);
+        }
+    }
+
+    private Record poll() {
+        lock.lock();
+        try {
+            var r = urgent.poll();
+            return r != null ? r : normal.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                Record r;
+                lock.lock();
+                try {
+                    r = urgent.poll();
+                    if (r == null) {
+                        r = normal.poll();
+                    }
+                    if (r == null) {
+                        long wait = nextDeadline() - System.nanoTime();
+                        if (wait > 0) {
+                            notEmpty.awaitNanos(wait);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (r != null) {
+                    add(r);
+                }
+                long now = System.nanoTime();
+                for (var b : batches) {
+                    if (b.count > 0 && now - b.firstNanos >= lingerNanos) {
+                        flush(b);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * @return the time when the oldest batch has to be sent
+     */
+    private long nextDeadline() {
+        long deadline = System.nanoTime() + IDLE_NANOS;
+        for (var b : batches) {
+            if (b.count > 0 && b.firstNanos + lingerNanos - deadline < 0) {
+                deadline = b.firstNanos + lingerNanos;
+            }
+        }
+        return deadline;
+    }
+
+    private void add(Record r) {
+        var b = batches[r.topic];
+        if (b.count > 0 && b.buf.size() + r.json.length + 2 > maxBatchBytes) {
+            flush(b);
+        }
+        if (b.count == 0) {
+            b.firstNanos = System.nanoTime();
+            b.buf.write('[');
+        } else {
+            b.buf.write(',');
+        }
+        b.buf.writeBytes(r.json);
+        b.count++;
+        if (b.count >= batchSize || r.urgent) {
+            flush(b);
+        }
+    }
+
+    /**
+     * Sends the batch, retrying while the batcher is running
+     */
+    private void flush(Batch b) {
+        if (b.count == 0) {
+            return;
+        }
+        b.buf.write(']');
+        byte[] payload = b.buf.toByteArray();
+        while (!sender.send(b.topic, payload, b.count)) {
+            if (!running) {
+                droppedCount.addAndGet(b.count);
+                b.reset();
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                // stopped, the batch is dropped
+                droppedCount.addAndGet(b.count);
+                b.reset();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        sentCount.addAndGet(b.count);
+        messageCount.incrementAndGet();
+        b.reset();
+    }
+
+    /**
+     * @return the number of records in the queue
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return urgent.size() + normal.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getUrgentDroppedCount() {
+        return urgentDroppedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    record Record(int topic, byte[] json, boolean urgent) {
+    }
+
+    static class Batch {
+        final int topic;
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int count;
+        long firstNanos;
+
+        Batch(int topic) {
+            this.topic = topic;
+        }
+
+        void reset() {
+            buf.reset();
+            count = 0;
+        }
+    }
+}
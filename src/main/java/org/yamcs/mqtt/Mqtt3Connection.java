@@ -0,0 +1,149 @@
+package org.yamcs.mqtt;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionFailureCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionSuccessCallback;
+
+/**
+ * Connection using the Paho MQTT 3.1.1 client
+ */
+public class Mqtt3Connection extends MqttConnection implements MqttCallbackExtended {
+    final MqttAsyncClient client;
+    final MqttConnectOptions connOpts;
+
+    Mqtt3Connection(YConfiguration config, String clientId, String shareGroup, Log log, boolean shared)
+            throws ConfigurationException {
+        super(shareGroup, log, shared);
+        this.client = MqttUtils.newClient(config, clientId);
+        this.connOpts = MqttUtils.getConnectionOptions(config);
+        this.brokerSelector = MqttUtils.newBrokerSelector(config, connOpts::setServerURIs, log);
+        client.setCallback(this);
+    }
+
+    @Override
+    public String getClientId() {
+        return client.getClientId();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    protected void connectClient(Runnable onSuccess, Consumer<Throwable> onFailure) throws MqttException {
+        log.info("Connecting to MQTT with clientId {} and options: {}", client.getClientId(), connOpts);
+        client.connect(connOpts, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                onSuccess.run();
+            }
+
+            @Override
+            public void onFailure(IMqttToken t, Throwable e) {
+                onFailure.accept(e);
+            }
+        });
+    }
+
+    @Override
+    protected void subscribeClient(String[] filters, int[] qos, SubscriptionSuccessCallback onSuccess,
+            SubscriptionFailureCallback onFailure) throws MqttException {
+        client.subscribe(filters, qos, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken t) {
+                onSuccess.subscribed(t.getGrantedQos());
+            }
+
+            @Override
+            public void onFailure(IMqttToken t, Throwable e) {
+                onFailure.setSubscriptionFailure(e);
+            }
+        });
+    }
+
+    @Override
+    protected void unsubscribeClient(String[] filters) throws MqttException {
+        client.unsubscribe(filters);
+    }
+
+    @Override
+    protected void disconnectClient() throws MqttException {
+        client.disconnect().waitForCompletion(connOpts.getConnectionTimeout() * 1000L);
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message, PublishCallback callback) throws MqttException {
+        client.publish(topic, message, null, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+                callback.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws MqttException {
+        if (brokerSelector != null) {
+            brokerSelector.stop();
+        }
+        if (client.isConnected()) {
+            client.disconnectForcibly(connOpts.getConnectionTimeout() * 1000L,
+                    connOpts.getConnectionTimeout() * 1000L);
+        } else {
+            client.disconnectForcibly(0, 0, false);
+        }
+        client.close();
+    }
+
+    @Override
+    public int getInFlightMessageCount() {
+        return client.getInFlightMessageCount();
+    }
+
+    @Override
+    public void addInflightInfo(Map<String, Object> extra) {
+        extra.put("In-flight messages", client.getInFlightMessageCount());
+        extra.put("Max in-flight", connOpts.getMaxInflight());
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        super.connectComplete(reconnect, serverURI);
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        log.warn("Connection to MQTT lost: {}", cause.toString());
+        super.connectionLost();
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        super.messageArrived(topic, message);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // the publishers are notified via the action listeners
+    }
+}
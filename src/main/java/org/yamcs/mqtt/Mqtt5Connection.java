@@ -0,0 +1,268 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionFailureCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionSuccessCallback;
+
+/**
+ * Connection using the Paho MQTT 5 client.
+ * <p>
+ * The flow control is negotiated with the broker: the client announces its Receive Maximum (the number of QoS 1 and 2
+ * messages the broker may send without waiting for acknowledgements) and respects the one announced by the broker for
+ * the published messages. The topic aliases are resolved by the client library.
+ * <p>
+ * The received messages are passed to the users as {@link Mqtt5Message}s; the user properties and content type of the
+ * {@link Mqtt5Message}s published are sent as MQTT 5 properties.
+ */
+public class Mqtt5Connection extends MqttConnection implements MqttCallback {
+    final MqttAsyncClient client;
+    final MqttConnectionOptions connOpts;
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    Mqtt5Connection(YConfiguration config, String clientId, String shareGroup, Log log, boolean shared)
+            throws ConfigurationException {
+        super(shareGroup, log, shared);
+        this.client = MqttUtils.newClient5(config, clientId);
+        this.connOpts = MqttUtils.getConnectionOptions5(config);
+        this.brokerSelector = MqttUtils.newBrokerSelector(config, connOpts::setServerURIs, log);
+        client.setCallback(this);
+    }
+
+    @Override
+    public String getClientId() {
+        return client.getClientId();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    protected void connectClient(Runnable onSuccess, Consumer<Throwable> onFailure) throws MqttException {
+        log.info("Connecting to MQTT 5 with clientId {}, receive maximum {} and topic alias maximum {}",
+                client.getClientId(), connOpts.getReceiveMaximum(), connOpts.getTopicAliasMaximum());
+        try {
+            client.connect(connOpts, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    onSuccess.run();
+                }
+
+                @Override
+                public void onFailure(IMqttToken t, Throwable e) {
+                    onFailure.accept(e);
+                }
+            });
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    protected void subscribeClient(String[] filters, int[] qos, SubscriptionSuccessCallback onSuccess,
+            SubscriptionFailureCallback onFailure) throws MqttException {
+        try {
+            client.subscribe(filters, qos, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken t) {
+                    // the reason codes are the granted QoS or an error code >= 0x80
+                    onSuccess.subscribed(t.getReasonCodes());
+                }
+
+                @Override
+                public void onFailure(IMqttToken t, Throwable e) {
+                    onFailure.setSubscriptionFailure(e);
+                }
+            });
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    protected void unsubscribeClient(String[] filters) throws MqttException {
+        try {
+            client.unsubscribe(filters);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    protected void disconnectClient() throws MqttException {
+        try {
+            client.disconnect().waitForCompletion(connOpts.getConnectionTimeout() * 1000L);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message, PublishCallback callback) throws MqttException {
+        var msg = toPahoMessage(message);
+        boolean tracked = message.getQos() > 0;
+        if (tracked) {
+            inFlight.incrementAndGet();
+        }
+        try {
+            client.publish(topic, msg, null, new MqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    if (tracked) {
+                        inFlight.decrementAndGet();
+                    }
+                    callback.onSuccess();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+                    if (tracked) {
+                        inFlight.decrementAndGet();
+                    }
+                    callback.onFailure(e);
+                }
+            });
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            if (tracked) {
+                inFlight.decrementAndGet();
+            }
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void close() throws MqttException {
+        if (brokerSelector != null) {
+            brokerSelector.stop();
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnectForcibly(connOpts.getConnectionTimeout() * 1000L,
+                        connOpts.getConnectionTimeout() * 1000L);
+            } else {
+                // the client may be in the middle of a reconnect
+                client.disconnectForcibly(0, 0, false);
+            }
+            client.close(true);
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public int getInFlightMessageCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void addInflightInfo(Map<String, Object> extra) {
+        extra.put("In-flight messages", inFlight.get());
+        if (connOpts.getReceiveMaximum() != null) {
+            extra.put("Receive maximum", connOpts.getReceiveMaximum());
+        }
+        if (connOpts.getTopicAliasMaximum() != null) {
+            extra.put("Topic alias maximum", connOpts.getTopicAliasMaximum());
+        }
+    }
+
+    static MqttException wrap(org.eclipse.paho.mqttv5.common.MqttException e) {
+        return new MqttException(e.getReasonCode(), e);
+    }
+
+    /**
+     * Converts a message to be published; the user properties and content type are set as MQTT 5 properties if the
+     * message is a {@link Mqtt5Message}.
+     */
+    static org.eclipse.paho.mqttv5.common.MqttMessage toPahoMessage(MqttMessage message) {
+        var props = new MqttProperties();
+        if (message instanceof Mqtt5Message) {
+            var m5 = (Mqtt5Message) message;
+            if (!m5.getUserProperties().isEmpty()) {
+                List<UserProperty> l = new ArrayList<>(m5.getUserProperties().size());
+                for (var p : m5.getUserProperties()) {
+                    l.add(new UserProperty(p.name(), p.value()));
+                }
+                props.setUserProperties(l);
+            }
+            if (m5.getContentType() != null) {
+                props.setContentType(m5.getContentType());
+            }
+        }
+        return new org.eclipse.paho.mqttv5.common.MqttMessage(message.getPayload(), message.getQos(),
+                message.isRetained(), props);
+    }
+
+    /**
+     * Converts a received message, keeping the user properties and content type
+     */
+    static Mqtt5Message toMqtt5Message(org.eclipse.paho.mqttv5.common.MqttMessage message) {
+        var m = new Mqtt5Message(message.getPayload());
+        m.setQos(message.getQos());
+        m.setRetained(message.isRetained());
+        var props = message.getProperties();
+        if (props != null) {
+            var userProps = props.getUserProperties();
+            if (userProps != null && !userProps.isEmpty()) {
+                var l = new ArrayList<Mqtt5Message.UserProperty>(userProps.size());
+                for (var p : userProps) {
+                    l.add(new Mqtt5Message.UserProperty(p.getKey(), p.getValue()));
+                }
+                m.setUserProperties(l);
+            }
+            m.setContentType(props.getContentType());
+        }
+        return m;
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        super.connectComplete(reconnect, serverURI);
+    }
+
+    @Override
+    public void disconnected(MqttDisconnectResponse response) {
+        log.warn("Disconnected from MQTT: reason code {} {}", response.getReturnCode(),
+                response.getReasonString() == null ? "" : response.getReasonString());
+        connectionLost();
+    }
+
+    @Override
+    public void mqttErrorOccurred(org.eclipse.paho.mqttv5.common.MqttException e) {
+        log.warn("MQTT error: {}", e.toString());
+    }
+
+    @Override
+    public void messageArrived(String topic, org.eclipse.paho.mqttv5.common.MqttMessage message) {
+        super.messageArrived(topic, toMqtt5Message(message));
+    }
+
+    @Override
+    public void deliveryComplete(IMqttToken token) {
+        // the publishers are notified via the action listeners
+    }
+
+    @Override
+    public void authPacketArrived(int reasonCode, MqttProperties properties) {
+        // enhanced authentication is not used
+    }
+}
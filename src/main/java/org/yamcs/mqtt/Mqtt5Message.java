@@ -0,0 +1,79 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * MQTT message with the MQTT 5 properties relevant to the converters.
+ * <p>
+ * When a link uses MQTT 5 (<code>protocolVersion: 5</code>), the messages passed to the TM converters are instances
+ * of this class, allowing metadata to be carried in user properties instead of the payload. The TC converters may
+ * return instances of this class to publish the messages with user properties; with MQTT 3 the properties are ignored.
+ */
+public class Mqtt5Message extends MqttMessage {
+    private List<UserProperty> userProperties = Collections.emptyList();
+    private String contentType;
+
+    public Mqtt5Message() {
+        super();
+    }
+
+    public Mqtt5Message(byte[] payload) {
+        super(payload);
+    }
+
+    /**
+     * @return the user properties of the message in the order in which they have been received; the same name can
+     *         appear more than once.
+     */
+    public List<UserProperty> getUserProperties() {
+        return userProperties;
+    }
+
+    /**
+     * @return the value of the first user property with the given name or null if there is no such property
+     */
+    public String getUserProperty(String name) {
+        for (var p : userProperties) {
+            if (p.name().equals(name)) {
+                return p.value();
+            }
+        }
+        return null;
+    }
+
+    public void setUserProperties(List<UserProperty> userProperties) {
+        this.userProperties = userProperties;
+    }
+
+    public void addUserProperty(String name, String value) {
+        if (!(userProperties instanceof ArrayList)) {
+            userProperties = new ArrayList<>(userProperties);
+        }
+        userProperties.add(new UserProperty(name, value));
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the value of the user property with the given name if the message is an MQTT 5 message, null otherwise
+     */
+    public static String getUserProperty(MqttMessage message, String name) {
+        if (message instanceof Mqtt5Message) {
+            return ((Mqtt5Message) message).getUserProperty(name);
+        }
+        return null;
+    }
+
+    public record UserProperty(String name, String value) {
+    }
+}
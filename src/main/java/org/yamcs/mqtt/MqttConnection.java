@@ -0,0 +1,383 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionFailureCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionSuccessCallback;
+
+/**
+ * MQTT client connection used by the links.
+ * <p>
+ * There are two implementations, selected by the <code>protocolVersion</code> option: {@link Mqtt3Connection} using
+ * the Paho MQTT 3.1.1 client and {@link Mqtt5Connection} using the Paho MQTT 5 client. The messages are passed to the
+ * links and converters as MQTT 3 {@link MqttMessage}s; with MQTT 5 they are {@link Mqtt5Message}s carrying also the
+ * message properties.
+ * <p>
+ * A connection is either private to one link or shared by all the links connecting to the same brokers with the same
+ * credentials (see {@link MqttConnectionService}). The users (links) acquire the connection when they are enabled and
+ * release it when they are disabled; the client connects when the first user acquires the connection and disconnects
+ * when the last one releases it.
+ * <p>
+ * The messages received for the subscriptions of all the users are dispatched using a {@link TopicRouter}; each user
+ * receives a message once, even if more than one of its topic filters match. The subscriptions are made each time the
+ * client (re)connects.
+ * <p>
+ * A link receiving its messages with more than one client (see the <code>parallelClients</code> option) uses private
+ * connections with a share group: the topic filters are then subscribed as MQTT shared subscriptions
+ * (<code>$share/&lt;group&gt;/&lt;filter&gt;</code>) and the broker distributes the messages between the clients.
+ * <p>
+ * If the <code>brokerSelection</code> option is enabled, the order in which the client tries the brokers is given by
+ * a {@link BrokerSelector} probing their round-trip time.
+ */
+public abstract class MqttConnection {
+    final Log log;
+    final boolean shared;
+    final String shareGroup;
+
+    // guarded by this
+    final Map<Object, EventProducer> users = new LinkedHashMap<>();
+    final Map<Object, Subscription> subscriptions = new LinkedHashMap<>();
+    boolean connecting;
+
+    // null if the broker selection is not enabled
+    BrokerSelector brokerSelector;
+    volatile String currentBroker;
+
+    // rebuilt each time the subscriptions change
+    volatile TopicRouter<Subscription[]> router = new TopicRouter<>();
+
+    // used only by the MQTT callback thread
+    long dispatchSeq;
+    String dispatchTopic;
+    MqttMessage dispatchMessage;
+    final Consumer<Subscription[]> dispatcher = this::dispatch;
+
+    protected MqttConnection(String shareGroup, Log log, boolean shared) {
+        this.log = log;
+        this.shared = shared;
+        this.shareGroup = shareGroup;
+    }
+
+    /**
+     * Creates a connection using the configured clientId and protocol version
+     */
+    static MqttConnection create(YConfiguration config, Log log, boolean shared) throws ConfigurationException {
+        return create(config, MqttUtils.getClientId(config), null, log, shared);
+    }
+
+    /**
+     * @param shareGroup
+     *            if not null, the topic filters are subscribed as shared subscriptions in this group
+     */
+    static MqttConnection create(YConfiguration config, String clientId, String shareGroup, Log log, boolean shared)
+            throws ConfigurationException {
+        if (config.getInt("protocolVersion") == 5) {
+            return new Mqtt5Connection(config, clientId, shareGroup, log, shared);
+        } else {
+            return new Mqtt3Connection(config, clientId, shareGroup, log, shared);
+        }
+    }
+
+    public abstract String getClientId();
+
+    public abstract boolean isConnected();
+
+    /**
+     * Starts the asynchronous connection of the client; one of the callbacks is called when the connection is
+     * complete.
+     */
+    protected abstract void connectClient(Runnable onSuccess, Consumer<Throwable> onFailure) throws MqttException;
+
+    /**
+     * Subscribes asynchronously to the topic filters; the success callback receives the granted QoS (or the MQTT 5
+     * reason code) for each filter.
+     */
+    protected abstract void subscribeClient(String[] filters, int[] qos, SubscriptionSuccessCallback onSuccess,
+            SubscriptionFailureCallback onFailure) throws MqttException;
+
+    protected abstract void unsubscribeClient(String[] filters) throws MqttException;
+
+    /**
+     * Disconnects the client and waits for the disconnection to complete
+     */
+    protected abstract void disconnectClient() throws MqttException;
+
+    /**
+     * Publishes a message; the callback is called when the message has been acknowledged according to its QoS.
+     */
+    public abstract void publish(String topic, MqttMessage message, PublishCallback callback) throws MqttException;
+
+    /**
+     * Closes the client; called when the link owning a private connection or the connection service is stopped.
+     */
+    public abstract void close() throws MqttException;
+
+    /**
+     * @return the number of published messages not yet acknowledged by the broker
+     */
+    public abstract int getInFlightMessageCount();
+
+    /**
+     * Adds the in-flight window usage and flow control information of the client to the link extra info
+     */
+    public abstract void addInflightInfo(Map<String, Object> extra);
+
+    /**
+     * Registers a user of the connection and connects the client if not already connected or connecting.
+     */
+    public synchronized void acquire(Object user, EventProducer eventProducer) throws MqttException {
+        users.put(user, eventProducer);
+        if (isConnected() || connecting) {
+            return;
+        }
+        connecting = true;
+        if (brokerSelector != null) {
+            brokerSelector.start(getClientId());
+        }
+        try {
+            connectClient(() -> {
+                log.info("Succesfully connected to MQTT");
+                connectDone();
+            }, e -> {
+                String msg = "Failed to connect to MQTT with clientId " + getClientId() + ": " + e.getMessage();
+                log.warn("{}", msg);
+                for (var ep : connectDone()) {
+                    ep.sendWarning(msg);
+                }
+            });
+        } catch (MqttException e) {
+            connecting = false;
+            throw e;
+        }
+    }
+
+    private synchronized List<EventProducer> connectDone() {
+        connecting = false;
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Removes the subscription of the user and unregisters it; the client is disconnected if this was the last user.
+     * <p>
+     * Does nothing if the user has not acquired the connection.
+     */
+    public void release(Object user) throws MqttException {
+        boolean disconnect;
+        synchronized (this) {
+            unsubscribe(user);
+            disconnect = users.remove(user) != null && users.isEmpty();
+        }
+        if (disconnect && brokerSelector != null) {
+            brokerSelector.stop();
+        }
+        if (disconnect && isConnected()) {
+            // outside the lock: the disconnection waits for the callback thread which may need the lock
+            disconnectClient();
+            currentBroker = null;
+        }
+    }
+
+    /**
+     * Subscribes the user to the given topic filters. The subscription is made immediately if the client is connected
+     * and each time the client (re)connects. All the messages matching the filters are passed to the listener.
+     *
+     * @param qos
+     *            the requested subscription QoS; the granted QoS for each topic filter is passed to the
+     *            successCallback.
+     */
+    public synchronized void subscribe(Object user, List<String> filters, int qos, IMqttMessageListener listener,
+            EventProducer eventProducer, SubscriptionSuccessCallback successCallback,
+            SubscriptionFailureCallback failureCallback) {
+        var sub = new Subscription(filters, qos, listener, eventProducer, successCallback, failureCallback);
+        subscriptions.put(user, sub);
+        rebuildRouter();
+        if (isConnected()) {
+            brokerSubscribe(sub);
+        }
+    }
+
+    private synchronized void unsubscribe(Object user) {
+        var sub = subscriptions.remove(user);
+        if (sub == null) {
+            return;
+        }
+        rebuildRouter();
+        if (!isConnected() || users.size() <= 1) {
+            // the client is disconnected when the last user releases it
+            return;
+        }
+        var unused = new HashSet<>(sub.filters);
+        for (var s : subscriptions.values()) {
+            unused.removeAll(s.filters);
+        }
+        if (!unused.isEmpty()) {
+            try {
+                unsubscribeClient(unused.stream().map(this::brokerFilter).toArray(String[]::new));
+            } catch (MqttException e) {
+                log.warn("Failed to unsubscribe from {}: {}", unused, e.toString());
+            }
+        }
+    }
+
+    private void rebuildRouter() {
+        Map<String, List<Subscription>> byFilter = new LinkedHashMap<>();
+        for (var sub : subscriptions.values()) {
+            for (var filter : sub.filters) {
+                byFilter.computeIfAbsent(filter, k -> new ArrayList<>()).add(sub);
+            }
+        }
+        var r = new TopicRouter<Subscription[]>();
+        byFilter.forEach((filter, subs) -> r.add(filter, subs.toArray(new Subscription[0])));
+        router = r;
+    }
+
+    /**
+     * @return the topic filter as subscribed to the broker; the messages are received on the topics matching the
+     *         original filter
+     */
+    String brokerFilter(String filter) {
+        return shareGroup == null ? filter : "$share/" + shareGroup + "/" + filter;
+    }
+
+    private void brokerSubscribe(Subscription sub) {
+        String[] topics = sub.filters.stream().map(this::brokerFilter).toArray(String[]::new);
+        int[] qos = new int[topics.length];
+        Arrays.fill(qos, sub.qos);
+        try {
+            subscribeClient(topics, qos, granted -> {
+                if (granted.length != topics.length || Arrays.stream(granted).anyMatch(q -> q > 2)) {
+                    String msg = "Subscription to " + sub.filters + " failed; granted QoS: "
+                            + Arrays.toString(granted);
+                    sub.eventProducer.sendWarning(msg);
+                    sub.failureCallback.setSubscriptionFailure(new Exception(msg));
+                } else {
+                    for (int i = 0; i < granted.length; i++) {
+                        if (granted[i] < sub.qos) {
+                            log.warn("Subscribed to {} with QoS {} instead of the requested {}", topics[i],
+                                    granted[i], sub.qos);
+                        } else {
+                            log.info("Succesfully subscribed to {} with QoS {}", topics[i], granted[i]);
+                        }
+                    }
+                    sub.successCallback.subscribed(granted);
+                }
+            }, e -> {
+                String msg = "Subscription to " + sub.filters + " failed: " + e.getMessage();
+                sub.eventProducer.sendWarning(msg);
+                log.warn("{}", msg);
+                sub.failureCallback.setSubscriptionFailure(e);
+            });
+        } catch (MqttException e) {
+            sub.failureCallback.setSubscriptionFailure(e);
+        }
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public synchronized int getNumUsers() {
+        return users.size();
+    }
+
+    /**
+     * Called by the implementations when the client has connected; makes the subscriptions
+     */
+    protected void connectComplete(boolean reconnect, String serverURI) {
+        currentBroker = serverURI;
+        if (brokerSelector != null) {
+            brokerSelector.connected(serverURI);
+        }
+        List<Subscription> subs;
+        synchronized (this) {
+            if (reconnect) {
+                log.info("Reconnected to MQTT broker {}", serverURI);
+            }
+            subs = new ArrayList<>(subscriptions.values());
+        }
+        subs.forEach(this::brokerSubscribe);
+    }
+
+    /**
+     * Called by the implementations when the connection to the broker is lost; the broker selector moves the broker
+     * at the end of the list, such that the client reconnects first to the next best one.
+     */
+    protected void connectionLost() {
+        currentBroker = null;
+        if (brokerSelector != null) {
+            brokerSelector.connectionLost();
+        }
+    }
+
+    /**
+     * Adds the broker the client is connected to and, with the broker selection, the round-trip time of each broker to
+     * the link extra info
+     */
+    public void addBrokerInfo(Map<String, Object> extra) {
+        var broker = currentBroker;
+        extra.put("Broker", broker == null ? "-" : broker);
+        if (brokerSelector != null) {
+            brokerSelector.addExtraInfo(extra);
+        }
+    }
+
+    /**
+     * Called by the implementations on the client callback thread when a message is received; dispatches the message
+     * to the users with matching subscriptions.
+     */
+    protected void messageArrived(String topic, MqttMessage message) {
+        dispatchSeq++;
+        dispatchTopic = topic;
+        dispatchMessage = message;
+        router.matchAll(topic, dispatcher);
+    }
+
+    private void dispatch(Subscription[] subs) {
+        for (var sub : subs) {
+            // a user receives the message only once if more of its filters match
+            if (sub.lastDispatch == dispatchSeq) {
+                continue;
+            }
+            sub.lastDispatch = dispatchSeq;
+            try {
+                sub.listener.messageArrived(dispatchTopic, dispatchMessage);
+            } catch (Exception e) {
+                log.error("Error processing message received on {}", dispatchTopic, e);
+            }
+        }
+    }
+
+    static class Subscription {
+        final List<String> filters;
+        final int qos;
+        final IMqttMessageListener listener;
+        final EventProducer eventProducer;
+        final SubscriptionSuccessCallback successCallback;
+        final SubscriptionFailureCallback failureCallback;
+        long lastDispatch;
+
+        Subscription(List<String> filters, int qos, IMqttMessageListener listener, EventProducer eventProducer,
+                SubscriptionSuccessCallback successCallback, SubscriptionFailureCallback failureCallback) {
+            this.filters = List.copyOf(filters);
+            this.qos = qos;
+            this.listener = listener;
+            this.eventProducer = eventProducer;
+            this.successCallback = successCallback;
+            this.failureCallback = failureCallback;
+        }
+    }
+}
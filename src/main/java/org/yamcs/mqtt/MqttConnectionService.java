@@ -0,0 +1,92 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.yamcs.AbstractYamcsService;
+import org.yamcs.ConfigurationException;
+import org.yamcs.Spec;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+
+/**
+ * Global service keeping the MQTT connections shared between links.
+ * <p>
+ * The links configured with <code>sharedConnection: true</code> obtain their connection from this service. There is
+ * one connection for each combination of brokers, username, password, clientId and protocol version; the other
+ * connection options (timeouts, persistence, in-flight window, ...) are taken from the first link requesting the
+ * connection.
+ * <p>
+ * Add it to the global services in <code>yamcs.yaml</code>:
+ * 
+ * <pre>
+ * services:
+ *   - class: org.yamcs.mqtt.MqttConnectionService
+ * </pre>
+ */
+public class MqttConnectionService extends AbstractYamcsService {
+    final Map<ConnectionKey, MqttConnection> connections = new LinkedHashMap<>();
+
+    @Override
+    public Spec getSpec() {
+        return new Spec();
+    }
+
+    /**
+     * Returns the connection for the brokers and credentials of the link configuration, creating it if it does not
+     * exist.
+     */
+    public synchronized MqttConnection getConnection(YConfiguration linkConfig) throws ConfigurationException {
+        List<String> brokers = linkConfig.getList("brokers");
+        var key = new ConnectionKey(brokers, linkConfig.getString("username", null),
+                linkConfig.getString("password", null), linkConfig.getString("clientId", null),
+                linkConfig.getInt("protocolVersion"));
+        var conn = connections.get(key);
+        if (conn == null) {
+            log.info("Creating shared MQTT connection to {}", brokers);
+            conn = MqttConnection.create(linkConfig, new Log(MqttConnection.class), true);
+            connections.put(key, conn);
+        }
+        return conn;
+    }
+
+    /**
+     * @return the number of connections and the number of users (enabled links) for each of them
+     */
+    public synchronized Map<String, Integer> getConnectionUsers() {
+        var m = new LinkedHashMap<String, Integer>();
+        for (var e : connections.entrySet()) {
+            m.put(e.getKey().brokers() + " (" + e.getValue().getClientId() + ")", e.getValue().getNumUsers());
+        }
+        return m;
+    }
+
+    @Override
+    protected void doStart() {
+        notifyStarted();
+    }
+
+    @Override
+    protected void doStop() {
+        List<MqttConnection> l;
+        synchronized (this) {
+            l = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+        for (var conn : l) {
+            try {
+                conn.close();
+            } catch (MqttException e) {
+                log.warn("Error closing MQTT connection", e);
+            }
+        }
+        notifyStopped();
+    }
+
+    record ConnectionKey(List<String> brokers, String username, String password, String clientId,
+            int protocolVersion) {
+    }
+}
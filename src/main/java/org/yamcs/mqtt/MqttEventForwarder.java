@@ -0,0 +1,354 @@
+package org.yamcs.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.AbstractYamcsService;
+import org.yamcs.ConfigurationException;
+import org.yamcs.InitException;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.events.EventProducerFactory;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.SystemParametersProducer;
+import org.yamcs.parameter.SystemParametersService;
+import org.yamcs.protobuf.Yamcs.Value.Type;
+import org.yamcs.utils.StringConverter;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.Parameter;
+import org.yamcs.yarch.DataType;
+import org.yamcs.yarch.Stream;
+import org.yamcs.yarch.StreamSubscriber;
+import org.yamcs.yarch.Tuple;
+import org.yamcs.yarch.YarchDatabase;
+
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+
+/**
+ * Instance service forwarding the events and the alarms to MQTT.
+ * <p>
+ * The service subscribes to the event stream (by default <code>events_realtime</code>) and to the alarm stream (by
+ * default <code>alarms_realtime</code>). Each tuple is encoded as a JSON object with one member per column and put in
+ * a {@link MessageBatcher} which groups the records into JSON arrays bounded in number of records and bytes, published
+ * at the latest after the linger time. The records with a severity at least <code>urgentSeverity</code> (for events,
+ * the event severity; for alarms, the monitoring result of the parameter values) are sent without waiting for the
+ * linger time and have priority when the queue is full.
+ * <p>
+ * The queue depth, the number of dropped records and the number of records and messages sent are published as system
+ * parameters <code>mqtt/&lt;serviceName&gt;/...</code>.
+ * <p>
+ * Add it to the services of the instance:
+ *
+ * <pre>
+ * services:
+ *   - class: org.yamcs.mqtt.MqttEventForwarder
+ *     args:
+ *       brokers: [tcp://localhost:1883]
+ *       eventTopic: yamcs/events
+ *       alarmTopic: yamcs/alarms
+ * </pre>
+ */
+public class MqttEventForwarder extends AbstractYamcsService implements SystemParametersProducer {
+    static final String SP_PREFIX = "mqtt/";
+    static final JsonFormat.Printer PRINTER = JsonFormat.printer().omittingInsignificantWhitespace();
+
+    /**
+     * The severity levels of the events and of the alarms
+     */
+    public enum Severity {
+        INFO, WATCH, WARNING, DISTRESS, CRITICAL, SEVERE;
+
+        /**
+         * @return the level corresponding to the name of an event severity or of a monitoring result
+         */
+        static Severity fromName(String name) {
+            switch (name) {
+            case "WATCH":
+                return WATCH;
+            case "WARNING":
+                return WARNING;
+            case "ERROR":
+            case "DISTRESS":
+                return DISTRESS;
+            case "CRITICAL":
+                return CRITICAL;
+            case "SEVERE":
+                return SEVERE;
+            default:
+                return INFO;
+            }
+        }
+    }
+
+    MqttConnection connection;
+    EventProducer eventProducer;
+    int publishQos;
+    Severity urgentSeverity;
+    List<Forward> forwards = new ArrayList<>();
+    String[] topics;
+    MessageBatcher batcher;
+    SystemParametersService sysParamService;
+    Parameter spQueueDepth, spDropped, spUrgentDropped, spSent, spMessages;
+
+    @Override
+    public Spec getSpec() {
+        var spec = new Spec();
+        MqttUtils.addConnectionOptionsToSpec(spec);
+        spec.addOption("eventStream", OptionType.STRING).withDefault("events_realtime");
+        spec.addOption("eventTopic", OptionType.STRING).withRequired(false);
+        spec.addOption("alarmStream", OptionType.STRING).withDefault("alarms_realtime");
+        spec.addOption("alarmTopic", OptionType.STRING).withRequired(false);
+        spec.addOption("queueCapacity", OptionType.INTEGER).withDefault(10000);
+        spec.addOption("batchSize", OptionType.INTEGER).withDefault(100);
+        spec.addOption("maxMessageSize", OptionType.INTEGER).withDefault(256 * 1024);
+        spec.addOption("lingerTime", OptionType.INTEGER).withDefault(500);
+        spec.addOption("urgentSeverity", OptionType.STRING).withChoices(Severity.class)
+                .withDefault(Severity.CRITICAL.name());
+        spec.requireOneOf("eventTopic", "alarmTopic");
+        return spec;
+    }
+
+    @Override
+    public void init(String yamcsInstance, String serviceName, YConfiguration config) throws InitException {
+        super.init(yamcsInstance, serviceName, config);
+        publishQos = config.getInt("publishQos");
+        urgentSeverity = config.getEnum("urgentSeverity", Severity.class);
+        var ydb = YarchDatabase.getInstance(yamcsInstance);
+        List<String> l = new ArrayList<>();
+        for (String kind : List.of("event", "alarm")) {
+            if (!config.containsKey(kind + "Topic")) {
+                continue;
+            }
+            String streamName = config.getString(kind + "Stream");
+            Stream stream = ydb.getStream(streamName);
+            if (stream == null) {
+                throw new InitException("Cannot find stream '" + streamName + "'");
+            }
+            forwards.add(new Forward(stream, l.size()));
+            l.add(config.getString(kind + "Topic"));
+        }
+        topics = l.toArray(new String[0]);
+        try {
+            connection = MqttUtils.getConnection(config, log);
+            batcher = new MessageBatcher(serviceName, topics.length, config.getInt("queueCapacity"),
+                    config.getInt("batchSize"), config.getInt("maxMessageSize"), config.getInt("lingerTime"),
+                    this::send);
+        } catch (ConfigurationException | IllegalArgumentException e) {
+            throw new InitException(e.getMessage());
+        }
+        eventProducer = EventProducerFactory.getEventProducer(yamcsInstance, serviceName, 10000);
+
+        sysParamService = SystemParametersService.getInstance(yamcsInstance);
+        if (sysParamService != null) {
+            String prefix = SP_PREFIX + serviceName + "/";
+            spQueueDepth = sysParamService.createSystemParameter(prefix + "queueDepth", Type.SINT64,
+                    "Number of records waiting in the queue");
+            spDropped = sysParamService.createSystemParameter(prefix + "dropped", Type.SINT64,
+                    "Number of records dropped because the queue was full");
+            spUrgentDropped = sysParamService.createSystemParameter(prefix + "urgentDropped", Type.SINT64,
+                    "Number of urgent records dropped because the queue was full of urgent records");
+            spSent = sysParamService.createSystemParameter(prefix + "sent", Type.SINT64,
+                    "Number of records sent");
+            spMessages = sysParamService.createSystemParameter(prefix + "messages", Type.SINT64,
+                    "Number of MQTT messages sent");
+        }
+    }
+
+    /**
+     * Publishes one batch; called on the batcher thread
+     *
+     * @return false if the client is disconnected or the in-flight window is full
+     */
+    private boolean send(int topic, byte[] payload, int count) {
+        if (!connection.isConnected()) {
+            return false;
+        }
+        var msg = new MqttMessage(payload);
+        msg.setQos(publishQos);
+        try {
+            connection.publish(topics[topic], msg, new PublishCallback() {
+                @Override
+                public void onSuccess() {
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    log.warn("Failed to publish {} records to {}: {}", count, topics[topic], e.toString());
+                }
+            });
+            return true;
+        } catch (MqttException e) {
+            log.debug("Cannot publish to {}: {}", topics[topic], e.toString());
+            return false;
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            batcher.start();
+            connection.acquire(this, eventProducer);
+            for (var f : forwards) {
+                f.stream.addSubscriber(f);
+            }
+            if (sysParamService != null) {
+                sysParamService.registerProducer(this);
+            }
+            notifyStarted();
+        } catch (MqttException e) {
+            notifyFailed(e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        for (var f : forwards) {
+            f.stream.removeSubscriber(f);
+        }
+        if (sysParamService != null) {
+            sysParamService.unregisterProducer(this);
+        }
+        batcher.stop();
+        try {
+            connection.release(this);
+            if (!connection.isShared()) {
+                connection.close();
+            }
+            notifyStopped();
+        } catch (MqttException e) {
+            notifyFailed(e);
+        }
+    }
+
+    @Override
+    public Collection<ParameterValue> getSystemParameters(long gentime) {
+        return List.of(SystemParametersService.getPV(spQueueDepth, gentime, (long) batcher.getDepth()),
+                SystemParametersService.getPV(spDropped, gentime, batcher.getDroppedCount()),
+                SystemParametersService.getPV(spUrgentDropped, gentime, batcher.getUrgentDroppedCount()),
+                SystemParametersService.getPV(spSent, gentime, batcher.getSentCount()),
+                SystemParametersService.getPV(spMessages, gentime, batcher.getMessageCount()));
+    }
+
+    /**
+     * @return the highest severity found in the tuple: the severity field of a protobuf message (the event) or the
+     *         monitoring result of a parameter value (the alarm)
+     */
+    static Severity severity(Tuple tuple) {
+        var s = Severity.INFO;
+        for (var cd : tuple.getDefinition().getColumnDefinitions()) {
+            Object v = tuple.getColumn(cd.getName());
+            Severity cs = null;
+            if (v instanceof MessageOrBuilder) {
+                var msg = (MessageOrBuilder) v;
+                var field = msg.getDescriptorForType().findFieldByName("severity");
+                if (field != null && msg.hasField(field) && msg.getField(field) instanceof EnumValueDescriptor) {
+                    cs = Severity.fromName(((EnumValueDescriptor) msg.getField(field)).getName());
+                }
+            } else if (v instanceof ParameterValue) {
+                var mr = ((ParameterValue) v).getMonitoringResult();
+                if (mr != null) {
+                    cs = Severity.fromName(mr.name());
+                }
+            }
+            if (cs != null && cs.compareTo(s) > 0) {
+                s = cs;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Encodes the tuple as a JSON object with one member per column
+     */
+    static byte[] toJson(Tuple tuple) {
+        var sb = new StringBuilder(256);
+        sb.append('{');
+        boolean first = true;
+        for (var cd : tuple.getDefinition().getColumnDefinitions()) {
+            Object v = tuple.getColumn(cd.getName());
+            if (v == null) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            ParameterBatchEncoder.appendString(sb, cd.getName());
+            sb.append(':');
+            if (cd.getType() == DataType.TIMESTAMP && v instanceof Long) {
+                ParameterBatchEncoder.appendString(sb, TimeEncoding.toString((Long) v));
+            } else {
+                appendColumn(sb, v);
+            }
+        }
+        sb.append('}');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendColumn(StringBuilder sb, Object v) {
+        if (v instanceof MessageOrBuilder) {
+            try {
+                sb.append(PRINTER.print((MessageOrBuilder) v));
+            } catch (InvalidProtocolBufferException e) {
+                ParameterBatchEncoder.appendString(sb, v.toString());
+            }
+        } else if (v instanceof ParameterValue) {
+            var pv = (ParameterValue) v;
+            sb.append("{\"parameter\":");
+            ParameterBatchEncoder.appendString(sb, pv.getParameterQualifiedName());
+            sb.append(",\"time\":");
+            ParameterBatchEncoder.appendString(sb, TimeEncoding.toString(pv.getGenerationTime()));
+            sb.append(",\"value\":");
+            ParameterBatchEncoder.appendValue(sb, pv.getEngValue());
+            if (pv.getMonitoringResult() != null) {
+                sb.append(",\"monitoringResult\":");
+                ParameterBatchEncoder.appendString(sb, pv.getMonitoringResult().name());
+            }
+            sb.append('}');
+        } else if (v instanceof Double || v instanceof Float) {
+            ParameterBatchEncoder.appendDouble(sb, ((Number) v).doubleValue());
+        } else if (v instanceof Number || v instanceof Boolean) {
+            sb.append(v);
+        } else if (v instanceof byte[]) {
+            ParameterBatchEncoder.appendString(sb, StringConverter.arrayToHexString((byte[]) v, false));
+        } else {
+            ParameterBatchEncoder.appendString(sb, v.toString());
+        }
+    }
+
+    /**
+     * Subscriber of one stream, forwarding its tuples to one topic
+     */
+    class Forward implements StreamSubscriber {
+        final Stream stream;
+        final int topic;
+
+        Forward(Stream stream, int topic) {
+            this.stream = stream;
+            this.topic = topic;
+        }
+
+        @Override
+        public void onTuple(Stream s, Tuple tuple) {
+            boolean urgent = severity(tuple).compareTo(urgentSeverity) >= 0;
+            if (!batcher.offer(topic, toJson(tuple), urgent)) {
+                log.trace("Queue full, record from {} dropped", s.getName());
+            }
+        }
+
+        @Override
+        public void streamClosed(Stream s) {
+            log.debug("Stream {} closed", s.getName());
+        }
+    }
+}
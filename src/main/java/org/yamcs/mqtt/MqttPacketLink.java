@@ -1,61 +1,262 @@
 package org.yamcs.mqtt;
 
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
+import org.yamcs.TmPacket;
 import org.yamcs.YConfiguration;
 import org.yamcs.Spec.OptionType;
+import org.yamcs.cmdhistory.CommandHistoryPublisher.AckStatus;
 import org.yamcs.commanding.PreparedCommand;
+import org.yamcs.mdb.MdbFactory;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.SystemParametersService;
+import org.yamcs.protobuf.Commanding.CommandId;
 import org.yamcs.tctm.AbstractTcTmParamLink;
+import org.yamcs.tctm.PacketPreprocessor;
 import org.yamcs.utils.StringConverter;
+import org.yamcs.utils.TimeEncoding;
 import org.yamcs.utils.YObjectLoader;
+import org.yamcs.xtce.Parameter;
 
 /**
  * MQTT packet link - supports TM and TC packets
+ * <p>
+ * The TM can be received on multiple topics (or topic filters containing wildcards), each with its own converter and
+ * packet preprocessor. The incoming messages are dispatched to the routes using a {@link TopicRouter}.
+ * <p>
+ * The messages can be received by more than one MQTT client using shared subscriptions (<code>parallelClients</code>
+ * option). In this case the messages are converted on the callback threads of the clients and the packets are passed
+ * for preprocessing and processing to {@link IngestLanes} keyed by APID, preserving the order of the packets of each
+ * APID.
+ * <p>
+ * The latency of each stage of the TM processing is recorded in {@link IngestLatencyStats}.
+ * <p>
+ * If the <code>tcSpool</code> option is enabled, the commands sent while the MQTT client is disconnected are stored
+ * in a {@link CommandSpool} and published when the client reconnects; the commands are acknowledged only when the
+ * broker accepts them.
+ * <p>
+ * If the <code>ackTopic</code> option is set, the replies of the ground station are received on that topic and
+ * correlated with the commands by a {@link CommandAckTracker}; the outcome is published in the command history as the
+ * <code>Acknowledge_Radiated</code> acknowledgement, with the status TIMEOUT if no reply is received in time.
  */
 public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessageListener {
-    MqttConnectOptions connOpts;
-    MqttAsyncClient client;
+    static final String ACK_RADIATED_KEY = "Acknowledge_Radiated";
+    List<MqttConnection> connections;
+    // used for publishing the commands
+    MqttConnection connection;
     String tmTopic, tcTopic;
     volatile Throwable subscriptionFailure;
+    int subscribeQos, publishQos;
     MqttToTmPacketConverter tmConverter;
     PreparedCommandToMqttConverter tcConverter;
+    PayloadCompression compression;
+    CaptureWriter capture;
+    CommandSpool<OutgoingCommand> spool;
+    CommandAckTracker<CommandId> ackTracker;
+    AckCorrelation ackCorrelation;
+    IngestQueue<ReceivedMessage> ingestQueue;
+    IngestLanes<LaneItem> lanes;
+    TopicRouter<TopicRoute> router;
+    boolean hasTmRoutes, hasParamRoutes;
+    final AtomicLong unmatchedCount = new AtomicLong();
+
+    final IngestLatencyStats latencyStats = new IngestLatencyStats();
+    final LatencyHistogram queueLatency = latencyStats.addStage("queue", "ingest queue waiting");
+    final LatencyHistogram ertLatency = latencyStats.addStage("ert", "earth reception to processing");
+    final LatencyHistogram convertLatency = latencyStats.addStage("convert", "message conversion");
+    final LatencyHistogram preprocessLatency = latencyStats.addStage("preprocess", "packet preprocessing");
+    final LatencyHistogram processLatency = latencyStats.addStage("process", "packet processing");
 
     @Override
     public void init(String yamcsInstance, String linkName, YConfiguration config) throws ConfigurationException {
         super.init(yamcsInstance, linkName, config);
-        connOpts = MqttUtils.getConnectionOptions(config);
         tmTopic = config.getString("tmTopic", null);
         tcTopic = config.getString("tcTopic", null);
-        client = MqttUtils.newClient(config);
+        subscribeQos = config.getInt("subscribeQos");
+        publishQos = config.getInt("publishQos");
+        connections = MqttUtils.getConnections(config, linkName, log);
+        connection = connections.get(0);
 
         tmConverter = YObjectLoader.loadObject(config.getString("tmConverterClassName"));
         tmConverter.init(yamcsInstance, linkName, config.getConfigOrEmpty("tmConverterArgs"));
 
         tcConverter = YObjectLoader.loadObject(config.getString("tcConverterClassName"));
         tcConverter.init(yamcsInstance, linkName, config.getConfigOrEmpty("tcConverterArgs"));
+        compression = MqttUtils.newPayloadCompression(config);
+        capture = MqttUtils.newCaptureWriter(config, linkName);
+        if (tcTopic != null) {
+            spool = MqttUtils.newCommandSpool(config, linkName, log);
+        }
+
+        router = new TopicRouter<>();
+        if (config.containsKey("ackTopic")) {
+            initAckTracker(config);
+            addRoute(new AckRoute(config.getString("ackTopic")));
+        }
+        if (tmTopic != null) {
+            addRoute(new TmRoute(tmTopic, tmConverter, packetPreprocessor));
+        }
+        if (config.containsKey("tmTopics")) {
+            for (var routeConfig : config.getConfigList("tmTopics")) {
+                addRoute(newRoute(config, routeConfig));
+            }
+        }
+        if (config.containsKey("paramTopics")) {
+            for (var routeConfig : config.getConfigList("paramTopics")) {
+                addRoute(newParamRoute(routeConfig));
+            }
+        }
+
+        if (connections.size() > 1) {
+            lanes = MqttUtils.newIngestLanes(config, linkName, config.getInt("ingestThreads"), item -> {
+                long t = System.nanoTime();
+                queueLatency.record(t - item.queuedNanos());
+                processPacket(item.route(), item.packet(), t);
+            }, log);
+        } else {
+            ingestQueue = MqttUtils.newIngestQueue(config, linkName, config.getInt("ingestThreads"),
+                    m -> processMessage(m.topic(), m.message(), m.arrivalNanos()), log);
+        }
+    }
+
+    private void initAckTracker(YConfiguration config) {
+        if (tcTopic == null) {
+            throw new ConfigurationException("The ackTopic option requires the tcTopic option");
+        }
+        ackCorrelation = config.getEnum("ackCorrelation", AckCorrelation.class);
+        if (ackCorrelation == AckCorrelation.SEQUENCE
+                && !(tcConverter instanceof EnvelopePreparedCommandToMqttConverter)) {
+            throw new ConfigurationException("The SEQUENCE ack correlation requires the "
+                    + EnvelopePreparedCommandToMqttConverter.class.getName() + " TC converter");
+        }
+        try {
+            ackTracker = new CommandAckTracker<>(config.getLong("ackTimeout"), config.getString("ackKeyPath", null),
+                    config.getString("ackStatusPath", null), new CommandAckTracker.Listener<>() {
+                        @Override
+                        public void replied(CommandId id, boolean ok, String message) {
+                            commandHistoryPublisher.publishAck(id, ACK_RADIATED_KEY, getCurrentTime(),
+                                    ok ? AckStatus.OK : AckStatus.NOK, message);
+                        }
+
+                        @Override
+                        public void timedOut(CommandId id) {
+                            commandHistoryPublisher.publishAck(id, ACK_RADIATED_KEY, getCurrentTime(),
+                                    AckStatus.TIMEOUT);
+                        }
+                    });
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+    }
+
+    private TmRoute newRoute(YConfiguration config, YConfiguration routeConfig) {
+        String filter = routeConfig.getString("topic");
+        MqttToTmPacketConverter converter = YObjectLoader.loadObject(
+                routeConfig.getString("tmConverterClassName", config.getString("tmConverterClassName")));
+        converter.init(yamcsInstance, linkName, routeConfig.getConfigOrEmpty("tmConverterArgs"));
 
+        PacketPreprocessor preprocessor = packetPreprocessor;
+        if (routeConfig.containsKey("packetPreprocessorClassName")) {
+            String className = routeConfig.getString("packetPreprocessorClassName");
+            if (routeConfig.containsKey("packetPreprocessorArgs")) {
+                preprocessor = YObjectLoader.loadObject(className, yamcsInstance,
+                        routeConfig.getConfig("packetPreprocessorArgs"));
+            } else {
+                preprocessor = YObjectLoader.loadObject(className, yamcsInstance);
+            }
+        }
+        return new TmRoute(filter, converter, preprocessor);
+    }
+
+    private ParamRoute newParamRoute(YConfiguration routeConfig) {
+        var mdb = MdbFactory.getInstance(yamcsInstance);
+        List<String> paths = new ArrayList<>();
+        List<Parameter> parameters = new ArrayList<>();
+        for (var m : routeConfig.getConfigList("parameters")) {
+            String name = m.getString("parameter");
+            var p = mdb.getParameter(name);
+            if (p == null) {
+                throw new ConfigurationException("Unknown parameter " + name);
+            }
+            paths.add(m.getString("path"));
+            parameters.add(p);
+        }
+        var mapper = new JsonParameterMapper(paths, parameters, routeConfig.getString("timePath", null));
+        return new ParamRoute(routeConfig.getString("topic"), mapper, routeConfig.getString("group", linkName));
+    }
+
+    private void addRoute(TopicRoute route) {
+        if (route instanceof ParamRoute) {
+            hasParamRoutes = true;
+        } else if (route instanceof TmRoute) {
+            hasTmRoutes = true;
+        }
+        try {
+            router.add(route.filter, route);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
     }
 
     @Override
     public Spec getSpec() {
         var spec = getDefaultSpec();
-        MqttUtils.addConnectionOptionsToSpec(spec);
+        MqttUtils.addConnectionOptionsToSpec(spec, false);
+        MqttUtils.addCaptureOptionsToSpec(spec);
         spec.addOption("tmTopic", OptionType.STRING).withRequired(false);
         spec.addOption("tcTopic", OptionType.STRING).withRequired(false);
         spec.addOption("tmConverterClassName", OptionType.STRING)
                 .withDefault(DefaultMqttToTmPacketConverter.class.getName());
         spec.addOption("tmConverterArgs", OptionType.MAP).withRequired(false);
 
+        var routeSpec = new Spec();
+        routeSpec.addOption("topic", OptionType.STRING).withRequired(true);
+        routeSpec.addOption("tmConverterClassName", OptionType.STRING).withRequired(false);
+        routeSpec.addOption("tmConverterArgs", OptionType.MAP).withRequired(false);
+        routeSpec.addOption("packetPreprocessorClassName", OptionType.STRING).withRequired(false);
+        routeSpec.addOption("packetPreprocessorArgs", OptionType.MAP).withRequired(false);
+        spec.addOption("tmTopics", OptionType.LIST).withElementType(OptionType.MAP).withSpec(routeSpec)
+                .withRequired(false);
+
+        var mappingSpec = new Spec();
+        mappingSpec.addOption("path", OptionType.STRING).withDefault("");
+        mappingSpec.addOption("parameter", OptionType.STRING).withRequired(true);
+        var paramRouteSpec = new Spec();
+        paramRouteSpec.addOption("topic", OptionType.STRING).withRequired(true);
+        paramRouteSpec.addOption("group", OptionType.STRING).withRequired(false);
+        paramRouteSpec.addOption("timePath", OptionType.STRING).withRequired(false);
+        paramRouteSpec.addOption("parameters", OptionType.LIST).withElementType(OptionType.MAP)
+                .withSpec(mappingSpec).withRequired(true);
+        spec.addOption("paramTopics", OptionType.LIST).withElementType(OptionType.MAP).withSpec(paramRouteSpec)
+                .withRequired(false);
+
         spec.addOption("tcConverterClassName", OptionType.STRING)
                 .withDefault(DefaultPreparedCommandToMqttConverter.class.getName());
         spec.addOption("tcConverterArgs", OptionType.MAP).withRequired(false);
+        spec.addOption("ackTopic", OptionType.STRING).withRequired(false);
+        spec.addOption("ackCorrelation", OptionType.STRING).withChoices(AckCorrelation.class)
+                .withDefault(AckCorrelation.COMMAND_ID);
+        spec.addOption("ackKeyPath", OptionType.STRING).withRequired(false);
+        spec.addOption("ackStatusPath", OptionType.STRING).withRequired(false);
+        spec.addOption("ackTimeout", OptionType.INTEGER).withDefault(10000);
+
+        MqttUtils.addIngestOptionsToSpec(spec);
+        spec.addOption("ingestThreads", OptionType.INTEGER).withDefault(1);
+        MqttUtils.addCompressionOptionsToSpec(spec);
+        MqttUtils.addSpoolOptionsToSpec(spec);
 
         return spec;
     }
@@ -69,44 +270,247 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
         }
         preparedCommand.setBinary(data);
         var msg = tcConverter.convert(preparedCommand);
+        var command = new OutgoingCommand(preparedCommand, ackTracker == null ? 0 : ackKey(preparedCommand, msg));
+        if (compression != null) {
+            msg = compression.compress(msg);
+        }
+        msg.setQos(publishQos);
+        if (spool != null && (!connection.isConnected() || !spool.isEmpty())) {
+            // keep the order of the commands sent while the spool is drained
+            spoolCommand(command, msg);
+            return true;
+        }
+        try {
+            publishCommand(msg, command);
+            return true;
+        } catch (MqttException e) {
+            if (spool != null) {
+                spoolCommand(command, msg);
+                return true;
+            }
+            log.warn("Failed to send command {}", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the key correlating the replies received on the ack topic with the command; it is unique only within one
+     *         run since both sequence numbers start again after a restart
+     */
+    private long ackKey(PreparedCommand preparedCommand, MqttMessage msg) {
+        if (ackCorrelation == AckCorrelation.SEQUENCE) {
+            return BinaryEnvelope.decode(msg.getPayload()).sequence();
+        } else {
+            return preparedCommand.getCommandId().getSequenceNumber();
+        }
+    }
+
+    private void spoolCommand(OutgoingCommand command, MqttMessage msg) {
+        var commandId = command.preparedCommand().getCommandId();
+        if (spool.offer(msg, command)) {
+            log.debug("MQTT client not connected, command {} spooled", commandId);
+        } else {
+            failedCommand(commandId, "TC spool full");
+        }
+    }
+
+    /**
+     * Publishes the command; it is acknowledged when the broker accepts the message. Called by the link or by the
+     * spool drain thread.
+     * <p>
+     * With an ack topic, the command is registered in the ack tracker before publishing, such that a reply arriving
+     * before the broker acknowledgement is not lost; the ack timeout starts when the command leaves the spool.
+     */
+    private void publishCommand(MqttMessage msg, OutgoingCommand command) throws MqttException {
+        var commandId = command.preparedCommand().getCommandId();
+        if (ackTracker != null) {
+            ackTracker.sent(command.ackKey(), commandId);
+        }
         try {
-            client.publish(tcTopic, msg, null, new IMqttActionListener() {
+            connection.publish(tcTopic, msg, new PublishCallback() {
                 @Override
-                public void onSuccess(IMqttToken asyncActionToken) {
-                    ackCommand(preparedCommand.getCommandId());
+                public void onSuccess() {
+                    ackCommand(commandId);
                 }
 
                 @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                public void onFailure(Throwable exception) {
                     log.warn("Failed to send command {}", exception);
-                    failedCommand(preparedCommand.getCommandId(), exception.toString());
+                    if (ackTracker != null) {
+                        ackTracker.cancel(command.ackKey());
+                    }
+                    failedCommand(commandId, exception.toString());
                 }
             });
-            dataOut(1, data.length);
-            return true;
-        } catch (MqttException e) {
-            log.warn("Failed to send command {}", e);
-            return false;
+        } catch (MqttException | RuntimeException e) {
+            if (ackTracker != null) {
+                ackTracker.cancel(command.ackKey());
+            }
+            throw e;
         }
+        dataOut(1, command.preparedCommand().getBinary().length);
     }
 
     /**
-     * Called by the MQTT client when a message is received
+     * Called by the MQTT client when a message is received on any of the subscribed topics
      */
     @Override
     public void messageArrived(String topic, MqttMessage message) {
+        if (capture != null) {
+            capture(topic, message);
+        }
+        if (ackTracker != null && router.match(topic) instanceof AckRoute) {
+            // the replies are not queued, such that they cannot be dropped under TM load
+            processReply(topic, message);
+            return;
+        }
+        if (ingestQueue != null) {
+            ingestQueue.offer(new ReceivedMessage(topic, message, System.nanoTime()));
+        } else {
+            processMessage(topic, message, 0);
+        }
+    }
+
+    private void capture(String topic, MqttMessage message) {
+        try {
+            capture.write(topic, message);
+        } catch (IOException e) {
+            log.warn("Failed to write the capture file, the capture is stopped: {}", e.toString());
+        }
+    }
+
+    /**
+     * Converts the message to packets and sends them downstream; called either on the MQTT callback thread or on one
+     * of the ingest queue workers. With parallel clients, the packets are passed to the ingest lanes.
+     * 
+     * @param arrivalNanos
+     *            the time ({@link System#nanoTime()}) when the message has been put in the ingest queue or 0 if the
+     *            message is processed on the MQTT callback thread
+     */
+    void processMessage(String topic, MqttMessage message, long arrivalNanos) {
+        long start = System.nanoTime();
+        if (arrivalNanos != 0) {
+            queueLatency.record(start - arrivalNanos);
+        }
         if (log.isTraceEnabled()) {
             log.trace("topic: {}, got message: {}", topic,
                     StringConverter.arrayToHexString(message.getPayload(), true));
         }
-        dataIn(1, message.getPayload().length);
+        var route = router.match(topic);
+        if (route == null) {
+            log.debug("Ignoring message on topic {} not matching any of the TM topics", topic);
+            unmatchedCount.incrementAndGet();
+            return;
+        }
+        int length = message.getPayload().length;
+        dataIn(1, length);
+        route.messageIn(length);
+        if (compression != null) {
+            try {
+                message = compression.decompress(message);
+            } catch (IllegalArgumentException e) {
+                log.warn("Cannot decompress message received on topic {}: {}", topic, e.getMessage());
+                return;
+            }
+        }
+        if (route instanceof ParamRoute) {
+            processParameters((ParamRoute) route, topic, message);
+            convertLatency.record(System.nanoTime() - start);
+            return;
+        }
+        var tmRoute = (TmRoute) route;
 
-        for(var tmPacket: tmConverter.convert(message)) {
-            tmPacket = packetPreprocessor.process(tmPacket);
-            if (tmPacket != null) {
-                super.processPacket(tmPacket);
+        // the converters may extract the packets lazily during the iteration, so the conversion time is what remains
+        // after subtracting the preprocessing and processing
+        long wallclock = 0;
+        long downstream = 0;
+        for (var tmPacket : tmRoute.converter.convert(message)) {
+            if (wallclock == 0) {
+                wallclock = TimeEncoding.getWallclockTime();
+            }
+            long ertDelay = IngestLatencyStats.ertDelay(tmPacket.getEarthReceptionTime(), wallclock);
+            if (ertDelay >= 0) {
+                ertLatency.record(ertDelay);
+            }
+            long t0 = System.nanoTime();
+            if (lanes != null) {
+                lanes.offer(apid(tmPacket), new LaneItem(tmRoute, tmPacket, t0));
+                downstream += System.nanoTime() - t0;
+            } else {
+                downstream += processPacket(tmRoute, tmPacket, t0) - t0;
             }
         }
+        convertLatency.record(System.nanoTime() - start - downstream);
+    }
+
+    /**
+     * Passes the reply of the ground station to the ack tracker; called on the MQTT callback thread
+     */
+    private void processReply(String topic, MqttMessage message) {
+        if (compression != null) {
+            try {
+                message = compression.decompress(message);
+            } catch (IllegalArgumentException e) {
+                log.warn("Cannot decompress reply received on topic {}: {}", topic, e.getMessage());
+                return;
+            }
+        }
+        if (!ackTracker.replyArrived(message.getPayload())) {
+            log.debug("Ignoring reply received on topic {} not matching any outstanding command", topic);
+        }
+    }
+
+    /**
+     * Extracts the parameter values from the JSON message and sends them to the parameter sink as one batch
+     */
+    private void processParameters(ParamRoute route, String topic, MqttMessage message) {
+        JsonParameterMapper.Result result;
+        try {
+            result = route.mapper.map(message.getPayload(), 0, message.getPayload().length, getCurrentTime());
+        } catch (IllegalArgumentException e) {
+            log.warn("Cannot parse the JSON message received on topic {}: {}", topic, e.getMessage());
+            route.errorCount.incrementAndGet();
+            return;
+        }
+        if (result.getTypeMismatches() > 0) {
+            log.debug("{} values of the message received on topic {} do not match the parameter type",
+                    result.getTypeMismatches(), topic);
+            route.mismatchCount.addAndGet(result.getTypeMismatches());
+        }
+        var values = result.getValues();
+        if (!values.isEmpty()) {
+            route.parameterCount.addAndGet(values.size());
+            parameterSink.updateParameters(values.get(0).getGenerationTime(), route.group,
+                    route.seqCount.getAndIncrement(), values);
+        }
+    }
+
+    /**
+     * Preprocesses the packet and sends it to the TM stream
+     * 
+     * @param t0
+     *            the current {@link System#nanoTime()}
+     * @return the {@link System#nanoTime()} at the end of the processing
+     */
+    private long processPacket(TmRoute route, TmPacket tmPacket, long t0) {
+        tmPacket = route.preprocessor.process(tmPacket);
+        long t1 = System.nanoTime();
+        preprocessLatency.record(t1 - t0);
+        if (tmPacket != null) {
+            super.processPacket(tmPacket);
+            long t2 = System.nanoTime();
+            processLatency.record(t2 - t1);
+            t1 = t2;
+        }
+        return t1;
+    }
+
+    /**
+     * @return the APID from the CCSDS primary header, used to select the ingest lane
+     */
+    static int apid(TmPacket tmPacket) {
+        byte[] p = tmPacket.getPacket();
+        return p.length < 2 ? 0 : ((p[0] & 0x07) << 8) | (p[1] & 0xFF);
     }
 
     @Override
@@ -125,7 +529,33 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 
     @Override
     protected void doStop() {
-        MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+        stopIngest();
+        try {
+            if (spool != null) {
+                for (var command : spool.close()) {
+                    failedCommand(command.preparedCommand().getCommandId(), "Link stopped");
+                }
+            }
+            if (ackTracker != null) {
+                ackTracker.stop();
+                for (var commandId : ackTracker.drain()) {
+                    commandHistoryPublisher.publishAck(commandId, ACK_RADIATED_KEY, getCurrentTime(), AckStatus.NOK,
+                            "Link stopped");
+                }
+            }
+            for (var c : connections) {
+                c.release(this);
+                if (!c.isShared()) {
+                    c.close();
+                }
+            }
+            if (capture != null) {
+                capture.close();
+            }
+            notifyStopped();
+        } catch (MqttException | IOException e) {
+            notifyFailed(e);
+        }
     }
 
     @Override
@@ -133,9 +563,86 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
         return "";
     }
 
+    @Override
+    public void setupSystemParameters(SystemParametersService sysParamService) {
+        super.setupSystemParameters(sysParamService);
+        latencyStats.setupSystemParameters(sysParamService, linkName);
+    }
+
+    @Override
+    protected void collectSystemParameters(long time, List<ParameterValue> list) {
+        super.collectSystemParameters(time, list);
+        latencyStats.collectSystemParameters(time, list);
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        var converterInfo = tmConverter.getExtraInfo();
+        if (converterInfo != null) {
+            extra.putAll(converterInfo);
+        }
+        for (var route : router.routes()) {
+            route.addExtraInfo(extra);
+            if (route instanceof TmRoute && ((TmRoute) route).converter != tmConverter) {
+                var routeInfo = ((TmRoute) route).converter.getExtraInfo();
+                if (routeInfo != null) {
+                    routeInfo.forEach((k, v) -> extra.put(route.filter + " " + k, v));
+                }
+            }
+        }
+        if (!router.routes().isEmpty()) {
+            extra.put("Unmatched messages", unmatchedCount.get());
+        }
+        if (ingestQueue != null) {
+            ingestQueue.addExtraInfo(extra);
+        }
+        if (lanes != null) {
+            lanes.addExtraInfo(extra);
+            extra.put("Connected clients", connections.stream().filter(MqttConnection::isConnected).count());
+        }
+        if (compression != null) {
+            compression.addExtraInfo(extra);
+        }
+        if (capture != null) {
+            capture.addExtraInfo(extra);
+        }
+        MqttUtils.addBrokerInfo(connections, extra);
+        latencyStats.addExtraInfo(extra);
+        if (tcTopic != null) {
+            extra.put("Publish QoS", publishQos);
+            connection.addInflightInfo(extra);
+            if (spool != null) {
+                spool.addExtraInfo(extra);
+            }
+            if (ackTracker != null) {
+                ackTracker.addExtraInfo(extra);
+            }
+        }
+        return extra;
+    }
+
     @Override
     protected void doDisable() throws Exception {
-        MqttUtils.doDisable(client);
+        stopIngest();
+        if (spool != null) {
+            spool.stop();
+        }
+        if (ackTracker != null) {
+            ackTracker.stop();
+        }
+        for (var c : connections) {
+            c.release(this);
+        }
+    }
+
+    private void stopIngest() {
+        if (ingestQueue != null) {
+            ingestQueue.stop();
+        }
+        if (lanes != null) {
+            lanes.stop();
+        }
     }
 
     @Override
@@ -145,17 +652,37 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 
     private void doConnect() throws MqttException {
         subscriptionFailure = null;
-        if (tmTopic != null) {
-            MqttUtils.connectAndSubscribe(connOpts, client, this, tmTopic, log, eventProducer,
-                    e -> subscriptionFailure = e);
-        } else {
-            MqttUtils.connect(connOpts, client, log, eventProducer);
+        var routes = router.routes();
+        routes.forEach(r -> r.grantedQos = -1);
+        if (ingestQueue != null) {
+            ingestQueue.start();
+        }
+        if (lanes != null) {
+            lanes.start();
+        }
+        if (spool != null) {
+            spool.start(linkName + "-tcspool", connection::isConnected, this::publishCommand,
+                    (command, reason) -> failedCommand(command.preparedCommand().getCommandId(), reason));
+        }
+        if (ackTracker != null) {
+            ackTracker.start(linkName);
+        }
+        var topics = routes.stream().map(r -> r.filter).collect(Collectors.toList());
+        for (var c : connections) {
+            if (!routes.isEmpty()) {
+                c.subscribe(this, topics, subscribeQos, this, eventProducer, granted -> {
+                    for (int i = 0; i < granted.length; i++) {
+                        routes.get(i).grantedQos = granted[i];
+                    }
+                }, e -> subscriptionFailure = e);
+            }
+            c.acquire(this, eventProducer);
         }
     }
 
     @Override
     protected Status connectionStatus() {
-        if (client.isConnected() && subscriptionFailure == null) {
+        if (connections.stream().allMatch(MqttConnection::isConnected) && subscriptionFailure == null) {
             return Status.OK;
         } else {
             return Status.UNAVAIL;
@@ -169,7 +696,77 @@ public class MqttPacketLink extends AbstractTcTmParamLink implements IMqttMessag
 
     @Override
     public boolean isTmPacketDataLinkImplemented() {
-        return tmTopic != null;
+        return hasTmRoutes;
+    }
+
+    @Override
+    public boolean isParameterDataLinkImplemented() {
+        return hasParamRoutes;
+    }
+
+    record LaneItem(TmRoute route, TmPacket packet, long queuedNanos) {
     }
 
+    /**
+     * Command to be published, with its ack correlation key (0 if there is no ack topic)
+     */
+    record OutgoingCommand(PreparedCommand preparedCommand, long ackKey) {
+    }
+
+    enum AckCorrelation {
+        /**
+         * the replies refer to the sequence number of the Yamcs command id
+         */
+        COMMAND_ID,
+        /**
+         * the replies refer to the sequence number of the envelope the command has been sent in
+         */
+        SEQUENCE
+    }
+
+    /**
+     * Route of the replies of the ground station to the commands
+     */
+    static class AckRoute extends TopicRoute {
+        AckRoute(String filter) {
+            super(filter);
+        }
+    }
+
+    static class TmRoute extends TopicRoute {
+        final MqttToTmPacketConverter converter;
+        final PacketPreprocessor preprocessor;
+
+        TmRoute(String filter, MqttToTmPacketConverter converter, PacketPreprocessor preprocessor) {
+            super(filter);
+            this.converter = converter;
+            this.preprocessor = preprocessor;
+        }
+    }
+
+    /**
+     * Route of the JSON messages converted to parameter values
+     */
+    static class ParamRoute extends TopicRoute {
+        final JsonParameterMapper mapper;
+        final String group;
+        final AtomicInteger seqCount = new AtomicInteger();
+        final AtomicLong parameterCount = new AtomicLong();
+        final AtomicLong mismatchCount = new AtomicLong();
+        final AtomicLong errorCount = new AtomicLong();
+
+        ParamRoute(String filter, JsonParameterMapper mapper, String group) {
+            super(filter);
+            this.mapper = mapper;
+            this.group = group;
+        }
+
+        @Override
+        void addExtraInfo(Map<String, Object> extra) {
+            super.addExtraInfo(extra);
+            extra.put(filter + " parameters", parameterCount.get());
+            extra.put(filter + " type mismatches", mismatchCount.get());
+            extra.put(filter + " invalid messages", errorCount.get());
+        }
+    }
 }
@@ -0,0 +1,294 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.Processor;
+import org.yamcs.Spec;
+import org.yamcs.Spec.OptionType;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.mdb.MdbFactory;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.parameter.ParameterConsumer;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.tctm.AbstractLink;
+import org.yamcs.xtce.Parameter;
+
+/**
+ * Publishes processed parameters from a processor (by default <code>realtime</code>) to MQTT topics, for example for
+ * dashboards.
+ * <p>
+ * Each topic is configured with a list of parameters. The updates received from the processor are conflated in a
+ * {@link ConflationBuffer} per topic (only the latest value of each parameter is kept) which is flushed at a fixed
+ * interval, or earlier when the number of updated parameters reaches the flush size, as one message per topic encoded
+ * by the {@link ParameterBatchEncoder}. If the messages are retained, each message contains the latest value of all
+ * the parameters of the topic such that a new subscriber receives the complete state; otherwise it contains only the
+ * parameters updated since the previous message.
+ * <p>
+ * While the client is disconnected, the updates keep being conflated and the latest values are published after the
+ * reconnection.
+ */
+public class MqttParameterPublishLink extends AbstractLink implements ParameterConsumer {
+    MqttConnection connection;
+    String processorName;
+    int publishQos;
+    boolean retained;
+    boolean binary;
+    long flushInterval;
+    List<PublishTopic> topics;
+    // the topics and positions of each parameter
+    Map<Parameter, Slot[]> slots;
+
+    Processor processor;
+    int subscriptionId = -1;
+    volatile ScheduledThreadPoolExecutor executor;
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) throws ConfigurationException {
+        super.init(yamcsInstance, linkName, config);
+        processorName = config.getString("processor");
+        publishQos = config.getInt("publishQos");
+        retained = config.getBoolean("retained");
+        binary = "BINARY".equals(config.getString("format"));
+        flushInterval = config.getInt("flushInterval");
+        if (flushInterval < 1) {
+            throw new ConfigurationException("flushInterval has to be positive");
+        }
+        int flushSize = config.getInt("flushSize", 0);
+        if (flushSize < 0) {
+            throw new ConfigurationException("flushSize cannot be negative");
+        }
+        connection = MqttUtils.getConnection(config, log);
+
+        var mdb = MdbFactory.getInstance(yamcsInstance);
+        topics = new ArrayList<>();
+        Map<Parameter, List<Slot>> m = new HashMap<>();
+        for (var topicConfig : config.getConfigList("topics")) {
+            List<String> names = topicConfig.getList("parameters");
+            if (names.size() > 0xFFFF) {
+                throw new ConfigurationException("Too many parameters for topic " + topicConfig.getString("topic"));
+            }
+            var topic = new PublishTopic(topicConfig.getString("topic"), names.size(), flushSize);
+            for (int i = 0; i < names.size(); i++) {
+                var p = mdb.getParameter(names.get(i));
+                if (p == null) {
+                    throw new ConfigurationException("Unknown parameter " + names.get(i));
+                }
+                m.computeIfAbsent(p, k -> new ArrayList<>()).add(new Slot(topic, i));
+            }
+            topics.add(topic);
+        }
+        slots = new HashMap<>();
+        m.forEach((p, l) -> slots.put(p, l.toArray(new Slot[0])));
+    }
+
+    @Override
+    public Spec getSpec() {
+        var spec = getDefaultSpec();
+        MqttUtils.addConnectionOptionsToSpec(spec);
+        spec.addOption("processor", OptionType.STRING).withDefault("realtime");
+        spec.addOption("flushInterval", OptionType.INTEGER).withDefault(1000);
+        spec.addOption("flushSize", OptionType.INTEGER).withRequired(false);
+        spec.addOption("format", OptionType.STRING).withChoices("JSON", "BINARY").withDefault("JSON");
+        spec.addOption("retained", OptionType.BOOLEAN).withDefault(false);
+
+        var topicSpec = new Spec();
+        topicSpec.addOption("topic", OptionType.STRING).withRequired(true);
+        topicSpec.addOption("parameters", OptionType.LIST).withElementType(OptionType.STRING).withRequired(true);
+        spec.addOption("topics", OptionType.LIST).withElementType(OptionType.MAP).withSpec(topicSpec)
+                .withRequired(true);
+        return spec;
+    }
+
+    /**
+     * Called by the processor with the parameter updates
+     */
+    @Override
+    public void updateItems(int subscriptionId, List<ParameterValue> items) {
+        for (var pv : items) {
+            var l = slots.get(pv.getParameter());
+            if (l == null) {
+                continue;
+            }
+            for (var slot : l) {
+                if (slot.topic.buffer.update(slot.index, pv)) {
+                    var executor = this.executor;
+                    if (executor != null) {
+                        try {
+                            executor.execute(() -> flush(slot.topic));
+                        } catch (RejectedExecutionException e) {
+                            // the link is being disabled
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void flushAll() {
+        for (var topic : topics) {
+            flush(topic);
+        }
+    }
+
+    /**
+     * Publishes the pending values of the topic; called on the executor thread
+     */
+    void flush(PublishTopic topic) {
+        if (!connection.isConnected()) {
+            return;
+        }
+        var batch = topic.buffer.take(retained);
+        if (batch == null) {
+            return;
+        }
+        byte[] payload;
+        try {
+            payload = binary ? ParameterBatchEncoder.encodeBinary(batch) : ParameterBatchEncoder.encodeJson(batch);
+        } catch (IllegalArgumentException e) {
+            log.warn("Cannot encode the parameters of topic {}: {}", topic.name, e.getMessage());
+            return;
+        }
+        var msg = new MqttMessage(payload);
+        msg.setQos(publishQos);
+        msg.setRetained(retained);
+        try {
+            connection.publish(topic.name, msg, new PublishCallback() {
+                @Override
+                public void onSuccess() {
+                    topic.publishedCount.addAndGet(batch.size());
+                    topic.messageCount.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    log.debug("Failed to publish the parameters of topic {}: {}", topic.name, e.toString());
+                    topic.failureCount.incrementAndGet();
+                    topic.buffer.restore(batch);
+                }
+            });
+            dataOut(1, payload.length);
+        } catch (MqttException e) {
+            // for example the in-flight window is full; the values are published at the next flush
+            log.debug("Failed to publish the parameters of topic {}: {}", topic.name, e.toString());
+            topic.failureCount.incrementAndGet();
+            topic.buffer.restore(batch);
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        if (isDisabled()) {
+            notifyStarted();
+        } else {
+            try {
+                doEnable();
+                notifyStarted();
+            } catch (Exception e) {
+                notifyFailed(e);
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            doDisable();
+            if (!connection.isShared()) {
+                connection.close();
+            }
+            notifyStopped();
+        } catch (Exception e) {
+            notifyFailed(e);
+        }
+    }
+
+    @Override
+    protected void doEnable() throws Exception {
+        processor = YamcsServer.getServer().getProcessor(yamcsInstance, processorName);
+        if (processor == null) {
+            throw new ConfigurationException("No processor '" + processorName + "' in instance " + yamcsInstance);
+        }
+        executor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, linkName + "-flush"));
+        executor.scheduleAtFixedRate(this::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        connection.acquire(this, eventProducer);
+        subscriptionId = processor.getParameterRequestManager().addRequest(new ArrayList<>(slots.keySet()), this);
+    }
+
+    @Override
+    protected void doDisable() throws Exception {
+        if (subscriptionId >= 0) {
+            processor.getParameterRequestManager().removeRequest(subscriptionId);
+            subscriptionId = -1;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        connection.release(this);
+    }
+
+    @Override
+    protected Status connectionStatus() {
+        return connection.isConnected() ? Status.OK : Status.UNAVAIL;
+    }
+
+    @Override
+    public String getDetailedStatus() {
+        if (isDisabled()) {
+            return "DISABLED";
+        }
+        var broker = connection.currentBroker;
+        if (broker == null || !connection.isConnected()) {
+            return "Not connected";
+        }
+        return "OK, publishing " + topics.size() + " topic(s) to " + broker;
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        for (var topic : topics) {
+            topic.addExtraInfo(extra);
+        }
+        extra.put("Publish QoS", publishQos);
+        connection.addBrokerInfo(extra);
+        connection.addInflightInfo(extra);
+        return extra;
+    }
+
+    record Slot(PublishTopic topic, int index) {
+    }
+
+    static class PublishTopic {
+        final String name;
+        final ConflationBuffer buffer;
+        final AtomicLong publishedCount = new AtomicLong();
+        final AtomicLong messageCount = new AtomicLong();
+        final AtomicLong failureCount = new AtomicLong();
+
+        PublishTopic(String name, int size, int flushSize) {
+            this.name = name;
+            this.buffer = new ConflationBuffer(size, flushSize);
+        }
+
+        void addExtraInfo(Map<String, Object> extra) {
+            extra.put(name + " updates", buffer.getUpdateCount());
+            extra.put(name + " updates coalesced", buffer.getCoalescedCount());
+            extra.put(name + " values published", publishedCount.get());
+            extra.put(name + " messages", messageCount.get());
+            extra.put(name + " publish failures", failureCount.get());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.yamcs.mqtt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionFailureCallback;
+import org.yamcs.mqtt.MqttUtils.SubscriptionSuccessCallback;
+
+/**
+ * Connection replaying the messages from capture files written by {@link CaptureWriter} instead of receiving them from
+ * a broker.
+ * <p>
+ * The messages are passed to the links exactly as the messages received from a broker, so they go through the same
+ * converters and processing. The replay starts when the link is enabled ("connects") and runs on a dedicated thread,
+ * at the original timing (<code>replaySpeed: 1</code>), faster or slower (<code>replaySpeed: N</code>) or as fast as
+ * possible (<code>replaySpeed: 0</code>).
+ * <p>
+ * The messages can not be published; a link using this connection can only receive TM.
+ * <p>
+ * When looping, the replay stops after a pass which did not replay any message (all the files are unreadable or
+ * empty).
+ */
+public class MqttReplayConnection extends MqttConnection {
+    final List<Path> files;
+    final double speed;
+    final boolean loop;
+
+    volatile boolean connected;
+    Thread thread;
+
+    volatile long replayedCount;
+    volatile long replayedBytes;
+    volatile long replayNanos;
+    volatile boolean finished;
+
+    MqttReplayConnection(YConfiguration config, Log log) throws ConfigurationException {
+        super(null, log, false);
+        try {
+            this.files = CaptureReader.listFiles(config.getList("replayFiles"));
+        } catch (IOException e) {
+            throw new ConfigurationException("Cannot list the replay files: " + e, e);
+        }
+        if (files.isEmpty()) {
+            throw new ConfigurationException("No capture file found in " + config.getList("replayFiles"));
+        }
+        this.speed = config.getDouble("replaySpeed");
+        this.loop = config.getBoolean("replayLoop");
+        if (speed < 0) {
+            throw new ConfigurationException("replaySpeed cannot be negative");
+        }
+    }
+
+    @Override
+    public String getClientId() {
+        return "replay";
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    protected void connectClient(Runnable onSuccess, Consumer<Throwable> onFailure) {
+        log.info("Replaying {} capture files at speed {}", files.size(), speed == 0 ? "max" : speed);
+        connected = true;
+        onSuccess.run();
+        // makes the subscriptions
+        connectComplete(false, "replay");
+        thread = new Thread(this::replay);
+        thread.setName("mqtt-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    protected void subscribeClient(String[] filters, int[] qos, SubscriptionSuccessCallback onSuccess,
+            SubscriptionFailureCallback onFailure) {
+        onSuccess.subscribed(qos.clone());
+    }
+
+    @Override
+    protected void unsubscribeClient(String[] filters) {
+        // the dispatching uses the subscriptions of the users
+    }
+
+    @Override
+    protected void disconnectClient() {
+        connected = false;
+        var t = thread;
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void publish(String topic, MqttMessage message, PublishCallback callback) throws MqttException {
+        throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    }
+
+    @Override
+    public void close() {
+        disconnectClient();
+    }
+
+    @Override
+    public int getInFlightMessageCount() {
+        return 0;
+    }
+
+    @Override
+    public void addInflightInfo(Map<String, Object> extra) {
+        extra.put("Replayed messages", replayedCount);
+        extra.put("Replayed bytes", replayedBytes);
+        long nanos = replayNanos;
+        if (nanos > 0) {
+            extra.put("Replay rate (msg/s)", Math.round(replayedCount * 1e9 / nanos));
+        }
+        extra.put("Replay finished", finished);
+    }
+
+    @Override
+    public void addBrokerInfo(Map<String, Object> extra) {
+        // no broker
+    }
+
+    private void replay() {
+        long start = System.nanoTime();
+        long count = 0, bytes = 0;
+        // the unreadable files are reported only once when looping
+        var unreadable = new HashSet<Path>();
+        try {
+            long passCount;
+            do {
+                // the timing is relative to the first message of each pass
+                long firstMicros = -1;
+                long passStart = System.nanoTime();
+                passCount = count;
+                for (var file : files) {
+                    try (var reader = new CaptureReader(file)) {
+                        CaptureReader.CaptureRecord r;
+                        while ((r = reader.next()) != null) {
+                            if (firstMicros < 0) {
+                                firstMicros = r.timeMicros();
+                            }
+                            if (speed > 0) {
+                                waitUntil(passStart + (long) ((r.timeMicros() - firstMicros) * 1000 / speed));
+                            }
+                            if (Thread.interrupted()) {
+                                return;
+                            }
+                            messageArrived(r.topic(), r.message());
+                            count++;
+                            bytes += r.message().getPayload().length;
+                            replayedCount = count;
+                            replayedBytes = bytes;
+                            replayNanos = System.nanoTime() - start;
+                        }
+                    } catch (IOException e) {
+                        if (unreadable.add(file)) {
+                            log.warn("Cannot read capture file {}: {}", file, e.toString());
+                        }
+                    }
+                }
+                if (loop && count == passCount) {
+                    log.warn("No message replayed from the capture files, not looping");
+                    break;
+                }
+            } while (loop && !Thread.currentThread().isInterrupted());
+            finished = true;
+            log.info("Replay finished: {} messages in {} ms", count, (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            replayNanos = System.nanoTime() - start;
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long d;
+        while ((d = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(d);
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package org.yamcs.mqtt;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.YConfiguration;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
 import org.yamcs.tctm.ccsds.AbstractTcFrameLink;
 import org.yamcs.tctm.ccsds.TcTransferFrame;
 import org.yamcs.utils.StringConverter;
@@ -20,30 +24,52 @@ import com.google.common.util.concurrent.RateLimiter;
 /**
  * Sends TC as TC frames (CCSDS 232.0-B-3) or TC frames embedded in CLTU (CCSDS 231.0-B-3).
  * <p>
+ * The frames are taken from the multiplexer by a dispatcher thread which publishes them asynchronously, keeping at
+ * most <code>maxOutstanding</code> publishes not yet acknowledged by the broker. When no frame is available, the
+ * dispatcher parks for increasing periods (up to 10 ms), so an idle link uses almost no CPU.
+ * <p>
+ * If the <code>tcSpool</code> option is enabled, the frames sent while the MQTT client is disconnected are stored in a
+ * {@link CommandSpool} and published when the client reconnects; the bypass frames are acknowledged only when the
+ * broker accepts them.
+ * <p>
  * This class implements rate limiting. args:
  * <ul>
  * <li>frameMaxRate: maximum number of command frames to send per second.</li>
+ * <li>byteMaxRate: maximum number of bytes (after CLTU encoding) to send per second.</li>
  * </ul>
  *
  */
 public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
+    static final int SPIN_COUNT = 100;
+    static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
     RateLimiter rateLimiter;
-    MqttConnectOptions connOpts;
-    MqttAsyncClient client;
+    RateLimiter byteRateLimiter;
+    MqttConnection connection;
     String topic;
+    int publishQos;
+    int maxOutstanding;
+    Semaphore window;
     Thread thread;
 
     FrameToMqttConverter converter;
+    PayloadCompression compression;
+    CommandSpool<TcTransferFrame> spool;
 
     @Override
     public Spec getSpec() {
         var spec = getDefaultSpec();
         MqttUtils.addConnectionOptionsToSpec(spec);
         spec.addOption("frameMaxRate", OptionType.FLOAT);
+        spec.addOption("byteMaxRate", OptionType.FLOAT);
+        spec.addOption("maxOutstanding", OptionType.INTEGER);
         spec.addOption("topic", OptionType.STRING).withRequired(true);
         spec.addOption("converterClassName", OptionType.STRING)
                 .withDefault(DefaultFrameToMqttConverter.class.getName());
         spec.addOption("converterArgs", OptionType.MAP).withRequired(false);
+        MqttUtils.addCompressionOptionsToSpec(spec);
+        MqttUtils.addSpoolOptionsToSpec(spec);
 
         return spec;
     }
@@ -51,62 +77,170 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
     @Override
     public void init(String yamcsInstance, String name, YConfiguration config) {
         super.init(yamcsInstance, name, config);
-        connOpts = MqttUtils.getConnectionOptions(config);
         topic = config.getString("topic");
+        publishQos = config.getInt("publishQos");
         if (config.containsKey("frameMaxRate")) {
-            rateLimiter = RateLimiter.create(config.getDouble("frameMaxRate"), 1, TimeUnit.SECONDS);
+            rateLimiter = newRateLimiter(config.getDouble("frameMaxRate"));
+        }
+        if (config.containsKey("byteMaxRate")) {
+            byteRateLimiter = newRateLimiter(config.getDouble("byteMaxRate"));
         }
+        // by default, do not publish more than the client in-flight window accepts
+        maxOutstanding = config.getInt("maxOutstanding", config.getInt("maxInflight"));
+        if (maxOutstanding < 1) {
+            throw new ConfigurationException("maxOutstanding has to be positive");
+        }
+        window = new Semaphore(maxOutstanding);
         converter = YObjectLoader.loadObject(config.getString("converterClassName"));
         converter.init(yamcsInstance, linkName, config.getConfigOrEmpty("converterArgs"));
-        client = MqttUtils.newClient(config);
+        compression = MqttUtils.newPayloadCompression(config);
+        connection = MqttUtils.getConnection(config, log);
+        spool = MqttUtils.newCommandSpool(config, linkName, log);
     }
 
     @Override
     public void run() {
+        int idle = 0;
         while (isRunningAndEnabled()) {
-            if (rateLimiter != null) {
-                rateLimiter.acquire();
-            }
             TcTransferFrame tf = multiplexer.getFrame();
-            if (tf != null) {
-                byte[] data = tf.getData();
+            if (tf == null) {
+                idle(idle++);
+                continue;
+            }
+            idle = 0;
+            byte[] data = tf.getData();
+            if (log.isTraceEnabled()) {
+                log.trace("Outgoing frame data: {}", StringConverter.arrayToHexString(data, true));
+            }
+
+            if (cltuGenerator != null) {
+                data = encodeCltu(tf.getVirtualChannelId(), data);
+
                 if (log.isTraceEnabled()) {
-                    log.trace("Outgoing frame data: {}", StringConverter.arrayToHexString(data, true));
+                    log.trace("Outgoing CLTU: {}", StringConverter.arrayToHexString(data, true));
+                }
+            }
+            // the permits are acquired only once a frame is available
+            try {
+                acquirePermits(data.length);
+            } catch (InterruptedException e) {
+                // the link is being disabled or stopped
+                if (tf.isBypass()) {
+                    failBypassFrame(tf, "Link disabled");
                 }
+                Thread.currentThread().interrupt();
+                return;
+            }
+            publish(tf, data);
+        }
+    }
 
-                if (cltuGenerator != null) {
-                    data = encodeCltu(tf.getVirtualChannelId(), data);
+    /**
+     * A limiter with a warm-up period: the permits not used while the dispatcher waits (for frames or for the publish
+     * window) do not allow a burst above the rate afterwards.
+     */
+    static RateLimiter newRateLimiter(double rate) {
+        return RateLimiter.create(rate, 1, TimeUnit.SECONDS);
+    }
 
-                    if (log.isTraceEnabled()) {
-                        log.trace("Outgoing CLTU: {}", StringConverter.arrayToHexString(data, true));
-                    }
-                }
-                try {
-                    var msg = converter.convert(data);
-                    client.publish(topic, null, msg, new IMqttActionListener() {
-                        @Override
-                        public void onSuccess(IMqttToken asyncActionToken) {
-                            if (tf.isBypass()) {
-                                ackBypassFrame(tf);
-                            }
-                        }
-
-                        @Override
-                        public void onFailure(IMqttToken asyncActionToken, Throwable e) {
-                            log.warn("Failed to send command {}", e);
-                            failBypassFrame(tf, e.getMessage());
-                        }
-                    });
-                    dataOut(1, data.length);
-
-                } catch (MqttException e) {
-                    log.warn("Failed to send command frame {}", e);
-                    if (tf.isBypass()) {
-                        failBypassFrame(tf, e.getMessage());
-                    }
+    /**
+     * Waits until the rate limits allow sending the data and a publish window permit is available
+     */
+    void acquirePermits(int length) throws InterruptedException {
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+        if (byteRateLimiter != null && length > 0) {
+            byteRateLimiter.acquire(length);
+        }
+        window.acquire();
+    }
+
+    /**
+     * Publishes the frame; called with a window permit acquired, which is released when the publication completes.
+     * <p>
+     * If the spool is enabled and the client is not connected (or the spool still contains frames to be sent), the
+     * frame is added to the spool instead.
+     */
+    private void publish(TcTransferFrame tf, byte[] data) {
+        var msg = converter.convert(data);
+        if (compression != null) {
+            msg = compression.compress(msg);
+        }
+        msg.setQos(publishQos);
+        if (spool != null && (!connection.isConnected() || !spool.isEmpty())) {
+            window.release();
+            spoolFrame(tf, msg);
+            return;
+        }
+        try {
+            publishFrame(msg, tf);
+        } catch (MqttException e) {
+            window.release();
+            if (spool != null) {
+                spoolFrame(tf, msg);
+                return;
+            }
+            log.warn("Failed to send command frame {}", e);
+            if (tf.isBypass()) {
+                failBypassFrame(tf, e.getMessage());
+            }
+        }
+        frameCount++;
+    }
+
+    private void publishFrame(MqttMessage msg, TcTransferFrame tf) throws MqttException {
+        connection.publish(topic, msg, new PublishCallback() {
+            @Override
+            public void onSuccess() {
+                window.release();
+                if (tf.isBypass()) {
+                    ackBypassFrame(tf);
                 }
-                frameCount++;
             }
+
+            @Override
+            public void onFailure(Throwable e) {
+                window.release();
+                log.warn("Failed to send command {}", e);
+                failBypassFrame(tf, e.getMessage());
+            }
+        });
+        dataOut(1, msg.getPayload().length);
+    }
+
+    private void spoolFrame(TcTransferFrame tf, MqttMessage msg) {
+        if (!spool.offer(msg, tf) && tf.isBypass()) {
+            failBypassFrame(tf, "TC spool full");
+        }
+    }
+
+    /**
+     * Called by the spool drain thread
+     */
+    private void sendSpooled(MqttMessage msg, TcTransferFrame tf) throws MqttException, InterruptedException {
+        window.acquire();
+        try {
+            publishFrame(msg, tf);
+            frameCount++;
+        } catch (MqttException | RuntimeException e) {
+            window.release();
+            throw e;
+        }
+    }
+
+    private void spoolDropped(TcTransferFrame tf, String reason) {
+        if (tf.isBypass()) {
+            failBypassFrame(tf, reason);
+        }
+    }
+
+    private static void idle(int idle) {
+        if (idle < SPIN_COUNT) {
+            Thread.onSpinWait();
+        } else {
+            int shift = Math.min(idle - SPIN_COUNT, 8);
+            LockSupport.parkNanos(Math.min(MIN_IDLE_PARK_NANOS << shift, MAX_IDLE_PARK_NANOS));
         }
     }
 
@@ -115,15 +249,21 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
         if (thread != null) {
             thread.interrupt();
         }
-        MqttUtils.doDisable(client);
+        if (spool != null) {
+            spool.stop();
+        }
+        connection.release(this);
     }
 
     @Override
     protected void doEnable() throws Exception {
-        MqttUtils.connect(connOpts, client, log, eventProducer);
+        connection.acquire(this, eventProducer);
         thread = new Thread(this);
         thread.setName(getClass().getSimpleName() + "-" + linkName);
         thread.start();
+        if (spool != null) {
+            spool.start(linkName + "-tcspool", connection::isConnected, this::sendSpooled, this::spoolDropped);
+        }
     }
 
     @Override
@@ -143,12 +283,47 @@ public class MqttTcFrameLink extends AbstractTcFrameLink implements Runnable {
 
     @Override
     protected void doStop() {
-        MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+        if (thread != null) {
+            thread.interrupt();
+        }
+        try {
+            if (spool != null) {
+                for (var tf : spool.close()) {
+                    if (tf.isBypass()) {
+                        failBypassFrame(tf, "Link stopped");
+                    }
+                }
+            }
+            connection.release(this);
+            if (!connection.isShared()) {
+                connection.close();
+            }
+            notifyStopped();
+        } catch (MqttException | IOException e) {
+            notifyFailed(e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        extra.put("Publish QoS", publishQos);
+        extra.put("Outstanding publishes", maxOutstanding - window.availablePermits());
+        extra.put("Max outstanding", maxOutstanding);
+        connection.addBrokerInfo(extra);
+        connection.addInflightInfo(extra);
+        if (spool != null) {
+            spool.addExtraInfo(extra);
+        }
+        if (compression != null) {
+            compression.addExtraInfo(extra);
+        }
+        return extra;
     }
 
     @Override
     protected Status connectionStatus() {
-        if (client.isConnected()) {
+        if (connection.isConnected()) {
             return Status.OK;
         } else {
             return Status.UNAVAIL;
@@ -1,40 +1,94 @@
 package org.yamcs.mqtt;
 
+import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
 import org.yamcs.Spec.OptionType;
 import org.yamcs.YConfiguration;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.SystemParametersService;
 import org.yamcs.tctm.ccsds.AbstractTmFrameLink;
 import org.yamcs.utils.StringConverter;
+import org.yamcs.utils.TimeEncoding;
 import org.yamcs.utils.YObjectLoader;
 
 /**
- * Receives telemetry fames via MQTT. One MQTT message = one TM frame.
+ * Receives telemetry fames via MQTT. By default one MQTT message = one TM frame; the converter may extract multiple
+ * frames from one message.
+ * <p>
+ * The frames can be received on multiple topics (or topic filters containing wildcards), each with its own converter.
+ * <p>
+ * The messages can be received by more than one MQTT client using shared subscriptions (<code>parallelClients</code>
+ * option). In this case the messages are converted on the callback threads of the clients and the frames are passed to
+ * the frame processing through one ingest lane, as the frame processing is not thread safe.
+ * <p>
+ * Optionally, the copies of the same frame received from more than one ground station are discarded by a
+ * {@link FrameDeduplicator} and the frames received out of order are reordered by a {@link FrameReorderBuffer} before
+ * being passed to the frame processing.
+ * <p>
+ * The latency of each stage of the TM processing is recorded in {@link IngestLatencyStats}.
  */
 public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessageListener {
-    MqttConnectOptions connOpts;
-    MqttAsyncClient client;
+    List<MqttConnection> connections;
     String topic;
     volatile Throwable subscriptionFailure;
+    int subscribeQos;
     MqttToFrameConverter converter;
+    PayloadCompression compression;
+    CaptureWriter capture;
+    FrameReorderBuffer reorder;
+    ScheduledExecutorService reorderTimer;
+    // guarded by itself
+    FrameDeduplicator dedup;
+    final Map<String, AtomicLong> duplicatesByTopic = new ConcurrentHashMap<>();
+    IngestQueue<ReceivedMessage> ingestQueue;
+    IngestLanes<LaneItem> lanes;
+    TopicRouter<FrameRoute> router;
+    final AtomicLong unmatchedCount = new AtomicLong();
+
+    final IngestLatencyStats latencyStats = new IngestLatencyStats();
+    final LatencyHistogram queueLatency = latencyStats.addStage("queue", "ingest queue waiting");
+    final LatencyHistogram ertLatency = latencyStats.addStage("ert", "earth reception to processing");
+    final LatencyHistogram convertLatency = latencyStats.addStage("convert", "message conversion");
+    final LatencyHistogram frameLatency = latencyStats.addStage("frame", "frame processing");
 
     @Override
     public Spec getSpec() {
         var spec = getDefaultSpec();
-        MqttUtils.addConnectionOptionsToSpec(spec);
-        spec.addOption("topic", OptionType.STRING).withRequired(true);
+        MqttUtils.addConnectionOptionsToSpec(spec, false);
+        MqttUtils.addCaptureOptionsToSpec(spec);
+        spec.addOption("topic", OptionType.STRING).withRequired(false);
         spec.addOption("converterClassName", OptionType.STRING)
                 .withDefault(DefaultMqttToFrameConverter.class.getName());
         spec.addOption("converterArgs", OptionType.MAP).withRequired(false);
 
+        var routeSpec = new Spec();
+        routeSpec.addOption("topic", OptionType.STRING).withRequired(true);
+        routeSpec.addOption("converterClassName", OptionType.STRING).withRequired(false);
+        routeSpec.addOption("converterArgs", OptionType.MAP).withRequired(false);
+        spec.addOption("topics", OptionType.LIST).withElementType(OptionType.MAP).withSpec(routeSpec)
+                .withRequired(false);
+        spec.requireOneOf("topic", "topics");
+        MqttUtils.addIngestOptionsToSpec(spec);
+        MqttUtils.addCompressionOptionsToSpec(spec);
+        spec.addOption("reorderWindow", OptionType.INTEGER).withRequired(false);
+        spec.addOption("reorderMaxDelay", OptionType.INTEGER).withDefault(500);
+        spec.addOption("dedupWindow", OptionType.INTEGER).withRequired(false);
+        spec.addOption("dedupCapacity", OptionType.INTEGER).withDefault(65536);
+
         return spec;
     }
 
@@ -47,12 +101,59 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
     @Override
     public void init(String instance, String name, YConfiguration config) throws ConfigurationException {
         super.init(instance, name, config);
-        connOpts = MqttUtils.getConnectionOptions(config);
-        topic = config.getString("topic");
+        topic = config.getString("topic", null);
+        subscribeQos = config.getInt("subscribeQos");
         converter = YObjectLoader.loadObject(config.getString("converterClassName"));
         converter.init(yamcsInstance, linkName, config.getConfigOrEmpty("converterArgs"));
+        compression = MqttUtils.newPayloadCompression(config);
+        capture = MqttUtils.newCaptureWriter(config, linkName);
+        if (config.containsKey("dedupWindow")) {
+            int capacity = config.getInt("dedupCapacity");
+            if (capacity < 2) {
+                throw new ConfigurationException("dedupCapacity has to be at least 2");
+            }
+            dedup = new FrameDeduplicator(capacity, config.getInt("dedupWindow"));
+        }
+        if (config.containsKey("reorderWindow")) {
+            var frameType = config.getEnum("frameType", FrameReorderBuffer.FrameType.class);
+            reorder = new FrameReorderBuffer(frameType, config.getInt("reorderWindow"),
+                    TimeUnit.MILLISECONDS.toNanos(config.getInt("reorderMaxDelay")),
+                    f -> handleFrame(f.ert(), f.data(), f.offset(), f.length()));
+        }
 
-        client = MqttUtils.newClient(config);
+        router = new TopicRouter<>();
+        if (topic != null) {
+            addRoute(new FrameRoute(topic, converter));
+        }
+        if (config.containsKey("topics")) {
+            for (var routeConfig : config.getConfigList("topics")) {
+                MqttToFrameConverter routeConverter = YObjectLoader.loadObject(
+                        routeConfig.getString("converterClassName", config.getString("converterClassName")));
+                routeConverter.init(yamcsInstance, linkName, routeConfig.getConfigOrEmpty("converterArgs"));
+                addRoute(new FrameRoute(routeConfig.getString("topic"), routeConverter));
+            }
+        }
+
+        connections = MqttUtils.getConnections(config, linkName, log);
+        // the frame processing is stateful (per virtual channel), so only one worker
+        if (connections.size() > 1) {
+            lanes = MqttUtils.newIngestLanes(config, linkName, 1, item -> {
+                long t = System.nanoTime();
+                queueLatency.record(t - item.queuedNanos());
+                processFrame(item.frame(), t);
+            }, log);
+        } else {
+            ingestQueue = MqttUtils.newIngestQueue(config, linkName, 1,
+                    m -> processMessage(m.topic(), m.message(), m.arrivalNanos()), log);
+        }
+    }
+
+    private void addRoute(FrameRoute route) {
+        try {
+            router.add(route.filter, route);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
     }
 
     @Override
@@ -71,46 +172,254 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
 
     private void doConnect() throws MqttException {
         subscriptionFailure = null;
-        MqttUtils.connectAndSubscribe(connOpts, client, this, topic, log, eventProducer, e -> subscriptionFailure = e);
+        var routes = router.routes();
+        routes.forEach(r -> r.grantedQos = -1);
+        if (ingestQueue != null) {
+            ingestQueue.start();
+        }
+        if (lanes != null) {
+            lanes.start();
+        }
+        if (reorder != null) {
+            // releases the frames waiting for missing frames when no more frames are received
+            long period = Math.max(1, config.getInt("reorderMaxDelay") / 2);
+            reorderTimer = Executors.newSingleThreadScheduledExecutor(
+                    r -> new Thread(r, linkName + "-reorder"));
+            reorderTimer.scheduleAtFixedRate(() -> reorder.checkTimeouts(System.nanoTime()), period, period,
+                    TimeUnit.MILLISECONDS);
+        }
+        var topics = routes.stream().map(r -> r.filter).collect(Collectors.toList());
+        for (var c : connections) {
+            c.subscribe(this, topics, subscribeQos, this, eventProducer, granted -> {
+                for (int i = 0; i < granted.length; i++) {
+                    routes.get(i).grantedQos = granted[i];
+                }
+            }, e -> subscriptionFailure = e);
+            c.acquire(this, eventProducer);
+        }
     }
 
     @Override
     protected void doStop() {
-        MqttUtils.doStop(client, this::notifyStopped, this::notifyFailed);
+        stopIngest();
+        try {
+            for (var c : connections) {
+                c.release(this);
+                if (!c.isShared()) {
+                    c.close();
+                }
+            }
+            if (capture != null) {
+                capture.close();
+            }
+            notifyStopped();
+        } catch (MqttException | IOException e) {
+            notifyFailed(e);
+        }
     }
 
     /**
-     * Called by the MQTT client when a message is received
+     * Called by the MQTT client when a message is received on any of the subscribed topics
      */
     @Override
     public void messageArrived(String topic, MqttMessage message) {
+        if (capture != null) {
+            capture(topic, message);
+        }
+        if (ingestQueue != null) {
+            ingestQueue.offer(new ReceivedMessage(topic, message, System.nanoTime()));
+        } else {
+            processMessage(topic, message, 0);
+        }
+    }
+
+    private void capture(String topic, MqttMessage message) {
+        try {
+            capture.write(topic, message);
+        } catch (IOException e) {
+            log.warn("Failed to write the capture file, the capture is stopped: {}", e.toString());
+        }
+    }
+
+    /**
+     * Converts the message to frames and passes them to the frame handler; called either on the MQTT callback thread
+     * or on the ingest queue worker. With parallel clients, the frames are passed to the ingest lane.
+     * 
+     * @param arrivalNanos
+     *            the time ({@link System#nanoTime()}) when the message has been put in the ingest queue or 0 if the
+     *            message is processed on the MQTT callback thread
+     */
+    void processMessage(String topic, MqttMessage message, long arrivalNanos) {
+        long start = System.nanoTime();
+        if (arrivalNanos != 0) {
+            queueLatency.record(start - arrivalNanos);
+        }
+        var route = router.match(topic);
+        if (route == null) {
+            log.debug("Ignoring message on topic {} not matching any of the topics", topic);
+            unmatchedCount.incrementAndGet();
+            return;
+        }
+        route.messageIn(message.getPayload().length);
+        if (compression != null) {
+            try {
+                message = compression.decompress(message);
+            } catch (IllegalArgumentException e) {
+                log.warn("Cannot decompress message received on topic {}: {}", topic, e.getMessage());
+                return;
+            }
+        }
         try {
 
             if (log.isTraceEnabled()) {
                 log.trace("Received frame of length {}: {}", message.getPayload().length,
                         StringConverter.arrayToHexString(message.getPayload(), true));
             }
-            for (var frame : converter.convert(message)) {
-                dataIn(1, frame.data().length);
-                handleFrame(frame.ert(), frame.data(), 0, frame.data().length);
+            // the conversion time is what remains after subtracting the frame processing
+            long wallclock = 0;
+            long downstream = 0;
+            for (var frame : route.converter.convert(message)) {
+                if (wallclock == 0) {
+                    wallclock = TimeEncoding.getWallclockTime();
+                }
+                long ertDelay = IngestLatencyStats.ertDelay(frame.ert(), wallclock);
+                if (ertDelay >= 0) {
+                    ertLatency.record(ertDelay);
+                }
+                if (dedup != null && !isFirstCopy(frame, dedupTime(frame, wallclock))) {
+                    duplicatesByTopic.computeIfAbsent(topic, k -> new AtomicLong()).incrementAndGet();
+                    continue;
+                }
+                long t0 = System.nanoTime();
+                if (lanes != null) {
+                    lanes.offer(0, new LaneItem(frame, t0));
+                    downstream += System.nanoTime() - t0;
+                } else {
+                    downstream += processFrame(frame, t0) - t0;
+                }
             }
+            convertLatency.record(System.nanoTime() - start - downstream);
 
         } catch (Exception e) {
             log.error("Error processing frame", e);
         }
     }
 
+    /**
+     * @return the time used for deduplicating the frame: its ERT, even if it is ahead of the local clock, or the local
+     *         time if the frame has no ERT
+     */
+    static long dedupTime(RawFrame frame, long wallclock) {
+        var ert = frame.ert();
+        return ert == null || ert.getMillis() == TimeEncoding.INVALID_INSTANT ? wallclock : ert.getMillis();
+    }
+
+    /**
+     * @return true if the frame has not been received before (e.g. from another ground station)
+     */
+    private boolean isFirstCopy(RawFrame frame, long ertMillis) {
+        synchronized (dedup) {
+            return dedup.add(frame.data(), frame.offset(), frame.length(), ertMillis);
+        }
+    }
+
+    /**
+     * Passes the frame to the frame handler
+     * 
+     * @param t0
+     *            the current {@link System#nanoTime()}
+     * @return the {@link System#nanoTime()} at the end of the processing
+     */
+    private long processFrame(RawFrame frame, long t0) {
+        dataIn(1, frame.length());
+        if (reorder != null) {
+            reorder.offer(frame, t0);
+        } else {
+            handleFrame(frame.ert(), frame.data(), frame.offset(), frame.length());
+        }
+        long t1 = System.nanoTime();
+        frameLatency.record(t1 - t0);
+        return t1;
+    }
+
     @Override
     public Map<String, Object> getExtraInfo() {
         var extra = new LinkedHashMap<String, Object>();
         extra.put("Valid frames", validFrameCount.get());
         extra.put("Invalid frames", invalidFrameCount.get());
+        var converterInfo = converter.getExtraInfo();
+        if (converterInfo != null) {
+            extra.putAll(converterInfo);
+        }
+        for (var route : router.routes()) {
+            route.addExtraInfo(extra);
+            if (route.converter != converter) {
+                var routeInfo = route.converter.getExtraInfo();
+                if (routeInfo != null) {
+                    routeInfo.forEach((k, v) -> extra.put(route.filter + " " + k, v));
+                }
+            }
+        }
+        extra.put("Unmatched messages", unmatchedCount.get());
+        if (ingestQueue != null) {
+            ingestQueue.addExtraInfo(extra);
+        }
+        if (lanes != null) {
+            lanes.addExtraInfo(extra);
+            extra.put("Connected clients", connections.stream().filter(MqttConnection::isConnected).count());
+        }
+        if (compression != null) {
+            compression.addExtraInfo(extra);
+        }
+        if (capture != null) {
+            capture.addExtraInfo(extra);
+        }
+        if (dedup != null) {
+            synchronized (dedup) {
+                extra.put("Duplicate frames", dedup.getDuplicateCount());
+            }
+            duplicatesByTopic.forEach((t, n) -> extra.put(t + " duplicate frames", n.get()));
+        }
+        if (reorder != null) {
+            reorder.addExtraInfo(extra);
+        }
+        MqttUtils.addBrokerInfo(connections, extra);
+        latencyStats.addExtraInfo(extra);
         return extra;
     }
 
+    @Override
+    public void setupSystemParameters(SystemParametersService sysParamService) {
+        super.setupSystemParameters(sysParamService);
+        latencyStats.setupSystemParameters(sysParamService, linkName);
+    }
+
+    @Override
+    protected void collectSystemParameters(long time, List<ParameterValue> list) {
+        super.collectSystemParameters(time, list);
+        latencyStats.collectSystemParameters(time, list);
+    }
+
     @Override
     protected void doDisable() throws Exception {
-        MqttUtils.doDisable(client);
+        stopIngest();
+        for (var c : connections) {
+            c.release(this);
+        }
+    }
+
+    private void stopIngest() {
+        if (ingestQueue != null) {
+            ingestQueue.stop();
+        }
+        if (lanes != null) {
+            lanes.stop();
+        }
+        if (reorderTimer != null) {
+            reorderTimer.shutdownNow();
+            reorderTimer = null;
+            reorder.flush();
+        }
     }
 
     @Override
@@ -120,10 +429,22 @@ public class MqttTmFrameLink extends AbstractTmFrameLink implements IMqttMessage
 
     @Override
     protected Status connectionStatus() {
-        if (client.isConnected() && subscriptionFailure == null) {
+        if (connections.stream().allMatch(MqttConnection::isConnected) && subscriptionFailure == null) {
             return Status.OK;
         } else {
             return Status.UNAVAIL;
         }
     }
+
+    record LaneItem(RawFrame frame, long queuedNanos) {
+    }
+
+    static class FrameRoute extends TopicRoute {
+        final MqttToFrameConverter converter;
+
+        FrameRoute(String filter, MqttToFrameConverter converter) {
+            super(filter);
+            this.converter = converter;
+        }
+    }
 }
@@ -1,8 +1,9 @@
 package org.yamcs.mqtt;
 
+import java.util.Map;
+
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.YConfiguration;
-import org.yamcs.time.Instant;
 
 /**
  * Instances of this interfaces are run on the incoming MQTT messages to transform them to CCSDS TM frames
@@ -13,9 +14,25 @@ public interface MqttToFrameConverter {
      */
     void init(String yamcsInstance, String linkName, YConfiguration config);
 
+    /**
+     * Converts an incoming MQTT message to an iterable collection of frames.
+     * <p>
+     * The frames may refer to regions of the same array (for example the message payload) such that no copy is
+     * required when a message contains multiple frames or additional headers.
+     * 
+     * @param message
+     *            the MQTT message to be converted; if the link uses MQTT 5, it is an {@link Mqtt5Message} giving
+     *            access to the user properties
+     * @return an {@code Iterable} of frames, possibly empty
+     */
     Iterable<RawFrame> convert(MqttMessage message);
-}
 
-
-record RawFrame(Instant ert, byte[] data) {
-}
\ No newline at end of file
+    /**
+     * Statistics of the converter which are added to the link extra information.
+     * 
+     * @return a map of statistics or null if the converter does not keep any
+     */
+    default Map<String, Object> getExtraInfo() {
+        return null;
+    }
+}
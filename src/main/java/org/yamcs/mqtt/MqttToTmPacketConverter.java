@@ -1,5 +1,7 @@
 package org.yamcs.mqtt;
 
+import java.util.Map;
+
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.yamcs.TmPacket;
 import org.yamcs.YConfiguration;
@@ -22,8 +24,18 @@ public interface MqttToTmPacketConverter {
      * The returned {@code Iterable} may yield no elements if the message cannot be converted.
      * 
      * @param message
-     *            the MQTT message to be converted
+     *            the MQTT message to be converted; if the link uses MQTT 5, it is an {@link Mqtt5Message} giving
+     *            access to the user properties
      * @return an {@code Iterable} of TmPacket objects, possibly empty
      */
     Iterable<TmPacket> convert(MqttMessage message);
+
+    /**
+     * Statistics of the converter which are added to the link extra information.
+     * 
+     * @return a map of statistics or null if the converter does not keep any
+     */
+    default Map<String, Object> getExtraInfo() {
+        return null;
+    }
 }
@@ -1,32 +1,50 @@
 package org.yamcs.mqtt;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.function.Consumer;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import org.eclipse.paho.client.mqttv3.IMqttActionListener;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModuleService;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.yamcs.ConfigurationException;
 import org.yamcs.Spec;
 import org.yamcs.YConfiguration;
-import org.yamcs.events.EventProducer;
+import org.yamcs.YamcsServer;
 import org.yamcs.logging.Log;
+import org.yamcs.mqtt.IngestQueue.OverflowPolicy;
 import org.yamcs.Spec.OptionType;
+import org.yamcs.utils.YObjectLoader;
 
 /**
  * A set of utilities used by the MQTT packet and frame links to avoid code duplication
  */
 public class MqttUtils {
-    
+    static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
     static {
         try {
             // Register SSL network module for mqtts:// and ssl:// schemes
@@ -36,20 +54,100 @@ public class MqttUtils {
         }
     }
 
+    /**
+     * @return the clientId from the config object or a generated one if not configured
+     */
+    static String getClientId(YConfiguration config) {
+        return config.getString("clientId", MqttClient.generateClientId());
+    }
+
     /**
      * create a new MQTT async client with the clientId and initial broker loaded from the config object
      */
-    static MqttAsyncClient newClient(YConfiguration config) throws ConfigurationException {
+    static MqttAsyncClient newClient(YConfiguration config, String clientId) throws ConfigurationException {
         try {
             List<String> brokers = config.getList("brokers");
-            String clientId = config.getString("clientId", MqttClient.generateClientId());
-
-            return new MqttAsyncClient(brokers.get(0), clientId);
+            return new MqttAsyncClient(brokers.get(0), clientId, newPersistence(config));
         } catch (MqttException e) {
             throw new ConfigurationException(e);
         }
     }
 
+    /**
+     * create the persistence used by the MQTT client for storing the in-flight QoS 1 and 2 messages
+     */
+    static MqttClientPersistence newPersistence(YConfiguration config) {
+        String type = config.getString("persistence");
+        String dir = config.getString("persistenceDirectory", System.getProperty("user.dir"));
+        switch (type) {
+        case "memory":
+            return new MemoryPersistence();
+        case "file":
+            return new MqttDefaultFilePersistence(dir);
+        case "journal":
+            return new MappedJournalPersistence(Path.of(dir), config.getInt("journalSize"));
+        default:
+            throw new ConfigurationException("Unknown persistence '" + type + "'");
+        }
+    }
+
+    static org.eclipse.paho.mqttv5.client.MqttAsyncClient newClient5(YConfiguration config, String clientId)
+            throws ConfigurationException {
+        try {
+            List<String> brokers = config.getList("brokers");
+            return new org.eclipse.paho.mqttv5.client.MqttAsyncClient(brokers.get(0), clientId,
+                    newPersistence5(config));
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            throw new ConfigurationException(e);
+        }
+    }
+
+    /**
+     * create the persistence used by the MQTT 5 client; the journal persistence is only available for MQTT 3
+     */
+    static org.eclipse.paho.mqttv5.client.MqttClientPersistence newPersistence5(YConfiguration config) {
+        String type = config.getString("persistence");
+        String dir = config.getString("persistenceDirectory", System.getProperty("user.dir"));
+        switch (type) {
+        case "memory":
+            return new org.eclipse.paho.mqttv5.client.persist.MemoryPersistence();
+        case "file":
+            return new org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence(dir);
+        default:
+            throw new ConfigurationException("Persistence '" + type + "' not supported with MQTT 5");
+        }
+    }
+
+    static MqttConnectionOptions getConnectionOptions5(YConfiguration config) {
+        var connOpts = new MqttConnectionOptions();
+        connOpts.setAutomaticReconnect(config.getBoolean("autoReconnect"));
+        List<String> brokers = config.getList("brokers");
+        connOpts.setServerURIs(brokers.toArray(new String[0]));
+        if (config.containsKey("username")) {
+            connOpts.setUserName(config.getString("username"));
+            connOpts.setPassword(config.getString("password").getBytes(StandardCharsets.UTF_8));
+        }
+        connOpts.setConnectionTimeout(config.getInt("connectionTimeoutSecs"));
+        connOpts.setKeepAliveInterval(config.getInt("keepAliveSecs"));
+        connOpts.setCleanStart(true);
+        if (config.containsKey("receiveMaximum")) {
+            connOpts.setReceiveMaximum(config.getInt("receiveMaximum"));
+        }
+        connOpts.setTopicAliasMaximum(config.getInt("topicAliasMaximum"));
+
+        for (String broker : brokers) {
+            if (broker.startsWith("ssl://") || broker.startsWith("mqtts://")) {
+                try {
+                    connOpts.setSocketFactory(SSLContext.getDefault().getSocketFactory());
+                    break;
+                } catch (Exception e) {
+                    // Continue without SSL
+                }
+            }
+        }
+        return connOpts;
+    }
+
     static MqttConnectOptions getConnectionOptions(YConfiguration config) {
         MqttConnectOptions connOpts = new MqttConnectOptions();
 
@@ -62,6 +160,7 @@ public class MqttUtils {
         }
         connOpts.setConnectionTimeout(config.getInt("connectionTimeoutSecs"));
         connOpts.setKeepAliveInterval(config.getInt("keepAliveSecs"));
+        connOpts.setMaxInflight(config.getInt("maxInflight"));
         connOpts.setCleanSession(true);
 
         // Enable SSL support for mqtts:// or ssl:// URLs
@@ -90,135 +189,341 @@ public class MqttUtils {
     }
 
     static void addConnectionOptionsToSpec(Spec spec) {
-        spec.addOption("brokers", OptionType.LIST).withElementType(OptionType.STRING).withRequired(true);
+        addConnectionOptionsToSpec(spec, true);
+    }
+
+    /**
+     * @param brokersRequired
+     *            false for the TM links which can replay capture files instead of connecting to brokers
+     */
+    static void addConnectionOptionsToSpec(Spec spec, boolean brokersRequired) {
+        spec.addOption("brokers", OptionType.LIST).withElementType(OptionType.STRING).withRequired(brokersRequired);
         spec.addOption("username", OptionType.STRING).withRequired(false);
         spec.addOption("password", OptionType.STRING).withRequired(false);
         spec.addOption("clientId", OptionType.STRING).withRequired(false);
+        spec.addOption("protocolVersion", OptionType.INTEGER).withChoices(3, 5).withDefault(3);
+        spec.addOption("receiveMaximum", OptionType.INTEGER).withRequired(false);
+        spec.addOption("topicAliasMaximum", OptionType.INTEGER).withDefault(0);
 
         spec.addOption("connectionTimeoutSecs", OptionType.INTEGER).withDefault(5);
         spec.addOption("autoReconnect", OptionType.BOOLEAN).withDefault(true);
         spec.addOption("keepAliveSecs", OptionType.INTEGER).withDefault(60);
+        spec.addOption("persistence", OptionType.STRING).withChoices("memory", "file", "journal")
+                .withDefault("file");
+        spec.addOption("persistenceDirectory", OptionType.STRING).withRequired(false);
+        spec.addOption("journalSize", OptionType.INTEGER).withDefault(1024 * 1024);
+        spec.addOption("subscribeQos", OptionType.INTEGER).withChoices(0, 1, 2).withDefault(2);
+        spec.addOption("publishQos", OptionType.INTEGER).withChoices(0, 1, 2).withDefault(1);
+        spec.addOption("maxInflight", OptionType.INTEGER).withDefault(10);
+        spec.addOption("sharedConnection", OptionType.BOOLEAN).withDefault(false);
+        spec.addOption("brokerSelection", OptionType.BOOLEAN).withDefault(false);
+        spec.addOption("brokerProbeInterval", OptionType.INTEGER).withDefault(10000);
+        spec.addOption("brokerProbeTimeout", OptionType.INTEGER).withDefault(1000);
         spec.requireTogether("username", "password");
     }
 
     /**
-     * Connect to MQTT
+     * Creates the selector ordering the brokers by round-trip time if the <code>brokerSelection</code> option is
+     * enabled and more than one broker is configured
+     *
+     * @param setServerURIs
+     *            updates the server URIs of the client connection options
+     * @return null if the broker selection is not used
      */
-    static void connect(MqttConnectOptions connOpts, MqttAsyncClient client, Log log, EventProducer eventProducer)
-            throws MqttException {
-        log.info("Connecting to MQTT with clientId {} and options: {}", client.getClientId(), connOpts);
+    static BrokerSelector newBrokerSelector(YConfiguration config, Consumer<String[]> setServerURIs, Log log)
+            throws ConfigurationException {
+        List<String> brokers = config.getList("brokers");
+        if (!config.getBoolean("brokerSelection") || brokers.size() < 2) {
+            return null;
+        }
+        try {
+            return new BrokerSelector(brokers, config.getLong("brokerProbeInterval"),
+                    config.getLong("brokerProbeTimeout"), setServerURIs, log);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+    }
 
-        client.connect(connOpts, null, new IMqttActionListener() {
-            @Override
-            public void onSuccess(IMqttToken token) {
-                log.info("Succesfully connected to MQTT");
+    /**
+     * Adds the options of the ingest queue used by the TM links to decouple the processing from the MQTT callback
+     * thread.
+     */
+    static void addIngestOptionsToSpec(Spec spec) {
+        spec.addOption("ingestQueueCapacity", OptionType.INTEGER).withRequired(false);
+        spec.addOption("ingestOverflowPolicy", OptionType.STRING).withChoices(OverflowPolicy.class)
+                .withDefault(OverflowPolicy.BLOCK.name());
+        spec.addOption("parallelClients", OptionType.INTEGER).withDefault(1);
+        spec.addOption("shareGroup", OptionType.STRING).withRequired(false);
+    }
 
-            }
+    /**
+     * Creates the ingest queue if the ingestQueueCapacity option is configured.
+     * 
+     * @return the new ingest queue or null if the messages are to be processed on the MQTT callback thread.
+     */
+    static <T> IngestQueue<T> newIngestQueue(YConfiguration config, String linkName, int numThreads,
+            Consumer<T> handler, Log log) {
+        if (!config.containsKey("ingestQueueCapacity")) {
+            return null;
+        }
+        int capacity = config.getInt("ingestQueueCapacity");
+        if (capacity < 1) {
+            throw new ConfigurationException("ingestQueueCapacity has to be positive");
+        }
+        var policy = config.getEnum("ingestOverflowPolicy", OverflowPolicy.class);
+        return new IngestQueue<>(linkName, capacity, policy, numThreads, handler, log);
+    }
 
-            @Override
-            public void onFailure(IMqttToken t, Throwable e) {
-                String msg = "Failed to connect to MQTT with clientId " + client.getClientId() + ": " + e.getMessage();
-                eventProducer.sendWarning(msg);
-                log.warn("{}", msg);
-            }
-        });
+    /**
+     * Creates the lanes merging the data converted on the callback threads of the parallel clients. The capacity of
+     * each lane is given by the ingestQueueCapacity option.
+     */
+    static <T> IngestLanes<T> newIngestLanes(YConfiguration config, String linkName, int numLanes,
+            Consumer<T> handler, Log log) {
+        int capacity = config.getInt("ingestQueueCapacity", DEFAULT_LANE_CAPACITY);
+        if (capacity < 1) {
+            throw new ConfigurationException("ingestQueueCapacity has to be positive");
+        }
+        var policy = config.getEnum("ingestOverflowPolicy", OverflowPolicy.class);
+        return new IngestLanes<>(linkName, numLanes, capacity, policy, handler, log);
     }
 
     /**
-     * Connect MQTT and subscribe to a given topic
+     * Returns the connections used by a TM link to receive its messages: one connection (see
+     * {@link #getConnection(YConfiguration, Log)}) or, if the parallelClients option is greater than 1, that number of
+     * private connections with client ids derived from the configured one, subscribing with MQTT shared subscriptions.
+     * <p>
+     * The first connection is used for publishing.
      */
-    static void connectAndSubscribe(MqttConnectOptions connOpts, MqttAsyncClient client,
-            IMqttMessageListener messageListener, String topic, Log log, EventProducer eventProducer,
-            SubscriptionFailureCallback subscriptionFailureCallback)
-            throws MqttException {
-        log.info("Connecting to MQTT with clientId {} and options: {}", client.getClientId(), connOpts);
+    static List<MqttConnection> getConnections(YConfiguration config, String linkName, Log log)
+            throws ConfigurationException {
+        if (config.containsKey("replayFiles")) {
+            return List.of(new MqttReplayConnection(config, log));
+        }
+        int n = config.getInt("parallelClients");
+        if (n < 1) {
+            throw new ConfigurationException("parallelClients has to be positive");
+        }
+        if (n == 1) {
+            return List.of(getConnection(config, log));
+        }
+        if (config.getBoolean("sharedConnection")) {
+            throw new ConfigurationException("parallelClients cannot be used together with sharedConnection");
+        }
+        String shareGroup = config.getString("shareGroup", linkName);
+        if (!isValidShareGroup(shareGroup)) {
+            throw new ConfigurationException("Invalid shareGroup '" + shareGroup
+                    + "': it has to be non-empty and cannot contain '/', '+' or '#'");
+        }
+        String clientId = getClientId(config);
+        List<MqttConnection> l = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            l.add(MqttConnection.create(config, clientId + "-" + i, shareGroup, log, false));
+        }
+        return l;
+    }
 
-        client.connect(connOpts, null, new IMqttActionListener() {
-            @Override
-            public void onSuccess(IMqttToken token) {
-                log.info("Succesfully connected to MQTT");
-                try {
-                    client.subscribe(topic, 2, messageListener).setActionCallback(new IMqttActionListener() {
-                        @Override
-                        public void onSuccess(IMqttToken t) {
-                            int[] granted = t.getGrantedQos();
-                            if (granted.length != 1 || granted[0] > 2) {
-                                String msg = "Subscription to " + topic + " failed; granted QoS: "
-                                        + Arrays.asList(granted);
-                                eventProducer.sendWarning(msg);
-                                subscriptionFailureCallback.setSubscriptionFailure(new Exception(msg));
-                            } else {
-                                log.info("Succesfully subscribed to {}", topic);
-                            }
-                        }
-
-                        @Override
-                        public void onFailure(IMqttToken t, Throwable e) {
-                            String msg = "Subscription to " + topic + " failed: " + e.getMessage();
-                            eventProducer.sendWarning(msg);
-                            log.warn("{}", msg);
-                            subscriptionFailureCallback.setSubscriptionFailure(e);
-                        }
-
-                    });
-                } catch (MqttException e) {
-                    subscriptionFailureCallback.setSubscriptionFailure(e);
-                }
-            }
+    /**
+     * Adds the broker information of the connections of a link to its extra info; with more than one connection
+     * (<code>parallelClients</code>), the entries of each connection are prefixed by its client id.
+     */
+    static void addBrokerInfo(List<MqttConnection> connections, Map<String, Object> extra) {
+        if (connections.size() == 1) {
+            connections.get(0).addBrokerInfo(extra);
+            return;
+        }
+        for (var c : connections) {
+            var info = new LinkedHashMap<String, Object>();
+            c.addBrokerInfo(info);
+            info.forEach((k, v) -> extra.put(c.getClientId() + " " + k, v));
+        }
+    }
 
-            @Override
-            public void onFailure(IMqttToken t, Throwable e) {
-                String msg = "Failed to connect to MQTT with clientId " + client.getClientId() + ": " + e.getMessage();
-                eventProducer.sendWarning(msg);
-                log.warn("{}", msg);
-            }
-        });
+    static boolean isValidShareGroup(String group) {
+        return !group.isEmpty() && group.indexOf('/') < 0 && group.indexOf('+') < 0 && group.indexOf('#') < 0;
+    }
+
+    /**
+     * Adds the options of the TM links for recording the received messages into capture files and for replaying
+     * capture files instead of connecting to brokers. One of brokers and replayFiles has to be configured.
+     */
+    static void addCaptureOptionsToSpec(Spec spec) {
+        spec.addOption("captureDirectory", OptionType.STRING).withRequired(false);
+        spec.addOption("captureSegmentSize", OptionType.INTEGER).withDefault(64 * 1024 * 1024);
+        spec.addOption("replayFiles", OptionType.LIST).withElementType(OptionType.STRING).withRequired(false);
+        spec.addOption("replaySpeed", OptionType.FLOAT).withDefault(1.0);
+        spec.addOption("replayLoop", OptionType.BOOLEAN).withDefault(false);
+        spec.requireOneOf("brokers", "replayFiles");
+        spec.mutuallyExclusive("brokers", "replayFiles");
     }
 
-    public static void doDisable(MqttAsyncClient client) throws MqttException {
-        if (client.isConnected()) {
-            client.disconnect();
+    /**
+     * Creates the capture writer if the captureDirectory option is configured
+     * 
+     * @return the capture writer or null if the received messages are not recorded
+     */
+    static CaptureWriter newCaptureWriter(YConfiguration config, String linkName) {
+        if (!config.containsKey("captureDirectory")) {
+            return null;
+        }
+        int size = config.getInt("captureSegmentSize");
+        if (size < 1) {
+            throw new ConfigurationException("captureSegmentSize has to be positive");
+        }
+        try {
+            return new CaptureWriter(Path.of(config.getString("captureDirectory")), linkName, size);
+        } catch (IOException e) {
+            throw new ConfigurationException("Cannot create the capture file: " + e, e);
         }
     }
 
-    public static void doStop(MqttAsyncClient client, NotifyStoppedCallback stopCb, NotifyFailedCallback failCb) {
+    /**
+     * Adds the options of the payload compression stage
+     */
+    static void addCompressionOptionsToSpec(Spec spec) {
+        spec.addOption("compression", OptionType.STRING).withDefault("none");
+        spec.addOption("compressionArgs", OptionType.MAP).withRequired(false);
+        spec.addOption("maxDecompressedSize", OptionType.INTEGER).withDefault(4 * 1024 * 1024);
+    }
+
+    /**
+     * Creates the compression stage from the compression option which can be <code>none</code>, <code>deflate</code>
+     * or the name of a class implementing {@link PayloadCodec}.
+     * 
+     * @return the compression stage or null if the payloads are not compressed
+     */
+    static PayloadCompression newPayloadCompression(YConfiguration config) {
+        String name = config.getString("compression");
+        PayloadCodec codec;
+        if ("none".equals(name)) {
+            return null;
+        } else if ("deflate".equals(name)) {
+            codec = new DeflateCodec();
+        } else {
+            codec = YObjectLoader.loadObject(name);
+        }
+        codec.init(config.getConfigOrEmpty("compressionArgs"));
+        int maxSize = config.getInt("maxDecompressedSize");
+        if (maxSize < 1) {
+            throw new ConfigurationException("maxDecompressedSize has to be positive");
+        }
+        return new PayloadCompression(codec, maxSize);
+    }
+
+    /**
+     * Adds the options of the store-and-forward spool used by the TC links while the client is disconnected
+     */
+    static void addSpoolOptionsToSpec(Spec spec) {
+        spec.addOption("tcSpool", OptionType.BOOLEAN).withDefault(false);
+        spec.addOption("tcSpoolDirectory", OptionType.STRING).withRequired(false);
+        spec.addOption("tcSpoolSize", OptionType.INTEGER).withDefault(1024 * 1024);
+        spec.addOption("tcSpoolMaxAge", OptionType.FLOAT).withDefault(600.0);
+        spec.addOption("tcSpoolDrainRate", OptionType.FLOAT).withDefault(10.0);
+    }
+
+    /**
+     * Creates and opens the TC spool if the tcSpool option is enabled
+     * 
+     * @return the spool or null if the spool is not enabled
+     */
+    static <T> CommandSpool<T> newCommandSpool(YConfiguration config, String linkName, Log log) {
+        if (!config.getBoolean("tcSpool")) {
+            return null;
+        }
+        String dir = config.getString("tcSpoolDirectory",
+                config.getString("persistenceDirectory", System.getProperty("user.dir")));
+        int size = config.getInt("tcSpoolSize");
+        if (size < 1) {
+            throw new ConfigurationException("tcSpoolSize has to be positive");
+        }
+        long maxAge = (long) (1000 * config.getDouble("tcSpoolMaxAge"));
+        var spool = new CommandSpool<T>(Path.of(dir, linkName + ".tcspool"), size, maxAge,
+                config.getDouble("tcSpoolDrainRate"), log);
         try {
-            if (client.isConnected()) {
-                client.disconnect(null,
-                        new IMqttActionListener() {
-                            @Override
-                            public void onSuccess(IMqttToken t) {
-                                try {
-                                    client.close();
-                                    stopCb.notifyStopped();
-                                } catch (MqttException e) {
-                                    failCb.notifyFailed(e);
-                                }
-                            }
-
-                            @Override
-                            public void onFailure(IMqttToken t, Throwable e) {
-                                failCb.notifyFailed(e);
-                            }
-                        });
-            } else {
-                client.disconnectForcibly(0, 0, false);
-                client.close();
-                stopCb.notifyStopped();
+            spool.open();
+        } catch (IOException e) {
+            throw new ConfigurationException("Cannot create the TC spool: " + e, e);
+        }
+        return spool;
+    }
+
+    /**
+     * @return a new message with the given payload and the same QoS, retained flag and MQTT 5 properties as the
+     *         original message
+     */
+    static MqttMessage copyWithPayload(MqttMessage message, byte[] payload) {
+        MqttMessage m;
+        if (message instanceof Mqtt5Message) {
+            var m5 = (Mqtt5Message) message;
+            var c = new Mqtt5Message(payload);
+            c.setUserProperties(m5.getUserProperties());
+            c.setContentType(m5.getContentType());
+            m = c;
+        } else {
+            m = new MqttMessage(payload);
+        }
+        m.setQos(message.getQos());
+        m.setRetained(message.isRetained());
+        return m;
+    }
+
+    /**
+     * Returns the connection to be used by a link: either a connection shared with other links, obtained from the
+     * {@link MqttConnectionService}, or a new private connection.
+     */
+    static MqttConnection getConnection(YConfiguration config, Log log) throws ConfigurationException {
+        if (config.getBoolean("sharedConnection")) {
+            var service = YamcsServer.getServer().getGlobalService(MqttConnectionService.class);
+            if (service == null) {
+                throw new ConfigurationException("sharedConnection requires the global service "
+                        + MqttConnectionService.class.getName());
             }
-        } catch (MqttException e) {
-            failCb.notifyFailed(e);
+            return service.getConnection(config);
+        } else {
+            return MqttConnection.create(config, log, false);
         }
     }
 
-    @FunctionalInterface
-    public interface NotifyStoppedCallback {
-        void notifyStopped();
+    /**
+     * Releases the mapping without waiting for the buffer to be garbage collected; the buffer must not be used
+     * afterwards
+     */
+    static void unmap(MappedByteBuffer b) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) b);
+        } catch (Throwable e) {
+            // left to the garbage collector
+        }
+    }
+
+    private static MethodHandle invokeCleaner() {
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            var f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(c, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(f.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Notified when a published message has been acknowledged according to its QoS or the publication failed
+     */
+    public interface PublishCallback {
+        void onSuccess();
+
+        void onFailure(Throwable e);
     }
 
     @FunctionalInterface
-    public interface NotifyFailedCallback {
-        void notifyFailed(Throwable e);
+    public interface SubscriptionSuccessCallback {
+        void subscribed(int[] grantedQos);
     }
 
     @FunctionalInterface
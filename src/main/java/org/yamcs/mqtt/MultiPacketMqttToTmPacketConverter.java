@@ -0,0 +1,113 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.yamcs.ConfigurationException;
+import org.yamcs.TmPacket;
+import org.yamcs.YConfiguration;
+import org.yamcs.YamcsServer;
+import org.yamcs.logging.Log;
+import org.yamcs.time.TimeService;
+
+/**
+ * MQTT packet converter for messages containing multiple concatenated packets.
+ * <p>
+ * The payload is walked using the length field of each packet; by default the CCSDS primary header is assumed: the
+ * length field is the 16 bits unsigned integer at offset 4 and the packet length is the value of the field + 7.
+ * <p>
+ * args:
+ * <ul>
+ * <li>lengthFieldOffset: offset in bytes of the length field from the beginning of the packet. Default: 4</li>
+ * <li>lengthFieldLength: size in bytes of the length field (1 to 4, big endian). Default: 2</li>
+ * <li>lengthAdjustment: value added to the length field to obtain the total packet length. Default: 7</li>
+ * </ul>
+ * If the payload ends with an incomplete packet, the remaining data is discarded and counted as truncated.
+ */
+public class MultiPacketMqttToTmPacketConverter implements MqttToTmPacketConverter {
+    TimeService timeService;
+    Log log;
+    int lengthFieldOffset;
+    int lengthFieldLength;
+    int lengthAdjustment;
+
+    final AtomicLong packetCount = new AtomicLong();
+    final AtomicLong truncatedCount = new AtomicLong();
+    final AtomicLong truncatedBytes = new AtomicLong();
+
+    @Override
+    public void init(String yamcsInstance, String linkName, YConfiguration config) {
+        this.timeService = YamcsServer.getTimeService(yamcsInstance);
+        this.log = new Log(this.getClass(), yamcsInstance);
+        lengthFieldOffset = config.getInt("lengthFieldOffset", 4);
+        lengthFieldLength = config.getInt("lengthFieldLength", 2);
+        lengthAdjustment = config.getInt("lengthAdjustment", 7);
+        if (lengthFieldOffset < 0) {
+            throw new ConfigurationException("lengthFieldOffset cannot be negative");
+        }
+        if (lengthFieldLength < 1 || lengthFieldLength > 4) {
+            throw new ConfigurationException("lengthFieldLength has to be between 1 and 4");
+        }
+    }
+
+    @Override
+    public List<TmPacket> convert(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        long rectime = timeService.getMissionTime();
+        List<TmPacket> result = new ArrayList<>();
+        int headerLength = lengthFieldOffset + lengthFieldLength;
+        int offset = 0;
+
+        while (offset < payload.length) {
+            int remaining = payload.length - offset;
+            if (remaining < headerLength) {
+                truncated(remaining);
+                break;
+            }
+            long pktLength = readLength(payload, offset + lengthFieldOffset) + lengthAdjustment;
+            if (pktLength < headerLength) {
+                log.warn("Invalid packet length {} at offset {}; discarding the rest of the message", pktLength,
+                        offset);
+                truncated(remaining);
+                break;
+            }
+            if (pktLength > remaining) {
+                truncated(remaining);
+                break;
+            }
+            int end = offset + (int) pktLength;
+            result.add(new TmPacket(rectime, Arrays.copyOfRange(payload, offset, end)));
+            offset = end;
+        }
+        packetCount.addAndGet(result.size());
+        return result;
+    }
+
+    private long readLength(byte[] data, int offset) {
+        long v = 0;
+        for (int i = 0; i < lengthFieldLength; i++) {
+            v = (v << 8) | (data[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private void truncated(int n) {
+        truncatedCount.incrementAndGet();
+        truncatedBytes.addAndGet(n);
+        log.debug("Discarding {} bytes of truncated data at the end of the message", n);
+    }
+
+    @Override
+    public Map<String, Object> getExtraInfo() {
+        var extra = new LinkedHashMap<String, Object>();
+        extra.put("Split packets", packetCount.get());
+        extra.put("Truncated messages", truncatedCount.get());
+        extra.put("Truncated bytes", truncatedBytes.get());
+        return extra;
+    }
+}
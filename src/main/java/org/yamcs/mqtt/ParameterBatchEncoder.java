@@ -0,0 +1,224 @@
+package org.yamcs.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import org.yamcs.parameter.Value;
+import org.yamcs.protobuf.Yamcs.Value.Type;
+import org.yamcs.utils.StringConverter;
+import org.yamcs.utils.TimeEncoding;
+
+/**
+ * Encodes the batches of parameter values published by the {@link MqttParameterPublishLink}.
+ * <p>
+ * The JSON encoding is an object with one member for each parameter, named by the qualified name of the parameter:
+ *
+ * <pre>
+ * {"/GS/az": {"time": "2024-08-12T22:23:28.430Z", "value": 120.25}, ...}
+ * </pre>
+ *
+ * The time is the generation time of the value. Float values are formatted with the float precision (0.1 and not
+ * 0.10000000149011612). Floating point values which are not finite are encoded as
+ * <code>null</code>, timestamps as ISO 8601 strings, binary values as hexadecimal strings and aggregate and array
+ * values as their string representation.
+ * <p>
+ * The binary encoding identifies the parameters by their position in the topic configuration. All the numbers are big
+ * endian:
+ *
+ * <pre>
+ * count        2 bytes  number of values
+ * for each value:
+ *   index      2 bytes  position of the parameter in the topic configuration
+ *   time       8 bytes  generation time in Yamcs milliseconds
+ *   type       1 byte   one of the TYPE_ constants
+ *   value      0 bytes  (null), 8 bytes (double, signed, unsigned, timestamp), 1 byte (boolean),
+ *                       2 + n bytes (string, UTF-8 encoded) or 4 + n bytes (binary)
+ * </pre>
+ *
+ * Both the float and the double values are encoded as 8 bytes IEEE 754 doubles; the float values are converted exactly.
+ */
+public class ParameterBatchEncoder {
+    public static final int TYPE_NULL = 0;
+    public static final int TYPE_DOUBLE = 1;
+    public static final int TYPE_SIGNED = 2;
+    public static final int TYPE_UNSIGNED = 3;
+    public static final int TYPE_BOOLEAN = 4;
+    public static final int TYPE_STRING = 5;
+    public static final int TYPE_BINARY = 6;
+    public static final int TYPE_TIMESTAMP = 7;
+
+    public static byte[] encodeJson(ConflationBuffer.Batch batch) {
+        var sb = new StringBuilder(64 * batch.size());
+        sb.append('{');
+        for (int i = 0; i < batch.size(); i++) {
+            var pv = batch.values()[i];
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendString(sb, pv.getParameterQualifiedName());
+            sb.append(":{\"time\":");
+            appendString(sb, TimeEncoding.toString(pv.getGenerationTime()));
+            sb.append(",\"value\":");
+            appendValue(sb, pv.getEngValue());
+            sb.append('}');
+        }
+        sb.append('}');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void appendValue(StringBuilder sb, Value v) {
+        if (v == null) {
+            sb.append("null");
+            return;
+        }
+        switch (v.getType()) {
+        case FLOAT:
+            appendFloat(sb, v.getFloatValue());
+            break;
+        case DOUBLE:
+            appendDouble(sb, v.getDoubleValue());
+            break;
+        case SINT32:
+            sb.append(v.getSint32Value());
+            break;
+        case SINT64:
+            sb.append(v.getSint64Value());
+            break;
+        case UINT32:
+            sb.append(v.getUint32Value() & 0xFFFFFFFFL);
+            break;
+        case UINT64:
+            sb.append(Long.toUnsignedString(v.getUint64Value()));
+            break;
+        case BOOLEAN:
+            sb.append(v.getBooleanValue());
+            break;
+        case STRING:
+        case ENUMERATED:
+            appendString(sb, v.getStringValue());
+            break;
+        case TIMESTAMP:
+            appendString(sb, TimeEncoding.toString(v.getTimestampValue()));
+            break;
+        case BINARY:
+            appendString(sb, StringConverter.arrayToHexString(v.getBinaryValue(), false));
+            break;
+        case NONE:
+            sb.append("null");
+            break;
+        default:
+            appendString(sb, v.toString());
+        }
+    }
+
+    static void appendFloat(StringBuilder sb, float f) {
+        if (Float.isFinite(f)) {
+            sb.append(f);
+        } else {
+            sb.append("null");
+        }
+    }
+
+    static void appendDouble(StringBuilder sb, double d) {
+        if (Double.isFinite(d)) {
+            sb.append(d);
+        } else {
+            sb.append("null");
+        }
+    }
+
+    static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    public static byte[] encodeBinary(ConflationBuffer.Batch batch) {
+        var bout = new ByteArrayOutputStream(16 * batch.size() + 2);
+        try (var out = new DataOutputStream(bout)) {
+            out.writeShort(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                var pv = batch.values()[i];
+                out.writeShort(batch.slots()[i]);
+                out.writeLong(pv.getGenerationTime());
+                writeValue(out, pv.getEngValue());
+            }
+        } catch (IOException e) {
+            // not thrown by the ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Value v) throws IOException {
+        if (v == null) {
+            out.writeByte(TYPE_NULL);
+            return;
+        }
+        switch (v.getType()) {
+        case FLOAT:
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(v.getFloatValue());
+            break;
+        case DOUBLE:
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(v.getDoubleValue());
+            break;
+        case SINT32:
+            out.writeByte(TYPE_SIGNED);
+            out.writeLong(v.getSint32Value());
+            break;
+        case SINT64:
+            out.writeByte(TYPE_SIGNED);
+            out.writeLong(v.getSint64Value());
+            break;
+        case UINT32:
+            out.writeByte(TYPE_UNSIGNED);
+            out.writeLong(v.getUint32Value() & 0xFFFFFFFFL);
+            break;
+        case UINT64:
+            out.writeByte(TYPE_UNSIGNED);
+            out.writeLong(v.getUint64Value());
+            break;
+        case BOOLEAN:
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean(v.getBooleanValue());
+            break;
+        case TIMESTAMP:
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(v.getTimestampValue());
+            break;
+        case BINARY:
+            byte[] b = v.getBinaryValue();
+            out.writeByte(TYPE_BINARY);
+            out.writeInt(b.length);
+            out.write(b);
+            break;
+        case NONE:
+            out.writeByte(TYPE_NULL);
+            break;
+        default:
+            String s = v.getType() == Type.STRING || v.getType() == Type.ENUMERATED ? v.getStringValue()
+                    : v.toString();
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xFFFF) {
+                throw new IllegalArgumentException("String value too long: " + utf8.length + " bytes");
+            }
+            out.writeByte(TYPE_STRING);
+            out.writeShort(utf8.length);
+            out.write(utf8);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.yamcs.mqtt;
+
+import org.yamcs.YConfiguration;
+
+/**
+ * Compression codec applied to the MQTT message payloads by the links configured with the <code>compression</code>
+ * option.
+ * <p>
+ * The codecs are shared by all the threads of a link (MQTT callback threads, ingest workers, command senders) so the
+ * implementations have to be thread safe.
+ */
+public interface PayloadCodec {
+    /**
+     * Called at initialisation with the <code>compressionArgs</code>; the config may be empty but won't be null.
+     */
+    default void init(YConfiguration config) {
+    }
+
+    /**
+     * @return the name of the codec shown in the link extra information
+     */
+    String getName();
+
+    /**
+     * Compresses the given region of the array
+     * 
+     * @return a new array containing the compressed data
+     */
+    byte[] encode(byte[] data, int offset, int length);
+
+    /**
+     * Decompresses the data
+     * 
+     * @param maxLength
+     *            the maximum length of the decompressed data
+     * @return a new array containing the decompressed data
+     * @throws IllegalArgumentException
+     *             if the data is not valid or the decompressed data is longer than maxLength
+     */
+    byte[] decode(byte[] data, int maxLength);
+}
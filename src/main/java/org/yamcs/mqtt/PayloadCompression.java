@@ -0,0 +1,100 @@
+package org.yamcs.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Compression stage of a link: decompresses the incoming MQTT messages before they are passed to the TM converter and
+ * compresses the messages created by the TC converter before they are published.
+ * <p>
+ * Keeps the statistics (compression ratio and codec time) for both directions.
+ */
+public class PayloadCompression {
+    final PayloadCodec codec;
+    final int maxDecompressedSize;
+
+    final Stats in = new Stats();
+    final Stats out = new Stats();
+    final LongAdder errorCount = new LongAdder();
+
+    public PayloadCompression(PayloadCodec codec, int maxDecompressedSize) {
+        this.codec = codec;
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    /**
+     * @return a new message with the decompressed payload and the same QoS and properties as the original message
+     * @throws IllegalArgumentException
+     *             if the payload cannot be decompressed
+     */
+    public MqttMessage decompress(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        long t0 = System.nanoTime();
+        byte[] data;
+        try {
+            data = codec.decode(payload, maxDecompressedSize);
+        } catch (IllegalArgumentException e) {
+            errorCount.increment();
+            throw e;
+        }
+        in.add(data.length, payload.length, System.nanoTime() - t0);
+        return MqttUtils.copyWithPayload(message, data);
+    }
+
+    /**
+     * @return a new message with the compressed payload and the same QoS and properties as the original message
+     */
+    public MqttMessage compress(MqttMessage message) {
+        byte[] payload = message.getPayload();
+        long t0 = System.nanoTime();
+        byte[] data = codec.encode(payload, 0, payload.length);
+        out.add(payload.length, data.length, System.nanoTime() - t0);
+        return MqttUtils.copyWithPayload(message, data);
+    }
+
+    public void addExtraInfo(Map<String, Object> extra) {
+        extra.put("Compression", codec.getName());
+        if (in.count.sum() > 0) {
+            extra.put("Decompressed messages", in.count.sum());
+            extra.put("Decompression ratio", in.ratio());
+            extra.put("Decompression time per message (us)", in.averageMicros());
+        }
+        if (errorCount.sum() > 0) {
+            extra.put("Decompression errors", errorCount.sum());
+        }
+        if (out.count.sum() > 0) {
+            extra.put("Compressed messages", out.count.sum());
+            extra.put("Compression ratio", out.ratio());
+            extra.put("Compression time per message (us)", out.averageMicros());
+        }
+    }
+
+    static class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder uncompressedBytes = new LongAdder();
+        final LongAdder compressedBytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        void add(int uncompressed, int compressed, long ns) {
+            count.increment();
+            uncompressedBytes.add(uncompressed);
+            compressedBytes.add(compressed);
+            nanos.add(ns);
+        }
+
+        /**
+         * @return uncompressed size / compressed size, rounded to two decimals
+         */
+        double ratio() {
+            long c = compressedBytes.sum();
+            return c == 0 ? 0 : Math.round(100.0 * uncompressedBytes.sum() / c) / 100.0;
+        }
+
+        double averageMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : Math.round(nanos.sum() / (10.0 * n)) / 100.0;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.yamcs.mqtt;
+
+import org.yamcs.time.Instant;
+
+/**
+ * Frame extracted from a MQTT message.
+ * <p>
+ * The frame data is the region between {@code offset} and {@code offset + length} of the {@code data} array. The
+ * array may be shared between multiple frames and must not be modified after the frame has been created.
+ */
+public record RawFrame(Instant ert, byte[] data, int offset, int length) {
+
+    public RawFrame {
+        if (offset < 0 || length < 0 || length > data.length - offset) {
+            throw new IndexOutOfBoundsException(
+                    "offset: " + offset + ", length: " + length + ", data length: " + data.length);
+        }
+    }
+
+    /**
+     * Creates a frame covering the whole data array
+     */
+    public RawFrame(Instant ert, byte[] data) {
+        this(ert, data, 0, data.length);
+    }
+}
@@ -0,0 +1,11 @@
+package org.yamcs.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * MQTT message together with the topic it has been received on, as kept in the {@link IngestQueue}
+ * <p>
+ * The arrival time ({@link System#nanoTime()}) is used to measure the time spent in the queue.
+ */
+record ReceivedMessage(String topic, MqttMessage message, long arrivalNanos) {
+}
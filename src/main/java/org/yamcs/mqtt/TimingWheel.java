@@ -0,0 +1,113 @@
+package org.yamcs.mqtt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for expiring a large number of items with a coarse time resolution.
+ * <p>
+ * The time is divided in ticks of <code>tickMillis</code>; the items are placed in the bucket of the first tick
+ * starting at or after their deadline, modulo the number of buckets. Each call to {@link #advance(long, Consumer)}
+ * processes the buckets of the ticks elapsed since the previous call, expiring the items whose deadline has passed and
+ * leaving in place those scheduled for a later turn of the wheel. Scheduling an item is O(1) and does not allocate a
+ * timer task.
+ * <p>
+ * The items can be scheduled from any thread: they are first put in a concurrent queue and moved to the buckets by
+ * the thread advancing the wheel. There is no cancellation; the expiry callback has to ignore the items which are
+ * not relevant anymore.
+ */
+public class TimingWheel<T> {
+    final long tickMillis;
+    final Entry<T>[] buckets;
+    final int mask;
+    final ConcurrentLinkedQueue<Entry<T>> pending = new ConcurrentLinkedQueue<>();
+    // the last tick processed
+    long tick;
+    int size;
+
+    /**
+     * @param numBuckets
+     *            rounded up to a power of two
+     * @param startMillis
+     *            the current time
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int numBuckets, long startMillis) {
+        if (tickMillis < 1 || numBuckets < 1) {
+            throw new IllegalArgumentException("tickMillis and numBuckets have to be positive");
+        }
+        this.tickMillis = tickMillis;
+        int n = numBuckets == 1 ? 1 : Integer.highestOneBit(numBuckets - 1) << 1;
+        this.buckets = new Entry[n];
+        this.mask = n - 1;
+        this.tick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules the expiry of the item; can be called from any thread.
+     */
+    public void schedule(T item, long deadlineMillis) {
+        pending.add(new Entry<>(item, deadlineMillis));
+    }
+
+    /**
+     * Advances the wheel up to the given time and passes the expired items to the consumer. Has to be called always
+     * from the same thread (or with external synchronization).
+     */
+    public void advance(long nowMillis, Consumer<T> expired) {
+        Entry<T> e;
+        while ((e = pending.poll()) != null) {
+            // the first tick starting at or after the deadline; the items already due are placed in the next bucket
+            // processed
+            long t = Math.max(Math.floorDiv(e.deadline + tickMillis - 1, tickMillis), tick + 1);
+            int b = (int) t & mask;
+            e.next = buckets[b];
+            buckets[b] = e;
+            size++;
+        }
+        long nowTick = nowMillis / tickMillis;
+        // no need to process more than one turn of the wheel
+        long first = Math.max(tick + 1, nowTick - mask);
+        for (long t = first; t <= nowTick; t++) {
+            int b = (int) t & mask;
+            Entry<T> prev = null;
+            e = buckets[b];
+            while (e != null) {
+                var next = e.next;
+                if (e.deadline <= nowMillis) {
+                    if (prev == null) {
+                        buckets[b] = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    size--;
+                    expired.accept(e.item);
+                } else {
+                    prev = e;
+                }
+                e = next;
+            }
+        }
+        if (nowTick > tick) {
+            tick = nowTick;
+        }
+    }
+
+    /**
+     * @return the number of items in the buckets (not counting the ones scheduled since the last advance)
+     */
+    public int size() {
+        return size;
+    }
+
+    static class Entry<T> {
+        final T item;
+        final long deadline;
+        Entry<T> next;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.yamcs.mqtt;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for the routes of the {@link TopicRouter}; keeps the statistics of the messages received on the topics
+ * matching the filter.
+ */
+class TopicRoute {
+    final String filter;
+    final AtomicLong messageCount = new AtomicLong();
+    final AtomicLong byteCount = new AtomicLong();
+    volatile int grantedQos = -1;
+
+    TopicRoute(String filter) {
+        this.filter = filter;
+    }
+
+    void messageIn(int length) {
+        messageCount.incrementAndGet();
+        byteCount.addAndGet(length);
+    }
+
+    void addExtraInfo(Map<String, Object> extra) {
+        extra.put(filter + " messages", messageCount.get());
+        extra.put(filter + " bytes", byteCount.get());
+        extra.put(filter + " QoS", grantedQos < 0 ? "-" : grantedQos);
+    }
+}
@@ -0,0 +1,182 @@
+package org.yamcs.mqtt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Maps the topic of the received MQTT messages to the route configured for the matching topic filter.
+ * <p>
+ * The topic filters (possibly containing the <code>+</code> and <code>#</code> wildcards) are compiled at
+ * initialisation into a trie with one node for each topic level. The matching walks the trie comparing the levels
+ * directly in the topic string, without splitting it or using regular expressions.
+ * <p>
+ * If more than one filter matches a topic, the most specific one is selected: an exact level is preferred to
+ * <code>+</code> which is preferred to <code>#</code>.
+ */
+final class TopicRouter<T> {
+    final Node<T> root = new Node<>(null);
+    final List<T> routes = new ArrayList<>();
+
+    /**
+     * Adds a route for the given topic filter
+     *
+     * @throws IllegalArgumentException
+     *             if the filter is not valid or if a route has already been added for the same filter
+     */
+    void add(String filter, T route) {
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic filter");
+        }
+        String[] levels = filter.split("/", -1);
+        Node<T> node = root;
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("Invalid topic filter '" + filter
+                            + "': '#' has to be the last level");
+                }
+                if (node.hashRoute != null) {
+                    throw new IllegalArgumentException("Duplicate topic filter '" + filter + "'");
+                }
+                node.hashRoute = route;
+                routes.add(route);
+                return;
+            } else if (level.equals("+")) {
+                if (node.plus == null) {
+                    node.plus = new Node<>("+");
+                }
+                node = node.plus;
+            } else if (level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+                throw new IllegalArgumentException("Invalid topic filter '" + filter
+                        + "': wildcards have to occupy an entire level");
+            } else {
+                node = node.addChild(level);
+            }
+        }
+        if (node.route != null) {
+            throw new IllegalArgumentException("Duplicate topic filter '" + filter + "'");
+        }
+        node.route = route;
+        routes.add(route);
+    }
+
+    /**
+     * @return the route matching the topic or null if there is none
+     */
+    T match(String topic) {
+        return match(root, topic, 0);
+    }
+
+    /**
+     * Passes to the consumer all the routes whose filter matches the topic, not only the most specific one
+     */
+    void matchAll(String topic, Consumer<T> consumer) {
+        matchAll(root, topic, 0, consumer);
+    }
+
+    /**
+     * @return all the routes in the order they have been added
+     */
+    List<T> routes() {
+        return routes;
+    }
+
+    private T match(Node<T> node, String topic, int start) {
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        T r = matchNext(node.getChild(topic, start, end), topic, end);
+        if (r != null) {
+            return r;
+        }
+        // topics starting with $ are not matched by wildcards at the first level
+        if (start == 0 && !topic.isEmpty() && topic.charAt(0) == '$') {
+            return null;
+        }
+        r = matchNext(node.plus, topic, end);
+        if (r != null) {
+            return r;
+        }
+        return node.hashRoute;
+    }
+
+    private T matchNext(Node<T> node, String topic, int end) {
+        if (node == null) {
+            return null;
+        }
+        if (end == topic.length()) {
+            // "a/#" matches also "a"
+            return node.route != null ? node.route : node.hashRoute;
+        }
+        return match(node, topic, end + 1);
+    }
+
+    private void matchAll(Node<T> node, String topic, int start, Consumer<T> consumer) {
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        matchAllNext(node.getChild(topic, start, end), topic, end, consumer);
+        if (start == 0 && !topic.isEmpty() && topic.charAt(0) == '$') {
+            return;
+        }
+        matchAllNext(node.plus, topic, end, consumer);
+        if (node.hashRoute != null) {
+            consumer.accept(node.hashRoute);
+        }
+    }
+
+    private void matchAllNext(Node<T> node, String topic, int end, Consumer<T> consumer) {
+        if (node == null) {
+            return;
+        }
+        if (end == topic.length()) {
+            if (node.route != null) {
+                consumer.accept(node.route);
+            }
+            if (node.hashRoute != null) {
+                consumer.accept(node.hashRoute);
+            }
+        } else {
+            matchAll(node, topic, end + 1, consumer);
+        }
+    }
+
+    static final class Node<T> {
+        final String level;
+        @SuppressWarnings("unchecked")
+        Node<T>[] children = new Node[0];
+        Node<T> plus;
+        T route;
+        T hashRoute;
+
+        Node(String level) {
+            this.level = level;
+        }
+
+        Node<T> getChild(String topic, int start, int end) {
+            int length = end - start;
+            for (var child : children) {
+                if (child.level.length() == length && topic.regionMatches(start, child.level, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        Node<T> addChild(String level) {
+            var child = getChild(level, 0, level.length());
+            if (child == null) {
+                child = new Node<>(level);
+                var newChildren = Arrays.copyOf(children, children.length + 1);
+                newChildren[children.length] = child;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.time.Instant;
+
+public class BinaryEnvelopeTest {
+
+    @Test
+    public void testRoundTrip() {
+        byte[] data = { 1, 2, 3, 4, 5 };
+        var time = Instant.get(1_700_000_000_123L, 456_000);
+        byte[] msg = BinaryEnvelope.encode(time, "gs1", 0xFFFFFFFEL, data);
+        assertEquals(2 + 12 + 4 + 4 + data.length, msg.length);
+
+        var h = BinaryEnvelope.decode(msg);
+        assertEquals(time, h.time());
+        assertEquals("gs1", h.stationId());
+        assertTrue(h.hasSequence());
+        assertEquals(0xFFFFFFFEL, h.sequence());
+        assertArrayEquals(data, Arrays.copyOfRange(msg, h.dataOffset(), msg.length));
+    }
+
+    @Test
+    public void testNoHeaderFields() {
+        byte[] data = { 7, 8 };
+        byte[] msg = BinaryEnvelope.encode(null, (String) null, -1, data);
+        assertEquals(2 + data.length, msg.length);
+
+        var h = BinaryEnvelope.decode(msg);
+        assertNull(h.time());
+        assertNull(h.stationId());
+        assertFalse(h.hasSequence());
+        assertEquals(2, h.dataOffset());
+    }
+
+    @Test
+    public void testInvalid() {
+        byte[] msg = BinaryEnvelope.encode(Instant.get(1000), "gs1", 1, new byte[0]);
+        assertThrows(IllegalArgumentException.class, () -> BinaryEnvelope.decode(Arrays.copyOf(msg, 10)));
+
+        msg[0] = 2;
+        assertThrows(IllegalArgumentException.class, () -> BinaryEnvelope.decode(msg));
+        assertThrows(IllegalArgumentException.class, () -> BinaryEnvelope.decode(new byte[1]));
+    }
+}
@@ -0,0 +1,140 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.logging.Log;
+
+public class BrokerSelectorTest {
+    static final Log log = new Log(BrokerSelectorTest.class);
+
+    @Test
+    public void testProbeAddress() {
+        assertEquals(1883, BrokerSelector.probeAddress("tcp://localhost").getPort());
+        assertEquals(8883, BrokerSelector.probeAddress("ssl://localhost").getPort());
+        assertEquals(443, BrokerSelector.probeAddress("wss://localhost/mqtt").getPort());
+        assertEquals(1884, BrokerSelector.probeAddress("tcp://localhost:1884").getPort());
+        assertNull(BrokerSelector.probeAddress("local://x"));
+    }
+
+    @Test
+    public void testReachableFirst() throws IOException {
+        int closedPort;
+        try (var s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = s.getLocalPort();
+        }
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            String down = "tcp://127.0.0.1:" + closedPort;
+            String up = "tcp://127.0.0.1:" + server.getLocalPort();
+            var orders = new ArrayList<String[]>();
+            var selector = new BrokerSelector(List.of(down, "local://x", up), 1000, 1000, orders::add, log);
+            selector.probeAll();
+
+            assertArrayEquals(new String[] { up, "local://x", down }, selector.getOrder());
+            assertEquals(1, orders.size());
+            var status = selector.getBrokerStatus();
+            assertEquals(BrokerSelector.State.DOWN, status.get(0).state());
+            assertEquals(BrokerSelector.State.UNKNOWN, status.get(1).state());
+            assertEquals(BrokerSelector.State.UP, status.get(2).state());
+
+            // the connection to the best broker is lost
+            selector.connected(up);
+            selector.connectionLost();
+            assertNull(selector.getCurrentBroker());
+            assertArrayEquals(new String[] { "local://x", down, up }, selector.getOrder());
+
+            // and it is reachable again at the next probe
+            selector.probeAll();
+            assertArrayEquals(new String[] { up, "local://x", down }, selector.getOrder());
+            assertEquals(3, orders.size());
+
+            var extra = new LinkedHashMap<String, Object>();
+            selector.addExtraInfo(extra);
+            assertEquals("unreachable", extra.get("Broker " + down + " RTT (ms)"));
+            assertEquals("-", extra.get("Broker local://x RTT (ms)"));
+            assertTrue(extra.get("Broker " + up + " RTT (ms)") instanceof Double);
+        }
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            var selector = new BrokerSelector(List.of("tcp://127.0.0.1:" + server.getLocalPort()), 10, 1000, o -> {
+            }, log);
+            selector.start("test");
+            var thread = selector.thread;
+            Thread.sleep(50);
+            selector.stop();
+            assertFalse(thread.isAlive());
+            assertEquals(BrokerSelector.State.UP, selector.getBrokerStatus().get(0).state());
+        }
+    }
+
+    @Test
+    public void testInterruptedProbe() throws Exception {
+        try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // fill the accept queue such that the probe connection hangs
+            var fillers = new ArrayList<Socket>();
+            try {
+                for (int i = 0; i < 3; i++) {
+                    var s = new Socket();
+                    fillers.add(s);
+                    s.connect(server.getLocalSocketAddress(), 200);
+                }
+            } catch (IOException e) {
+                // the queue is full
+            }
+            var selector = new BrokerSelector(List.of("tcp://127.0.0.1:" + server.getLocalPort()), 1000, 60_000,
+                    o -> {
+                    }, log);
+            var thread = new Thread(selector::probeAll);
+            thread.start();
+            Thread.sleep(100);
+            thread.interrupt();
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+            // the abandoned probe does not count as a failure
+            assertEquals(BrokerSelector.State.UNKNOWN, selector.getBrokerStatus().get(0).state());
+            for (var s : fillers) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOrderByRtt() {
+        var selector = new BrokerSelector(List.of("tcp://far:1883", "tcp://near:1883"), 1000, 1000, o -> {
+        }, log);
+        var far = selector.brokers[0];
+        var near = selector.brokers[1];
+        selector.probeSucceeded(far, 30_000_000);
+        selector.probeSucceeded(near, 5_000_000);
+        selector.reorder();
+        assertArrayEquals(new String[] { "tcp://near:1883", "tcp://far:1883" }, selector.getOrder());
+
+        // one slow sample is smoothed out
+        selector.probeSucceeded(near, 40_000_000);
+        assertEquals(5 + BrokerSelector.ALPHA * 35, near.status().rttMillis(), 1e-9);
+        selector.reorder();
+        assertEquals("tcp://near:1883", selector.getOrder()[0]);
+
+        // the average is reset after an outage
+        selector.probeFailed(near, "test");
+        selector.probeSucceeded(near, 50_000_000);
+        assertEquals(50, near.status().rttMillis(), 1e-9);
+        selector.reorder();
+        assertEquals("tcp://far:1883", selector.getOrder()[0]);
+    }
+}
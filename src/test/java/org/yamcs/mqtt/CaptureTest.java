@@ -0,0 +1,145 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.yamcs.YConfiguration;
+import org.yamcs.logging.Log;
+
+public class CaptureTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        var writer = new CaptureWriter(dir, "test", 1024 * 1024);
+        writer.write("tm/a", message(new byte[] { 1, 2, 3 }, 1, false));
+        writer.write("tm/a", message(new byte[0], 0, true));
+        // larger than the write buffer
+        byte[] large = new byte[CaptureWriter.BUFFER_SIZE + 100];
+        large[large.length - 1] = 7;
+        writer.write("tm/\u00e9", message(large, 2, false));
+        // the header is larger than the write buffer
+        String longTopic = "tm/" + "x".repeat(65000);
+        writer.write(longTopic, message(new byte[] { 4 }, 0, false));
+        writer.write("tm/a", message(new byte[] { 5 }, 0, false));
+        writer.close();
+
+        var files = CaptureReader.listFiles(List.of(dir.toString()));
+        assertEquals(1, files.size());
+        try (var reader = new CaptureReader(files.get(0))) {
+            var r = reader.next();
+            assertEquals("tm/a", r.topic());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, r.message().getPayload());
+            assertEquals(1, r.message().getQos());
+            assertFalse(r.message().isRetained());
+            long t0 = r.timeMicros();
+
+            r = reader.next();
+            assertEquals(0, r.message().getPayload().length);
+            assertTrue(r.message().isRetained());
+            assertTrue(r.timeMicros() >= t0);
+
+            r = reader.next();
+            assertEquals("tm/\u00e9", r.topic());
+            assertEquals(2, r.message().getQos());
+            assertArrayEquals(large, r.message().getPayload());
+
+            r = reader.next();
+            assertEquals(longTopic, r.topic());
+            assertArrayEquals(new byte[] { 4 }, r.message().getPayload());
+            r = reader.next();
+            assertEquals("tm/a", r.topic());
+            assertArrayEquals(new byte[] { 5 }, r.message().getPayload());
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        var writer = new CaptureWriter(dir, "test", 200);
+        for (int i = 0; i < 10; i++) {
+            writer.write("tm", message(new byte[50], 0, false));
+        }
+        var info = new HashMap<String, Object>();
+        writer.addExtraInfo(info);
+        writer.close();
+        assertEquals(10L, info.get("Captured messages"));
+
+        var files = CaptureReader.listFiles(List.of(dir.toString()));
+        assertEquals(info.get("Capture segments"), files.size());
+        assertTrue(files.size() > 1);
+        int n = 0;
+        for (var f : files) {
+            try (var reader = new CaptureReader(f)) {
+                while (reader.next() != null) {
+                    n++;
+                }
+            }
+        }
+        assertEquals(10, n);
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        var writer = new CaptureWriter(dir, "test", 1024 * 1024);
+        writer.write("tm", message(new byte[] { 1 }, 0, false));
+        writer.write("tm", message(new byte[] { 2, 2, 2, 2 }, 0, false));
+        writer.close();
+
+        var file = CaptureReader.listFiles(List.of(dir.toString())).get(0);
+        try (var ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 2);
+        }
+        try (var reader = new CaptureReader(file)) {
+            assertEquals(1, reader.next().message().getPayload()[0]);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testReplayLoopWithoutMessages() throws Exception {
+        var empty = new CaptureWriter(dir, "empty", 1024 * 1024);
+        empty.close();
+        Path invalid = Files.write(dir.resolve("invalid" + CaptureWriter.EXTENSION), new byte[] { 1, 2 });
+        Map<String, Object> m = new HashMap<>();
+        m.put("replayFiles", List.of(dir.toString()));
+        m.put("replaySpeed", 0.0);
+        m.put("replayLoop", true);
+        var conn = new MqttReplayConnection(YConfiguration.wrap(m), new Log(CaptureTest.class));
+        assertEquals(2, conn.files.size());
+        assertTrue(conn.files.contains(invalid));
+
+        conn.connectClient(() -> {
+        }, e -> {
+        });
+        // the replay stops instead of looping on the files without messages
+        conn.thread.join(5000);
+        assertFalse(conn.thread.isAlive());
+        assertTrue(conn.finished);
+        assertEquals(0, conn.replayedCount);
+        conn.close();
+    }
+
+    static MqttMessage message(byte[] payload, int qos, boolean retained) {
+        var msg = new MqttMessage(payload);
+        msg.setQos(qos);
+        msg.setRetained(retained);
+        return msg;
+    }
+}
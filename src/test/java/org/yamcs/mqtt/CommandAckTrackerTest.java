@@ -0,0 +1,180 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CommandAckTrackerTest {
+
+    @Test
+    public void testEnvelopeReplies() {
+        var l = new RecordingListener();
+        var tracker = new CommandAckTracker<>(1000, null, null, l, 0);
+        tracker.sent(5, "cmd5", 0);
+        tracker.sent(6, "cmd6", 0);
+
+        assertTrue(tracker.replyArrived(BinaryEnvelope.encode(null, (String) null, 5, new byte[] { 0 })));
+        assertTrue(tracker.replyArrived(BinaryEnvelope.encode(null, (String) null, 6, new byte[] { 3 })));
+        assertEquals(List.of("cmd5 OK", "cmd6 NOK Status 3"), l.events);
+
+        // duplicate reply
+        assertFalse(tracker.replyArrived(BinaryEnvelope.encode(null, (String) null, 5, new byte[0])));
+        // no sequence
+        assertFalse(tracker.replyArrived(BinaryEnvelope.encode(null, (String) null, -1, new byte[0])));
+        assertFalse(tracker.replyArrived(new byte[1]));
+        assertEquals(1, tracker.unmatchedCount.get());
+        assertEquals(2, tracker.invalidCount.get());
+        assertEquals(0, tracker.getOutstandingCount());
+    }
+
+    @Test
+    public void testJsonReplies() {
+        var l = new RecordingListener();
+        var tracker = new CommandAckTracker<>(1000, "ack.id", "ack.status", l, 0);
+        for (int i = 1; i <= 4; i++) {
+            tracker.sent(i, "cmd" + i, 0);
+        }
+        assertTrue(tracker.replyArrived(json("{\"ack\": {\"status\": \"OK\", \"id\": 1}}")));
+        assertTrue(tracker.replyArrived(json("{\"ack\": {\"id\": \"2\", \"status\": \"rejected\"}}")));
+        assertTrue(tracker.replyArrived(json("{\"ack\": {\"id\": 3, \"status\": false}}")));
+        // no status means success
+        assertTrue(tracker.replyArrived(json("{\"ack\": {\"id\": 4}}")));
+        assertEquals(List.of("cmd1 OK", "cmd2 NOK rejected", "cmd3 NOK Failed", "cmd4 OK"), l.events);
+
+        assertFalse(tracker.replyArrived(json("{\"ack\": {\"id\": 7}}")));
+        assertFalse(tracker.replyArrived(json("{\"ack\": {}}")));
+        assertFalse(tracker.replyArrived(json("{\"ack\": {\"id\": \"x\"}}")));
+        assertFalse(tracker.replyArrived(json("{\"ack\": ")));
+        assertEquals(1, tracker.unmatchedCount.get());
+        assertEquals(3, tracker.invalidCount.get());
+    }
+
+    @Test
+    public void testTimeout() {
+        var l = new RecordingListener();
+        var tracker = new CommandAckTracker<>(1000, "[0]", null, l, 0);
+        tracker.sent(1, "cmd1", 0);
+        tracker.sent(2, "cmd2", 500);
+        tracker.sent(3, "cmd3", 500);
+        tracker.tick(990);
+        assertTrue(l.events.isEmpty());
+
+        tracker.tick(1000);
+        assertEquals(List.of("cmd1 TIMEOUT"), l.events);
+
+        // replied before the timeout
+        assertTrue(tracker.replyArrived(json("[3]")));
+        tracker.tick(1600);
+        assertEquals(List.of("cmd1 TIMEOUT", "cmd3 OK", "cmd2 TIMEOUT"), l.events);
+        assertEquals(0, tracker.getOutstandingCount());
+
+        // reply after the timeout
+        assertFalse(tracker.replyArrived(json("[1]")));
+        assertEquals(2, tracker.timeoutCount.get());
+    }
+
+    @Test
+    public void testSuperseded() {
+        var l = new RecordingListener();
+        var tracker = new CommandAckTracker<>(1000, null, null, l, 0);
+        tracker.sent(1, "a", 0);
+        tracker.sent(1, "b", 100);
+        tracker.tick(1050);
+        assertEquals(List.of("a NOK Superseded by another command with the same correlation key"), l.events);
+        tracker.tick(1100);
+        assertEquals("b TIMEOUT", l.events.get(1));
+    }
+
+    @Test
+    public void testStopAndDrain() {
+        var l = new RecordingListener();
+        var tracker = new CommandAckTracker<>(1000, null, null, l);
+        tracker.start("test");
+        var thread = tracker.thread;
+        for (int i = 0; i < 100; i++) {
+            tracker.sent(i, "cmd" + i);
+        }
+        tracker.stop();
+        assertFalse(thread.isAlive());
+        var ids = tracker.drain();
+        assertEquals(100, ids.size());
+        assertTrue(ids.contains("cmd42"));
+        assertEquals(0, tracker.getOutstandingCount());
+        // restarted after a disable
+        tracker.start("test");
+        tracker.stop();
+        assertTrue(l.events.isEmpty());
+    }
+
+    @Test
+    public void testTimingWheel() {
+        var wheel = new TimingWheel<Integer>(10, 8, 0);
+        var expired = new ArrayList<Integer>();
+        wheel.schedule(1, 25);
+        // more than one turn ahead
+        wheel.schedule(2, 205);
+        // already due
+        wheel.schedule(3, -5);
+        wheel.advance(20, expired::add);
+        assertEquals(List.of(3), expired);
+        wheel.advance(30, expired::add);
+        assertEquals(List.of(3, 1), expired);
+        wheel.advance(200, expired::add);
+        assertEquals(1, wheel.size());
+        wheel.advance(210, expired::add);
+        assertEquals(List.of(3, 1, 2), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testConcurrentLongMap() {
+        var map = new ConcurrentLongMap<Long>();
+        var ref = new HashMap<Long, Long>();
+        var r = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long k = r.nextInt(5000) - 2500;
+            if (r.nextBoolean()) {
+                assertEquals(ref.put(k, (long) i), map.put(k, (long) i));
+            } else {
+                assertEquals(ref.remove(k), map.remove(k));
+            }
+        }
+        assertEquals(ref.size(), map.size());
+        for (long k = -2500; k < 2500; k++) {
+            assertEquals(ref.get(k), map.get(k));
+        }
+
+        Long v = 7L;
+        map.put(Long.MIN_VALUE, v);
+        assertFalse(map.remove(Long.MIN_VALUE, Long.valueOf(8)));
+        assertTrue(map.remove(Long.MIN_VALUE, v));
+        assertNull(map.get(Long.MIN_VALUE));
+    }
+
+    static byte[] json(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static class RecordingListener implements CommandAckTracker.Listener<String> {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void replied(String id, boolean ok, String message) {
+            events.add(id + (ok ? " OK" : " NOK " + message));
+        }
+
+        @Override
+        public void timedOut(String id) {
+            events.add(id + " TIMEOUT");
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.yamcs.logging.Log;
+
+public class CommandSpoolTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testDrainInOrder() throws Exception {
+        var spool = new CommandSpool<Integer>(dir.resolve("test.tcspool"), 100, 60_000, 0, new Log(getClass()));
+        spool.open();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(spool.offer(message(i, 10), i));
+        }
+        // does not fit
+        assertFalse(spool.offer(message(5, 60), 5));
+
+        var connected = new AtomicBoolean(false);
+        var sent = new LinkedBlockingQueue<Integer>();
+        var failOnce = new AtomicBoolean(true);
+        spool.start("test-spool", connected::get, (msg, i) -> {
+            if (i == 2 && failOnce.getAndSet(false)) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            assertEquals(1, msg.getQos());
+            assertEquals(i.byteValue(), msg.getPayload()[0]);
+            sent.add(i);
+        }, (i, reason) -> {
+        });
+        Thread.sleep(50);
+        assertTrue(sent.isEmpty());
+
+        connected.set(true);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, sent.poll(5, TimeUnit.SECONDS));
+        }
+        // the payloads written after the spool becomes empty start again at the beginning of the file
+        assertTrue(spool.offer(message(6, 90), 6));
+        assertEquals(6, sent.poll(5, TimeUnit.SECONDS));
+        assertTrue(spool.close().isEmpty());
+    }
+
+    @Test
+    public void testCloseUnmaps() throws Exception {
+        Path maps = Path.of("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps));
+        Path file = dir.resolve("test.tcspool");
+        var spool = new CommandSpool<Integer>(file, 100, 60_000, 0, new Log(getClass()));
+        spool.open();
+        assertTrue(spool.offer(message(1, 10), 1));
+        String path = file.toRealPath().toString();
+        assertTrue(Files.readAllLines(maps).stream().anyMatch(l -> l.contains(path)));
+        assertEquals(List.of(1), spool.close());
+        // the deleted file does not stay mapped
+        assertFalse(Files.exists(file));
+        assertFalse(Files.readAllLines(maps).stream().anyMatch(l -> l.contains(path)));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        var spool = new CommandSpool<Integer>(dir.resolve("test.tcspool"), 100, 60_000, 0, new Log(getClass()));
+        spool.open();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(spool.offer(message(i, 25), i));
+        }
+        // remove the first two by sending them
+        var sent = new LinkedBlockingQueue<MqttMessage>();
+        var connected = new AtomicBoolean(true);
+        spool.start("test-spool", connected::get, (msg, i) -> {
+            sent.add(msg);
+            if (i == 1) {
+                connected.set(false);
+            }
+        }, (i, reason) -> {
+        });
+        sent.poll(5, TimeUnit.SECONDS);
+        sent.poll(5, TimeUnit.SECONDS);
+        spool.stop();
+        assertEquals(2, spool.size());
+
+        // there is space only after moving the remaining payloads to the beginning
+        assertTrue(spool.offer(message(4, 50), 4));
+        List<Integer> remaining = spool.close();
+        assertEquals(List.of(2, 3, 4), remaining);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        var spool = new CommandSpool<Integer>(dir.resolve("test.tcspool"), 100, 10, 0, new Log(getClass()));
+        spool.open();
+        spool.offer(message(0, 10), 0);
+        spool.offer(message(1, 10), 1);
+        var expired = new LinkedBlockingQueue<Integer>();
+        Thread.sleep(20);
+        spool.start("test-spool", () -> false, (msg, i) -> {
+        }, (i, reason) -> {
+            assertEquals("Expired in the TC spool", reason);
+            expired.add(i);
+        });
+        assertEquals(0, expired.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, expired.poll(5, TimeUnit.SECONDS));
+        spool.close();
+    }
+
+    @Test
+    public void testSenderError() throws Exception {
+        var spool = new CommandSpool<Integer>(dir.resolve("test.tcspool"), 100, 60_000, 0, new Log(getClass()));
+        spool.open();
+        for (int i = 0; i < 3; i++) {
+            spool.offer(message(i, 10), i);
+        }
+        var sent = new LinkedBlockingQueue<Integer>();
+        var dropped = new LinkedBlockingQueue<String>();
+        spool.start("test-spool", () -> true, (msg, i) -> {
+            if (i == 1) {
+                throw new IllegalStateException("bug");
+            }
+            sent.add(i);
+        }, (i, reason) -> dropped.add(i + " " + reason));
+
+        // the failed message is dropped and the drain continues with the next one
+        assertEquals(0, sent.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, sent.poll(5, TimeUnit.SECONDS));
+        String d = dropped.poll(5, TimeUnit.SECONDS);
+        assertTrue(d.startsWith("1 Failed to send from the TC spool: java.lang.IllegalStateException: bug"), d);
+        assertTrue(spool.close().isEmpty());
+        var info = new HashMap<String, Object>();
+        spool.addExtraInfo(info);
+        assertEquals(1L, info.get("Spool failed"));
+        assertEquals(2L, info.get("Spool sent"));
+    }
+
+    static MqttMessage message(int id, int length) {
+        byte[] b = new byte[length];
+        b[0] = (byte) id;
+        var msg = new MqttMessage(b);
+        msg.setQos(1);
+        return msg;
+    }
+}
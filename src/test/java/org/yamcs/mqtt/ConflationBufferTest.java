@@ -0,0 +1,82 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.utils.ValueUtility;
+import org.yamcs.xtce.Parameter;
+
+public class ConflationBufferTest {
+    static final Parameter P0 = new Parameter("p0");
+    static final Parameter P1 = new Parameter("p1");
+    static final Parameter P2 = new Parameter("p2");
+
+    @Test
+    public void testLatestValueWins() {
+        var buf = new ConflationBuffer(3, 0);
+        assertNull(buf.take(false));
+        buf.update(0, pv(P0, 1));
+        buf.update(2, pv(P2, 2));
+        var last = pv(P0, 3);
+        buf.update(0, last);
+
+        var batch = buf.take(false);
+        assertArrayEquals(new int[] { 0, 2 }, batch.slots());
+        assertSame(last, batch.values()[0]);
+        assertEquals(3, buf.getUpdateCount());
+        assertEquals(1, buf.getCoalescedCount());
+        assertEquals(0, buf.getPendingCount());
+        assertNull(buf.take(false));
+    }
+
+    @Test
+    public void testSnapshot() {
+        var buf = new ConflationBuffer(3, 0);
+        buf.update(0, pv(P0, 1));
+        buf.update(1, pv(P1, 2));
+        buf.take(true);
+
+        buf.update(1, pv(P1, 3));
+        assertArrayEquals(new int[] { 0, 1 }, buf.take(true).slots());
+        // nothing new, nothing to publish
+        assertNull(buf.take(true));
+    }
+
+    @Test
+    public void testFlushSize() {
+        var buf = new ConflationBuffer(3, 2);
+        assertFalse(buf.update(0, pv(P0, 1)));
+        assertFalse(buf.update(0, pv(P0, 2)));
+        assertTrue(buf.update(1, pv(P1, 3)));
+        assertFalse(buf.update(2, pv(P2, 4)));
+    }
+
+    @Test
+    public void testRestore() {
+        var buf = new ConflationBuffer(3, 0);
+        buf.update(0, pv(P0, 1));
+        buf.update(1, pv(P1, 2));
+        var batch = buf.take(false);
+
+        var newer = pv(P1, 5);
+        buf.update(1, newer);
+        buf.restore(batch);
+        assertEquals(2, buf.getPendingCount());
+        var retry = buf.take(false);
+        assertArrayEquals(new int[] { 0, 1 }, retry.slots());
+        assertSame(batch.values()[0], retry.values()[0]);
+        assertSame(newer, retry.values()[1]);
+    }
+
+    static ParameterValue pv(Parameter p, int v) {
+        var pv = new ParameterValue(p);
+        pv.setEngValue(ValueUtility.getSint32Value(v));
+        return pv;
+    }
+}
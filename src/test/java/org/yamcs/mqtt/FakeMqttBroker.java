@@ -0,0 +1,363 @@
+package org.yamcs.mqtt;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubAckMessage;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
+
+/**
+ * Minimal MQTT 3.1.1 and MQTT 5 broker running on localhost, used by the link tests and the load tests.
+ * <p>
+ * The messages published by the clients are recorded in {@link #received} (unless {@link #recordPayloads} is false)
+ * and passed to the {@link #onPublish} listener; they are not forwarded to the other clients. The MQTT 5 properties
+ * of the recorded messages are in {@link #receivedProperties}. The tests send messages to the subscribed clients with
+ * {@link #publish(String, byte[], MqttQoS, MqttProperties)}, which supports the QoS 0, 1 and 2 flows,
+ * the <code>+</code> and <code>#</code> wildcards and the shared subscriptions (<code>$share/group/filter</code>),
+ * delivered round-robin to the members of the group.
+ * <p>
+ * The messages published by the clients with QoS 2 are recorded when received, not when released.
+ */
+class FakeMqttBroker {
+    static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    static final String SHARE_PREFIX = "$share/";
+
+    List<byte[]> received = Collections.synchronizedList(new ArrayList<>());
+    List<MqttProperties> receivedProperties = Collections.synchronizedList(new ArrayList<>());
+    volatile boolean recordPayloads = true;
+    final AtomicLong receivedCount = new AtomicLong();
+    /**
+     * Called on the broker event loop with the topic and payload of each message published by a client
+     */
+    volatile BiConsumer<String, byte[]> onPublish;
+
+    private final NioEventLoopGroup bossGroup = new NioEventLoopGroup(1);
+    private final NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+    private Channel serverChannel;
+    int port;
+
+    long connAckDelayMillis = 0;
+    long subAckDelayMillis = 0;
+    long pubAckDelayMillis = 0;
+    MqttQoS maxGrantedQos = MqttQoS.AT_MOST_ONCE;
+    AtomicInteger connectCount = new AtomicInteger();
+    /**
+     * Maximum number of QoS 1 and 2 messages sent to a client and not yet acknowledged; {@link #publish} blocks when
+     * it is reached
+     */
+    int maxOutgoingInflight = 1000;
+
+    boolean sendNegativeConnAck = false;
+    boolean sendNegativeSubAck = false;
+
+    final Map<Channel, Session> sessions = new ConcurrentHashMap<>();
+    final Map<String, AtomicInteger> sharedCursors = new ConcurrentHashMap<>();
+
+    static class Session {
+        final Channel channel;
+        // filter -> granted QoS
+        final Map<String, MqttQoS> subscriptions = new ConcurrentHashMap<>();
+        final AtomicInteger inflight = new AtomicInteger();
+        int nextPacketId;
+
+        Session(Channel channel) {
+            this.channel = channel;
+        }
+
+        synchronized int nextPacketId() {
+            nextPacketId = nextPacketId == 0xFFFF ? 1 : nextPacketId + 1;
+            return nextPacketId;
+        }
+    }
+
+    public void start() throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(256 * 1024, 1024 * 1024))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(MqttEncoder.INSTANCE);
+                        ch.pipeline().addLast(new MqttDecoder(MAX_MESSAGE_SIZE));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<MqttMessage>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
+                                handle(ctx, msg);
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) {
+                                sessions.remove(ctx.channel());
+                            }
+                        });
+                    }
+                });
+
+        serverChannel = b.bind(0).sync().channel();
+        port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    private void handle(ChannelHandlerContext ctx, MqttMessage msg) {
+        if (msg instanceof MqttConnectMessage) {
+            connectCount.incrementAndGet();
+            ctx.executor().schedule(() -> {
+                MqttConnAckMessage connAckMessage = MqttMessageBuilders.connAck()
+                        .returnCode(sendNegativeConnAck
+                                ? MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED
+                                : MqttConnectReturnCode.CONNECTION_ACCEPTED)
+                        .build();
+                ctx.writeAndFlush(connAckMessage);
+                if (!sendNegativeConnAck) {
+                    sessions.put(ctx.channel(), new Session(ctx.channel()));
+                }
+            }, connAckDelayMillis, TimeUnit.MILLISECONDS);
+        } else if (msg instanceof MqttSubscribeMessage) {
+            var msgs = (MqttSubscribeMessage) msg;
+            var session = sessions.get(ctx.channel());
+            ctx.executor().schedule(() -> {
+                var builder = MqttMessageBuilders.subAck().packetId(msgs.variableHeader().messageId());
+                for (var sub : msgs.payload().topicSubscriptions()) {
+                    if (sendNegativeSubAck) {
+                        builder.addGrantedQos(MqttQoS.FAILURE);
+                        continue;
+                    }
+                    var qos = MqttQoS.valueOf(Math.min(sub.qualityOfService().value(), maxGrantedQos.value()));
+                    if (session != null) {
+                        session.subscriptions.put(sub.topicName(), qos);
+                    }
+                    builder.addGrantedQos(qos);
+                }
+                MqttSubAckMessage subAckMessage = builder.build();
+                ctx.writeAndFlush(subAckMessage);
+            }, subAckDelayMillis, TimeUnit.MILLISECONDS);
+        } else if (msg instanceof MqttUnsubscribeMessage) {
+            var msgu = (MqttUnsubscribeMessage) msg;
+            var session = sessions.get(ctx.channel());
+            if (session != null) {
+                msgu.payload().topics().forEach(session.subscriptions::remove);
+            }
+            ctx.writeAndFlush(ackMessage(MqttMessageType.UNSUBACK, msgu.variableHeader().messageId()));
+        } else if (msg instanceof MqttPublishMessage) {
+            MqttPublishMessage msgp = (MqttPublishMessage) msg;
+            byte[] payload = ByteBufUtil.getBytes(msgp.payload());
+            receivedCount.incrementAndGet();
+            if (recordPayloads) {
+                received.add(payload);
+                receivedProperties.add(msgp.variableHeader().properties());
+            }
+            var listener = onPublish;
+            if (listener != null) {
+                listener.accept(msgp.variableHeader().topicName(), payload);
+            }
+            int packetId = msgp.variableHeader().packetId();
+            MqttQoS qos = msgp.fixedHeader().qosLevel();
+            if (qos == MqttQoS.AT_MOST_ONCE) {
+                return;
+            }
+            ctx.executor().schedule(() -> {
+                if (qos == MqttQoS.AT_LEAST_ONCE) {
+                    ctx.writeAndFlush(MqttMessageBuilders.pubAck()
+                            .packetId(packetId)
+                            .build());
+                } else {
+                    ctx.writeAndFlush(ackMessage(MqttMessageType.PUBREC, packetId));
+                }
+            }, pubAckDelayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            var type = msg.fixedHeader().messageType();
+            var session = sessions.get(ctx.channel());
+            switch (type) {
+            case PUBREL:
+                ctx.writeAndFlush(ackMessage(MqttMessageType.PUBCOMP, packetId(msg)));
+                break;
+            case PUBREC:
+                // second step of the QoS 2 flow of a message sent by the broker
+                ctx.writeAndFlush(new MqttMessage(
+                        new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                        MqttMessageIdVariableHeader.from(packetId(msg))));
+                break;
+            case PUBACK:
+            case PUBCOMP:
+                if (session != null) {
+                    session.inflight.decrementAndGet();
+                }
+                break;
+            case PINGREQ:
+                ctx.writeAndFlush(new MqttMessage(
+                        new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+                break;
+            case DISCONNECT:
+                ctx.close();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the clients having a matching subscription, with the minimum of the given QoS and the
+     * granted QoS. Blocks while a receiving client has too many unacknowledged messages or its channel is not
+     * writable.
+     *
+     * @return the number of clients to which the message has been sent
+     */
+    public int publish(String topic, byte[] payload, MqttQoS qos) {
+        return publish(topic, payload, qos, MqttProperties.NO_PROPERTIES);
+    }
+
+    /**
+     * Same as {@link #publish(String, byte[], MqttQoS)} with MQTT 5 properties; the properties are not sent to the
+     * MQTT 3 clients.
+     */
+    public int publish(String topic, byte[] payload, MqttQoS qos, MqttProperties properties) {
+        int n = 0;
+        Map<String, List<Session>> shared = null;
+        for (var session : sessions.values()) {
+            MqttQoS granted = null;
+            for (var e : session.subscriptions.entrySet()) {
+                String filter = e.getKey();
+                if (filter.startsWith(SHARE_PREFIX)) {
+                    int k = filter.indexOf('/', SHARE_PREFIX.length());
+                    if (k > 0 && matches(filter.substring(k + 1), topic)) {
+                        if (shared == null) {
+                            shared = new HashMap<>();
+                        }
+                        shared.computeIfAbsent(filter, f -> new ArrayList<>()).add(session);
+                    }
+                } else if (matches(filter, topic)) {
+                    if (granted == null || e.getValue().value() > granted.value()) {
+                        granted = e.getValue();
+                    }
+                }
+            }
+            if (granted != null) {
+                send(session, topic, payload, MqttQoS.valueOf(Math.min(qos.value(), granted.value())), properties);
+                n++;
+            }
+        }
+        if (shared != null) {
+            for (var e : shared.entrySet()) {
+                var members = e.getValue();
+                int i = sharedCursors.computeIfAbsent(e.getKey(), k -> new AtomicInteger()).getAndIncrement();
+                var session = members.get(Math.floorMod(i, members.size()));
+                var granted = session.subscriptions.get(e.getKey());
+                send(session, topic, payload, MqttQoS.valueOf(Math.min(qos.value(), granted.value())), properties);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private void send(Session session, String topic, byte[] payload, MqttQoS qos, MqttProperties properties) {
+        var ch = session.channel;
+        while (ch.isActive() && (!ch.isWritable()
+                || (qos != MqttQoS.AT_MOST_ONCE && session.inflight.get() >= maxOutgoingInflight))) {
+            LockSupport.parkNanos(50_000);
+        }
+        var builder = MqttMessageBuilders.publish().topicName(topic).qos(qos).retained(false)
+                .payload(Unpooled.wrappedBuffer(payload)).properties(properties);
+        if (qos != MqttQoS.AT_MOST_ONCE) {
+            session.inflight.incrementAndGet();
+            builder.packetId(session.nextPacketId());
+        }
+        ch.writeAndFlush(builder.build());
+    }
+
+    /**
+     * @return true if the topic matches the filter which may contain the <code>+</code> and <code>#</code>
+     *         wildcards
+     */
+    static boolean matches(String filter, String topic) {
+        String[] f = filter.split("/", -1);
+        String[] t = topic.split("/", -1);
+        for (int i = 0; i < f.length; i++) {
+            if ("#".equals(f[i])) {
+                return true;
+            }
+            if (i >= t.length || !("+".equals(f[i]) || f[i].equals(t[i]))) {
+                return false;
+            }
+        }
+        return f.length == t.length;
+    }
+
+    /**
+     * @return the number of clients having at least one subscription
+     */
+    public int getSubscribedClientCount() {
+        return (int) sessions.values().stream().filter(s -> !s.subscriptions.isEmpty()).count();
+    }
+
+    static int packetId(MqttMessage msg) {
+        return ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
+    }
+
+    static MqttMessage ackMessage(MqttMessageType type, int packetId) {
+        return new MqttMessage(new MqttFixedHeader(type, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                MqttMessageIdVariableHeader.from(packetId));
+    }
+
+    public void stop() {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        sessions.values().forEach(s -> s.channel.close());
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
+    }
+
+    public void setConnAckDelayMillis(long connAckDelayMillis) {
+        this.connAckDelayMillis = connAckDelayMillis;
+    }
+
+    public void setPubAckDelayMillis(long pubAckDelayMillis) {
+        this.pubAckDelayMillis = pubAckDelayMillis;
+    }
+
+    public void setSendNegativeConnAck(boolean sendNegativeConnAck) {
+        this.sendNegativeConnAck = sendNegativeConnAck;
+    }
+
+    public void setSendNegativePubAck(boolean sendNegativePubAck) {
+        this.sendNegativeSubAck = sendNegativePubAck;
+    }
+}
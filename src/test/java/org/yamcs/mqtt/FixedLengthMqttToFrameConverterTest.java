@@ -0,0 +1,97 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+import org.yamcs.ConfigurationException;
+import org.yamcs.YConfiguration;
+import org.yamcs.time.Instant;
+import org.yamcs.time.RealtimeTimeService;
+
+public class FixedLengthMqttToFrameConverterTest {
+
+    @Test
+    public void testExact() {
+        var conv = converter(4, 2);
+        var msg = new MqttMessage(new byte[2 + 3 * 4]);
+        var frames = conv.convert(msg);
+        assertEquals(3, frames.size());
+        for (int i = 0; i < 3; i++) {
+            var f = frames.get(i);
+            // slices of the payload
+            assertSame(msg.getPayload(), f.data());
+            assertEquals(2 + 4 * i, f.offset());
+            assertEquals(4, f.length());
+            assertSame(frames.get(0).ert(), f.ert());
+        }
+        assertEquals(3L, conv.frameCount.get());
+        assertEquals(0L, conv.truncatedCount.get());
+    }
+
+    @Test
+    public void testOversized() {
+        var conv = converter(4, 2);
+        var frames = conv.convert(new MqttMessage(new byte[2 + 2 * 4 + 3]));
+        assertEquals(2, frames.size());
+        assertEquals(6, frames.get(1).offset());
+        assertEquals(1L, conv.truncatedCount.get());
+        assertEquals(3L, conv.truncatedBytes.get());
+    }
+
+    @Test
+    public void testShort() {
+        var conv = converter(4, 2);
+        // shorter than one frame
+        assertTrue(conv.convert(new MqttMessage(new byte[2 + 3])).isEmpty());
+        assertEquals(3L, conv.truncatedBytes.get());
+        // shorter than the header
+        assertTrue(conv.convert(new MqttMessage(new byte[1])).isEmpty());
+        assertEquals(2L, conv.truncatedCount.get());
+        assertEquals(4L, conv.truncatedBytes.get());
+        // header only
+        assertTrue(conv.convert(new MqttMessage(new byte[2])).isEmpty());
+        assertTrue(conv.convert(new MqttMessage(new byte[0])).isEmpty());
+        assertEquals(2L, conv.truncatedCount.get());
+        assertEquals(0L, conv.frameCount.get());
+    }
+
+    @Test
+    public void testInvalidConfig() {
+        var conv = new FixedLengthMqttToFrameConverter();
+        assertThrows(ConfigurationException.class, () -> conv.init("test", "test", YConfiguration.emptyConfig()));
+        assertThrows(ConfigurationException.class,
+                () -> conv.init("test", "test", YConfiguration.wrap(Map.of("frameLength", 0))));
+        assertThrows(ConfigurationException.class,
+                () -> conv.init("test", "test", YConfiguration.wrap(Map.of("frameLength", 4, "headerLength", -1))));
+    }
+
+    @Test
+    public void testRawFrameBounds() {
+        var ert = Instant.get(1000);
+        byte[] data = new byte[10];
+        assertEquals(10, new RawFrame(ert, data).length());
+        assertEquals(0, new RawFrame(ert, data, 10, 0).length());
+        assertEquals(4, new RawFrame(ert, data, 6, 4).length());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> new RawFrame(ert, data, -1, 4));
+        assertThrows(IndexOutOfBoundsException.class, () -> new RawFrame(ert, data, 0, -1));
+        assertThrows(IndexOutOfBoundsException.class, () -> new RawFrame(ert, data, 7, 4));
+        assertThrows(IndexOutOfBoundsException.class, () -> new RawFrame(ert, data, 11, 0));
+        // offset + length overflows
+        assertThrows(IndexOutOfBoundsException.class, () -> new RawFrame(ert, data, 1, Integer.MAX_VALUE));
+    }
+
+    static FixedLengthMqttToFrameConverter converter(int frameLength, int headerLength) {
+        var conv = new FixedLengthMqttToFrameConverter();
+        conv.init("test", "test",
+                YConfiguration.wrap(Map.of("frameLength", frameLength, "headerLength", headerLength)));
+        conv.timeService = new RealtimeTimeService();
+        return conv;
+    }
+}
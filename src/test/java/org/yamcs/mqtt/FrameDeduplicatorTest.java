@@ -0,0 +1,89 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.time.Instant;
+
+public class FrameDeduplicatorTest {
+
+    @Test
+    public void testDuplicates() {
+        var dedup = new FrameDeduplicator(1024, 10_000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dedup.add(frame(1, i, 0), 0, 1115, 1000 + i));
+        }
+        // the second station receives the same frames slightly later
+        for (int i = 0; i < 100; i++) {
+            assertFalse(dedup.add(frame(1, i, 0), 0, 1115, 1500 + i));
+        }
+        // same count on another virtual channel
+        assertTrue(dedup.add(frame(2, 5, 0), 0, 1115, 2000));
+        // same header, different content
+        assertTrue(dedup.add(frame(1, 5, 1), 0, 1115, 2000));
+        assertEquals(100, dedup.getDuplicateCount());
+    }
+
+    @Test
+    public void testErtInFuture() {
+        var dedup = new FrameDeduplicator(1024, 1000);
+        byte[] f = frame(1, 7, 0);
+        long wallclock = 100_000;
+        // the station clock is ahead of the local clock: the ERT is still used
+        var copy1 = new RawFrame(Instant.get(wallclock + 200), f);
+        var copy2 = new RawFrame(Instant.get(wallclock + 250), f);
+        assertEquals(wallclock + 200, MqttTmFrameLink.dedupTime(copy1, wallclock));
+        assertTrue(dedup.add(f, 0, f.length, MqttTmFrameLink.dedupTime(copy1, wallclock)));
+        assertFalse(dedup.add(f, 0, f.length, MqttTmFrameLink.dedupTime(copy2, wallclock + 10)));
+
+        assertEquals(wallclock, MqttTmFrameLink.dedupTime(new RawFrame(null, f), wallclock));
+        assertEquals(wallclock, MqttTmFrameLink.dedupTime(new RawFrame(Instant.INVALID_INSTANT, f), wallclock));
+    }
+
+    @Test
+    public void testEvictionByErt() {
+        var dedup = new FrameDeduplicator(1024, 1000);
+        byte[] f = frame(1, 7, 0);
+        assertTrue(dedup.add(f, 0, f.length, 0));
+        assertFalse(dedup.add(f, 0, f.length, 900));
+        // the frame count wrapped around and the frame is identical, but the ERT is too far
+        assertTrue(dedup.add(f, 0, f.length, 5000));
+        assertFalse(dedup.add(f, 0, f.length, 5100));
+    }
+
+    @Test
+    public void testCapacity() {
+        var dedup = new FrameDeduplicator(16, 1_000_000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dedup.add(frame(1, i, 0), 0, 100, i));
+        }
+        // the last 16 are still in the current or previous table
+        for (int i = 84; i < 100; i++) {
+            assertFalse(dedup.add(frame(1, i, 0), 0, 100, i));
+        }
+    }
+
+    @Test
+    public void testOffset() {
+        var dedup = new FrameDeduplicator(16, 1000);
+        byte[] f = frame(1, 3, 0);
+        byte[] g = new byte[f.length + 10];
+        System.arraycopy(f, 0, g, 10, f.length);
+        assertTrue(dedup.add(f, 0, f.length, 0));
+        assertFalse(dedup.add(g, 10, f.length, 0));
+    }
+
+    static byte[] frame(int vcId, int count, int fill) {
+        byte[] d = new byte[1115];
+        d[0] = 0x40;
+        d[1] = (byte) vcId;
+        d[2] = (byte) (count >> 16);
+        d[3] = (byte) (count >> 8);
+        d[4] = (byte) count;
+        d[d.length - 1] = (byte) (count * 31 + fill);
+        d[d.length - 2] = (byte) fill;
+        return d;
+    }
+}
@@ -0,0 +1,89 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.mqtt.FrameReorderBuffer.FrameType;
+
+public class FrameReorderBufferTest {
+    static final long MS = 1_000_000;
+    List<Integer> out = new ArrayList<>();
+
+    @Test
+    public void testReorder() {
+        var rb = new FrameReorderBuffer(FrameType.AOS, 8, 100 * MS, f -> out.add(aosCount(f)));
+        offer(rb, 0, 10, 11, 13, 12, 15, 14);
+        assertEquals(List.of(10, 11, 12, 13, 14, 15), out);
+        assertEquals(2, rb.getReorderedCount());
+        assertEquals(0, rb.getDepth());
+    }
+
+    @Test
+    public void testVirtualChannelsAreIndependent() {
+        var rb = new FrameReorderBuffer(FrameType.AOS, 8, 100 * MS, f -> out.add(aosCount(f)));
+        rb.offer(aos(1, 5), 0);
+        rb.offer(aos(2, 100), 0);
+        rb.offer(aos(1, 7), 0);
+        rb.offer(aos(2, 101), 0);
+        rb.offer(aos(1, 6), 0);
+        assertEquals(List.of(5, 100, 101, 6, 7), out);
+    }
+
+    @Test
+    public void testTimeout() {
+        var rb = new FrameReorderBuffer(FrameType.AOS, 8, 100 * MS, f -> out.add(aosCount(f)));
+        offer(rb, 0, 1, 3, 4);
+        assertEquals(List.of(1), out);
+        rb.checkTimeouts(50 * MS);
+        assertEquals(List.of(1), out);
+        rb.checkTimeouts(100 * MS);
+        assertEquals(List.of(1, 3, 4), out);
+
+        // frame 2 is now late and released immediately
+        offer(rb, 0, 2, 5);
+        assertEquals(List.of(1, 3, 4, 2, 5), out);
+    }
+
+    @Test
+    public void testWindowOverflow() {
+        var rb = new FrameReorderBuffer(FrameType.AOS, 4, 100 * MS, f -> out.add(aosCount(f)));
+        offer(rb, 0, 1, 3, 4, 20, 21);
+        assertEquals(List.of(1, 3, 4, 20, 21), out);
+        assertEquals(0, rb.getDepth());
+    }
+
+    @Test
+    public void testWrapAround() {
+        var rb = new FrameReorderBuffer(FrameType.TM, 16, 100 * MS, f -> out.add(f.data()[3] & 0xFF));
+        for (int c : new int[] { 254, 0, 255, 1 }) {
+            byte[] d = new byte[10];
+            d[3] = (byte) c;
+            rb.offer(new RawFrame(null, d), 0);
+        }
+        assertEquals(List.of(254, 255, 0, 1), out);
+    }
+
+    private void offer(FrameReorderBuffer rb, long now, int... counts) {
+        for (int c : counts) {
+            rb.offer(aos(1, c), now);
+        }
+    }
+
+    static RawFrame aos(int vcId, int count) {
+        byte[] d = new byte[20];
+        d[0] = 0x40;
+        d[1] = (byte) vcId;
+        d[2] = (byte) (count >> 16);
+        d[3] = (byte) (count >> 8);
+        d[4] = (byte) count;
+        return new RawFrame(null, d);
+    }
+
+    static int aosCount(RawFrame f) {
+        byte[] d = f.data();
+        return ((d[2] & 0xFF) << 16) | ((d[3] & 0xFF) << 8) | (d[4] & 0xFF);
+    }
+}
@@ -0,0 +1,131 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.IngestQueue.OverflowPolicy;
+
+public class IngestQueueTest {
+    Log log = new Log(IngestQueueTest.class);
+
+    @Test
+    public void testRingBuffer() {
+        var rb = new RingBuffer<Integer>(3);
+        assertEquals(4, rb.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(rb.offer(i));
+        }
+        assertFalse(rb.offer(4));
+        assertEquals(4, rb.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, rb.poll());
+        }
+        assertNull(rb.poll());
+        assertTrue(rb.isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() {
+        List<Integer> received = new ArrayList<>();
+        var q = new IngestQueue<Integer>("test", 2, OverflowPolicy.DROP_NEWEST, 1, received::add, log);
+        for (int i = 0; i < 5; i++) {
+            q.offer(i);
+        }
+        assertEquals(3, q.getDroppedCount());
+        assertEquals(2, q.size());
+        assertEquals(0, q.ring.poll());
+    }
+
+    @Test
+    public void testDropOldest() {
+        var q = new IngestQueue<Integer>("test", 2, OverflowPolicy.DROP_OLDEST, 1, x -> {
+        }, log);
+        for (int i = 0; i < 5; i++) {
+            q.offer(i);
+        }
+        assertEquals(3, q.getDroppedCount());
+        assertEquals(3, q.ring.poll());
+        assertEquals(4, q.ring.poll());
+    }
+
+    @Test
+    public void testBlockKeepsOrder() throws InterruptedException {
+        int n = 10000;
+        List<Integer> received = new ArrayList<>();
+        var latch = new CountDownLatch(n);
+        var q = new IngestQueue<Integer>("test", 16, OverflowPolicy.BLOCK, 1, x -> {
+            received.add(x);
+            latch.countDown();
+        }, log);
+        q.start();
+        for (int i = 0; i < n; i++) {
+            assertTrue(q.offer(i));
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        q.stop();
+
+        assertEquals(0, q.getDroppedCount());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, received.get(i));
+        }
+    }
+
+    @Test
+    public void testLanesKeepOrderPerKey() throws InterruptedException {
+        int numProducers = 4;
+        int numKeys = 8;
+        int n = 10000;
+        // the last sequence number received for each producer/key and the thread processing each key
+        Map<Integer, Integer> lastSeq = new ConcurrentHashMap<>();
+        Map<Integer, Thread> keyThread = new ConcurrentHashMap<>();
+        List<String> errors = new ArrayList<>();
+        var latch = new CountDownLatch(numProducers * n);
+
+        var lanes = new IngestLanes<int[]>("test", 3, 16, OverflowPolicy.BLOCK, x -> {
+            int producer = x[0], key = x[1], seq = x[2];
+            var prev = lastSeq.put(producer * numKeys + key, seq);
+            if (prev != null && prev >= seq) {
+                synchronized (errors) {
+                    errors.add("producer " + producer + " key " + key + ": " + seq + " after " + prev);
+                }
+            }
+            if (keyThread.computeIfAbsent(key, k -> Thread.currentThread()) != Thread.currentThread()) {
+                synchronized (errors) {
+                    errors.add("key " + key + " processed by more than one thread");
+                }
+            }
+            latch.countDown();
+        }, log);
+        lanes.start();
+
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < numProducers; p++) {
+            int producer = p;
+            var t = new Thread(() -> {
+                for (int i = 0; i < n; i++) {
+                    int key = i % numKeys;
+                    lanes.offer(key, new int[] { producer, key, i });
+                }
+            });
+            t.start();
+            producers.add(t);
+        }
+        for (var t : producers) {
+            t.join();
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        lanes.stop();
+        assertEquals(List.of(), errors);
+    }
+}
@@ -0,0 +1,138 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.ConfigurationException;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.xtce.BooleanParameterType;
+import org.yamcs.xtce.FloatParameterType;
+import org.yamcs.xtce.IntegerParameterType;
+import org.yamcs.xtce.Parameter;
+import org.yamcs.xtce.ParameterType;
+import org.yamcs.xtce.StringParameterType;
+
+public class JsonParameterMapperTest {
+    static final Parameter AZ = parameter("az",
+            new FloatParameterType.Builder().setName("float64").setSizeInBits(64).build());
+    static final Parameter EL = parameter("el",
+            new FloatParameterType.Builder().setName("float32").setSizeInBits(32).build());
+    static final Parameter POWER = parameter("power",
+            new IntegerParameterType.Builder().setName("int32").setSizeInBits(32).setSigned(true).build());
+    static final Parameter COUNT = parameter("count",
+            new IntegerParameterType.Builder().setName("uint32").setSizeInBits(32).setSigned(false).build());
+    static final Parameter TOTAL = parameter("total",
+            new IntegerParameterType.Builder().setName("uint64").setSizeInBits(64).setSigned(false).build());
+    static final Parameter LOCKED = parameter("locked", new BooleanParameterType.Builder().setName("bool").build());
+    static final Parameter MODE = parameter("mode", new StringParameterType.Builder().setName("string").build());
+
+    @Test
+    public void testPaths() {
+        var mapper = new JsonParameterMapper(List.of("antenna.az", "antenna.el", "rf[1].power", "rf[1].locked", "mode"),
+                List.of(AZ, EL, POWER, LOCKED, MODE), null);
+        var result = map(mapper, "{\"mode\": \"TRACK\", \"antenna\": {\"el\": 45.5, \"other\": [1, {\"x\": 2}],"
+                + " \"az\": 120.25}, \"rf\": [{\"power\": 1}, {\"locked\": true, \"power\": -3}]}", 1000);
+        var values = result.getValues();
+        assertEquals(5, values.size());
+        assertEquals(0, result.getTypeMismatches());
+
+        assertEquals("mode", values.get(0).getParameter().getName());
+        assertEquals("TRACK", values.get(0).getEngValue().getStringValue());
+        assertEquals(45.5f, values.get(1).getEngValue().getFloatValue());
+        assertEquals(120.25, values.get(2).getEngValue().getDoubleValue());
+        assertTrue(values.get(3).getEngValue().getBooleanValue());
+        assertEquals(-3, values.get(4).getEngValue().getSint32Value());
+        for (var pv : values) {
+            assertEquals(1000, pv.getGenerationTime());
+            assertEquals(1000, pv.getAcquisitionTime());
+        }
+    }
+
+    @Test
+    public void testTime() {
+        var mapper = new JsonParameterMapper(List.of("az"), List.of(AZ), "meta.time");
+        var result = map(mapper, "{\"az\": 1, \"meta\": {\"time\": \"2024-08-12T22:23:28.430Z\"}}", 1000);
+        assertEquals(TimeEncoding.parse("2024-08-12T22:23:28.430Z"), result.getTime());
+        var pv = result.getValues().get(0);
+        assertEquals(result.getTime(), pv.getGenerationTime());
+        assertEquals(1000, pv.getAcquisitionTime());
+
+        result = map(mapper, "{\"meta\": {\"time\": 1723501408430}, \"az\": 2}", 1000);
+        assertEquals(TimeEncoding.fromUnixMillisec(1723501408430L), result.getValues().get(0).getGenerationTime());
+
+        // fractional milliseconds are rounded
+        result = map(mapper, "{\"meta\": {\"time\": 1723501408430.6}, \"az\": 2}", 1000);
+        assertEquals(TimeEncoding.fromUnixMillisec(1723501408431L), result.getTime());
+        result = map(mapper, "{\"meta\": {\"time\": 1.7235014084306e12}, \"az\": 2}", 1000);
+        assertEquals(TimeEncoding.fromUnixMillisec(1723501408431L), result.getTime());
+    }
+
+    @Test
+    public void testWholeMessage() {
+        var mapper = new JsonParameterMapper(List.of(""), List.of(POWER), null);
+        var result = map(mapper, "42", 0);
+        assertEquals(42, result.getValues().get(0).getEngValue().getSint32Value());
+    }
+
+    @Test
+    public void testTypeMismatch() {
+        var mapper = new JsonParameterMapper(List.of("power", "mode", "az"), List.of(POWER, MODE, AZ), null);
+        var result = map(mapper, "{\"power\": 1.5, \"mode\": {\"a\": 1}, \"az\": null, \"x\": 3}", 0);
+        assertEquals(0, result.getValues().size());
+        assertEquals(2, result.getTypeMismatches());
+    }
+
+    @Test
+    public void testIntegerRange() {
+        var mapper = new JsonParameterMapper(List.of("power", "count", "total"), List.of(POWER, COUNT, TOTAL), null);
+        var result = map(mapper, "{\"power\": -2147483648, \"count\": 4294967295, \"total\": 9007199254740993}", 0);
+        assertEquals(0, result.getTypeMismatches());
+        var values = result.getValues();
+        assertEquals(Integer.MIN_VALUE, values.get(0).getEngValue().getSint32Value());
+        assertEquals(-1, values.get(1).getEngValue().getUint32Value());
+        assertEquals(9007199254740993L, values.get(2).getEngValue().getUint64Value());
+
+        // out of range values are not truncated
+        result = map(mapper, "{\"power\": 2147483648, \"count\": 4294967296, \"total\": -1}", 0);
+        assertEquals(0, result.getValues().size());
+        assertEquals(3, result.getTypeMismatches());
+        result = map(mapper, "{\"power\": -2147483649, \"count\": -1}", 0);
+        assertEquals(0, result.getValues().size());
+        assertEquals(2, result.getTypeMismatches());
+    }
+
+    @Test
+    public void testInvalidPaths() {
+        assertThrows(ConfigurationException.class,
+                () -> new JsonParameterMapper(List.of("a.b", "a"), List.of(AZ, EL), null));
+        assertThrows(ConfigurationException.class,
+                () -> new JsonParameterMapper(List.of("a", "a"), List.of(AZ, EL), null));
+        assertThrows(ConfigurationException.class,
+                () -> new JsonParameterMapper(List.of("a[0]", "a.b"), List.of(AZ, EL), null));
+        assertThrows(ConfigurationException.class,
+                () -> new JsonParameterMapper(List.of("a[x]"), List.of(AZ), null));
+    }
+
+    @Test
+    public void testInvalidJson() {
+        var mapper = new JsonParameterMapper(List.of("az"), List.of(AZ), null);
+        assertThrows(IllegalArgumentException.class, () -> map(mapper, "{\"az\": }", 0));
+    }
+
+    static JsonParameterMapper.Result map(JsonParameterMapper mapper, String json, long time) {
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        return mapper.map(b, 0, b.length, time);
+    }
+
+    static Parameter parameter(String name, ParameterType type) {
+        var p = new Parameter(name);
+        p.setQualifiedName("/GS/" + name);
+        p.setParameterType(type);
+        return p;
+    }
+}
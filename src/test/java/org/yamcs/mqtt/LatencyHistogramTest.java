@@ -0,0 +1,72 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long prevHigh = -1;
+        for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+            long high = LatencyHistogram.bucketHighValue(i);
+            assertTrue(high > prevHigh || high == Long.MAX_VALUE, "bucket " + i);
+            assertEquals(i, LatencyHistogram.bucketIndex(high));
+            assertEquals(i, LatencyHistogram.bucketIndex(prevHigh + 1));
+            prevHigh = high;
+        }
+        assertEquals(Long.MAX_VALUE, prevHigh);
+    }
+
+    @Test
+    public void testPercentiles() {
+        var h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        var s = h.total();
+        assertEquals(1000, s.getCount());
+        assertEquals(1_000_000, s.getMax());
+        assertRelative(500_000, s.getPercentile(50));
+        assertRelative(990_000, s.getPercentile(99));
+        assertEquals(1_000_000, s.getPercentile(100));
+    }
+
+    @Test
+    public void testInterval() {
+        var h = new LatencyHistogram();
+        h.record(100);
+        h.record(200);
+        var s = h.interval();
+        assertEquals(2, s.getCount());
+        assertEquals(200, s.getMax());
+
+        s = h.interval();
+        assertEquals(0, s.getCount());
+        assertEquals(0, s.getPercentile(50));
+
+        h.record(50);
+        s = h.interval();
+        assertEquals(1, s.getCount());
+        assertEquals(50, s.getMax());
+        assertEquals(50, s.getPercentile(99));
+
+        assertEquals(3, h.total().getCount());
+        assertEquals(200, h.total().getMax());
+    }
+
+    @Test
+    public void testNegative() {
+        var h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(1, h.total().getCount());
+        assertEquals(0, h.total().getMax());
+    }
+
+    static void assertRelative(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS,
+                "expected " + expected + " got " + actual);
+    }
+}
@@ -1,12 +1,25 @@
 package org.yamcs.mqtt;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.yamcs.utils.TimeEncoding;
 
 public class LeafMqttToTmPacketConverterTest {
 
+    @BeforeAll
+    public static void setup() {
+        TimeEncoding.setUp();
+    }
+
     @Test
     public void testBasicHexValues() {
         String hexString = "0x44 0x1c 0xa 0x0 0x2 0x30 0xf2 0xfb";
@@ -62,4 +75,41 @@ public class LeafMqttToTmPacketConverterTest {
             LeafMqttToTmPacketConverter.parseHexString(hexString);
         });
     }
+
+    @Test
+    public void testParserMatchesJson() {
+        String[] messages = {
+                "{\"timestamp\": \"2024-08-12T22:23:28.430897\", \"payload\": \"0x47 0x1c 0xa 0x2\"}",
+                "{\"payload\":\"0x1 0xff\",\"timestamp\":\"2016-12-31T23:59:59Z\"}",
+                "{\"timestamp\": \"2024-02-29T00:00:00.5\", \"other\": [1, {\"a\": null}],"
+                        + " \"payload\": \"\"}",
+                "{\"payload\": \"0x00 0x01\"}" };
+        for (String m : messages) {
+            var msg = new MqttMessage(m.getBytes(StandardCharsets.US_ASCII));
+            var fast = LeafMessageParser.parse(msg.getPayload());
+            assertNotNull(fast);
+            var slow = LeafMqttToTmPacketConverter.parseLeafMessageJson(msg);
+            assertEquals(slow.ert(), fast.ert());
+            assertArrayEquals(slow.data(), fast.data());
+        }
+    }
+
+    @Test
+    public void testParserFallback() {
+        String m = "{\"timestamp\": \"2024-08-12T22:23:28+02:00\", \"payload\": \"0x47\"}";
+        assertNull(LeafMessageParser.parse(m.getBytes(StandardCharsets.US_ASCII)));
+
+        m = "{\"timestamp\": \"2024-08-12T22:23:28\", \"payload\": \"0x4\\u0037\"}";
+        assertNull(LeafMessageParser.parse(m.getBytes(StandardCharsets.US_ASCII)));
+        var msg = LeafMqttToTmPacketConverter.parseLeafMessage(new MqttMessage(m.getBytes(StandardCharsets.US_ASCII)));
+        assertArrayEquals(new byte[] { 0x47 }, msg.data());
+    }
+
+    @Test
+    public void testParserNoPayload() {
+        String m = "{\"timestamp\": \"2024-08-12T22:23:28\"}";
+        assertThrows(IllegalArgumentException.class, () -> {
+            LeafMessageParser.parse(m.getBytes(StandardCharsets.US_ASCII));
+        });
+    }
 }
@@ -0,0 +1,129 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedJournalPersistenceTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testReopen() throws MqttPersistenceException {
+        var p = new MappedJournalPersistence(dir, 4096);
+        p.open("client1", "tcp://localhost:1883");
+        p.put("s-1", data("s-1", 10, 100));
+        p.put("s-2", data("s-2", 10, 0));
+        p.put("s-3", data("s-3", 5, 50));
+        p.remove("s-2");
+        assertTrue(p.containsKey("s-1"));
+        assertFalse(p.containsKey("s-2"));
+        p.close();
+
+        p = new MappedJournalPersistence(dir, 4096);
+        p.open("client1", "tcp://localhost:1883");
+        assertEquals(2, Collections.list(p.keys()).size());
+        assertData(data("s-1", 10, 100), p.get("s-1"));
+        assertData(data("s-3", 5, 50), p.get("s-3"));
+        p.close();
+    }
+
+    @Test
+    public void testCompaction() throws MqttPersistenceException {
+        var p = new MappedJournalPersistence(dir, 1024);
+        p.open("client1", "tcp://localhost:1883");
+        long c0 = p.getCompactionCount();
+        for (int i = 0; i < 1000; i++) {
+            p.put("s-" + i, data("s-" + i, 4, 200));
+            if (i > 10) {
+                p.remove("s-" + (i - 10));
+            }
+        }
+        assertTrue(p.getCompactionCount() > c0);
+        assertEquals(11, Collections.list(p.keys()).size());
+        p.close();
+
+        p = new MappedJournalPersistence(dir, 1024);
+        p.open("client1", "tcp://localhost:1883");
+        assertEquals(11, Collections.list(p.keys()).size());
+        assertData(data("s-999", 4, 200), p.get("s-999"));
+        p.close();
+    }
+
+    @Test
+    public void testEmptyJournalDeleted() throws MqttPersistenceException, IOException {
+        for (int i = 0; i < 2; i++) {
+            var p = new MappedJournalPersistence(dir, 1024);
+            p.open(MqttClient.generateClientId(), "tcp://localhost:1883");
+            p.put("s-1", data("s-1", 4, 20));
+            p.remove("s-1");
+            p.close();
+        }
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testCompactionUnmaps() throws MqttPersistenceException, IOException {
+        Path maps = Path.of("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps));
+        var p = new MappedJournalPersistence(dir, 1024);
+        p.open("client1", "tcp://localhost:1883");
+        for (int i = 0; i < 1000; i++) {
+            p.put("s-" + i, data("s-" + i, 4, 200));
+            p.remove("s-" + i);
+        }
+        assertTrue(p.getCompactionCount() > 10);
+        // only the current journal is mapped, not the replaced ones
+        assertEquals(1, mappingCount(maps));
+        p.close();
+        assertEquals(0, mappingCount(maps));
+    }
+
+    long mappingCount(Path maps) throws IOException {
+        String d = dir.toRealPath().toString();
+        return Files.readAllLines(maps).stream().filter(l -> l.contains(d)).count();
+    }
+
+    static MqttPersistentData data(String key, int headerLength, int payloadLength) {
+        byte[] header = new byte[headerLength];
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < headerLength; i++) {
+            header[i] = (byte) (key.hashCode() + i);
+        }
+        for (int i = 0; i < payloadLength; i++) {
+            payload[i] = (byte) (key.hashCode() * 31 + i);
+        }
+        return new MqttPersistentData(key, header, 0, headerLength, payload, 0, payloadLength);
+    }
+
+    static void assertData(MqttPersistable expected, MqttPersistable actual) throws MqttPersistenceException {
+        assertEquals(expected.getHeaderLength(), actual.getHeaderLength());
+        assertEquals(expected.getPayloadLength(), actual.getPayloadLength());
+        byte[] h1 = new byte[expected.getHeaderLength()];
+        byte[] h2 = new byte[actual.getHeaderLength()];
+        System.arraycopy(expected.getHeaderBytes(), expected.getHeaderOffset(), h1, 0, h1.length);
+        System.arraycopy(actual.getHeaderBytes(), actual.getHeaderOffset(), h2, 0, h2.length);
+        assertArrayEquals(h1, h2);
+        byte[] p1 = new byte[expected.getPayloadLength()];
+        byte[] p2 = new byte[actual.getPayloadLength()];
+        System.arraycopy(expected.getPayloadBytes(), expected.getPayloadOffset(), p1, 0, p1.length);
+        System.arraycopy(actual.getPayloadBytes(), actual.getPayloadOffset(), p2, 0, p2.length);
+        assertArrayEquals(p1, p2);
+    }
+}
@@ -0,0 +1,102 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+public class MessageBatcherTest {
+    final List<String> sent = new CopyOnWriteArrayList<>();
+
+    MessageBatcher batcher(int capacity, int batchSize, int maxBatchBytes, long lingerMillis) {
+        return new MessageBatcher("test", 2, capacity, batchSize, maxBatchBytes, lingerMillis, (topic, payload, n) -> {
+            sent.add(topic + ":" + new String(payload, StandardCharsets.UTF_8));
+            return true;
+        });
+    }
+
+    @Test
+    public void testBatchSize() throws InterruptedException {
+        var b = batcher(100, 3, 1000, 60000);
+        b.start();
+        for (int i = 0; i < 7; i++) {
+            b.offer(i % 2, json(i), false);
+        }
+        assertTrue(awaitSent(2));
+        assertEquals(List.of("0:[0,2,4]", "1:[1,3,5]"), sent);
+        b.stop();
+        assertEquals(List.of("0:[0,2,4]", "1:[1,3,5]", "0:[6]"), sent);
+        assertEquals(7, b.getSentCount());
+        assertEquals(3, b.getMessageCount());
+    }
+
+    @Test
+    public void testUrgentBypassesLinger() throws InterruptedException {
+        var b = batcher(100, 100, 1000, 60000);
+        b.offer(0, json(1), false);
+        b.offer(0, json(2), false);
+        b.offer(1, json(3), false);
+        b.offer(0, json(4), true);
+        b.start();
+        // the urgent record is taken out first and sent immediately, the others wait for the linger time
+        assertTrue(awaitSent(1));
+        Thread.sleep(50);
+        assertEquals(List.of("0:[4]"), sent);
+        b.stop();
+        assertEquals(List.of("0:[4]", "0:[1,2]", "1:[3]"), sent);
+    }
+
+    @Test
+    public void testLinger() throws InterruptedException {
+        var b = batcher(100, 100, 1000, 50);
+        b.start();
+        b.offer(1, json(1), false);
+        assertTrue(awaitSent(1));
+        assertEquals("1:[1]", sent.get(0));
+        b.stop();
+    }
+
+    @Test
+    public void testMaxBatchBytes() {
+        var b = batcher(100, 100, 8, 60000);
+        for (int i = 10; i < 15; i++) {
+            b.offer(0, json(i), false);
+        }
+        // not started: the records are sent when stopping
+        b.start();
+        b.stop();
+        assertEquals(List.of("0:[10,11]", "0:[12,13]", "0:[14]"), sent);
+    }
+
+    @Test
+    public void testOverflow() {
+        var b = batcher(2, 100, 1000, 60000);
+        assertTrue(b.offer(0, json(1), false));
+        assertTrue(b.offer(0, json(2), false));
+        assertFalse(b.offer(0, json(3), false));
+        // the urgent records replace the normal ones
+        assertTrue(b.offer(0, json(4), true));
+        assertTrue(b.offer(0, json(5), true));
+        assertFalse(b.offer(0, json(6), true));
+        assertEquals(2, b.getDepth());
+        assertEquals(4, b.getDroppedCount());
+        assertEquals(1, b.getUrgentDroppedCount());
+    }
+
+    boolean awaitSent(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.size() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return sent.size() >= n;
+    }
+
+    static byte[] json(int i) {
+        return Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+    }
+}
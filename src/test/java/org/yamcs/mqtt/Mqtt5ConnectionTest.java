@@ -0,0 +1,189 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.UserProperty;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.yamcs.Spec;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+import org.yamcs.mqtt.MqttUtils.PublishCallback;
+
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPropertyType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+public class Mqtt5ConnectionTest {
+    EventProducer eventProducer = mock(EventProducer.class);
+    Log log = new Log(Mqtt5ConnectionTest.class);
+    FakeMqttBroker broker;
+
+    @BeforeEach
+    public void beforeEach() throws InterruptedException {
+        broker = new FakeMqttBroker();
+        broker.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        broker.stop();
+    }
+
+    @Test
+    public void testReceivedProperties() {
+        var props = new org.eclipse.paho.mqttv5.common.packet.MqttProperties();
+        props.setUserProperties(List.of(new UserProperty("vcid", "3"), new UserProperty("station", "ks"),
+                new UserProperty("vcid", "4")));
+        props.setContentType("application/octet-stream");
+        var msg = new org.eclipse.paho.mqttv5.common.MqttMessage(new byte[] { 1, 2 }, 1, true, props);
+
+        var m = Mqtt5Connection.toMqtt5Message(msg);
+        assertArrayEquals(new byte[] { 1, 2 }, m.getPayload());
+        assertEquals(1, m.getQos());
+        assertTrue(m.isRetained());
+        // the order and the repeated names are kept
+        assertEquals(List.of(new Mqtt5Message.UserProperty("vcid", "3"), new Mqtt5Message.UserProperty("station", "ks"),
+                new Mqtt5Message.UserProperty("vcid", "4")), m.getUserProperties());
+        assertEquals("3", m.getUserProperty("vcid"));
+        assertEquals("application/octet-stream", m.getContentType());
+
+        m = Mqtt5Connection.toMqtt5Message(new org.eclipse.paho.mqttv5.common.MqttMessage(new byte[] { 3 }));
+        assertTrue(m.getUserProperties().isEmpty());
+        assertNull(m.getContentType());
+    }
+
+    @Test
+    public void testPublishedProperties() {
+        var m = new Mqtt5Message(new byte[] { 5 });
+        m.setQos(2);
+        m.addUserProperty("seq", "7");
+        m.addUserProperty("seq", "8");
+        m.setContentType("text/plain");
+
+        var msg = Mqtt5Connection.toPahoMessage(m);
+        assertArrayEquals(new byte[] { 5 }, msg.getPayload());
+        assertEquals(2, msg.getQos());
+        var userProps = msg.getProperties().getUserProperties();
+        assertEquals(2, userProps.size());
+        assertEquals("seq", userProps.get(0).getKey());
+        assertEquals("7", userProps.get(0).getValue());
+        assertEquals("8", userProps.get(1).getValue());
+        assertEquals("text/plain", msg.getProperties().getContentType());
+
+        // a plain message is sent without properties
+        msg = Mqtt5Connection.toPahoMessage(new MqttMessage(new byte[] { 5 }));
+        assertTrue(msg.getProperties().getUserProperties().isEmpty());
+        assertNull(msg.getProperties().getContentType());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        broker.maxGrantedQos = MqttQoS.AT_LEAST_ONCE;
+        var conn = MqttConnection.create(getConfig(), log, false);
+        var received = new ArrayBlockingQueue<MqttMessage>(10);
+        var granted = new CompletableFuture<int[]>();
+        Object user = new Object();
+        conn.subscribe(user, List.of("tm/#"), 1, (t, m) -> received.add(m), eventProducer, granted::complete,
+                granted::completeExceptionally);
+        conn.acquire(user, eventProducer);
+        assertArrayEquals(new int[] { 1 }, granted.get(5, TimeUnit.SECONDS));
+
+        var props = new MqttProperties();
+        props.add(new MqttProperties.UserProperty("vcid", "3"));
+        props.add(new MqttProperties.StringProperty(MqttPropertyType.CONTENT_TYPE.value(), "application/json"));
+        assertEquals(1, broker.publish("tm/realtime", new byte[] { 1, 2, 3 }, MqttQoS.AT_LEAST_ONCE, props));
+
+        var m = received.poll(5, TimeUnit.SECONDS);
+        assertTrue(m instanceof Mqtt5Message);
+        var m5 = (Mqtt5Message) m;
+        assertArrayEquals(new byte[] { 1, 2, 3 }, m5.getPayload());
+        assertEquals("3", m5.getUserProperty("vcid"));
+        assertEquals("application/json", m5.getContentType());
+
+        var tc = new Mqtt5Message(new byte[] { 4 });
+        tc.setQos(1);
+        tc.addUserProperty("seq", "42");
+        var published = new CompletableFuture<Void>();
+        conn.publish("tc", tc, new PublishCallback() {
+            @Override
+            public void onSuccess() {
+                published.complete(null);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                published.completeExceptionally(e);
+            }
+        });
+        published.get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[] { 4 }, broker.received.get(0));
+        var userProps = broker.receivedProperties.get(0).getProperties(MqttPropertyType.USER_PROPERTY.value());
+        assertEquals(1, userProps.size());
+        var pair = ((MqttProperties.UserProperty) userProps.get(0)).value();
+        assertEquals("seq", pair.key);
+        assertEquals("42", pair.value);
+
+        conn.release(user);
+        assertFalse(conn.isConnected());
+        conn.close();
+    }
+
+    @Test
+    public void testSubscriptionRejected() throws Exception {
+        broker.sendNegativeSubAck = true;
+        var conn = MqttConnection.create(getConfig(), log, false);
+        var granted = new CompletableFuture<int[]>();
+        Object user = new Object();
+        conn.subscribe(user, List.of("tm"), 1, (t, m) -> {
+        }, eventProducer, granted::complete, granted::completeExceptionally);
+        conn.acquire(user, eventProducer);
+        // the reason code 0x80 is reported as a failure
+        assertThrows(ExecutionException.class, () -> granted.get(5, TimeUnit.SECONDS));
+
+        conn.release(user);
+        conn.close();
+    }
+
+    @Test
+    public void testCloseWhileConnecting() throws Exception {
+        broker.connAckDelayMillis = 60_000;
+        var conn = MqttConnection.create(getConfig(), log, false);
+        Object user = new Object();
+        conn.acquire(user, eventProducer);
+        assertFalse(conn.isConnected());
+        conn.close();
+        assertFalse(conn.isConnected());
+    }
+
+    YConfiguration getConfig() throws Exception {
+        Map<String, Object> m = new HashMap<>();
+        m.put("brokers", Arrays.asList("tcp://localhost:" + broker.port));
+        m.put("clientId", "test-v5");
+        m.put("protocolVersion", 5);
+        m.put("connectionTimeoutSecs", 1);
+        m.put("autoReconnect", false);
+        m.put("persistence", "memory");
+        var spec = new Spec();
+        MqttUtils.addConnectionOptionsToSpec(spec);
+        return spec.validate(YConfiguration.wrap(m));
+    }
+}
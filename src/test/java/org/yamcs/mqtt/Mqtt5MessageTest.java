@@ -0,0 +1,34 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+import org.yamcs.mqtt.Mqtt5Message.UserProperty;
+
+public class Mqtt5MessageTest {
+
+    @Test
+    public void testUserProperties() {
+        var msg = new Mqtt5Message(new byte[] { 1, 2 });
+        assertNull(msg.getUserProperty("ert"));
+
+        msg.setUserProperties(List.of(new UserProperty("station", "gs1"), new UserProperty("x", "1")));
+        msg.addUserProperty("x", "2");
+        msg.addUserProperty("ert", "2024-01-01T00:00:00.000Z");
+
+        assertEquals(4, msg.getUserProperties().size());
+        assertEquals("gs1", msg.getUserProperty("station"));
+        // the first value is returned for repeated names
+        assertEquals("1", msg.getUserProperty("x"));
+        assertEquals("2024-01-01T00:00:00.000Z", Mqtt5Message.getUserProperty(msg, "ert"));
+    }
+
+    @Test
+    public void testMqtt3Message() {
+        assertNull(Mqtt5Message.getUserProperty(new MqttMessage(new byte[1]), "ert"));
+    }
+}
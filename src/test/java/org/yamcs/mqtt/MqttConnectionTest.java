@@ -0,0 +1,112 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.yamcs.Spec;
+import org.yamcs.YConfiguration;
+import org.yamcs.events.EventProducer;
+import org.yamcs.logging.Log;
+
+public class MqttConnectionTest {
+    EventProducer eventProducer = mock(EventProducer.class);
+    Log log = new Log(MqttConnectionTest.class);
+    FakeMqttBroker broker;
+
+    @BeforeEach
+    public void beforeEach() throws InterruptedException {
+        broker = new FakeMqttBroker();
+        broker.start();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        broker.stop();
+    }
+
+    @Test
+    public void testSharedConnection() throws Exception {
+        var conn = MqttConnection.create(getConfig(), log, true);
+        Object link1 = new Object();
+        Object link2 = new Object();
+
+        conn.acquire(link1, eventProducer);
+        conn.acquire(link2, eventProducer);
+        Thread.sleep(1000);
+        assertTrue(conn.isConnected());
+        assertEquals(1, broker.connectCount.get());
+        assertEquals(2, conn.getNumUsers());
+
+        conn.release(link1);
+        assertTrue(conn.isConnected());
+
+        conn.release(link2);
+        assertFalse(conn.isConnected());
+
+        // acquiring again reconnects
+        conn.acquire(link1, eventProducer);
+        Thread.sleep(1000);
+        assertTrue(conn.isConnected());
+        assertEquals(2, broker.connectCount.get());
+
+        conn.release(link1);
+        conn.close();
+    }
+
+    @Test
+    public void testDispatch() throws Exception {
+        var conn = MqttConnection.create(getConfig(), log, true);
+        var countA = new AtomicInteger();
+        var countB = new AtomicInteger();
+        var countC = new AtomicInteger();
+        Object a = new Object();
+        conn.subscribe(a, List.of("gs/+/tm", "gs/#"), 0, (t, m) -> countA.incrementAndGet(), eventProducer,
+                q -> {
+                }, e -> {
+                });
+        conn.subscribe(new Object(), List.of("gs/1/tm"), 0, (t, m) -> countB.incrementAndGet(), eventProducer,
+                q -> {
+                }, e -> {
+                });
+        conn.subscribe(new Object(), List.of("other"), 0, (t, m) -> countC.incrementAndGet(), eventProducer,
+                q -> {
+                }, e -> {
+                });
+
+        // both filters of the first user match but it receives the message once
+        conn.messageArrived("gs/1/tm", new MqttMessage(new byte[10]));
+        assertEquals(1, countA.get());
+        assertEquals(1, countB.get());
+        assertEquals(0, countC.get());
+
+        conn.release(a);
+        conn.messageArrived("gs/1/tm", new MqttMessage(new byte[10]));
+        assertEquals(1, countA.get());
+        assertEquals(2, countB.get());
+        conn.close();
+    }
+
+    YConfiguration getConfig() throws Exception {
+        Map<String, Object> m = new HashMap<>();
+        m.put("brokers", Arrays.asList("tcp://localhost:" + broker.port));
+        m.put("clientId", "test-shared");
+        m.put("connectionTimeoutSecs", 1);
+        m.put("autoReconnect", false);
+        m.put("persistence", "memory");
+        var spec = new Spec();
+        MqttUtils.addConnectionOptionsToSpec(spec);
+        return spec.validate(YConfiguration.wrap(m));
+    }
+}
@@ -0,0 +1,115 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.mqtt.MqttEventForwarder.Severity;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.protobuf.Event.EventSeverity;
+import org.yamcs.protobuf.Pvalue.MonitoringResult;
+import org.yamcs.utils.StringConverter;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.utils.ValueUtility;
+import org.yamcs.xtce.Parameter;
+import org.yamcs.yarch.DataType;
+import org.yamcs.yarch.Tuple;
+import org.yamcs.yarch.TupleDefinition;
+import org.yamcs.yarch.protobuf.Db;
+
+public class MqttEventForwarderTest {
+    static final long TIME = TimeEncoding.parse("2024-08-12T22:23:28.430Z");
+
+    @Test
+    public void testEventSeverity() {
+        assertEquals(Severity.INFO, MqttEventForwarder.severity(eventTuple(null)));
+        assertEquals(Severity.INFO, MqttEventForwarder.severity(eventTuple(EventSeverity.INFO)));
+        assertEquals(Severity.WATCH, MqttEventForwarder.severity(eventTuple(EventSeverity.WATCH)));
+        assertEquals(Severity.WARNING, MqttEventForwarder.severity(eventTuple(EventSeverity.WARNING)));
+        // the legacy ERROR level is at the same level as DISTRESS
+        assertEquals(Severity.DISTRESS, MqttEventForwarder.severity(eventTuple(EventSeverity.ERROR)));
+        assertEquals(Severity.DISTRESS, MqttEventForwarder.severity(eventTuple(EventSeverity.DISTRESS)));
+        assertEquals(Severity.SEVERE, MqttEventForwarder.severity(eventTuple(EventSeverity.SEVERE)));
+    }
+
+    @Test
+    public void testAlarmSeverity() {
+        assertEquals(Severity.INFO, MqttEventForwarder.severity(alarmTuple(MonitoringResult.IN_LIMITS, null)));
+        assertEquals(Severity.WARNING, MqttEventForwarder.severity(alarmTuple(MonitoringResult.WARNING, null)));
+        // the highest severity of the columns is used
+        assertEquals(Severity.CRITICAL,
+                MqttEventForwarder.severity(alarmTuple(MonitoringResult.WATCH, MonitoringResult.CRITICAL)));
+    }
+
+    @Test
+    public void testEventJson() {
+        String json = new String(MqttEventForwarder.toJson(eventTuple(EventSeverity.ERROR)), StandardCharsets.UTF_8);
+        String prefix = "{\"gentime\":\"" + TimeEncoding.toString(TIME) + "\",\"source\":\"GS\",\"seqNum\":7,"
+                + "\"body\":{";
+        assertTrue(json.startsWith(prefix), json);
+        assertTrue(json.endsWith("}}"), json);
+        assertTrue(json.contains("\"severity\":\"ERROR\""), json);
+        assertTrue(json.contains("\"message\":\"antenna \\\"A\\\" stowed\""), json);
+    }
+
+    @Test
+    public void testAlarmJson() {
+        String json = new String(MqttEventForwarder.toJson(alarmTuple(MonitoringResult.DISTRESS, null)),
+                StandardCharsets.UTF_8);
+        String time = TimeEncoding.toString(TIME);
+        assertEquals("{\"triggerTime\":\"" + time + "\",\"parameter\":\"/GS/power\","
+                + "\"triggerPV\":{\"parameter\":\"/GS/power\",\"time\":\"" + time
+                + "\",\"value\":-3,\"monitoringResult\":\"DISTRESS\"}}", json);
+    }
+
+    @Test
+    public void testColumnJson() {
+        var td = new TupleDefinition();
+        td.addColumn("time", DataType.TIMESTAMP);
+        td.addColumn("data", DataType.BINARY);
+        td.addColumn("ratio", DataType.DOUBLE);
+        td.addColumn("missing", DataType.STRING);
+        td.addColumn("flag", DataType.BOOLEAN);
+        byte[] data = new byte[] { 1, 2, (byte) 0xFF };
+        var tuple = new Tuple(td, Arrays.asList(TIME, data, Double.NaN, null, true));
+        String json = new String(MqttEventForwarder.toJson(tuple), StandardCharsets.UTF_8);
+        assertEquals("{\"time\":\"" + TimeEncoding.toString(TIME) + "\",\"data\":\""
+                + StringConverter.arrayToHexString(data, false) + "\",\"ratio\":null,\"flag\":true}", json);
+    }
+
+    static Tuple eventTuple(EventSeverity severity) {
+        var td = new TupleDefinition();
+        td.addColumn("gentime", DataType.TIMESTAMP);
+        td.addColumn("source", DataType.STRING);
+        td.addColumn("seqNum", DataType.INT);
+        td.addColumn("body", DataType.protobuf(Db.Event.class.getName()));
+        var event = Db.Event.newBuilder().setSource("GS").setGenerationTime(TIME).setReceptionTime(TIME)
+                .setSeqNumber(7).setMessage("antenna \"A\" stowed");
+        if (severity != null) {
+            event.setSeverity(severity);
+        }
+        return new Tuple(td, Arrays.asList(TIME, "GS", 7, event.build()));
+    }
+
+    static Tuple alarmTuple(MonitoringResult trigger, MonitoringResult increased) {
+        var td = new TupleDefinition();
+        td.addColumn("triggerTime", DataType.TIMESTAMP);
+        td.addColumn("parameter", DataType.STRING);
+        td.addColumn("triggerPV", DataType.PARAMETER_VALUE);
+        td.addColumn("severityIncreasedPV", DataType.PARAMETER_VALUE);
+        return new Tuple(td, Arrays.asList(TIME, "/GS/power", pv(trigger), increased == null ? null : pv(increased)));
+    }
+
+    static ParameterValue pv(MonitoringResult mr) {
+        var p = new Parameter("power");
+        p.setQualifiedName("/GS/power");
+        var pv = new ParameterValue(p);
+        pv.setGenerationTime(TIME);
+        pv.setEngValue(ValueUtility.getSint32Value(-3));
+        pv.setMonitoringResult(mr);
+        return pv;
+    }
+}
@@ -2,48 +2,38 @@ package org.yamcs.mqtt;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import java.net.InetSocketAddress;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.yamcs.ValidationException;
 import org.yamcs.YConfiguration;
+import org.yamcs.cmdhistory.CommandHistoryPublisher;
+import org.yamcs.cmdhistory.CommandHistoryPublisher.AckStatus;
 import org.yamcs.commanding.PreparedCommand;
 import org.yamcs.events.EventProducer;
 import org.yamcs.events.EventProducerFactory;
+import org.yamcs.protobuf.Commanding.CommandId;
 import org.yamcs.tctm.Link.Status;
 
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.mqtt.MqttConnAckMessage;
-import io.netty.handler.codec.mqtt.MqttConnectMessage;
-import io.netty.handler.codec.mqtt.MqttConnectReturnCode;
-import io.netty.handler.codec.mqtt.MqttDecoder;
-import io.netty.handler.codec.mqtt.MqttEncoder;
-import io.netty.handler.codec.mqtt.MqttMessage;
-import io.netty.handler.codec.mqtt.MqttMessageBuilders;
-import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
-import io.netty.handler.codec.mqtt.MqttSubAckMessage;
-import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
 
 public class MqttPacketLinkTest {
 
@@ -160,16 +150,161 @@ public class MqttPacketLinkTest {
         mpt.stopAsync().awaitTerminated();
     }
 
-    MqttPacketLink getLink(boolean autoReconnect, String tmTopic) {
-        YConfiguration config = getConfig(broker.port, autoReconnect, tmTopic);
+    @Test
+    public void testGrantedQos() throws Exception {
+        broker.maxGrantedQos = MqttQoS.AT_LEAST_ONCE;
+        broker.start();
+
+        var mpt = getLink(false, "tm");
+        mpt.startAsync().awaitRunning();
+        Thread.sleep(1000);
+        assertEquals(Status.OK, mpt.getLinkStatus());
+        // requested QoS 2 by default
+        assertEquals(1, mpt.getExtraInfo().get("tm QoS"));
+        mpt.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testInflightWindow() throws Exception {
+        broker.pubAckDelayMillis = 2000;
+        broker.start();
+
+        var config = getConfigMap(broker.port, false, null);
+        config.put("maxInflight", 5);
+        var mpt = getLink(config);
+        mpt.startAsync().awaitRunning();
+        Thread.sleep(1000);
+
+        int sent = 0;
+        for (int i = 0; i < 10; i++) {
+            if (mpt.sendCommand(command(i))) {
+                sent++;
+            }
+            // give the client time to move the message in-flight
+            Thread.sleep(50);
+        }
+        // the window is full until the broker acknowledges the messages
+        assertEquals(5, sent);
+        assertEquals(5, mpt.getExtraInfo().get("In-flight messages"));
+        mpt.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testAckTopic() throws Exception {
+        broker.start();
+
+        var config = getConfigMap(broker.port, false, null);
+        config.put("ackTopic", "ack");
+        config.put("ackKeyPath", "id");
+        config.put("ackStatusPath", "status");
+        config.put("ackTimeout", 500);
+        var mpt = getLink(config);
+        var cmdHistory = mock(CommandHistoryPublisher.class);
+        mpt.setCommandHistoryPublisher(cmdHistory);
+        mpt.startAsync().awaitRunning();
+        awaitConnected(mpt);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getSubscribedClientCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        var pc1 = command(1);
+        var id1 = commandId(1);
+        when(pc1.getCommandId()).thenReturn(id1);
+        var pc2 = command(2);
+        var id2 = commandId(2);
+        when(pc2.getCommandId()).thenReturn(id2);
+        assertTrue(mpt.sendCommand(pc1));
+        assertTrue(mpt.sendCommand(pc2));
+
+        broker.publish("ack", "{\"id\": 1, \"status\": \"OK\"}".getBytes(StandardCharsets.UTF_8),
+                MqttQoS.AT_LEAST_ONCE);
+        verify(cmdHistory, timeout(2000)).publishAck(eq(id1), eq(MqttPacketLink.ACK_RADIATED_KEY), anyLong(),
+                eq(AckStatus.OK), isNull());
+        // no reply for the second command
+        verify(cmdHistory, timeout(2000)).publishAck(eq(id2), eq(MqttPacketLink.ACK_RADIATED_KEY), anyLong(),
+                eq(AckStatus.TIMEOUT));
+        assertEquals(0, mpt.ackTracker.getOutstandingCount());
+
+        // the commands awaiting a reply are failed when the link is stopped
+        var pc3 = command(3);
+        var id3 = commandId(3);
+        when(pc3.getCommandId()).thenReturn(id3);
+        assertTrue(mpt.sendCommand(pc3));
+        mpt.stopAsync().awaitTerminated();
+        verify(cmdHistory).publishAck(eq(id3), eq(MqttPacketLink.ACK_RADIATED_KEY), anyLong(), eq(AckStatus.NOK),
+                eq("Link stopped"));
+    }
+
+    static CommandId commandId(int seq) {
+        return CommandId.newBuilder().setOrigin("test").setSequenceNumber(seq).setCommandName("/test/cmd")
+                .setGenerationTime(0).build();
+    }
 
+    /**
+     * All the commands are delivered and acknowledged with each QoS; the throughput per QoS is measured by the load
+     * tests (<code>-Dloadtest.qos</code>).
+     */
+    @Test
+    public void testPublishQos() throws Exception {
+        int n = 500;
+        broker.pubAckDelayMillis = 1;
+        broker.start();
+
+        for (int qos = 0; qos <= 2; qos++) {
+            broker.received.clear();
+            var config = getConfigMap(broker.port, false, null);
+            config.put("clientId", "test-clientid-" + qos);
+            config.put("publishQos", qos);
+            config.put("maxInflight", n);
+            var mpt = getLink(config);
+            mpt.startAsync().awaitRunning();
+            awaitConnected(mpt);
+
+            for (int i = 0; i < n; i++) {
+                assertTrue(mpt.sendCommand(command(i)));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((broker.received.size() < n || mpt.connection.getInFlightMessageCount() > 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(n, broker.received.size());
+            assertEquals(0, mpt.connection.getInFlightMessageCount());
+            assertEquals(qos, mpt.getExtraInfo().get("Publish QoS"));
+            mpt.stopAsync().awaitTerminated();
+        }
+    }
+
+    static void awaitConnected(MqttPacketLink mpt) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mpt.connection.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(mpt.connection.isConnected());
+    }
+
+    PreparedCommand command(int i) {
+        var pc = mock(PreparedCommand.class);
+        when(pc.getBinary()).thenReturn(("testCommand" + i).getBytes());
+        return pc;
+    }
+
+    MqttPacketLink getLink(boolean autoReconnect, String tmTopic) throws ValidationException {
+        return getLink(getConfigMap(broker.port, autoReconnect, tmTopic));
+    }
+
+    MqttPacketLink getLink(Map<String, Object> m) throws ValidationException {
         MqttPacketLink mpt = new MqttPacketLink();
+        // fills in the default values
+        YConfiguration config = mpt.getSpec().validate(YConfiguration.wrap(m));
         mpt.init("test", "test", config);
+        mpt.setCommandHistoryPublisher(mock(CommandHistoryPublisher.class));
         return mpt;
 
     }
 
-    YConfiguration getConfig(int port, boolean autoReconnect, String tmTopic) {
+    Map<String, Object> getConfigMap(int port, boolean autoReconnect, String tmTopic) {
         Map<String, Object> m = new HashMap<>();
         m.put("brokers", Arrays.asList("tcp://localhost:" + port));
         m.put("clientId", "test-clientid");
@@ -180,97 +315,6 @@ public class MqttPacketLinkTest {
         if (tmTopic != null) {
             m.put("tmTopic", tmTopic);
         }
-        return YConfiguration.wrap(m);
-    }
-
-    static class FakeMqttBroker {
-        List<byte[]> received = new ArrayList<>();
-
-        private final NioEventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        private final NioEventLoopGroup workerGroup = new NioEventLoopGroup();
-        private Channel serverChannel;
-        private int port;
-
-        long connAckDelayMillis = 0;
-        long subAckDelayMillis = 0;
-        long pubAckDelayMillis = 0;
-
-        private boolean sendNegativeConnAck = false;
-        private boolean sendNegativeSubAck = false;
-
-        public void start() throws InterruptedException {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    // .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        public void initChannel(SocketChannel ch) {
-                            ch.pipeline().addLast(MqttEncoder.INSTANCE);
-                            ch.pipeline().addLast(new MqttDecoder());
-                            ch.pipeline().addLast(new SimpleChannelInboundHandler<MqttMessage>() {
-                                @Override
-                                protected void channelRead0(ChannelHandlerContext ctx, MqttMessage msg) {
-                                    if (msg instanceof MqttConnectMessage) {
-                                        ctx.executor().schedule(() -> {
-                                            MqttConnAckMessage connAckMessage = MqttMessageBuilders.connAck()
-                                                    .returnCode(sendNegativeConnAck
-                                                            ? MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED
-                                                            : MqttConnectReturnCode.CONNECTION_ACCEPTED)
-                                                    .build();
-                                            ctx.writeAndFlush(connAckMessage);
-                                        }, connAckDelayMillis, TimeUnit.MILLISECONDS);
-                                    } else if (msg instanceof MqttSubscribeMessage) {
-                                        ctx.executor().schedule(() -> {
-                                            MqttSubAckMessage subAckMessage = MqttMessageBuilders.subAck()
-                                                    .packetId(((MqttSubscribeMessage) msg).variableHeader().messageId())
-                                                    .addGrantedQos(sendNegativeSubAck ? MqttQoS.FAILURE
-                                                            : MqttQoS.AT_MOST_ONCE)
-                                                    .build();
-                                            ctx.writeAndFlush(subAckMessage);
-
-                                        }, subAckDelayMillis, TimeUnit.MILLISECONDS);
-                                    } else if (msg instanceof MqttPublishMessage) {
-                                        MqttPublishMessage msgp = (MqttPublishMessage) msg;
-                                        received.add(ByteBufUtil.getBytes(msgp.payload()));
-                                        ctx.executor().schedule(() -> {
-                                            MqttMessage pubAckMessage = MqttMessageBuilders.pubAck()
-                                                    .packetId(msgp.variableHeader().packetId())
-                                                    .build();
-                                            ctx.writeAndFlush(pubAckMessage);
-                                        }, pubAckDelayMillis, TimeUnit.MILLISECONDS);
-                                    }
-                                }
-                            });
-                        }
-                    });
-
-            serverChannel = b.bind(0).sync().channel();
-            port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
-        }
-
-        public void stop() {
-            if (serverChannel != null) {
-                serverChannel.close();
-            }
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
-        }
-
-        public void setConnAckDelayMillis(long connAckDelayMillis) {
-            this.connAckDelayMillis = connAckDelayMillis;
-        }
-
-        public void setPubAckDelayMillis(long pubAckDelayMillis) {
-            this.subAckDelayMillis = pubAckDelayMillis;
-        }
-
-        public void setSendNegativeConnAck(boolean sendNegativeConnAck) {
-            this.sendNegativeConnAck = sendNegativeConnAck;
-        }
-
-        public void setSendNegativePubAck(boolean sendNegativePubAck) {
-            this.sendNegativeSubAck = sendNegativePubAck;
-        }
+        return m;
     }
 }
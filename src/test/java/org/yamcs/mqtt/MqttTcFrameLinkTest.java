@@ -0,0 +1,62 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class MqttTcFrameLinkTest {
+
+    /**
+     * The dispatcher fills the publish window and waits for the broker; the limiter must not let the frames out in a
+     * burst when the window reopens.
+     */
+    @Test
+    public void testByteRateWithSaturatedWindow() throws Exception {
+        int window = 4;
+        int frames = 24;
+        int frameLength = 1000;
+        double byteRate = 40_000;
+
+        var link = new MqttTcFrameLink();
+        link.byteRateLimiter = MqttTcFrameLink.newRateLimiter(byteRate);
+        link.window = new Semaphore(window);
+        var sent = new AtomicInteger();
+        var dispatcher = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    link.acquirePermits(frameLength);
+                    sent.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.start();
+
+        // the window is full and no acknowledgement comes
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (dispatcher.getState() != Thread.State.WAITING || link.window.availablePermits() > 0) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        Thread.sleep(500);
+        assertEquals(window, sent.get());
+
+        // the broker acknowledges everything at once
+        long t0 = System.nanoTime();
+        link.window.release(frames);
+        dispatcher.join(10_000);
+        double elapsed = (System.nanoTime() - t0) / 1e9;
+        assertEquals(frames, sent.get());
+
+        // the frame which passed the limiter before the stall and the next one go out at once, each of the following
+        // ones waits at least for the bytes of the previous one
+        double minElapsed = (frames - window - 2) * frameLength / byteRate;
+        assertTrue(elapsed >= minElapsed, "elapsed " + elapsed + " s, expected at least " + minElapsed + " s");
+    }
+}
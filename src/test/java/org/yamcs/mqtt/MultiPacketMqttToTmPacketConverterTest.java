@@ -0,0 +1,48 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+import org.yamcs.YConfiguration;
+
+public class MultiPacketMqttToTmPacketConverterTest {
+
+    @Test
+    public void testCcsds() {
+        var conv = new MultiPacketMqttToTmPacketConverter();
+        conv.init("test", "test", YConfiguration.emptyConfig());
+
+        byte[] p1 = { 0x08, 0x01, (byte) 0xC0, 0x00, 0x00, 0x00, 0x11 };
+        byte[] p2 = { 0x08, 0x02, (byte) 0xC0, 0x01, 0x00, 0x02, 0x21, 0x22, 0x23 };
+        byte[] payload = new byte[p1.length + p2.length + 5];
+        System.arraycopy(p1, 0, payload, 0, p1.length);
+        System.arraycopy(p2, 0, payload, p1.length, p2.length);
+
+        var pkts = conv.convert(new MqttMessage(payload));
+        assertEquals(2, pkts.size());
+        assertArrayEquals(p1, pkts.get(0).getPacket());
+        assertArrayEquals(p2, pkts.get(1).getPacket());
+        assertEquals(1L, conv.truncatedCount.get());
+        assertEquals(5L, conv.truncatedBytes.get());
+    }
+
+    @Test
+    public void testCustomLengthField() {
+        var conv = new MultiPacketMqttToTmPacketConverter();
+        // 1 byte length at the beginning giving the length of the data following it
+        conv.init("test", "test", YConfiguration.wrap(Map.of("lengthFieldOffset", 0,
+                "lengthFieldLength", 1, "lengthAdjustment", 1)));
+
+        byte[] payload = { 2, 0x0A, 0x0B, 0, 1, 0x0C };
+        var pkts = conv.convert(new MqttMessage(payload));
+        assertEquals(3, pkts.size());
+        assertArrayEquals(new byte[] { 2, 0x0A, 0x0B }, pkts.get(0).getPacket());
+        assertArrayEquals(new byte[] { 0 }, pkts.get(1).getPacket());
+        assertArrayEquals(new byte[] { 1, 0x0C }, pkts.get(2).getPacket());
+        assertEquals(0L, conv.truncatedCount.get());
+    }
+}
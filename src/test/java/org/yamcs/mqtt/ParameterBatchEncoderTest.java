@@ -0,0 +1,65 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.yamcs.parameter.ParameterValue;
+import org.yamcs.parameter.Value;
+import org.yamcs.utils.TimeEncoding;
+import org.yamcs.utils.ValueUtility;
+import org.yamcs.xtce.Parameter;
+
+public class ParameterBatchEncoderTest {
+    static final long TIME = TimeEncoding.parse("2024-08-12T22:23:28.430Z");
+
+    @Test
+    public void testJson() {
+        var batch = new ConflationBuffer.Batch(new int[] { 0, 1, 2, 3, 4 }, new ParameterValue[] {
+                pv("/GS/az", ValueUtility.getDoubleValue(120.25)),
+                pv("/GS/power", ValueUtility.getUint32Value(-1)),
+                pv("/GS/mode", ValueUtility.getStringValue("a \"b\"\n")),
+                pv("/GS/nan", ValueUtility.getFloatValue(Float.NaN)),
+                pv("/GS/gain", ValueUtility.getFloatValue(0.1f)) });
+        String json = new String(ParameterBatchEncoder.encodeJson(batch), StandardCharsets.UTF_8);
+        String time = "\"time\":\"" + TimeEncoding.toString(TIME) + "\"";
+        assertEquals("{\"/GS/az\":{" + time + ",\"value\":120.25},"
+                + "\"/GS/power\":{" + time + ",\"value\":4294967295},"
+                + "\"/GS/mode\":{" + time + ",\"value\":\"a \\\"b\\\"\\u000a\"},"
+                + "\"/GS/nan\":{" + time + ",\"value\":null},"
+                + "\"/GS/gain\":{" + time + ",\"value\":0.1}}", json);
+    }
+
+    @Test
+    public void testBinary() {
+        var batch = new ConflationBuffer.Batch(new int[] { 3, 7 }, new ParameterValue[] {
+                pv("/GS/power", ValueUtility.getSint32Value(-3)),
+                pv("/GS/mode", ValueUtility.getStringValue("TRACK")) });
+        var buf = ByteBuffer.wrap(ParameterBatchEncoder.encodeBinary(batch));
+        assertEquals(2, buf.getShort());
+
+        assertEquals(3, buf.getShort());
+        assertEquals(TIME, buf.getLong());
+        assertEquals(ParameterBatchEncoder.TYPE_SIGNED, buf.get());
+        assertEquals(-3, buf.getLong());
+
+        assertEquals(7, buf.getShort());
+        assertEquals(TIME, buf.getLong());
+        assertEquals(ParameterBatchEncoder.TYPE_STRING, buf.get());
+        byte[] s = new byte[buf.getShort()];
+        buf.get(s);
+        assertEquals("TRACK", new String(s, StandardCharsets.UTF_8));
+        assertEquals(0, buf.remaining());
+    }
+
+    static ParameterValue pv(String name, Value v) {
+        var p = new Parameter(name.substring(name.lastIndexOf('/') + 1));
+        p.setQualifiedName(name);
+        var pv = new ParameterValue(p);
+        pv.setEngValue(v);
+        pv.setGenerationTime(TIME);
+        return pv;
+    }
+}
@@ -0,0 +1,67 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.Test;
+
+public class PayloadCompressionTest {
+
+    @Test
+    public void testRoundTrip() {
+        var compression = new PayloadCompression(new DeflateCodec(), 1 << 20);
+        // a frame filled mostly with idle data
+        byte[] frame = new byte[1115];
+        new Random(1).nextBytes(frame);
+        for (int i = 100; i < frame.length; i++) {
+            frame[i] = 0x55;
+        }
+        var msg = new MqttMessage(frame);
+        msg.setQos(2);
+
+        var compressed = compression.compress(msg);
+        assertTrue(compressed.getPayload().length < 200);
+        assertEquals(2, compressed.getQos());
+
+        var decompressed = compression.decompress(compressed);
+        assertArrayEquals(frame, decompressed.getPayload());
+
+        var extra = new HashMap<String, Object>();
+        compression.addExtraInfo(extra);
+        assertEquals("deflate", extra.get("Compression"));
+        assertEquals(1L, extra.get("Compressed messages"));
+        assertTrue((Double) extra.get("Compression ratio") > 5);
+    }
+
+    @Test
+    public void testLargePayload() {
+        // larger than the initial buffers
+        var codec = new DeflateCodec(9, true);
+        byte[] data = new byte[100_000];
+        new Random(2).nextBytes(data);
+        byte[] compressed = codec.encode(data, 0, data.length);
+        assertArrayEquals(data, codec.decode(compressed, data.length));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(compressed, data.length - 1));
+    }
+
+    @Test
+    public void testInvalid() {
+        var compression = new PayloadCompression(new DeflateCodec(), 1 << 20);
+        byte[] compressed = new DeflateCodec().encode(new byte[1000], 0, 1000);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        assertThrows(IllegalArgumentException.class, () -> compression.decompress(new MqttMessage(truncated)));
+        assertThrows(IllegalArgumentException.class,
+                () -> compression.decompress(new MqttMessage(new byte[] { 1, 2, 3, 4 })));
+
+        var extra = new HashMap<String, Object>();
+        compression.addExtraInfo(extra);
+        assertEquals(2L, extra.get("Decompression errors"));
+    }
+}
@@ -0,0 +1,86 @@
+package org.yamcs.mqtt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TopicRouterTest {
+
+    @Test
+    public void testExact() {
+        var router = new TopicRouter<String>();
+        router.add("gs/1/tm", "r1");
+        router.add("gs/2/tm", "r2");
+        assertEquals("r1", router.match("gs/1/tm"));
+        assertEquals("r2", router.match("gs/2/tm"));
+        assertNull(router.match("gs/3/tm"));
+        assertNull(router.match("gs/1"));
+        assertNull(router.match("gs/1/tm/x"));
+    }
+
+    @Test
+    public void testWildcards() {
+        var router = new TopicRouter<String>();
+        router.add("gs/+/tm", "plus");
+        router.add("gs/#", "hash");
+        router.add("gs/1/tm", "exact");
+
+        assertEquals("exact", router.match("gs/1/tm"));
+        assertEquals("plus", router.match("gs/2/tm"));
+        assertEquals("hash", router.match("gs/2/tc"));
+        assertEquals("hash", router.match("gs/2/tm/x"));
+        // '#' also matches the parent level
+        assertEquals("hash", router.match("gs"));
+        assertNull(router.match("other/2/tm"));
+    }
+
+    @Test
+    public void testEmptyLevels() {
+        var router = new TopicRouter<String>();
+        router.add("gs/+", "plus");
+        assertEquals("plus", router.match("gs/"));
+        assertNull(router.match("gs"));
+    }
+
+    @Test
+    public void testDollarTopics() {
+        var router = new TopicRouter<String>();
+        router.add("#", "all");
+        router.add("+/monitor", "monitor");
+        assertEquals("all", router.match("gs/1/tm"));
+        assertNull(router.match("$SYS/monitor"));
+        assertNull(router.match("$SYS/x"));
+    }
+
+    @Test
+    public void testMatchAll() {
+        var router = new TopicRouter<String>();
+        router.add("gs/+/tm", "plus");
+        router.add("gs/#", "hash");
+        router.add("gs/1/tm", "exact");
+        router.add("#", "all");
+
+        List<String> matches = new ArrayList<>();
+        router.matchAll("gs/1/tm", matches::add);
+        assertEquals(List.of("exact", "plus", "hash", "all"), matches);
+
+        matches.clear();
+        router.matchAll("gs/2/tc", matches::add);
+        assertEquals(List.of("hash", "all"), matches);
+    }
+
+    @Test
+    public void testInvalidFilters() {
+        var router = new TopicRouter<String>();
+        assertThrows(IllegalArgumentException.class, () -> router.add("gs/#/tm", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("gs/a+", "x"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("", "x"));
+        router.add("gs/tm", "x");
+        assertThrows(IllegalArgumentException.class, () -> router.add("gs/tm", "y"));
+    }
+}